@@ -1,12 +1,76 @@
 package org.example;
 
 
+import org.example.hashmap.DemoBoundedCache;
+import org.example.hashmap.DemoCompactHashMap;
+import org.example.hashmap.DemoConcurrentHashMap;
+import org.example.hashmap.DemoConcurrentLongLongMap;
+import org.example.hashmap.DemoConcurrentMap;
+import org.example.hashmap.DemoFrozenHashMap;
+import org.example.hashmap.DemoHashMap;
+import org.example.hashmap.DemoNonBlockingHashMap;
+import org.example.hashmap.DemoSwissHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
 
 public class Main {
+    /**
+     * 不带参数时跑原来的读写锁示例，带参数时按名字跑对应的benchmark，例如
+     * java -cp target/classes org.example.Main readWriteMix
+     */
     public static void main(String[] args) throws Exception {
-        testReleaseRelease();
+        if (args.length == 0) {
+            testReleaseRelease();
+            return;
+        }
+        switch (args[0]) {
+            case "readWriteMix":
+                testConcurrentReadWriteMix();
+                break;
+            case "longLongMap":
+                testConcurrentLongLongMap();
+                break;
+            case "boundedCache":
+                testBoundedCache();
+                break;
+            case "bulkPutAll":
+                testBulkPutAll();
+                break;
+            case "tableAccess":
+                testTableAccess();
+                break;
+            case "nonBlockingScaling":
+                testNonBlockingScaling();
+                break;
+            case "hashFlooding":
+                testHashFlooding();
+                break;
+            case "swissHashMap":
+                testSwissHashMap();
+                break;
+            case "hashMapFootprint":
+                testHashMapFootprint();
+                break;
+            case "frozenHashMap":
+                testFrozenHashMap();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown benchmark: " + args[0]);
+        }
     }
 
     private static void testReleaseRelease() throws Exception {
@@ -74,4 +138,509 @@ public class Main {
         readThread1.join();
         readThread2.join();
     }
-}
\ No newline at end of file
+
+    /**
+     * DemoConcurrentHashMap和ConcurrentHashMap在90/10、99/1读写比例下的吞吐
+     * 预先放入所有key，写是覆盖已有的key，不触发扩容，比较的是读路径和槽锁的开销
+     */
+    private static void testConcurrentReadWriteMix() throws Exception {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        int n = 1 << 20;
+        Integer[] keys = new Integer[n];
+        for (int i = 0; i < n; i++)
+            keys[i] = i;
+        DemoConcurrentHashMap<Integer, Integer> demoMap = new DemoConcurrentHashMap<>();
+        ConcurrentHashMap<Integer, Integer> jdkMap = new ConcurrentHashMap<>();
+        for (Integer k : keys) {
+            demoMap.put(k, k);
+            jdkMap.put(k, k);
+        }
+        for (int readPercent : new int[] {90, 99}) {
+            for (int round = 0; round < 3; round++) {
+                double demo = runReadWriteMix(threads, keys, readPercent, demoMap::get, k -> demoMap.put(k, k));
+                double jdk = runReadWriteMix(threads, keys, readPercent, jdkMap::get, k -> jdkMap.put(k, k));
+                System.out.printf("%d/%d round %d, %d threads: DemoConcurrentHashMap %.1f ops/us, ConcurrentHashMap %.1f ops/us%n",
+                        readPercent, 100 - readPercent, round, threads, demo, jdk);
+            }
+        }
+    }
+
+    /**
+     * DemoNonBlockingHashMap和DemoConcurrentHashMap从1到64个线程的扩展性，两者都通过DemoConcurrentMap调用：
+     * 1. 从空表开始并发放入，包含扩容时的协助复制
+     * 2. 预先放好的1024个key上做50/50读写，写集中在少数槽上，对比槽锁和value槽CAS
+     */
+    private static void testNonBlockingScaling() throws Exception {
+        int n = 1 << 21;
+        Integer[] hotKeys = new Integer[1024];
+        for (int i = 0; i < hotKeys.length; i++)
+            hotKeys[i] = i;
+        Map<String, Supplier<DemoConcurrentMap<Integer, Integer>>> impls = new LinkedHashMap<>();
+        impls.put("DemoNonBlockingHashMap", DemoNonBlockingHashMap::new);
+        impls.put("DemoConcurrentHashMap", DemoConcurrentHashMap::new);
+        for (int threads = 1; threads <= 64; threads <<= 1) {
+            for (Map.Entry<String, Supplier<DemoConcurrentMap<Integer, Integer>>> e : impls.entrySet()) {
+                DemoConcurrentMap<Integer, Integer> map = e.getValue().get();
+                long start = System.nanoTime();
+                runPartitioned(threads, n, i -> map.put(i, i));
+                double insert = (double) n * 1000 / (System.nanoTime() - start);
+
+                DemoConcurrentMap<Integer, Integer> hot = e.getValue().get();
+                for (Integer k : hotKeys)
+                    hot.put(k, k);
+                double mix = runReadWriteMix(threads, hotKeys, 50, hot::get, k -> hot.put(k, k));
+                System.out.printf("%2d threads, %-22s: insert %.1f ops/us, 50/50 on %d keys %.1f ops/us (size %d)%n",
+                        threads, e.getKey(), insert, hotKeys.length, mix, map.size());
+            }
+        }
+    }
+
+    /**
+     * threads个线程各做固定次数的随机读写，返回总吞吐(次/微秒)
+     */
+    private static double runReadWriteMix(int threads, Integer[] keys, int readPercent,
+                                          Function<Integer, Integer> get, Consumer<Integer> put) throws Exception {
+        int opsPerThread = 4_000_000;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int seed = t * 0x9e3779b9 + 1;
+            workers[t] = new Thread(() -> {
+                int x = seed, mask = keys.length - 1;
+                long sink = 0;
+                for (int i = 0; i < opsPerThread; i++) {
+                    // xorshift，避免Random自身的CAS干扰测量
+                    x ^= x << 13;
+                    x ^= x >>> 17;
+                    x ^= x << 5;
+                    Integer k = keys[x & mask];
+                    if ((x >>> 20) % 100 < readPercent)
+                        sink += get.apply(k);
+                    else
+                        put.accept(k);
+                }
+                if (sink == 42)
+                    System.out.print("");
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread t : workers)
+            t.start();
+        for (Thread t : workers)
+            t.join();
+        return (double) threads * opsPerThread * 1000 / (System.nanoTime() - start);
+    }
+
+    /**
+     * DemoConcurrentLongLongMap和装箱的DemoConcurrentHashMap<Long, Long>：每个元素占用的内存，
+     * 以及多线程放入、随机读的吞吐。装箱版本的Long也算在map的开销里，这正是要省掉的部分
+     */
+    private static void testConcurrentLongLongMap() throws Exception {
+        int n = 4_000_000;
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+        long base = usedMemory();
+        DemoConcurrentLongLongMap longMap = new DemoConcurrentLongLongMap();
+        long start = System.nanoTime();
+        runPartitioned(threads, n, i -> longMap.put(i * 31L, i));
+        long longPutNanos = System.nanoTime() - start;
+        long longMapBytes = usedMemory() - base;
+
+        base = usedMemory();
+        DemoConcurrentHashMap<Long, Long> boxedMap = new DemoConcurrentHashMap<>();
+        start = System.nanoTime();
+        runPartitioned(threads, n, i -> boxedMap.put(i * 31L, (long) i));
+        long boxedPutNanos = System.nanoTime() - start;
+        long boxedMapBytes = usedMemory() - base;
+
+        System.out.printf("DemoConcurrentLongLongMap:         %.1f bytes/entry, put %.1f ns/op%n",
+                (double) longMapBytes / n, (double) longPutNanos / n);
+        System.out.printf("DemoConcurrentHashMap<Long, Long>: %.1f bytes/entry, put %.1f ns/op%n",
+                (double) boxedMapBytes / n, (double) boxedPutNanos / n);
+
+        for (int round = 0; round < 3; round++) {
+            long[] sink = new long[1];
+            start = System.nanoTime();
+            runPartitioned(threads, n, i -> sink[0] += longMap.get(((i * 0x9e3779b9) & 0x7fffffff) % n * 31L));
+            long longGetNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            runPartitioned(threads, n, i -> sink[0] += boxedMap.get(((i * 0x9e3779b9) & 0x7fffffff) % n * 31L));
+            long boxedGetNanos = System.nanoTime() - start;
+            System.out.printf("round %d, %d threads: get DemoConcurrentLongLongMap %.1f ns/op, boxed %.1f ns/op (check %d)%n",
+                    round, threads, (double) longGetNanos / n, (double) boxedGetNanos / n, sink[0]);
+        }
+    }
+
+    /**
+     * 把[0, n)平均分给threads个线程执行action，等全部结束
+     */
+    private static void runPartitioned(int threads, int n, IntConsumer action) throws Exception {
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int from = (int) ((long) n * t / threads), to = (int) ((long) n * (t + 1) / threads);
+            workers[t] = new Thread(() -> {
+                for (int i = from; i < to; i++)
+                    action.accept(i);
+            });
+            workers[t].start();
+        }
+        for (Thread t : workers)
+            t.join();
+    }
+
+    /**
+     * 批量放入：DemoConcurrentHashMap.putAll按槽分组加锁，对比逐个put和ConcurrentHashMap.putAll；
+     * 再让多个线程同时往同一个map里putAll各自的一批，对比同样的线程逐个put
+     */
+    private static void testBulkPutAll() throws Exception {
+        int n = 1_000_000;
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        Random random = new Random(42);
+        HashMap<Integer, Integer> batch = new HashMap<>();
+        while (batch.size() < n)
+            batch.put(random.nextInt(), batch.size());
+        List<HashMap<Integer, Integer>> batches = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            HashMap<Integer, Integer> b = new HashMap<>();
+            while (b.size() < n / threads)
+                b.put(random.nextInt(), b.size());
+            batches.add(b);
+        }
+
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            DemoConcurrentHashMap<Integer, Integer> looped = new DemoConcurrentHashMap<>();
+            for (Map.Entry<Integer, Integer> e : batch.entrySet())
+                looped.put(e.getKey(), e.getValue());
+            long loopNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            DemoConcurrentHashMap<Integer, Integer> bulk = new DemoConcurrentHashMap<>();
+            bulk.putAll(batch);
+            long bulkNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            ConcurrentHashMap<Integer, Integer> jdk = new ConcurrentHashMap<>();
+            jdk.putAll(batch);
+            long jdkNanos = System.nanoTime() - start;
+
+            DemoConcurrentHashMap<Integer, Integer> sharedLooped = new DemoConcurrentHashMap<>();
+            start = System.nanoTime();
+            runPartitioned(threads, threads, t -> {
+                for (Map.Entry<Integer, Integer> e : batches.get(t).entrySet())
+                    sharedLooped.put(e.getKey(), e.getValue());
+            });
+            long sharedLoopNanos = System.nanoTime() - start;
+
+            DemoConcurrentHashMap<Integer, Integer> sharedBulk = new DemoConcurrentHashMap<>();
+            start = System.nanoTime();
+            runPartitioned(threads, threads, t -> sharedBulk.putAll(batches.get(t)));
+            long sharedBulkNanos = System.nanoTime() - start;
+
+            System.out.printf("round %d: put loop %d ms, putAll %d ms, ConcurrentHashMap.putAll %d ms; " +
+                            "%d threads sharing one map: put loop %d ms, putAll %d ms (sizes %d/%d/%d/%d/%d)%n",
+                    round, loopNanos / 1_000_000, bulkNanos / 1_000_000, jdkNanos / 1_000_000,
+                    threads, sharedLoopNanos / 1_000_000, sharedBulkNanos / 1_000_000,
+                    looped.size(), bulk.size(), jdk.size(), sharedLooped.size(), sharedBulk.size());
+        }
+    }
+
+    /**
+     * Unsafe和VarHandle在槽位读写、CAS和AQS state CAS上的对比
+     * VarHandle要Java 9，benchmark在src/main/java9的DemoAccessBenchmark里，只打进多版本jar，这里按类名调用
+     */
+    private static void testTableAccess() throws Exception {
+        Class<?> benchmark;
+        try {
+            benchmark = Class.forName("org.example.DemoAccessBenchmark");
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("tableAccess needs Java 9+ and the multi-release jar: " +
+                    "java -cp target/java-1.0-SNAPSHOT.jar org.example.Main tableAccess", e);
+        }
+        benchmark.getDeclaredMethod("run").invoke(null);
+    }
+
+    /**
+     * 哈希洪水：由"Aa"和"BB"拼成的字符串hashCode全部相同，不开随机种子时全部落进同一个槽，
+     * 槽退化成红黑树以后每次操作都要在一棵越来越深的树上做字符串比较；
+     * 打开随机种子后按内容重新计算哈希，元素个数增加时单次操作的平均和p99延迟应该基本不变；
+     * put的最大延迟里包含扩容，两种模式都会随元素个数增长
+     */
+    private static void testHashFlooding() throws Exception {
+        String[] colliding = new String[1 << 16];
+        for (int i = 0; i < colliding.length; i++) {
+            StringBuilder sb = new StringBuilder(32);
+            for (int b = 15; b >= 0; b--)
+                sb.append(((i >>> b) & 1) == 0 ? "Aa" : "BB");
+            colliding[i] = sb.toString();
+        }
+        for (int round = 0; round < 3; round++) {
+            for (int n = 1 << 10; n <= colliding.length; n <<= 2) {
+                String[] keys = Arrays.copyOf(colliding, n);
+                DemoHashMap<String, Integer> plain = new DemoHashMap<>();
+                DemoHashMap<String, Integer> seeded = DemoHashMap.seeded();
+                DemoConcurrentHashMap<String, Integer> concurrentPlain = new DemoConcurrentHashMap<>(16);
+                DemoConcurrentHashMap<String, Integer> concurrentSeeded = DemoConcurrentHashMap.seeded(16);
+                reportFlooding(round, "DemoHashMap", keys, plain::put, plain::get);
+                reportFlooding(round, "DemoHashMap seeded", keys, seeded::put, seeded::get);
+                reportFlooding(round, "DemoConcurrentHashMap", keys, concurrentPlain::put, concurrentPlain::get);
+                reportFlooding(round, "DemoConcurrentHashMap seeded", keys, concurrentSeeded::put, concurrentSeeded::get);
+            }
+        }
+    }
+
+    /**
+     * 逐个放入keys再逐个查找，每次操作单独计时，输出平均、p99和最大延迟
+     */
+    private static void reportFlooding(int round, String name, String[] keys,
+                                       BiConsumer<String, Integer> put, Function<String, Integer> get) {
+        int n = keys.length;
+        long[] putNanos = new long[n], getNanos = new long[n];
+        long sink = 0;
+        for (int i = 0; i < n; i++) {
+            long start = System.nanoTime();
+            put.accept(keys[i], i);
+            putNanos[i] = System.nanoTime() - start;
+        }
+        for (int i = 0; i < n; i++) {
+            long start = System.nanoTime();
+            sink += get.apply(keys[i]);
+            getNanos[i] = System.nanoTime() - start;
+        }
+        long putTotal = 0, getTotal = 0;
+        for (int i = 0; i < n; i++) {
+            putTotal += putNanos[i];
+            getTotal += getNanos[i];
+        }
+        Arrays.sort(putNanos);
+        Arrays.sort(getNanos);
+        int p99 = (int) (n * 0.99);
+        System.out.printf("round %d, %-28s %6d keys: put avg %6d p99 %7d max %8d ns, get avg %6d p99 %7d max %8d ns (check %d)%n",
+                round, name, n, putTotal / n, putNanos[p99], putNanos[n - 1],
+                getTotal / n, getNanos[p99], getNanos[n - 1], sink);
+    }
+
+    /**
+     * DemoSwissHashMap对比DemoHashMap和HashMap：放入、命中、未命中，以及删旧key放新key的churn
+     * churn保持元素个数不变，DemoSwissHashMap会不断产生墓碑，测的是墓碑复用和按原大小重建的开销
+     */
+    private static void testSwissHashMap() throws Exception {
+        int n = 1 << 20;
+        Integer[] keys = new Integer[n], absent = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = i * 0x9e3779b9;
+            absent[i] = (n + i) * 0x9e3779b9;
+        }
+        // 随机排列，避免按插入顺序访问时缓存命中率虚高
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+        Random random = new Random(42);
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1), t = order[i];
+            order[i] = order[j];
+            order[j] = t;
+        }
+        for (int round = 0; round < 5; round++) {
+            DemoHashMap<Integer, Integer> hashMap = new DemoHashMap<>();
+            reportHitMissChurn(round, "DemoHashMap", keys, absent, order, hashMap::put, hashMap::get, hashMap::remove);
+            DemoSwissHashMap<Integer, Integer> swissMap = new DemoSwissHashMap<>();
+            reportHitMissChurn(round, "DemoSwissHashMap", keys, absent, order, swissMap::put, swissMap::get, swissMap::remove);
+            HashMap<Integer, Integer> jdkMap = new HashMap<>();
+            reportHitMissChurn(round, "HashMap", keys, absent, order, jdkMap::put, jdkMap::get, jdkMap::remove);
+        }
+    }
+
+    private static void reportHitMissChurn(int round, String name, Integer[] keys, Integer[] absent, int[] order,
+                                           BiFunction<Integer, Integer, Integer> put,
+                                           Function<Integer, Integer> get, Function<Integer, Integer> remove) {
+        int n = keys.length;
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++)
+            put.apply(keys[i], i);
+        long putNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i : order)
+            sink += get.apply(keys[i]);
+        long hitNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i : order)
+            if (get.apply(absent[i]) != null)
+                sink++;
+        long missNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i : order) {
+            sink += remove.apply(keys[i]);
+            put.apply(absent[i], i);
+        }
+        long churnNanos = System.nanoTime() - start;
+        System.out.printf("round %d, %-16s: put %.1f, hit %.1f, miss %.1f, churn %.1f ns/op (check %d)%n",
+                round, name, (double) putNanos / n, (double) hitNanos / n, (double) missNanos / n,
+                (double) churnNanos / n, sink);
+    }
+
+    /**
+     * DemoBoundedCache在Zipf分布访问下的命中率(对比access order的LinkedHashMap实现的普通LRU)，
+     * 以及多线程读、未命中时写入的吞吐
+     */
+    private static void testBoundedCache() throws Exception {
+        int items = 1_000_000, ops = 10_000_000;
+        for (double skew : new double[] {0.7, 0.9, 1.1}) {
+            int[] trace = zipfTrace(items, skew, ops, 42);
+            for (int capacity : new int[] {1_000, 10_000, 100_000}) {
+                DemoBoundedCache<Integer, Integer> cache = new DemoBoundedCache<>(capacity);
+                for (int k : trace) {
+                    if (cache.getIfPresent(k) == null)
+                        cache.put(k, k);
+                }
+                LinkedHashMap<Integer, Integer> lru = new LinkedHashMap<Integer, Integer>(capacity * 2, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<Integer, Integer> eldest) {
+                        return size() > capacity;
+                    }
+                };
+                long hits = 0;
+                for (int k : trace) {
+                    if (lru.get(k) != null)
+                        hits++;
+                    else
+                        lru.put(k, k);
+                }
+                System.out.printf("zipf %.1f, capacity %d: W-TinyLFU hit rate %.3f, LRU %.3f%n",
+                        skew, capacity, cache.hitRate(), (double) hits / ops);
+            }
+        }
+
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        int[] trace = zipfTrace(items, 0.9, ops, 7);
+        Integer[] keys = new Integer[items];
+        for (int i = 0; i < items; i++)
+            keys[i] = i;
+        for (int round = 0; round < 3; round++) {
+            DemoBoundedCache<Integer, Integer> cache = new DemoBoundedCache<>(10_000);
+            long start = System.nanoTime();
+            runPartitioned(threads, ops, i -> {
+                Integer k = keys[trace[i]];
+                if (cache.getIfPresent(k) == null)
+                    cache.put(k, k);
+            });
+            long nanos = System.nanoTime() - start;
+            System.out.printf("round %d, %d threads: %.1f ops/us, hit rate %.3f%n",
+                    round, threads, (double) ops * 1000 / nanos, cache.hitRate());
+        }
+    }
+
+    /**
+     * 按Zipf分布生成访问序列，第i个key的概率正比于1 / (i + 1)^skew，key打乱后再使用
+     */
+    private static int[] zipfTrace(int items, double skew, int ops, long seed) {
+        double[] cdf = new double[items];
+        double sum = 0;
+        for (int i = 0; i < items; i++) {
+            sum += 1.0 / Math.pow(i + 1, skew);
+            cdf[i] = sum;
+        }
+        Random random = new Random(seed);
+        int[] ids = new int[items];
+        for (int i = 0; i < items; i++)
+            ids[i] = i;
+        for (int i = items - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1), t = ids[i];
+            ids[i] = ids[j];
+            ids[j] = t;
+        }
+        int[] trace = new int[ops];
+        for (int i = 0; i < ops; i++) {
+            int r = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+            trace[i] = ids[Math.min(r < 0 ? -r - 1 : r, items - 1)];
+        }
+        return trace;
+    }
+
+    /**
+     * 比较DemoHashMap和DemoCompactHashMap每个元素占用的内存
+     * key和value提前建好，两个map共用，只统计map自身的开销
+     */
+    private static void testHashMapFootprint() throws Exception {
+        int n = 1_000_000;
+        Integer[] keys = new Integer[n];
+        for (int i = 0; i < n; i++)
+            keys[i] = i;
+
+        long base = usedMemory();
+        DemoHashMap<Integer, Integer> hashMap = new DemoHashMap<>();
+        for (Integer k : keys)
+            hashMap.put(k, k);
+        long hashMapBytes = usedMemory() - base;
+
+        base = usedMemory();
+        DemoCompactHashMap<Integer, Integer> compactMap = new DemoCompactHashMap<>();
+        for (Integer k : keys)
+            compactMap.put(k, k);
+        long compactMapBytes = usedMemory() - base;
+
+        System.out.printf("DemoHashMap:        %d entries, %.1f bytes/entry%n",
+                hashMap.size(), (double) hashMapBytes / n);
+        System.out.printf("DemoCompactHashMap: %d entries, %.1f bytes/entry%n",
+                compactMap.size(), (double) compactMapBytes / n);
+    }
+
+    /**
+     * 比较DemoHashMap和freeze()之后的DemoFrozenHashMap：每个元素占用的内存和随机读的吞吐
+     */
+    private static void testFrozenHashMap() throws Exception {
+        int n = 1_000_000;
+        Integer[] keys = new Integer[n];
+        for (int i = 0; i < n; i++)
+            keys[i] = i * 31;
+
+        long base = usedMemory();
+        DemoHashMap<Integer, Integer> hashMap = new DemoHashMap<>();
+        for (Integer k : keys)
+            hashMap.put(k, k);
+        long hashMapBytes = usedMemory() - base;
+
+        // usedMemory里有GC和sleep，只给freeze()本身计时
+        base = usedMemory();
+        long start = System.nanoTime();
+        DemoFrozenHashMap<Integer, Integer> frozenMap = hashMap.freeze();
+        long freezeNanos = System.nanoTime() - start;
+        long frozenMapBytes = usedMemory() - base;
+        System.out.printf("freeze: %d ms%n", freezeNanos / 1_000_000);
+
+        // 随机顺序的查找，避免按插入顺序访问时缓存命中率虚高
+        int[] order = new int[n];
+        Random random = new Random(42);
+        for (int i = 0; i < n; i++)
+            order[i] = random.nextInt(n);
+        for (int round = 0; round < 5; round++) {
+            long sum = 0;
+            start = System.nanoTime();
+            for (int i : order)
+                sum += hashMap.get(keys[i]);
+            long hashMapNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i : order)
+                sum -= frozenMap.get(keys[i]);
+            long frozenMapNanos = System.nanoTime() - start;
+            System.out.printf("round %d: DemoHashMap %.1f ns/get, DemoFrozenHashMap %.1f ns/get (check %d)%n",
+                    round, (double) hashMapNanos / n, (double) frozenMapNanos / n, sum);
+        }
+        System.out.printf("DemoHashMap:       %d entries, %.1f bytes/entry%n",
+                hashMap.size(), (double) hashMapBytes / n);
+        System.out.printf("DemoFrozenHashMap: %d entries, %.1f bytes/entry%n",
+                frozenMap.size(), (double) frozenMapBytes / n);
+    }
+
+    private static long usedMemory() throws Exception {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -1,7 +1,5 @@
 package org.example.aqs;
 
-import sun.misc.Unsafe;
-
 import java.util.concurrent.locks.AbstractQueuedSynchronizer;
 import java.util.concurrent.locks.LockSupport;
 
@@ -145,7 +143,7 @@ public abstract class DemoAbstractQueuedSynchronizer extends DemoAbstractOwnable
     }
 
     protected final boolean compareAndSetState(int expect, int update) {
-        return unsafe.compareAndSwapInt(this, stateOffset, expect, update);
+        return DemoQueueAccess.compareAndSetState(this, expect, update);
     }
 
     /**
@@ -688,48 +686,25 @@ public abstract class DemoAbstractQueuedSynchronizer extends DemoAbstractOwnable
 
 
 
-    private static final Unsafe unsafe = Unsafe.getUnsafe();
-    private static final long stateOffset;
-    private static final long headOffset;
-    private static final long tailOffset;
-    private static final long waitStatusOffset;
-    private static final long nextOffset;
-
-    static {
-        try {
-            stateOffset = unsafe.objectFieldOffset
-                    (DemoAbstractQueuedSynchronizer.class.getDeclaredField("state"));
-            headOffset = unsafe.objectFieldOffset
-                    (DemoAbstractQueuedSynchronizer.class.getDeclaredField("head"));
-            tailOffset = unsafe.objectFieldOffset
-                    (DemoAbstractQueuedSynchronizer.class.getDeclaredField("tail"));
-            waitStatusOffset = unsafe.objectFieldOffset
-                    (Node.class.getDeclaredField("waitStatus"));
-            nextOffset = unsafe.objectFieldOffset
-                    (DemoAbstractQueuedSynchronizer.Node.class.getDeclaredField("next"));
-
-        } catch (Exception ex) { throw new Error(ex); }
-    }
-
+    // CAS操作在DemoQueueAccess里，Java 9以上换成VarHandle实现
     private final boolean compareAndSetHead(Node update) {
-        return unsafe.compareAndSwapObject(this, headOffset, null, update);
+        return DemoQueueAccess.compareAndSetHead(this, update);
     }
 
     private final boolean compareAndSetTail(Node expect, Node update) {
-        return unsafe.compareAndSwapObject(this, tailOffset, expect, update);
+        return DemoQueueAccess.compareAndSetTail(this, expect, update);
     }
 
     private static final boolean compareAndSetWaitStatus(Node node,
                                                          int expect,
                                                          int update) {
-        return unsafe.compareAndSwapInt(node, waitStatusOffset,
-                expect, update);
+        return DemoQueueAccess.compareAndSetWaitStatus(node, expect, update);
     }
 
     private static final boolean compareAndSetNext(Node node,
                                                    Node expect,
                                                    Node update) {
-        return unsafe.compareAndSwapObject(node, nextOffset, expect, update);
+        return DemoQueueAccess.compareAndSetNext(node, expect, update);
     }
 
 }
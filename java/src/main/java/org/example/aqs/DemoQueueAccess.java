@@ -0,0 +1,70 @@
+package org.example.aqs;
+
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+
+/**
+ * DemoAbstractQueuedSynchronizer的CAS操作，Java 8版本，用Unsafe实现
+ * Unsafe.getUnsafe()只允许启动类加载器加载的类调用，这里跟其他Demo类一样反射拿theUnsafe
+ * Java 9以上在多版本jar里换成src/main/java9下用VarHandle实现的同名类，方法签名保持一致
+ */
+final class DemoQueueAccess {
+
+    private static final Unsafe unsafe;
+    private static final long stateOffset;
+    private static final long headOffset;
+    private static final long tailOffset;
+    private static final long waitStatusOffset;
+    private static final long nextOffset;
+
+    static {
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = (Unsafe) field.get(null);
+            stateOffset = unsafe.objectFieldOffset
+                    (DemoAbstractQueuedSynchronizer.class.getDeclaredField("state"));
+            headOffset = unsafe.objectFieldOffset
+                    (DemoAbstractQueuedSynchronizer.class.getDeclaredField("head"));
+            tailOffset = unsafe.objectFieldOffset
+                    (DemoAbstractQueuedSynchronizer.class.getDeclaredField("tail"));
+            waitStatusOffset = unsafe.objectFieldOffset
+                    (DemoAbstractQueuedSynchronizer.Node.class.getDeclaredField("waitStatus"));
+            nextOffset = unsafe.objectFieldOffset
+                    (DemoAbstractQueuedSynchronizer.Node.class.getDeclaredField("next"));
+        } catch (Exception ex) { throw new Error(ex); }
+    }
+
+    private DemoQueueAccess() {
+    }
+
+    static boolean compareAndSetState(DemoAbstractQueuedSynchronizer s, int expect, int update) {
+        return unsafe.compareAndSwapInt(s, stateOffset, expect, update);
+    }
+
+    static boolean compareAndSetHead(DemoAbstractQueuedSynchronizer s,
+                                     DemoAbstractQueuedSynchronizer.Node update) {
+        return unsafe.compareAndSwapObject(s, headOffset, null, update);
+    }
+
+    static boolean compareAndSetTail(DemoAbstractQueuedSynchronizer s,
+                                     DemoAbstractQueuedSynchronizer.Node expect,
+                                     DemoAbstractQueuedSynchronizer.Node update) {
+        return unsafe.compareAndSwapObject(s, tailOffset, expect, update);
+    }
+
+    static boolean compareAndSetWaitStatus(DemoAbstractQueuedSynchronizer.Node node,
+                                           int expect, int update) {
+        return unsafe.compareAndSwapInt(node, waitStatusOffset, expect, update);
+    }
+
+    /**
+     * 只在取消节点时整理next链用，失败了也没关系，调用方不看结果
+     */
+    static boolean compareAndSetNext(DemoAbstractQueuedSynchronizer.Node node,
+                                     DemoAbstractQueuedSynchronizer.Node expect,
+                                     DemoAbstractQueuedSynchronizer.Node update) {
+        return unsafe.compareAndSwapObject(node, nextOffset, expect, update);
+    }
+}
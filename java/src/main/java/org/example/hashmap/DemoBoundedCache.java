@@ -0,0 +1,795 @@
+package org.example.hashmap;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * 基于DemoConcurrentHashMap的有界缓存，淘汰策略是W-TinyLFU
+ *
+ * 数据都放在DemoConcurrentHashMap里，淘汰用的链表和频率统计只在evictionLock下修改：
+ * 1. 读命中后把节点放进按线程分段的环形读缓冲，满了直接丢掉(只影响LRU顺序的精度)，读永远不加锁
+ * 2. 写操作把要做的链表调整包装成任务放进写缓冲，谁抢到evictionLock谁批量执行
+ * 3. 新节点先进window(LRU，约占1%)，被挤出window的节点作为候选，
+ *    和主区probation队头的节点比较FrequencySketch里的访问频率，频率高的留下
+ * 4. 主区是分段LRU：probation里再次被访问的节点晋升到protected(约占主区80%)
+ *
+ * 支持写后过期和访问后过期，过期的节点读不到，在维护时从队头开始清理
+ */
+public class DemoBoundedCache<K,V> {
+
+    static final int NCPU = Runtime.getRuntime().availableProcessors();
+
+    // 节点在哪个队列
+    static final int NONE = 0;
+    static final int WINDOW = 1;
+    static final int PROBATION = 2;
+    static final int PROTECTED = 3;
+
+    // 节点生命周期
+    static final int ALIVE = 0;
+    static final int RETIRED = 1; // 已从map删除，还挂在队列上
+    static final int DEAD = 2;    // 已从队列摘掉
+
+    static final int READ_BUFFER_SIZE = 16;
+
+    // 每次维护最多处理的写任务数
+    static final int WRITE_BUFFER_DRAIN = 128;
+
+    // 写缓冲积压超过这个数，写线程要阻塞着帮忙清空
+    static final int WRITE_BUFFER_MAX = 1024;
+
+    static final class Node<K,V> {
+        final K key;
+        volatile V value;
+        volatile long writeTime;
+        volatile long accessTime;
+        volatile int state;
+
+        // 下面的字段只在evictionLock下访问
+        int queueType;
+        Node<K,V> prev, next;           // 访问顺序
+        Node<K,V> writePrev, writeNext; // 写入顺序，只在有写后过期时使用
+
+        Node(K key, V value, long now) {
+            this.key = key;
+            this.value = value;
+            this.writeTime = now;
+            this.accessTime = now;
+        }
+    }
+
+    /**
+     * 按访问顺序的双向链表，队头是最久没访问的
+     */
+    static final class AccessOrderDeque<K,V> {
+        Node<K,V> first, last;
+
+        void linkLast(Node<K,V> e) {
+            Node<K,V> l = last;
+            e.prev = l;
+            e.next = null;
+            last = e;
+            if (l == null)
+                first = e;
+            else
+                l.next = e;
+        }
+
+        void unlink(Node<K,V> e) {
+            Node<K,V> p = e.prev, n = e.next;
+            if (p == null)
+                first = n;
+            else
+                p.next = n;
+            if (n == null)
+                last = p;
+            else
+                n.prev = p;
+            e.prev = e.next = null;
+        }
+
+        void moveToBack(Node<K,V> e) {
+            if (e != last) {
+                unlink(e);
+                linkLast(e);
+            }
+        }
+    }
+
+    /**
+     * 按写入顺序的双向链表，队头是最早写入的
+     */
+    static final class WriteOrderDeque<K,V> {
+        Node<K,V> first, last;
+
+        void linkLast(Node<K,V> e) {
+            Node<K,V> l = last;
+            e.writePrev = l;
+            e.writeNext = null;
+            last = e;
+            if (l == null)
+                first = e;
+            else
+                l.writeNext = e;
+        }
+
+        void unlink(Node<K,V> e) {
+            Node<K,V> p = e.writePrev, n = e.writeNext;
+            if (p == null)
+                first = n;
+            else
+                p.writeNext = n;
+            if (n == null)
+                last = p;
+            else
+                n.writePrev = p;
+            e.writePrev = e.writeNext = null;
+        }
+
+        void moveToBack(Node<K,V> e) {
+            if (e != last) {
+                unlink(e);
+                linkLast(e);
+            }
+        }
+    }
+
+    /**
+     * 有损的环形读缓冲，多个读线程写入，持有evictionLock的线程读出
+     */
+    static final class ReadBuffer<K,V> {
+        final AtomicReferenceArray<Node<K,V>> buffer =
+                new AtomicReferenceArray<Node<K,V>>(READ_BUFFER_SIZE);
+        final AtomicLong writeCounter = new AtomicLong();
+        volatile long readCounter;
+
+        /**
+         * @return false表示缓冲满了，节点被丢弃
+         */
+        boolean offer(Node<K,V> e) {
+            long tail = writeCounter.get();
+            if (tail - readCounter >= READ_BUFFER_SIZE)
+                return false;
+            // CAS失败说明有竞争，直接丢弃，不重试
+            if (writeCounter.compareAndSet(tail, tail + 1))
+                buffer.lazySet((int)tail & (READ_BUFFER_SIZE - 1), e);
+            return true;
+        }
+
+        void drainTo(DemoBoundedCache<K,V> cache) {
+            long head = readCounter, tail = writeCounter.get();
+            for (; head < tail; head++) {
+                int i = (int)head & (READ_BUFFER_SIZE - 1);
+                Node<K,V> e = buffer.get(i);
+                // 计数已经加了但节点还没放进来，下次再读
+                if (e == null)
+                    break;
+                buffer.lazySet(i, null);
+                cache.onAccess(e);
+            }
+            readCounter = head;
+        }
+    }
+
+    /**
+     * 4位计数的Count-Min Sketch，记录key最近的访问频率
+     * 每个long存16个计数，每个key用hash选一组4个计数，增加次数达到sampleSize后所有计数减半
+     */
+    static final class FrequencySketch {
+        static final long[] SEED = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+                0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        static final long RESET_MASK = 0x7777777777777777L;
+        static final long ONE_MASK = 0x1111111111111111L;
+
+        final long[] table;
+        final int tableMask;
+        final int sampleSize;
+        int size;
+
+        FrequencySketch(long maximumSize) {
+            int n = (int)Math.min(maximumSize, 1 << 30);
+            n = Math.max(tableSizeFor(n), 8);
+            table = new long[n];
+            tableMask = n - 1;
+            sampleSize = (int)Math.min(10L * maximumSize, Integer.MAX_VALUE);
+        }
+
+        static int spread(int h) {
+            h ^= h >>> 17;
+            h *= 0xed5ad4bb;
+            h ^= h >>> 11;
+            h *= 0xac4c1b51;
+            h ^= h >>> 15;
+            return h;
+        }
+
+        int indexOf(int h, int i) {
+            long hash = (h + SEED[i]) * SEED[i];
+            hash += hash >>> 32;
+            return (int)hash & tableMask;
+        }
+
+        int frequency(Object e) {
+            int h = spread(e.hashCode());
+            // 低两位决定用每个long里16个计数中的哪4个
+            int start = (h & 3) << 2;
+            int freq = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                int c = (int)((table[indexOf(h, i)] >>> ((start + i) << 2)) & 0xfL);
+                freq = Math.min(freq, c);
+            }
+            return freq;
+        }
+
+        void increment(Object e) {
+            int h = spread(e.hashCode());
+            int start = (h & 3) << 2;
+            boolean added = false;
+            for (int i = 0; i < 4; i++)
+                added |= incrementAt(indexOf(h, i), start + i);
+            if (added && ++size == sampleSize)
+                reset();
+        }
+
+        boolean incrementAt(int i, int j) {
+            int offset = j << 2;
+            long mask = 0xfL << offset;
+            if ((table[i] & mask) != mask) {
+                table[i] += 1L << offset;
+                return true;
+            }
+            return false;
+        }
+
+        // 老化：所有计数减半，size按减掉的量调整
+        void reset() {
+            int count = 0;
+            for (int i = 0; i < table.length; i++) {
+                count += Long.bitCount(table[i] & ONE_MASK);
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            size = (size - (count >>> 2)) >>> 1;
+        }
+    }
+
+    static int tableSizeFor(int c) {
+        int n = c - 1;
+        n |= n >>> 1;
+        n |= n >>> 2;
+        n |= n >>> 4;
+        n |= n >>> 8;
+        n |= n >>> 16;
+        return (n < 0) ? 1 : (n >= (1 << 30)) ? (1 << 30) : n + 1;
+    }
+
+    private final DemoConcurrentHashMap<K, Node<K,V>> data;
+
+    private final long maximum;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+
+    // 0表示不过期
+    private final long expireAfterWriteNanos;
+    private final long expireAfterAccessNanos;
+
+    // 当前时间(纳秒)，默认System.nanoTime，测试里换成手动推进的时钟
+    private final LongSupplier ticker;
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    private final ReadBuffer<K,V>[] readBuffers;
+
+    private final ConcurrentLinkedQueue<Runnable> writeBuffer = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicInteger writeBufferSize = new AtomicInteger();
+
+    // 下面的字段只在evictionLock下访问
+    private final FrequencySketch sketch;
+    private final AccessOrderDeque<K,V> windowDeque = new AccessOrderDeque<K,V>();
+    private final AccessOrderDeque<K,V> probationDeque = new AccessOrderDeque<K,V>();
+    private final AccessOrderDeque<K,V> protectedDeque = new AccessOrderDeque<K,V>();
+    private final WriteOrderDeque<K,V> writeOrderDeque = new WriteOrderDeque<K,V>();
+    private long size;
+    private long windowSize;
+    private long protectedSize;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    public DemoBoundedCache(long maximumSize) {
+        this(maximumSize, 0L, 0L, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param expireAfterWrite 写入后多久过期，0表示不过期
+     * @param expireAfterAccess 最后一次访问后多久过期，0表示不过期
+     */
+    public DemoBoundedCache(long maximumSize, long expireAfterWrite, long expireAfterAccess, TimeUnit unit) {
+        this(maximumSize, expireAfterWrite, expireAfterAccess, unit, System::nanoTime);
+    }
+
+    /**
+     * @param ticker 返回当前时间(纳秒)，过期按它计算
+     */
+    @SuppressWarnings("unchecked")
+    DemoBoundedCache(long maximumSize, long expireAfterWrite, long expireAfterAccess, TimeUnit unit,
+                     LongSupplier ticker) {
+        if (maximumSize <= 0 || expireAfterWrite < 0 || expireAfterAccess < 0)
+            throw new IllegalArgumentException();
+        this.maximum = maximumSize;
+        this.windowMaximum = Math.max(1L, maximumSize / 100);
+        this.protectedMaximum = (long)((maximumSize - windowMaximum) * 0.8);
+        this.expireAfterWriteNanos = unit.toNanos(expireAfterWrite);
+        this.expireAfterAccessNanos = unit.toNanos(expireAfterAccess);
+        this.ticker = ticker;
+        this.data = new DemoConcurrentHashMap<K, Node<K,V>>();
+        this.sketch = new FrequencySketch(maximumSize);
+        int stripes = tableSizeFor(NCPU << 2);
+        this.readBuffers = (ReadBuffer<K,V>[])new ReadBuffer<?,?>[stripes];
+        for (int i = 0; i < stripes; i++)
+            readBuffers[i] = new ReadBuffer<K,V>();
+    }
+
+    /* ---------------- 读 -------------- */
+
+    /**
+     * 返回缓存的值，不存在或已过期返回null
+     */
+    public V getIfPresent(Object key) {
+        Node<K,V> e = data.get(key);
+        if (e == null) {
+            missCount.increment();
+            return null;
+        }
+        long now = ticker.getAsLong();
+        if (hasExpired(e, now)) {
+            missCount.increment();
+            scheduleDrain();
+            return null;
+        }
+        V v = e.value;
+        afterRead(e, now);
+        hitCount.increment();
+        return v;
+    }
+
+    /**
+     * 返回缓存的值，不存在时用mappingFunction计算并放入，同一个key只会计算一次
+     */
+    public V get(K key, Function<? super K, ? extends V> mappingFunction) {
+        if (key == null || mappingFunction == null)
+            throw new NullPointerException();
+        for (;;) {
+            Node<K,V> e = data.get(key);
+            long now = ticker.getAsLong();
+            if (e != null) {
+                if (!hasExpired(e, now)) {
+                    V v = e.value;
+                    afterRead(e, now);
+                    hitCount.increment();
+                    return v;
+                }
+                // 过期的节点先删掉，再走计算
+                retire(key, e);
+                continue;
+            }
+            @SuppressWarnings("unchecked")
+            Node<K,V>[] added = (Node<K,V>[])new Node<?,?>[1];
+            Node<K,V> r = data.computeIfAbsent(key, k -> {
+                V v = mappingFunction.apply(k);
+                return (v == null) ? null : (added[0] = new Node<K,V>(k, v, now));
+            });
+            if (r == null)
+                return null;
+            if (r == added[0]) {
+                missCount.increment();
+                afterWrite(() -> onAdd(r));
+                return r.value;
+            }
+            // 被别的线程抢先放入了，按读处理
+        }
+    }
+
+    /* ---------------- 写 -------------- */
+
+    public V put(K key, V value) {
+        return put(key, value, false);
+    }
+
+    public V putIfAbsent(K key, V value) {
+        return put(key, value, true);
+    }
+
+    private V put(K key, V value, boolean onlyIfAbsent) {
+        if (key == null || value == null)
+            throw new NullPointerException();
+        for (;;) {
+            long now = ticker.getAsLong();
+            Node<K,V> e = data.get(key);
+            if (e == null) {
+                Node<K,V> node = new Node<K,V>(key, value, now);
+                if ((e = data.putIfAbsent(key, node)) == null) {
+                    afterWrite(() -> onAdd(node));
+                    return null;
+                }
+            }
+            V old;
+            boolean expired;
+            synchronized (e) {
+                // 已经被删除的节点不能再改，重新找
+                if (e.state != ALIVE)
+                    continue;
+                old = e.value;
+                expired = hasExpired(e, now);
+                if (!onlyIfAbsent || expired) {
+                    e.value = value;
+                    e.writeTime = now;
+                    e.accessTime = now;
+                }
+            }
+            // afterRead/afterWrite可能执行维护，维护时淘汰节点要先拿bin锁再拿节点锁，
+            // 所以必须在释放节点锁之后调用，否则两边加锁顺序相反会死锁
+            if (onlyIfAbsent && !expired) {
+                afterRead(e, now);
+                return old;
+            }
+            Node<K,V> n = e;
+            afterWrite(() -> onUpdate(n));
+            return expired ? null : old;
+        }
+    }
+
+    public V remove(Object key) {
+        Node<K,V> e = data.get(key);
+        if (e == null)
+            return null;
+        @SuppressWarnings("unchecked")
+        K k = (K)key;
+        // 先删除再读value：删除在节点锁下标记RETIRED，之后put不会再改这个节点，
+        // 读到的就是删除时的值；先读的话并发的put可能在中间改掉value，两边会返回同一个旧值
+        if (!retire(k, e))
+            return null;
+        V v = e.value;
+        return hasExpired(e, ticker.getAsLong()) ? null : v;
+    }
+
+    /**
+     * 把节点从map删除，然后交给维护线程从队列摘掉
+     * @return 是否是本次删除的
+     */
+    private boolean retire(K key, Node<K,V> e) {
+        boolean removed = removeFromMap(key, e);
+        if (removed)
+            afterWrite(() -> onRemove(e));
+        return removed;
+    }
+
+    /**
+     * key还映射到e时删除，并把e标记为RETIRED
+     * 在bin锁里标记，保证put看到ALIVE时节点一定还在map里
+     */
+    private boolean removeFromMap(K key, Node<K,V> e) {
+        boolean[] removed = new boolean[1];
+        data.computeIfPresent(key, (k, v) -> {
+            if (v != e)
+                return v;
+            synchronized (e) {
+                e.state = RETIRED;
+            }
+            removed[0] = true;
+            return null;
+        });
+        return removed[0];
+    }
+
+    public void invalidateAll() {
+        for (K key : data.keySet()) {
+            Node<K,V> e = data.get(key);
+            if (e != null)
+                retire(key, e);
+        }
+    }
+
+    /* ---------------- 统计 -------------- */
+
+    /**
+     * 当前映射数，可能包含已过期但还没清理的节点
+     */
+    public long estimatedSize() {
+        return data.mappingCount();
+    }
+
+    public long hitCount() {
+        return hitCount.sum();
+    }
+
+    public long missCount() {
+        return missCount.sum();
+    }
+
+    public long evictionCount() {
+        return evictionCount.sum();
+    }
+
+    public double hitRate() {
+        long h = hitCount.sum(), m = missCount.sum();
+        return (h + m == 0) ? 1.0 : (double)h / (h + m);
+    }
+
+    /**
+     * 立即执行一次维护：清空缓冲、清理过期节点、淘汰超出容量的节点
+     */
+    public void cleanUp() {
+        evictionLock.lock();
+        try {
+            maintenance();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /* ---------------- 缓冲 -------------- */
+
+    private boolean hasExpired(Node<K,V> e, long now) {
+        return (expireAfterWriteNanos > 0 && now - e.writeTime >= expireAfterWriteNanos) ||
+                (expireAfterAccessNanos > 0 && now - e.accessTime >= expireAfterAccessNanos);
+    }
+
+    private ReadBuffer<K,V> readBuffer() {
+        int h = (int)Thread.currentThread().getId() * 0x9E3779B9;
+        return readBuffers[(h >>> 16) & (readBuffers.length - 1)];
+    }
+
+    private void afterRead(Node<K,V> e, long now) {
+        if (expireAfterAccessNanos > 0)
+            e.accessTime = now;
+        // 缓冲满了才尝试维护，抢不到锁就算了
+        if (!readBuffer().offer(e))
+            scheduleDrain();
+    }
+
+    private void afterWrite(Runnable task) {
+        writeBuffer.offer(task);
+        if (writeBufferSize.incrementAndGet() > WRITE_BUFFER_MAX) {
+            // 积压太多，阻塞等锁，给写线程施加背压
+            evictionLock.lock();
+            try {
+                maintenance();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+        scheduleDrain();
+    }
+
+    /**
+     * 尝试获取evictionLock做维护；放锁后如果写缓冲又有任务，说明有写线程tryLock失败了，再来一次
+     */
+    private void scheduleDrain() {
+        do {
+            if (!evictionLock.tryLock())
+                return;
+            try {
+                maintenance();
+            } finally {
+                evictionLock.unlock();
+            }
+        } while (!writeBuffer.isEmpty());
+    }
+
+    private void maintenance() {
+        for (ReadBuffer<K,V> b : readBuffers)
+            b.drainTo(this);
+        drainWriteBuffer();
+        expireEntries(ticker.getAsLong());
+        evictEntries();
+    }
+
+    private void drainWriteBuffer() {
+        for (int i = 0; i < WRITE_BUFFER_DRAIN; i++) {
+            Runnable task = writeBuffer.poll();
+            if (task == null)
+                break;
+            writeBufferSize.decrementAndGet();
+            task.run();
+        }
+    }
+
+    /* ---------------- 以下方法都在evictionLock下执行 -------------- */
+
+    void onAccess(Node<K,V> e) {
+        sketch.increment(e.key);
+        switch (e.queueType) {
+            case WINDOW:
+                windowDeque.moveToBack(e);
+                break;
+            case PROBATION:
+                // probation里再次被访问，晋升到protected
+                probationDeque.unlink(e);
+                protectedDeque.linkLast(e);
+                e.queueType = PROTECTED;
+                protectedSize++;
+                demoteFromProtected();
+                break;
+            case PROTECTED:
+                protectedDeque.moveToBack(e);
+                break;
+            default:
+                // 还没链接或已经删除
+                break;
+        }
+    }
+
+    private void onAdd(Node<K,V> e) {
+        // 添加任务可能排在删除任务之后执行
+        if (e.state != ALIVE || e.queueType != NONE)
+            return;
+        sketch.increment(e.key);
+        windowDeque.linkLast(e);
+        e.queueType = WINDOW;
+        windowSize++;
+        size++;
+        if (expireAfterWriteNanos > 0)
+            writeOrderDeque.linkLast(e);
+    }
+
+    private void onUpdate(Node<K,V> e) {
+        if (e.queueType == NONE)
+            return;
+        onAccess(e);
+        if (expireAfterWriteNanos > 0)
+            writeOrderDeque.moveToBack(e);
+    }
+
+    private void onRemove(Node<K,V> e) {
+        unlinkNode(e);
+        e.state = DEAD;
+    }
+
+    private void unlinkNode(Node<K,V> e) {
+        switch (e.queueType) {
+            case WINDOW:
+                windowDeque.unlink(e);
+                windowSize--;
+                break;
+            case PROBATION:
+                probationDeque.unlink(e);
+                break;
+            case PROTECTED:
+                protectedDeque.unlink(e);
+                protectedSize--;
+                break;
+            default:
+                return;
+        }
+        if (expireAfterWriteNanos > 0)
+            writeOrderDeque.unlink(e);
+        e.queueType = NONE;
+        size--;
+    }
+
+    private void demoteFromProtected() {
+        while (protectedSize > protectedMaximum) {
+            Node<K,V> e = protectedDeque.first;
+            protectedDeque.unlink(e);
+            probationDeque.linkLast(e);
+            e.queueType = PROBATION;
+            protectedSize--;
+        }
+    }
+
+    /**
+     * 从各队列头开始清理过期节点，遇到没过期的就停
+     */
+    private void expireEntries(long now) {
+        if (expireAfterAccessNanos > 0) {
+            expireDeque(windowDeque, now);
+            expireDeque(probationDeque, now);
+            expireDeque(protectedDeque, now);
+        }
+        if (expireAfterWriteNanos > 0) {
+            Node<K,V> e;
+            while ((e = writeOrderDeque.first) != null && hasExpired(e, now))
+                evict(e);
+        }
+    }
+
+    private void expireDeque(AccessOrderDeque<K,V> deque, long now) {
+        Node<K,V> e;
+        while ((e = deque.first) != null && hasExpired(e, now))
+            evict(e);
+    }
+
+    private void evictEntries() {
+        // window超出的部分移到probation队尾，作为候选
+        int candidates = 0;
+        while (windowSize > windowMaximum) {
+            Node<K,V> e = windowDeque.first;
+            windowDeque.unlink(e);
+            probationDeque.linkLast(e);
+            e.queueType = PROBATION;
+            windowSize--;
+            candidates++;
+        }
+        // 牺牲者从probation队头往后取，候选者从队尾往前取(刚从window移过来的那些)，
+        // 每次比较只淘汰其中一个：候选者赢了换下一个牺牲者，它自己留下，也换下一个候选者；
+        // 输了就淘汰候选者，牺牲者留着跟下一个候选者比
+        Node<K,V> victim = probationDeque.first;
+        Node<K,V> candidate = probationDeque.last;
+        while (size > maximum) {
+            if (candidates == 0)
+                candidate = null;
+            if (candidate == null && victim == null) {
+                // probation里能淘汰的都淘汰完了，依次从protected、window的队头淘汰
+                Node<K,V> e = protectedDeque.first;
+                evict((e != null) ? e : windowDeque.first);
+                continue;
+            }
+            if (candidate == victim) {
+                // 两头碰到同一个节点，剩下的候选者没有牺牲者可比了
+                victim = victim.next;
+                evict(candidate);
+                candidate = null;
+                continue;
+            }
+            if (candidate == null) {
+                Node<K,V> e = victim;
+                victim = victim.next;
+                evict(e);
+                continue;
+            }
+            if (victim == null) {
+                Node<K,V> e = candidate;
+                candidate = candidate.prev;
+                candidates--;
+                evict(e);
+                continue;
+            }
+            candidates--;
+            if (admit(candidate.key, victim.key)) {
+                Node<K,V> e = victim;
+                victim = victim.next;
+                evict(e);
+                // 先摘掉牺牲者再往前走，候选者紧挨着牺牲者时prev要跳过它
+                candidate = candidate.prev;
+            }
+            else {
+                Node<K,V> e = candidate;
+                candidate = candidate.prev;
+                evict(e);
+            }
+        }
+    }
+
+    /**
+     * 候选者的频率比牺牲者高才接纳；频率较高但打平的候选者给一个小概率，
+     * 避免攻击者用hash冲突把热点key一直挡在外面
+     */
+    private boolean admit(K candidateKey, K victimKey) {
+        int victimFreq = sketch.frequency(victimKey);
+        int candidateFreq = sketch.frequency(candidateKey);
+        if (candidateFreq > victimFreq)
+            return true;
+        if (candidateFreq <= 5)
+            return false;
+        return (ThreadLocalRandom.current().nextInt() & 127) == 0;
+    }
+
+    private void evict(Node<K,V> e) {
+        // 可能已经被用户删除，只是删除任务还在写缓冲里，这里照样摘掉
+        boolean removed = removeFromMap(e.key, e);
+        unlinkNode(e);
+        e.state = DEAD;
+        if (removed)
+            evictionCount.increment();
+    }
+}
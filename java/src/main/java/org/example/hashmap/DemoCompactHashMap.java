@@ -0,0 +1,267 @@
+package org.example.hashmap;
+
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.function.BiConsumer;
+
+/**
+ * 不用DemoNode的DemoHashMap，put/get/remove的语义跟DemoHashMap一致，允许null key和null value
+ *
+ * DemoNode每个节点是一个对象：对象头12字节，加上hash、key、value、next四个字段，对齐后32字节，
+ * 再加上槽数组里的引用。这里按列存放：hash、key、value、next各是一个数组，
+ * 链表用entry下标串起来，每个entry只占16字节(压缩指针下)，也不会产生大量小对象给GC扫描
+ * entry数组每次增长一半，平均有1/5左右的空余
+ *
+ * 结构上跟DemoHashMap一样：槽数是2的幂，哈希值相同，扩容时每条链表按hash & oldCap拆成高低两条，
+ * hash存在数组里，扩容不用重新计算hashCode，也不搬运key和value，只重新串下标
+ * 没有红黑树，大量hashCode相同的key会退化成遍历链表
+ */
+public class DemoCompactHashMap<K, V> {
+
+    static final int DEFAULT_INITIAL_CAPACITY = 1 << 4;
+
+    static final int MAXIMUM_CAPACITY = 1 << 30;
+
+    // entry下标的上限，数组长度不能超过Integer.MAX_VALUE - 8
+    static final int MAX_ENTRIES = Integer.MAX_VALUE - 9;
+
+    // 空槽、链表结束
+    static final int NIL = 0;
+
+    // 槽里是链表头entry的下标
+    int[] table;
+
+    // 按entry下标访问，下标从1开始，0不用
+    int[] hashes;
+    Object[] keys;
+    Object[] vals;
+    int[] next;
+
+    // 用过的最大entry下标
+    int allocated;
+
+    // 删除空出来的entry用next串成的链表，插入时先用这些
+    int free;
+
+    int size;
+
+    // 记录被修改的次数
+    int modCount;
+
+    // 元素数到这个值再插入就扩容，槽数的3/4
+    int threshold;
+
+    public DemoCompactHashMap() {
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize 放入这么多元素之前不会扩容
+     */
+    public DemoCompactHashMap(int expectedSize) {
+        if (expectedSize < 0)
+            throw new IllegalArgumentException("Illegal initial capacity: " + expectedSize);
+        int n = tableSizeFor(expectedSize + (long)expectedSize / 3 + 1);
+        table = new int[n];
+        threshold = n - (n >>> 2);
+        // entry数组按需要增长，不跟着槽数一起按阈值分配，省下还没用到的部分
+        int c = Math.max(expectedSize, DEFAULT_INITIAL_CAPACITY) + 1;
+        hashes = new int[c];
+        keys = new Object[c];
+        vals = new Object[c];
+        next = new int[c];
+    }
+
+    static int tableSizeFor(long c) {
+        if (c >= MAXIMUM_CAPACITY)
+            return MAXIMUM_CAPACITY;
+        return Math.max(2, Integer.highestOneBit((int)c - 1) << 1);
+    }
+
+    /**
+     * 找key所在的entry，找不到返回NIL
+     */
+    private int find(int hash, Object key) {
+        int[] hs = hashes, nx = next;
+        Object[] ks = keys;
+        Object k;
+        for (int e = table[hash & (table.length - 1)]; e != NIL; e = nx[e]) {
+            if (hs[e] == hash &&
+                    ((k = ks[e]) == key || (key != null && key.equals(k))))
+                return e;
+        }
+        return NIL;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        int e = find(DemoHashMap.hash(key), key);
+        return (e == NIL) ? null : (V)vals[e];
+    }
+
+    public boolean containsKey(Object key) {
+        return find(DemoHashMap.hash(key), key) != NIL;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(K key, V value) {
+        int h = DemoHashMap.hash(key);
+        int e = find(h, key);
+        if (e != NIL) {
+            V old = (V)vals[e];
+            vals[e] = value;
+            return old;
+        }
+        if (size >= threshold)
+            resize();
+        int i = h & (table.length - 1);
+        e = newEntry();
+        hashes[e] = h;
+        keys[e] = key;
+        vals[e] = value;
+        // 插到链表头，不用走到链表尾
+        next[e] = table[i];
+        table[i] = e;
+        ++size;
+        ++modCount;
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(Object key) {
+        int h = DemoHashMap.hash(key);
+        int i = h & (table.length - 1);
+        Object k;
+        for (int e = table[i], p = NIL; e != NIL; p = e, e = next[e]) {
+            if (hashes[e] == h &&
+                    ((k = keys[e]) == key || (key != null && key.equals(k)))) {
+                if (p == NIL)
+                    table[i] = next[e];
+                else
+                    next[p] = next[e];
+                V old = (V)vals[e];
+                // 释放key和value的引用
+                keys[e] = null;
+                vals[e] = null;
+                next[e] = free;
+                free = e;
+                --size;
+                ++modCount;
+                return old;
+            }
+        }
+        return null;
+    }
+
+    private int newEntry() {
+        int e = free;
+        if (e != NIL) {
+            free = next[e];
+            return e;
+        }
+        if (allocated == next.length - 1) {
+            // 每次增长一半
+            if (allocated >= MAX_ENTRIES)
+                throw new IllegalStateException("Map is full.");
+            growEntries((int)Math.min(MAX_ENTRIES, allocated + (long)(allocated >>> 1) + 1));
+        }
+        return ++allocated;
+    }
+
+    private void growEntries(int capacity) {
+        hashes = Arrays.copyOf(hashes, capacity + 1);
+        keys = Arrays.copyOf(keys, capacity + 1);
+        vals = Arrays.copyOf(vals, capacity + 1);
+        next = Arrays.copyOf(next, capacity + 1);
+    }
+
+    /**
+     * 槽数翻倍，每条链表按hash & oldCap拆成高低两条，保持原来的顺序
+     */
+    final void resize() {
+        int[] oldTab = table;
+        int oldCap = oldTab.length;
+        if (oldCap >= MAXIMUM_CAPACITY) {
+            threshold = Integer.MAX_VALUE;
+            return;
+        }
+        int newCap = oldCap << 1;
+        int newThr = newCap - (newCap >>> 2);
+        int[] newTab = new int[newCap];
+        int[] hs = hashes, nx = next;
+        for (int j = 0; j < oldCap; ++j) {
+            int e = oldTab[j];
+            if (e == NIL)
+                continue;
+            int loHead = NIL, loTail = NIL;
+            int hiHead = NIL, hiTail = NIL;
+            do {
+                if ((hs[e] & oldCap) == 0) {
+                    if (loTail == NIL)
+                        loHead = e;
+                    else
+                        nx[loTail] = e;
+                    loTail = e;
+                }
+                else {
+                    if (hiTail == NIL)
+                        hiHead = e;
+                    else
+                        nx[hiTail] = e;
+                    hiTail = e;
+                }
+            } while ((e = nx[e]) != NIL);
+            if (loTail != NIL) {
+                nx[loTail] = NIL;
+                newTab[j] = loHead;
+            }
+            if (hiTail != NIL) {
+                nx[hiTail] = NIL;
+                newTab[j + oldCap] = hiHead;
+            }
+        }
+        table = newTab;
+        threshold = newThr;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * 清空元素，保留已经分配的数组
+     */
+    public void clear() {
+        ++modCount;
+        if (allocated == 0)
+            return;
+        Arrays.fill(table, NIL);
+        Arrays.fill(keys, 1, allocated + 1, null);
+        Arrays.fill(vals, 1, allocated + 1, null);
+        allocated = 0;
+        free = NIL;
+        size = 0;
+    }
+
+    /**
+     * 按槽的顺序遍历，遍历期间map被修改时抛ConcurrentModificationException
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        if (action == null)
+            throw new NullPointerException();
+        int mc = modCount;
+        int[] tab = table, nx = next;
+        Object[] ks = keys, vs = vals;
+        for (int j = 0; j < tab.length; ++j) {
+            for (int e = tab[j]; e != NIL; e = nx[e])
+                action.accept((K)ks[e], (V)vs[e]);
+        }
+        if (modCount != mc)
+            throw new ConcurrentModificationException();
+    }
+}
@@ -3,10 +3,31 @@ package org.example.hashmap;
 import sun.misc.Unsafe;
 
 import java.lang.reflect.Field;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongBinaryOperator;
+import java.util.function.ToLongBiFunction;
 
-public class DemoConcurrentHashMap<K,V> {
+public class DemoConcurrentHashMap<K,V> implements DemoConcurrentMap<K,V> {
 
     static final int HASH_BITS = 0x7fffffff; // usable bits of normal node hash
 
@@ -14,10 +35,32 @@ public class DemoConcurrentHashMap<K,V> {
 
     private static final int MIN_TRANSFER_STRIDE = 16;
 
+    // putAll元素少于这个数时逐个放入
+    static final int BULK_PUT_THRESHOLD = 64;
+
+    // putAll元素多于这个数时并行按槽放入
+    static final int PARALLEL_PUT_THRESHOLD = 1 << 16;
+
+    // putAll排序时每个分区覆盖的槽数
+    static final int PUT_PARTITION_BINS = 1 << 10;
+
     private static final int MAXIMUM_CAPACITY = 1 << 30;
 
     static final int MOVED     = -1; // hash for forwarding nodes
 
+    static final int TREEBIN   = -2; // hash for roots of trees
+
+    static final int RESERVED  = -3; // hash for transient reservations
+
+    // 链表长度达到8转红黑树
+    static final int TREEIFY_THRESHOLD = 8;
+
+    // 扩容拆分后树节点不超过6个，退化回链表
+    static final int UNTREEIFY_THRESHOLD = 6;
+
+    // 数组长度小于64时优先扩容，而不是树化
+    static final int MIN_TREEIFY_CAPACITY = 64;
+
     private static final int DEFAULT_CAPACITY = 16;
 
     private static int RESIZE_STAMP_BITS = 16;
@@ -26,6 +69,9 @@ public class DemoConcurrentHashMap<K,V> {
 
     private static final int MAX_RESIZERS = (1 << (32 - RESIZE_STAMP_BITS)) - 1;
 
+    // 删除落到计数格子上时不每次都sumCount，格子的值每变化64次才检查一次缩容
+    private static final int SHRINK_CHECK_MASK = 63;
+
     private transient volatile int transferIndex;
 
     // 小于-1表示正在扩容
@@ -34,14 +80,29 @@ public class DemoConcurrentHashMap<K,V> {
     // 正数表示要初始化的长度或者扩容的阈值
     private transient volatile int sizeCtl;
 
+    // 缩容的下限，不会缩到比构造时确定的table长度更小
+    private final transient int shrinkFloor;
+
+    // 最近一次观察到元素个数不低于容量1/4时的table长度，只有等于当前长度才允许自动缩容，
+    // 预分配出来(指定初始容量、putAll)还没装满过的table不会因为几次删除就缩回去
+    private transient volatile int shrinkArmed;
+
+    // 运行时统计，没打开时为null
+    private transient volatile DemoConcurrentHashMapMonitor monitor;
+
+    // 随机哈希种子，为null时直接用key.hashCode()
+    private final transient DemoHashSeed hashSeed;
+
     private static final sun.misc.Unsafe U;
 
     private static final long SIZECTL;
 
-    private static final long ABASE;
-    private static final int ASHIFT;
-
     private static final long TRANSFERINDEX;
+    private static final long BASECOUNT;
+    private static final long CELLSBUSY;
+    private static final long CELLVALUE;
+    private static final long PROBE;
+    private static final long MONITOR;
 
     transient volatile Node<K,V>[] table;
 
@@ -50,6 +111,37 @@ public class DemoConcurrentHashMap<K,V> {
      */
     private transient volatile Node<K,V>[] nextTable;
 
+    /**
+     * 没有竞争时直接CAS累加到baseCount上
+     */
+    private transient volatile long baseCount;
+
+    /**
+     * 创建或扩容counterCells时的自旋锁，0空闲 1占用
+     */
+    private transient volatile int cellsBusy;
+
+    /**
+     * 有竞争时，线程按probe分散到不同的CounterCell上累加，思路同LongAdder
+     */
+    private transient volatile CounterCell[] counterCells;
+
+    // 视图，懒加载
+    private transient KeySetView<K,V> keySet;
+    private transient ValuesView<K,V> values;
+    private transient EntrySetView<K,V> entrySet;
+
+    /**
+     * 计数格子。jdk里用@sun.misc.Contended避免伪共享，这里手动在value前后填充，
+     * 保证不同格子的value不会落在同一个缓存行
+     */
+    static final class CounterCell {
+        long p0, p1, p2, p3, p4, p5, p6;
+        volatile long value;
+        long q0, q1, q2, q3, q4, q5, q6;
+        CounterCell(long x) { value = x; }
+    }
+
     static class Node<K,V> {
         final int hash;
         final K key;
@@ -67,6 +159,22 @@ public class DemoConcurrentHashMap<K,V> {
         public final V getValue()     { return val; }
         public final int hashCode()   { return key.hashCode() ^ val.hashCode(); }
         public final String toString(){ return key + "=" + val; }
+
+        /**
+         * 在以当前节点为头的链表中查找，子类(ForwardingNode等)会重写
+         */
+        Node<K,V> find(int h, Object k) {
+            Node<K,V> e = this;
+            if (k != null) {
+                do {
+                    K ek;
+                    if (e.hash == h &&
+                            ((ek = e.key) == k || (ek != null && k.equals(ek))))
+                        return e;
+                } while ((e = e.next) != null);
+            }
+            return null;
+        }
     }
 
     static {
@@ -80,49 +188,442 @@ public class DemoConcurrentHashMap<K,V> {
                     (k.getDeclaredField("sizeCtl"));
             TRANSFERINDEX = U.objectFieldOffset
                     (k.getDeclaredField("transferIndex"));
-            Class<?> ak = DemoConcurrentHashMap.Node[].class;
-            // 初始偏移
-            ABASE = U.arrayBaseOffset(ak);
-            // 获取数组的每个元素大小
-            int scale = U.arrayIndexScale(ak);
-            if ((scale & (scale - 1)) != 0)
-                throw new Error("data type scale not a power of two");
-            ASHIFT = 31 - Integer.numberOfLeadingZeros(scale);
+            BASECOUNT = U.objectFieldOffset
+                    (k.getDeclaredField("baseCount"));
+            CELLSBUSY = U.objectFieldOffset
+                    (k.getDeclaredField("cellsBusy"));
+            MONITOR = U.objectFieldOffset
+                    (k.getDeclaredField("monitor"));
+            Class<?> ck = CounterCell.class;
+            CELLVALUE = U.objectFieldOffset
+                    (ck.getDeclaredField("value"));
+            Class<?> tk = Thread.class;
+            // ThreadLocalRandom用的探针，jdk里是包私有的，这里直接读Thread上的字段
+            PROBE = U.objectFieldOffset
+                    (tk.getDeclaredField("threadLocalRandomProbe"));
         } catch (Exception e) {
             throw new Error(e);
         }
     }
 
+    public DemoConcurrentHashMap() {
+        this.shrinkFloor = DEFAULT_CAPACITY;
+        this.hashSeed = null;
+    }
+
+    /**
+     * 预先确定table长度，放入initialCapacity个元素都不会触发扩容
+     */
+    public DemoConcurrentHashMap(int initialCapacity) {
+        this(initialCapacity, false);
+    }
+
+    /**
+     * 跟DemoHashMap.seeded()一样，每个实例生成随机种子参与计算哈希，
+     * 外部可控的String/byte[]类型key不能再被构造成集中到同一个槽里，见DemoHashSeed
+     * @param initialCapacity 同DemoConcurrentHashMap(int)
+     */
+    public static <K,V> DemoConcurrentHashMap<K,V> seeded(int initialCapacity) {
+        return new DemoConcurrentHashMap<K,V>(initialCapacity, true);
+    }
+
+    private DemoConcurrentHashMap(int initialCapacity, boolean seededHash) {
+        if (initialCapacity < 0)
+            throw new IllegalArgumentException();
+        // 跟tryPresize一样留出1.5倍余量，table在第一次put时按sizeCtl初始化
+        this.sizeCtl = (initialCapacity >= (MAXIMUM_CAPACITY >>> 1)) ? MAXIMUM_CAPACITY :
+                tableSizeFor(initialCapacity + (initialCapacity >>> 1) + 1);
+        this.shrinkFloor = Math.max(sizeCtl, DEFAULT_CAPACITY);
+        this.hashSeed = seededHash ? new DemoHashSeed() : null;
+    }
+
     static final class ForwardingNode<K,V> extends Node<K,V> {
         final Node<K,V>[] nextTable;
         ForwardingNode(Node<K,V>[] tab) {
             super(MOVED, null, null, null);
             this.nextTable = tab;
         }
+
+        /**
+         * 读线程碰到fwd节点时，直接去nextTable里查，不加锁也不帮忙扩容
+         */
+        Node<K,V> find(int h, Object k) {
+            // 用循环代替递归，防止连续扩容时fwd层层嵌套
+            outer: for (Node<K,V>[] tab = nextTable;;) {
+                Node<K,V> e; int n;
+                if (k == null || tab == null || (n = tab.length) == 0 ||
+                        (e = tabAt(tab, (n - 1) & h)) == null)
+                    return null;
+                for (;;) {
+                    int eh; K ek;
+                    if ((eh = e.hash) == h &&
+                            ((ek = e.key) == k || (ek != null && k.equals(ek))))
+                        return e;
+                    if (eh < 0) {
+                        if (e instanceof ForwardingNode) {
+                            // 新表也在扩容，继续往下一张表找
+                            tab = ((ForwardingNode<K,V>)e).nextTable;
+                            continue outer;
+                        }
+                        else
+                            return e.find(h, k);
+                    }
+                    if ((e = e.next) == null)
+                        return null;
+                }
+            }
+        }
+    }
+
+    /**
+     * computeIfAbsent/compute往空槽插入时的占位节点
+     * 先CAS占住槽位并持有它的锁，再执行用户函数，保证函数只执行一次
+     */
+    static final class ReservationNode<K,V> extends Node<K,V> {
+        ReservationNode() {
+            super(RESERVED, null, null, null);
+        }
+
+        Node<K,V> find(int h, Object k) {
+            return null;
+        }
     }
 
+    // 槽位读写在DemoTableAccess里，Java 9以上换成VarHandle实现
     static final <K,V> Node<K,V> tabAt(Node<K,V>[] tab, int i) {
-        return (Node<K,V>)U.getObjectVolatile(tab, ((long)i << ASHIFT) + ABASE);
+        return DemoTableAccess.tabAt(tab, i);
+    }
+
+    public V get(Object key) {
+        Node<K,V>[] tab; Node<K,V> e, p; int n, eh; K ek;
+        int h = keyHash(key);
+        if ((tab = table) != null && (n = tab.length) > 0 &&
+                (e = tabAt(tab, (n - 1) & h)) != null) {
+            // 全程不加锁，依赖tabAt的volatile读和Node里volatile的val/next
+            if ((eh = e.hash) == h) {
+                // 头节点就是要找的
+                if ((ek = e.key) == key || (ek != null && key.equals(ek)))
+                    return e.val;
+            }
+            else if (eh < 0) {
+                // hash为负数说明是特殊节点(比如正在迁移的fwd)，交给节点自己的find
+                if (e instanceof TreeBin)
+                    chainWalked(((TreeBin<K,V>)e).count);
+                return (p = e.find(h, key)) != null ? p.val : null;
+            }
+            int len = 1;
+            while ((e = e.next) != null) {
+                // 普通链表，往后遍历
+                ++len;
+                if (e.hash == h &&
+                        ((ek = e.key) == key || (ek != null && key.equals(ek)))) {
+                    chainWalked(len);
+                    return e.val;
+                }
+            }
+            if (len > 1)
+                chainWalked(len);
+        }
+        return null;
+    }
+
+    /**
+     * 读路径上的链长统计，只有走过了头节点才读monitor，头节点命中的get不多一次volatile读
+     */
+    private void chainWalked(int len) {
+        DemoConcurrentHashMapMonitor mon;
+        if ((mon = monitor) != null)
+            mon.chainLength(len);
+    }
+
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    /**
+     * 需要遍历整张表，O(n)
+     */
+    public boolean containsValue(Object value) {
+        if (value == null)
+            throw new NullPointerException();
+        Node<K,V>[] t;
+        if ((t = table) != null) {
+            Traverser<K,V> it = new Traverser<K,V>(t, t.length, 0, t.length);
+            for (Node<K,V> p; (p = it.advance()) != null; ) {
+                V v;
+                if ((v = p.val) == value || (v != null && value.equals(v)))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * key的视图，remove会删除map里对应的映射，不支持add
+     * 迭代器是弱一致的：不会抛ConcurrentModificationException，
+     * 保证遍历到创建时已存在且没被删除的元素，之后的修改可能看得到也可能看不到
+     */
+    public Set<K> keySet() {
+        KeySetView<K,V> ks;
+        return (ks = keySet) != null ? ks : (keySet = new KeySetView<K,V>(this));
+    }
+
+    /**
+     * value的视图，语义同keySet
+     */
+    public Collection<V> values() {
+        ValuesView<K,V> vs;
+        return (vs = values) != null ? vs : (values = new ValuesView<K,V>(this));
+    }
+
+    /**
+     * 键值对的视图，语义同keySet，Entry.setValue会写回map
+     */
+    public Set<Map.Entry<K,V>> entrySet() {
+        EntrySetView<K,V> es;
+        return (es = entrySet) != null ? es : (entrySet = new EntrySetView<K,V>(this));
     }
 
     public V put(K key, V value) {
         return putVal(key, value, false);
     }
 
+    public V putIfAbsent(K key, V value) {
+        return putVal(key, value, true);
+    }
+
+    /**
+     * 批量放入，元素多时按槽分组，每个槽只加一次锁
+     * 1. 先按放入后的总数预扩容，中间不再扩容
+     * 2. 两级计数排序：先按槽下标的高位分到每段PUT_PARTITION_BINS个槽的分区里，
+     *    每个分区内再按槽下标排一次，分区很小，排序都在缓存里完成
+     * 3. 每个槽锁一次，把这个槽的元素全部放进去；元素很多时按分区边界切分，交给ForkJoinPool并行处理
+     * 碰到正在迁移的槽(有并发扩容)就退回到逐个putVal
+     */
     public void putAll(Map<? extends K, ? extends V> m) {
-        tryPresize(m.size());
-        for (Map.Entry<? extends K, ? extends V> e : m.entrySet())
-            putVal(e.getKey(), e.getValue(), false);
+        int size = m.size();
+        if (size < BULK_PUT_THRESHOLD) {
+            tryPresize(size);
+            for (Map.Entry<? extends K, ? extends V> e : m.entrySet())
+                putVal(e.getKey(), e.getValue(), false);
+            return;
+        }
+        tryPresize((int)Math.min(sumCount() + size, MAXIMUM_CAPACITY));
+        Node<K,V>[] tab;
+        if ((tab = table) == null)
+            // 别的线程正在初始化
+            tab = initTable();
+        int n = tab.length;
+        int partitionBins = Math.min(n, PUT_PARTITION_BINS);
+        int shift = Integer.numberOfTrailingZeros(partitionBins);
+        int partitions = n >>> shift;
+        // 收集的同时按分区计数：start[p + 1]是分区p的元素个数
+        int[] start = new int[partitions + 1];
+        int[] hs = new int[size];
+        Object[] ks = new Object[size], vs = new Object[size];
+        int c = 0;
+        for (Map.Entry<? extends K, ? extends V> e : m.entrySet()) {
+            K k = e.getKey(); V v = e.getValue();
+            if (k == null || v == null)
+                throw new NullPointerException();
+            if (c == ks.length) {
+                // m被并发修改变大了
+                int nc = c + (c >>> 1) + 1;
+                hs = Arrays.copyOf(hs, nc);
+                ks = Arrays.copyOf(ks, nc);
+                vs = Arrays.copyOf(vs, nc);
+            }
+            int h = keyHash(k);
+            ++start[((h & (n - 1)) >>> shift) + 1];
+            hs[c] = h;
+            ks[c] = k;
+            vs[c] = v;
+            ++c;
+        }
+        // 前缀和之后start[p]是分区p在排序后数组里的起点
+        for (int p = 0; p < partitions; p++)
+            start[p + 1] += start[p];
+        int[] hashes = new int[c];
+        Object[] keys = new Object[c], vals = new Object[c];
+        int[] next = Arrays.copyOf(start, partitions);
+        for (int i = 0; i < c; i++) {
+            int j = next[(hs[i] & (n - 1)) >>> shift]++;
+            hashes[j] = hs[i];
+            keys[j] = ks[i];
+            vals[j] = vs[i];
+        }
+        hs = null; ks = vs = null; next = null;
+        if (c >= PARALLEL_PUT_THRESHOLD && partitions > 1 &&
+                ForkJoinPool.getCommonPoolParallelism() > 1)
+            new PutAllTask<K,V>(null, this, tab, hashes, keys, vals, start, 0, partitions).invoke();
+        else
+            putPartitions(tab, hashes, keys, vals, start, 0, partitions);
+    }
+
+    /**
+     * 放入分区[from, to)的元素，每个分区先按槽下标排好序再逐槽放入
+     * @param start 每个分区在hashes/keys/vals里的起点，start[to]是终点
+     */
+    final void putPartitions(Node<K,V>[] tab, int[] hashes, Object[] keys, Object[] vals,
+                             int[] start, int from, int to) {
+        int n = tab.length, partitionBins = Math.min(n, PUT_PARTITION_BINS);
+        int[] count = new int[partitionBins + 1];
+        int[] order = new int[0];
+        long added = 0L;
+        int maxBinCount = 0;
+        for (int p = from; p < to; p++) {
+            int lo = start[p], hi = start[p + 1], base = p * partitionBins;
+            if (lo == hi)
+                continue;
+            if (order.length < hi - lo)
+                order = new int[Math.max(hi - lo, order.length << 1)];
+            Arrays.fill(count, 0);
+            for (int k = lo; k < hi; k++)
+                ++count[(hashes[k] & (n - 1)) - base + 1];
+            for (int b = 0; b < partitionBins; b++)
+                count[b + 1] += count[b];
+            for (int k = lo; k < hi; k++)
+                order[count[(hashes[k] & (n - 1)) - base]++] = k;
+            long r = putBins(tab, hashes, keys, vals, order, hi - lo);
+            added += r & 0xffffffffL;
+            maxBinCount = Math.max(maxBinCount, (int)(r >>> 32));
+        }
+        // 每批只更新一次计数
+        if (added != 0L)
+            addCount(added, maxBinCount);
+    }
+
+    /**
+     * 按order[0, len)的顺序放入，order已经按槽下标排好序，每个槽加一次锁
+     * @return 低32位是新增的元素数，高32位是最长的链表长度
+     */
+    @SuppressWarnings("unchecked")
+    private long putBins(Node<K,V>[] tab, int[] hashes, Object[] keys, Object[] vals,
+                         int[] order, int len) {
+        int added = 0, maxBinCount = 0, m = tab.length - 1;
+        for (int a = 0, b; a < len; a = b) {
+            int i = hashes[order[a]] & m;
+            for (b = a + 1; b < len && (hashes[order[b]] & m) == i; ++b)
+                ;
+            int binCount = 0;
+            for (;;) {
+                Node<K,V> f = tabAt(tab, i);
+                if (f == null) {
+                    // 空槽：在本地把整条链表建好，一次CAS放进去
+                    Node<K,V> head = null;
+                    int count = 0;
+                    for (int k = a; k < b; k++) {
+                        int p = order[k];
+                        int h = hashes[p];
+                        Object key = keys[p];
+                        Node<K,V> e = head, pred = null;
+                        for (; e != null; pred = e, e = e.next) {
+                            Object ek;
+                            if (e.hash == h && ((ek = e.key) == key || key.equals(ek))) {
+                                e.val = (V)vals[p];
+                                break;
+                            }
+                        }
+                        if (e == null) {
+                            Node<K,V> x = new Node<K,V>(h, (K)key, (V)vals[p], null);
+                            if (pred == null)
+                                head = x;
+                            else
+                                pred.next = x;
+                            ++count;
+                        }
+                    }
+                    if (casTabAt(tab, i, null, head)) {
+                        added += count;
+                        binCount = count;
+                        break;
+                    }
+                }
+                else if (f.hash == MOVED) {
+                    // 有并发扩容，这个槽退回到逐个放入
+                    for (int k = a; k < b; k++) {
+                        int p = order[k];
+                        putVal((K)keys[p], (V)vals[p], false);
+                    }
+                    binCount = 0;
+                    break;
+                }
+                else {
+                    boolean validated = false;
+                    DemoConcurrentHashMapMonitor mon = monitor;
+                    long t0 = (mon != null) ? System.nanoTime() : 0L;
+                    synchronized (f) {
+                        if (mon != null)
+                            mon.binLocked(tab.length, i, t0);
+                        if (tabAt(tab, i) == f) {
+                            validated = true;
+                            if (f.hash >= 0) {
+                                for (int k = a; k < b; k++) {
+                                    int p = order[k];
+                                    int h = hashes[p];
+                                    Object key = keys[p];
+                                    binCount = 1;
+                                    for (Node<K,V> e = f;; ++binCount) {
+                                        Object ek;
+                                        if (e.hash == h &&
+                                                ((ek = e.key) == key || key.equals(ek))) {
+                                            e.val = (V)vals[p];
+                                            break;
+                                        }
+                                        Node<K,V> pred = e;
+                                        if ((e = e.next) == null) {
+                                            pred.next = new Node<K,V>(h, (K)key, (V)vals[p], null);
+                                            ++added;
+                                            ++binCount;
+                                            break;
+                                        }
+                                    }
+                                }
+                            }
+                            else if (f instanceof TreeBin) {
+                                binCount = 2;
+                                TreeBin<K,V> t = (TreeBin<K,V>)f;
+                                for (int k = a; k < b; k++) {
+                                    int p = order[k];
+                                    Node<K,V> q;
+                                    if ((q = t.putTreeVal(hashes[p], (K)keys[p], (V)vals[p])) != null)
+                                        q.val = (V)vals[p];
+                                    else
+                                        ++added;
+                                }
+                            }
+                            else if (f instanceof ReservationNode)
+                                throw new IllegalStateException("Recursive update");
+                        }
+                    }
+                    if (validated)
+                        break;
+                }
+            }
+            if (binCount >= TREEIFY_THRESHOLD)
+                treeifyBin(tab, i);
+            if (binCount > maxBinCount)
+                maxBinCount = binCount;
+        }
+        return ((long)maxBinCount << 32) | (added & 0xffffffffL);
     }
 
     static final int spread(int h) {
         return (h ^ (h >>> 16)) & HASH_BITS;
     }
 
+    /**
+     * key的哈希值，打开随机种子时用种子计算，否则用key.hashCode()
+     */
+    final int keyHash(Object key) {
+        DemoHashSeed seed = hashSeed;
+        return spread(seed == null ? key.hashCode() : seed.hash(key));
+    }
+
     final V putVal(K key, V value, boolean onlyIfAbsent) {
         // key和value不允许为null
         if (key == null || value == null) throw new NullPointerException();
-        int hash = spread(key.hashCode());
+        int hash = keyHash(key);
         int binCount = 0;
         for (Node<K,V>[] tab = table;;) {
 
@@ -143,7 +644,11 @@ public class DemoConcurrentHashMap<K,V> {
             else {
                 // 否则，往里面继续添加数据
                 V oldVal = null;
+                DemoConcurrentHashMapMonitor mon = monitor;
+                long t0 = (mon != null) ? System.nanoTime() : 0L;
                 synchronized (f) {
+                    if (mon != null)
+                        mon.binLocked(n, i, t0);
                     // 对f加锁
                     if (tabAt(tab, i) == f) {
                         // 双重检查，只有是f才处理
@@ -168,262 +673,2714 @@ public class DemoConcurrentHashMap<K,V> {
                                 }
                             }
                         }
+                        else if (f instanceof TreeBin) {
+                            // 红黑树，直接往树里放
+                            Node<K,V> p;
+                            binCount = 2;
+                            if ((p = ((TreeBin<K,V>)f).putTreeVal(hash, key,
+                                    value)) != null) {
+                                oldVal = p.val;
+                                if (!onlyIfAbsent)
+                                    p.val = value;
+                            }
+                        }
+                        else if (f instanceof ReservationNode)
+                            // 同一线程在compute的函数里又修改同一个槽
+                            throw new IllegalStateException("Recursive update");
                     }
                 }
                 if (binCount != 0) {
+                    if (mon != null)
+                        // 红黑树的binCount固定是2，按树里的节点数算
+                        mon.chainLength(f instanceof TreeBin ? ((TreeBin<K,V>)f).count : binCount);
+                    if (binCount >= TREEIFY_THRESHOLD)
+                        // 链表太长，转红黑树
+                        treeifyBin(tab, i);
                     if (oldVal != null)
                         return oldVal;
                     break;
                 }
             }
         }
+        // 新增了节点，计数+1，并检查是否需要扩容
+        addCount(1L, binCount);
         return null;
     }
 
-    final Node<K,V>[] helpTransfer(Node<K,V>[] tab, Node<K,V> f) {
-        Node<K,V>[] nextTab;
-        int sc;
-        if (tab != null && (f instanceof ForwardingNode) &&
-                (nextTab = ((ForwardingNode<K,V>)f).nextTable) != null) {
-            int rs = resizeStamp(tab.length);
-            while (nextTab == nextTable && table == tab &&
-                    (sc = sizeCtl) < 0) {
-                if ((sc >>> RESIZE_STAMP_SHIFT) != rs || sc == rs + 1 ||
-                        sc == rs + MAX_RESIZERS || transferIndex <= 0)
-                    break;
-                if (U.compareAndSwapInt(this, SIZECTL, sc, sc + 1)) {
-                    transfer(tab, nextTab);
-                    break;
-                }
-            }
-            return nextTab;
-        }
-        return table;
+    public V remove(Object key) {
+        return replaceNode(key, null, null);
     }
 
-    private final void transfer(Node<K,V>[] tab, Node<K,V>[] nextTab) {
-        int n = tab.length, stride;
-        // 原数组会按每段stride划分，以stride为单位，由线程领取任务完成扩容
-        if ((stride = (NCPU > 1) ? (n >>> 3) / NCPU : n) < MIN_TRANSFER_STRIDE)
-            stride = MIN_TRANSFER_STRIDE; // subdivide range
-        if (nextTab == null) {            // initiating
-            // 如果是本次扩容的首次transfer，扩容成2倍
-            try {
-                @SuppressWarnings("unchecked")
-                // 初始化
-                Node<K,V>[] nt = (Node<K,V>[])new Node<?,?>[n << 1];
-                nextTab = nt;
-            } catch (Throwable ex) {      // try to cope with OOME
-                sizeCtl = Integer.MAX_VALUE;
-                return;
-            }
-            nextTable = nextTab;
-            // 从尾往头认领
-            transferIndex = n;
-        }
-        // 本次扩容的最大长度
-        int nextn = nextTab.length;
-        ForwardingNode<K,V> fwd = new ForwardingNode<K,V>(nextTab);
-        // true表示可以去领任务
-        boolean advance = true;
-        // true表示完成
-        boolean finishing = false;
-        for (int i = 0, bound = 0;;) {
-            // 死循环
-            Node<K,V> f;
-            int fh;
-            while (advance) {
-                int nextIndex, nextBound;
-                if (--i >= bound || finishing)
-                    advance = false;
-                else if ((nextIndex = transferIndex) <= 0) {
-                    i = -1;
-                    advance = false;
-                }
-                else if (U.compareAndSwapInt
-                        (this, TRANSFERINDEX, nextIndex,
-                                nextBound = (nextIndex > stride ?
-                                        nextIndex - stride : 0))) {
-                    // CAS扣除transferIndex，表示认领成功
-                    // 本次处理区间为[nextBound,oldTransferIndex)
-                    bound = nextBound;
-                    i = nextIndex - 1;
-                    advance = false;
-                }
-            }
-            if (i < 0 || i >= n || i + n >= nextn) {
-                // 说明扩容完事了
-                int sc;
-                if (finishing) {
-                    // 正常结束
-                    nextTable = null;
-                    table = nextTab;
-                    sizeCtl = (n << 1) - (n >>> 1);
-                    return;
-                }
-                if (U.compareAndSwapInt(this, SIZECTL, sc = sizeCtl, sc - 1)) {
-                    // 更新状态
-                    if ((sc - 2) != resizeStamp(n) << RESIZE_STAMP_SHIFT)
-                        return;
-                    finishing = advance = true;
-                    i = n; // recheck before commit
-                }
-            }
-            else if ((f = tabAt(tab, i)) == null)
-                // 为空则直接用fwd占位
-                advance = casTabAt(tab, i, null, fwd);
+    /**
+     * 只有当前值等于value时才删除
+     */
+    public boolean remove(Object key, Object value) {
+        if (key == null)
+            throw new NullPointerException();
+        return value != null && replaceNode(key, null, value) != null;
+    }
+
+    /**
+     * 只有当前值等于oldValue时才替换
+     */
+    public boolean replace(K key, V oldValue, V newValue) {
+        if (key == null || oldValue == null || newValue == null)
+            throw new NullPointerException();
+        return replaceNode(key, newValue, oldValue) != null;
+    }
+
+    /**
+     * 只有key存在时才替换
+     */
+    public V replace(K key, V value) {
+        if (key == null || value == null)
+            throw new NullPointerException();
+        return replaceNode(key, value, null);
+    }
+
+    /**
+     * remove和replace的实现：找到节点后，value为null就删除，否则替换
+     * @param value 新值，为null表示删除
+     * @param cv 期望的旧值，为null表示不比较
+     * @return 被替换或删除的旧值，没找到返回null
+     */
+    final V replaceNode(Object key, V value, Object cv) {
+        int hash = keyHash(key);
+        for (Node<K,V>[] tab = table;;) {
+            Node<K,V> f; int n, i, fh;
+            if (tab == null || (n = tab.length) == 0 ||
+                    (f = tabAt(tab, i = (n - 1) & hash)) == null)
+                // 槽是空的，肯定没有
+                break;
             else if ((fh = f.hash) == MOVED)
-                // 如果f已经是占位，继续领取下一次
-                advance = true; // already processed
+                tab = helpTransfer(tab, f);
             else {
+                V oldVal = null;
+                boolean validated = false;
+                int len = 0;
+                DemoConcurrentHashMapMonitor mon = monitor;
+                long t0 = (mon != null) ? System.nanoTime() : 0L;
                 synchronized (f) {
-                    // 准备迁移
+                    if (mon != null)
+                        mon.binLocked(n, i, t0);
+                    // 跟putVal一样，锁住槽的头节点
                     if (tabAt(tab, i) == f) {
-                        // 双重检查
-                        Node<K,V> ln, hn;
                         if (fh >= 0) {
-                            // 处理链表
-                            int runBit = fh & n;
-                            Node<K,V> lastRun = f;
-                            for (Node<K,V> p = f.next; p != null; p = p.next) {
-                                int b = p.hash & n;
-                                if (b != runBit) {
-                                    runBit = b;
-                                    lastRun = p;
+                            validated = true;
+                            for (Node<K,V> e = f, pred = null;;) {
+                                K ek;
+                                ++len;
+                                if (e.hash == hash &&
+                                        ((ek = e.key) == key ||
+                                                (ek != null && key.equals(ek)))) {
+                                    V ev = e.val;
+                                    if (cv == null || cv == ev ||
+                                            (ev != null && cv.equals(ev))) {
+                                        oldVal = ev;
+                                        if (value != null)
+                                            e.val = value;
+                                        else if (pred != null)
+                                            // 从链表中摘掉，next是volatile，读线程能立刻看到
+                                            pred.next = e.next;
+                                        else
+                                            setTabAt(tab, i, e.next);
+                                    }
+                                    break;
                                 }
+                                pred = e;
+                                if ((e = e.next) == null)
+                                    break;
                             }
-                            if (runBit == 0) {
-                                ln = lastRun;
-                                hn = null;
+                        }
+                        else if (f instanceof TreeBin) {
+                            validated = true;
+                            TreeBin<K,V> t = (TreeBin<K,V>)f;
+                            TreeNode<K,V> r, p;
+                            len = t.count;
+                            if ((r = t.root) != null &&
+                                    (p = r.findTreeNode(hash, key, null)) != null) {
+                                V pv = p.val;
+                                if (cv == null || cv == pv ||
+                                        (pv != null && cv.equals(pv))) {
+                                    oldVal = pv;
+                                    if (value != null)
+                                        p.val = value;
+                                    else if (t.removeTreeNode(p))
+                                        // 树太小了，退化成链表
+                                        setTabAt(tab, i, untreeify(t.first));
+                                }
+                            }
+                        }
+                        else if (f instanceof ReservationNode)
+                            throw new IllegalStateException("Recursive update");
+                    }
+                }
+                if (validated) {
+                    if (mon != null)
+                        mon.chainLength(len);
+                    if (oldVal != null) {
+                        if (value == null) {
+                            // 删除成功，计数-1，不检查扩容，addCount里会检查缩容
+                            addCount(-1L, -1);
+                        }
+                        return oldVal;
+                    }
+                    break;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * key不存在时才用mappingFunction计算并放入，整个过程是原子的，函数最多执行一次
+     */
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        if (key == null || mappingFunction == null)
+            throw new NullPointerException();
+        int h = keyHash(key);
+        V val = null;
+        int binCount = 0;
+        for (Node<K,V>[] tab = table;;) {
+            Node<K,V> f; int n, i, fh; K fk; V fv;
+            if (tab == null || (n = tab.length) == 0)
+                tab = initTable();
+            else if ((f = tabAt(tab, i = (n - 1) & h)) == null) {
+                // 空槽不能直接CAS放节点(值还没算出来)，先用ReservationNode占位并加锁
+                Node<K,V> r = new ReservationNode<K,V>();
+                synchronized (r) {
+                    if (casTabAt(tab, i, null, r)) {
+                        binCount = 1;
+                        Node<K,V> node = null;
+                        try {
+                            if ((val = mappingFunction.apply(key)) != null)
+                                node = new Node<K,V>(h, key, val, null);
+                        } finally {
+                            // 函数抛异常时把槽还原为空
+                            setTabAt(tab, i, node);
+                        }
+                    }
+                }
+                if (binCount != 0)
+                    break;
+            }
+            else if ((fh = f.hash) == MOVED)
+                tab = helpTransfer(tab, f);
+            else if (fh == h    // check first node without acquiring lock
+                    && ((fk = f.key) == key || (fk != null && key.equals(fk)))
+                    && (fv = f.val) != null)
+                // 头节点就是这个key，不用加锁直接返回
+                return fv;
+            else {
+                boolean added = false;
+                DemoConcurrentHashMapMonitor mon = monitor;
+                long t0 = (mon != null) ? System.nanoTime() : 0L;
+                synchronized (f) {
+                    if (mon != null)
+                        mon.binLocked(n, i, t0);
+                    if (tabAt(tab, i) == f) {
+                        if (fh >= 0) {
+                            binCount = 1;
+                            for (Node<K,V> e = f;; ++binCount) {
+                                K ek;
+                                if (e.hash == h &&
+                                        ((ek = e.key) == key ||
+                                                (ek != null && key.equals(ek)))) {
+                                    val = e.val;
+                                    break;
+                                }
+                                Node<K,V> pred = e;
+                                if ((e = e.next) == null) {
+                                    if ((val = mappingFunction.apply(key)) != null) {
+                                        added = true;
+                                        pred.next = new Node<K,V>(h, key, val, null);
+                                    }
+                                    break;
+                                }
+                            }
+                        }
+                        else if (f instanceof TreeBin) {
+                            binCount = 2;
+                            TreeBin<K,V> t = (TreeBin<K,V>)f;
+                            TreeNode<K,V> r, p;
+                            if ((r = t.root) != null &&
+                                    (p = r.findTreeNode(h, key, null)) != null)
+                                val = p.val;
+                            else if ((val = mappingFunction.apply(key)) != null) {
+                                added = true;
+                                t.putTreeVal(h, key, val);
+                            }
+                        }
+                        else if (f instanceof ReservationNode)
+                            throw new IllegalStateException("Recursive update");
+                    }
+                }
+                if (binCount != 0) {
+                    if (binCount >= TREEIFY_THRESHOLD)
+                        treeifyBin(tab, i);
+                    if (!added)
+                        return val;
+                    break;
+                }
+            }
+        }
+        if (val != null)
+            addCount(1L, binCount);
+        return val;
+    }
+
+    /**
+     * key存在时才用remappingFunction重新计算，结果为null则删除
+     */
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        if (key == null || remappingFunction == null)
+            throw new NullPointerException();
+        int h = keyHash(key);
+        V val = null;
+        int delta = 0;
+        int binCount = 0;
+        for (Node<K,V>[] tab = table;;) {
+            Node<K,V> f; int n, i, fh;
+            if (tab == null || (n = tab.length) == 0)
+                tab = initTable();
+            else if ((f = tabAt(tab, i = (n - 1) & h)) == null)
+                break;
+            else if ((fh = f.hash) == MOVED)
+                tab = helpTransfer(tab, f);
+            else {
+                DemoConcurrentHashMapMonitor mon = monitor;
+                long t0 = (mon != null) ? System.nanoTime() : 0L;
+                synchronized (f) {
+                    if (mon != null)
+                        mon.binLocked(n, i, t0);
+                    if (tabAt(tab, i) == f) {
+                        if (fh >= 0) {
+                            binCount = 1;
+                            for (Node<K,V> e = f, pred = null;; ++binCount) {
+                                K ek;
+                                if (e.hash == h &&
+                                        ((ek = e.key) == key ||
+                                                (ek != null && key.equals(ek)))) {
+                                    val = remappingFunction.apply(key, e.val);
+                                    if (val != null)
+                                        e.val = val;
+                                    else {
+                                        delta = -1;
+                                        Node<K,V> en = e.next;
+                                        if (pred != null)
+                                            pred.next = en;
+                                        else
+                                            setTabAt(tab, i, en);
+                                    }
+                                    break;
+                                }
+                                pred = e;
+                                if ((e = e.next) == null)
+                                    break;
+                            }
+                        }
+                        else if (f instanceof TreeBin) {
+                            binCount = 2;
+                            TreeBin<K,V> t = (TreeBin<K,V>)f;
+                            TreeNode<K,V> r, p;
+                            if ((r = t.root) != null &&
+                                    (p = r.findTreeNode(h, key, null)) != null) {
+                                val = remappingFunction.apply(key, p.val);
+                                if (val != null)
+                                    p.val = val;
+                                else {
+                                    delta = -1;
+                                    if (t.removeTreeNode(p))
+                                        setTabAt(tab, i, untreeify(t.first));
+                                }
+                            }
+                        }
+                        else if (f instanceof ReservationNode)
+                            throw new IllegalStateException("Recursive update");
+                    }
+                }
+                if (binCount != 0)
+                    break;
+            }
+        }
+        if (delta != 0)
+            addCount((long)delta, binCount);
+        return val;
+    }
+
+    /**
+     * 用remappingFunction根据旧值(不存在为null)计算新值，结果为null则删除
+     */
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        if (key == null || remappingFunction == null)
+            throw new NullPointerException();
+        int h = keyHash(key);
+        V val = null;
+        // 元素个数的变化：1新增，-1删除，0替换
+        int delta = 0;
+        int binCount = 0;
+        for (Node<K,V>[] tab = table;;) {
+            Node<K,V> f; int n, i, fh;
+            if (tab == null || (n = tab.length) == 0)
+                tab = initTable();
+            else if ((f = tabAt(tab, i = (n - 1) & h)) == null) {
+                // 跟computeIfAbsent一样，空槽先占位
+                Node<K,V> r = new ReservationNode<K,V>();
+                synchronized (r) {
+                    if (casTabAt(tab, i, null, r)) {
+                        binCount = 1;
+                        Node<K,V> node = null;
+                        try {
+                            if ((val = remappingFunction.apply(key, null)) != null) {
+                                delta = 1;
+                                node = new Node<K,V>(h, key, val, null);
+                            }
+                        } finally {
+                            setTabAt(tab, i, node);
+                        }
+                    }
+                }
+                if (binCount != 0)
+                    break;
+            }
+            else if ((fh = f.hash) == MOVED)
+                tab = helpTransfer(tab, f);
+            else {
+                DemoConcurrentHashMapMonitor mon = monitor;
+                long t0 = (mon != null) ? System.nanoTime() : 0L;
+                synchronized (f) {
+                    if (mon != null)
+                        mon.binLocked(n, i, t0);
+                    if (tabAt(tab, i) == f) {
+                        if (fh >= 0) {
+                            binCount = 1;
+                            for (Node<K,V> e = f, pred = null;; ++binCount) {
+                                K ek;
+                                if (e.hash == h &&
+                                        ((ek = e.key) == key ||
+                                                (ek != null && key.equals(ek)))) {
+                                    val = remappingFunction.apply(key, e.val);
+                                    if (val != null)
+                                        e.val = val;
+                                    else {
+                                        delta = -1;
+                                        Node<K,V> en = e.next;
+                                        if (pred != null)
+                                            pred.next = en;
+                                        else
+                                            setTabAt(tab, i, en);
+                                    }
+                                    break;
+                                }
+                                pred = e;
+                                if ((e = e.next) == null) {
+                                    val = remappingFunction.apply(key, null);
+                                    if (val != null) {
+                                        delta = 1;
+                                        pred.next = new Node<K,V>(h, key, val, null);
+                                    }
+                                    break;
+                                }
+                            }
+                        }
+                        else if (f instanceof TreeBin) {
+                            binCount = 1;
+                            TreeBin<K,V> t = (TreeBin<K,V>)f;
+                            TreeNode<K,V> r, p;
+                            if ((r = t.root) != null)
+                                p = r.findTreeNode(h, key, null);
+                            else
+                                p = null;
+                            V pv = (p == null) ? null : p.val;
+                            val = remappingFunction.apply(key, pv);
+                            if (val != null) {
+                                if (p != null)
+                                    p.val = val;
+                                else {
+                                    delta = 1;
+                                    t.putTreeVal(h, key, val);
+                                }
+                            }
+                            else if (p != null) {
+                                delta = -1;
+                                if (t.removeTreeNode(p))
+                                    setTabAt(tab, i, untreeify(t.first));
+                            }
+                        }
+                        else if (f instanceof ReservationNode)
+                            throw new IllegalStateException("Recursive update");
+                    }
+                }
+                if (binCount != 0) {
+                    if (binCount >= TREEIFY_THRESHOLD)
+                        treeifyBin(tab, i);
+                    break;
+                }
+            }
+        }
+        if (delta != 0)
+            addCount((long)delta, binCount);
+        return val;
+    }
+
+    /**
+     * key不存在时放入value，存在时用remappingFunction合并新旧值，结果为null则删除
+     * 适合做计数之类的聚合，比如merge(k, 1L, Long::sum)
+     */
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        if (key == null || value == null || remappingFunction == null)
+            throw new NullPointerException();
+        int h = keyHash(key);
+        V val = null;
+        int delta = 0;
+        int binCount = 0;
+        for (Node<K,V>[] tab = table;;) {
+            Node<K,V> f; int n, i, fh;
+            if (tab == null || (n = tab.length) == 0)
+                tab = initTable();
+            else if ((f = tabAt(tab, i = (n - 1) & h)) == null) {
+                // value是现成的，空槽直接CAS即可，不需要占位
+                if (casTabAt(tab, i, null, new Node<K,V>(h, key, value, null))) {
+                    delta = 1;
+                    val = value;
+                    break;
+                }
+            }
+            else if ((fh = f.hash) == MOVED)
+                tab = helpTransfer(tab, f);
+            else {
+                DemoConcurrentHashMapMonitor mon = monitor;
+                long t0 = (mon != null) ? System.nanoTime() : 0L;
+                synchronized (f) {
+                    if (mon != null)
+                        mon.binLocked(n, i, t0);
+                    if (tabAt(tab, i) == f) {
+                        if (fh >= 0) {
+                            binCount = 1;
+                            for (Node<K,V> e = f, pred = null;; ++binCount) {
+                                K ek;
+                                if (e.hash == h &&
+                                        ((ek = e.key) == key ||
+                                                (ek != null && key.equals(ek)))) {
+                                    val = remappingFunction.apply(e.val, value);
+                                    if (val != null)
+                                        e.val = val;
+                                    else {
+                                        delta = -1;
+                                        Node<K,V> en = e.next;
+                                        if (pred != null)
+                                            pred.next = en;
+                                        else
+                                            setTabAt(tab, i, en);
+                                    }
+                                    break;
+                                }
+                                pred = e;
+                                if ((e = e.next) == null) {
+                                    delta = 1;
+                                    val = value;
+                                    pred.next = new Node<K,V>(h, key, val, null);
+                                    break;
+                                }
+                            }
+                        }
+                        else if (f instanceof TreeBin) {
+                            binCount = 2;
+                            TreeBin<K,V> t = (TreeBin<K,V>)f;
+                            TreeNode<K,V> r = t.root;
+                            TreeNode<K,V> p = (r == null) ? null :
+                                    r.findTreeNode(h, key, null);
+                            val = (p == null) ? value :
+                                    remappingFunction.apply(p.val, value);
+                            if (val != null) {
+                                if (p != null)
+                                    p.val = val;
+                                else {
+                                    delta = 1;
+                                    t.putTreeVal(h, key, val);
+                                }
+                            }
+                            else if (p != null) {
+                                delta = -1;
+                                if (t.removeTreeNode(p))
+                                    setTabAt(tab, i, untreeify(t.first));
+                            }
+                        }
+                        else if (f instanceof ReservationNode)
+                            throw new IllegalStateException("Recursive update");
+                    }
+                }
+                if (binCount != 0) {
+                    if (binCount >= TREEIFY_THRESHOLD)
+                        treeifyBin(tab, i);
+                    break;
+                }
+            }
+        }
+        if (delta != 0)
+            addCount((long)delta, binCount);
+        return val;
+    }
+
+    /**
+     * 估算本次批量操作要切分成几份，元素数小于parallelismThreshold时返回0(单线程执行)
+     * 最多切成commonPool并行度的4倍，给负载不均留点余量
+     */
+    final int batchFor(long b) {
+        long n;
+        if (b == Long.MAX_VALUE || (n = sumCount()) <= 1L || n < b)
+            return 0;
+        int sp = ForkJoinPool.getCommonPoolParallelism() << 2; // slack of 4
+        return (b <= 0L || (n /= b) >= sp) ? sp : (int)n;
+    }
+
+    /**
+     * 对每个键值对执行action
+     * @param parallelismThreshold 元素数达到这个值才并行，传Long.MAX_VALUE表示单线程，传1表示尽量并行
+     */
+    public void forEach(long parallelismThreshold,
+                        BiConsumer<? super K,? super V> action) {
+        if (action == null) throw new NullPointerException();
+        new ForEachMappingTask<K,V>
+                (null, batchFor(parallelismThreshold), 0, 0, table,
+                        action).invoke();
+    }
+
+    /**
+     * 返回第一个让searchFunction返回非null的结果，找到后其他子任务尽快停止
+     * 并行时"第一个"不保证是遍历顺序上的第一个
+     */
+    public <U> U search(long parallelismThreshold,
+                        BiFunction<? super K, ? super V, ? extends U> searchFunction) {
+        if (searchFunction == null) throw new NullPointerException();
+        return new SearchMappingsTask<K,V,U>
+                (null, batchFor(parallelismThreshold), 0, 0, table,
+                        searchFunction, new AtomicReference<U>()).invoke();
+    }
+
+    /**
+     * 先用transformer转换每个键值对(返回null表示跳过)，再用reducer两两归并
+     * @return 没有任何元素参与归并时返回null
+     */
+    public <U> U reduce(long parallelismThreshold,
+                        BiFunction<? super K, ? super V, ? extends U> transformer,
+                        BiFunction<? super U, ? super U, ? extends U> reducer) {
+        if (transformer == null || reducer == null)
+            throw new NullPointerException();
+        return new MapReduceMappingsTask<K,V,U>
+                (null, batchFor(parallelismThreshold), 0, 0, table,
+                        null, transformer, reducer).invoke();
+    }
+
+    /**
+     * reduce的long版本，避免装箱，适合统计求和
+     * @param basis reducer的初始值，比如求和用0
+     */
+    public long reduceToLong(long parallelismThreshold,
+                             ToLongBiFunction<? super K, ? super V> transformer,
+                             long basis,
+                             LongBinaryOperator reducer) {
+        if (transformer == null || reducer == null)
+            throw new NullPointerException();
+        return new MapReduceMappingsToLongTask<K,V>
+                (null, batchFor(parallelismThreshold), 0, 0, table,
+                        null, transformer, basis, reducer).invoke();
+    }
+
+    public int size() {
+        long n = sumCount();
+        return ((n < 0L) ? 0 :
+                (n > (long)Integer.MAX_VALUE) ? Integer.MAX_VALUE :
+                        (int)n);
+    }
+
+    /**
+     * 跟size一样，但是可能超过int范围，大map推荐用这个
+     */
+    public long mappingCount() {
+        long n = sumCount();
+        return (n < 0L) ? 0L : n; // ignore transient negative values
+    }
+
+    public boolean isEmpty() {
+        return sumCount() <= 0L;
+    }
+
+    /**
+     * 打开运行时统计，等锁超过10微秒算一次竞争，不发JFR事件
+     */
+    public DemoConcurrentHashMapMonitor enableMonitoring() {
+        return enableMonitoring(DemoConcurrentHashMapMonitor.DEFAULT_CONTENTION_THRESHOLD_NANOS, false);
+    }
+
+    /**
+     * 打开运行时统计，已经打开时返回现有的monitor
+     * @param contentionThresholdNanos 等槽锁超过这个时间才记一次竞争
+     * @param jfr 是否同时发出JFR事件
+     */
+    public DemoConcurrentHashMapMonitor enableMonitoring(long contentionThresholdNanos, boolean jfr) {
+        DemoConcurrentHashMapMonitor m, nm;
+        if ((m = monitor) != null)
+            return m;
+        nm = new DemoConcurrentHashMapMonitor(contentionThresholdNanos, jfr);
+        return U.compareAndSwapObject(this, MONITOR, null, nm) ? nm : monitor;
+    }
+
+    public void disableMonitoring() {
+        monitor = null;
+    }
+
+    /**
+     * 当前的monitor，没打开时返回null
+     */
+    public DemoConcurrentHashMapMonitor monitor() {
+        return monitor;
+    }
+
+    /**
+     * 把table缩到刚好能放下当前元素的大小(不小于构造时的容量)，
+     * 每次缩一半，跟其他线程一起协作完成，期间读写都可以照常进行
+     */
+    public void trimToSize() {
+        Node<K,V>[] tab; int n;
+        while ((tab = table) != null && (n = tab.length) > shrinkFloor) {
+            long s = sumCount();
+            // 跟tryPresize一样留出余量，缩完不会马上又触发扩容
+            int c = (s >= (long)(MAXIMUM_CAPACITY >>> 1)) ? MAXIMUM_CAPACITY :
+                    tableSizeFor((int)s + ((int)s >>> 1) + 1);
+            if (c >= n)
+                break;
+            if (!tryShrink(tab))
+                // 正在初始化或者别的扩容在收尾，等它结束
+                Thread.yield();
+        }
+    }
+
+    final long sumCount() {
+        // baseCount加上所有格子的值，不加锁，所以只是一个近似值
+        CounterCell[] as = counterCells; CounterCell a;
+        long sum = baseCount;
+        if (as != null) {
+            for (int i = 0; i < as.length; ++i) {
+                if ((a = as[i]) != null)
+                    sum += a.value;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * 计数加x
+     * @param x 要加的值
+     * @param check 小于0不检查扩容；小于等于1时只在无竞争时检查扩容
+     *              x小于0时检查缩容，有竞争时按SHRINK_CHECK_MASK抽样检查
+     */
+    private final void addCount(long x, int check) {
+        CounterCell[] as; long b, s;
+        if ((as = counterCells) != null ||
+                !U.compareAndSwapLong(this, BASECOUNT, b = baseCount, s = b + x)) {
+            // 已经有格子了，或者CAS baseCount失败(有竞争)，转去格子上加
+            CounterCell a; long v; int m;
+            boolean uncontended = true;
+            if (as == null || (m = as.length - 1) < 0 ||
+                    (a = as[getProbe() & m]) == null ||
+                    !(uncontended =
+                            U.compareAndSwapLong(a, CELLVALUE, v = a.value, v + x))) {
+                // 格子不存在或者格子上也CAS失败，走完整的流程
+                fullAddCount(x, uncontended);
+                return;
+            }
+            if (check <= 1) {
+                if (x < 0 && ((v + x) & SHRINK_CHECK_MASK) == 0)
+                    checkShrink(sumCount());
+                return;
+            }
+            s = sumCount();
+        }
+        if (x < 0)
+            checkShrink(s);
+        else if (check >= 0) {
+            Node<K,V>[] tab, nt; int n, sc;
+            // 元素个数到过容量的1/4，这个长度的table以后可以自动缩容
+            if ((tab = table) != null && s >= (long)((n = tab.length) >>> 2) &&
+                    shrinkArmed != n)
+                shrinkArmed = n;
+            // 元素个数达到sizeCtl阈值，开始扩容
+            while (s >= (long)(sc = sizeCtl) && (tab = table) != null &&
+                    (n = tab.length) < MAXIMUM_CAPACITY) {
+                int rs = resizeStamp(n);
+                if (sc < 0) {
+                    // 正在扩容，看能不能帮忙
+                    // sc等于(rs << RESIZE_STAMP_SHIFT) + 1说明扩容在收尾，+ MAX_RESIZERS说明帮忙的线程满了
+                    // jdk8里rs没有左移就比较，这两个条件永远不成立(JDK-8214427)
+                    if ((sc >>> RESIZE_STAMP_SHIFT) != rs ||
+                            sc == (rs << RESIZE_STAMP_SHIFT) + 1 ||
+                            sc == (rs << RESIZE_STAMP_SHIFT) + MAX_RESIZERS ||
+                            (nt = nextTable) == null || transferIndex <= 0)
+                        break;
+                    if (U.compareAndSwapInt(this, SIZECTL, sc, sc + 1))
+                        transfer(tab, nt);
+                }
+                else if (U.compareAndSwapInt(this, SIZECTL, sc,
+                        (rs << RESIZE_STAMP_SHIFT) + 2))
+                    // 首个发起扩容的线程
+                    transfer(tab, null);
+                s = sumCount();
+            }
+        }
+    }
+
+    private final void fullAddCount(long x, boolean wasUncontended) {
+        int h;
+        if ((h = getProbe()) == 0) {
+            // 探针还没初始化，ThreadLocalRandom.current()会顺便初始化
+            ThreadLocalRandom.current();
+            h = getProbe();
+            wasUncontended = true;
+        }
+        boolean collide = false;                // True if last slot nonempty
+        for (;;) {
+            CounterCell[] as; CounterCell a; int n; long v;
+            if ((as = counterCells) != null && (n = as.length) > 0) {
+                if ((a = as[(n - 1) & h]) == null) {
+                    // 对应的格子为空，尝试新建一个
+                    if (cellsBusy == 0) {
+                        CounterCell r = new CounterCell(x);
+                        if (cellsBusy == 0 &&
+                                U.compareAndSwapInt(this, CELLSBUSY, 0, 1)) {
+                            boolean created = false;
+                            try {
+                                // 拿到锁之后双重检查
+                                CounterCell[] rs; int m, j;
+                                if ((rs = counterCells) != null &&
+                                        (m = rs.length) > 0 &&
+                                        rs[j = (m - 1) & h] == null) {
+                                    rs[j] = r;
+                                    created = true;
+                                }
+                            } finally {
+                                cellsBusy = 0;
+                            }
+                            if (created)
+                                break;
+                            continue;           // Slot is now non-empty
+                        }
+                    }
+                    collide = false;
+                }
+                else if (!wasUncontended)       // CAS already known to fail
+                    wasUncontended = true;      // Continue after rehash
+                else if (U.compareAndSwapLong(a, CELLVALUE, v = a.value, v + x))
+                    break;
+                else if (counterCells != as || n >= NCPU)
+                    // 格子数量不超过cpu个数
+                    collide = false;            // At max size or stale
+                else if (!collide)
+                    collide = true;
+                else if (cellsBusy == 0 &&
+                        U.compareAndSwapInt(this, CELLSBUSY, 0, 1)) {
+                    // 连续冲突，格子数组扩容2倍
+                    try {
+                        if (counterCells == as) {
+                            CounterCell[] rs = new CounterCell[n << 1];
+                            for (int i = 0; i < n; ++i)
+                                rs[i] = as[i];
+                            counterCells = rs;
+                        }
+                    } finally {
+                        cellsBusy = 0;
+                    }
+                    collide = false;
+                    continue;                   // Retry with expanded table
+                }
+                // 换一个探针值，下次落到别的格子上
+                h = advanceProbe(h);
+            }
+            else if (cellsBusy == 0 && counterCells == as &&
+                    U.compareAndSwapInt(this, CELLSBUSY, 0, 1)) {
+                // 格子数组还没初始化，初始化为2个
+                boolean init = false;
+                try {
+                    if (counterCells == as) {
+                        CounterCell[] rs = new CounterCell[2];
+                        rs[h & 1] = new CounterCell(x);
+                        counterCells = rs;
+                        init = true;
+                    }
+                } finally {
+                    cellsBusy = 0;
+                }
+                if (init)
+                    break;
+            }
+            else if (U.compareAndSwapLong(this, BASECOUNT, v = baseCount, v + x))
+                // 都不行就再试一次baseCount
+                break;
+        }
+    }
+
+    static final int getProbe() {
+        return U.getInt(Thread.currentThread(), PROBE);
+    }
+
+    static final int advanceProbe(int probe) {
+        // xorshift
+        probe ^= probe << 13;
+        probe ^= probe >>> 17;
+        probe ^= probe << 5;
+        U.putInt(Thread.currentThread(), PROBE, probe);
+        return probe;
+    }
+
+    final Node<K,V>[] helpTransfer(Node<K,V>[] tab, Node<K,V> f) {
+        Node<K,V>[] nextTab;
+        int sc;
+        if (tab != null && (f instanceof ForwardingNode) &&
+                (nextTab = ((ForwardingNode<K,V>)f).nextTable) != null) {
+            int rs = resizeStamp(tab.length);
+            while (nextTab == nextTable && table == tab &&
+                    (sc = sizeCtl) < 0) {
+                if ((sc >>> RESIZE_STAMP_SHIFT) != rs ||
+                        sc == (rs << RESIZE_STAMP_SHIFT) + 1 ||
+                        sc == (rs << RESIZE_STAMP_SHIFT) + MAX_RESIZERS ||
+                        transferIndex <= 0)
+                    break;
+                if (U.compareAndSwapInt(this, SIZECTL, sc, sc + 1)) {
+                    transfer(tab, nextTab);
+                    break;
+                }
+            }
+            return nextTab;
+        }
+        return table;
+    }
+
+    private final void transfer(Node<K,V>[] tab, Node<K,V>[] nextTab) {
+        transfer(tab, nextTab, false);
+    }
+
+    /**
+     * @param initiating 为true表示nextTab是调用方刚分配的(缩容)，当前线程是发起者而不是帮忙的
+     */
+    private final void transfer(Node<K,V>[] tab, Node<K,V>[] nextTab, boolean initiating) {
+        int n = tab.length, stride;
+        // nextTab比老表短说明是缩容，缩容按新表的槽划分任务，每个槽对应老表的两个槽
+        boolean shrink = nextTab != null && nextTab.length < n;
+        DemoConcurrentHashMapMonitor mon = monitor;
+        int range = shrink ? n >>> 1 : n;
+        // 原数组会按每段stride划分，以stride为单位，由线程领取任务完成扩容
+        if ((stride = (NCPU > 1) ? (range >>> 3) / NCPU : range) < MIN_TRANSFER_STRIDE)
+            stride = MIN_TRANSFER_STRIDE; // subdivide range
+        if (nextTab == null) {            // initiating
+            // 如果是本次扩容的首次transfer，扩容成2倍
+            try {
+                @SuppressWarnings("unchecked")
+                // 初始化
+                Node<K,V>[] nt = (Node<K,V>[])new Node<?,?>[n << 1];
+                nextTab = nt;
+            } catch (Throwable ex) {      // try to cope with OOME
+                sizeCtl = Integer.MAX_VALUE;
+                return;
+            }
+            nextTable = nextTab;
+            // 从尾往头认领
+            transferIndex = n;
+            initiating = true;
+        }
+        if (mon != null) {
+            if (initiating)
+                mon.resizeStarted(n, nextTab.length);
+            else
+                // sizeCtl低16位是参与线程数+1
+                mon.transferJoined((sizeCtl & ((1 << RESIZE_STAMP_SHIFT) - 1)) - 1);
+        }
+        // 本次扩容的最大长度
+        int nextn = nextTab.length;
+        ForwardingNode<K,V> fwd = new ForwardingNode<K,V>(nextTab);
+        // true表示可以去领任务
+        boolean advance = true;
+        // true表示完成
+        boolean finishing = false;
+        for (int i = 0, bound = 0;;) {
+            // 死循环
+            Node<K,V> f;
+            int fh;
+            while (advance) {
+                int nextIndex, nextBound;
+                if (--i >= bound || finishing)
+                    advance = false;
+                else if ((nextIndex = transferIndex) <= 0) {
+                    i = -1;
+                    advance = false;
+                }
+                else if (U.compareAndSwapInt
+                        (this, TRANSFERINDEX, nextIndex,
+                                nextBound = (nextIndex > stride ?
+                                        nextIndex - stride : 0))) {
+                    // CAS扣除transferIndex，表示认领成功
+                    // 本次处理区间为[nextBound,oldTransferIndex)
+                    bound = nextBound;
+                    i = nextIndex - 1;
+                    advance = false;
+                    if (mon != null)
+                        mon.strideClaimed();
+                }
+            }
+            if (i < 0 || i >= range || (!shrink && i + n >= nextn)) {
+                // 说明扩容完事了
+                int sc;
+                if (finishing) {
+                    // 正常结束
+                    nextTable = null;
+                    table = nextTab;
+                    sizeCtl = shrink ? nextn - (nextn >>> 2) : (n << 1) - (n >>> 1);
+                    // 缩容说明元素确实在持续减少，缩完的表允许继续往下缩
+                    if (shrink)
+                        shrinkArmed = nextn;
+                    if (mon != null)
+                        mon.resizeFinished(n, nextn);
+                    return;
+                }
+                if (U.compareAndSwapInt(this, SIZECTL, sc = sizeCtl, sc - 1)) {
+                    // 更新状态
+                    if ((sc - 2) != resizeStamp(n) << RESIZE_STAMP_SHIFT)
+                        return;
+                    finishing = advance = true;
+                    i = range; // recheck before commit
+                }
+            }
+            else if (shrink)
+                // 缩容，把i和i+range两个槽合并到新表的i
+                advance = shrinkBin(tab, nextTab, i, fwd);
+            else if ((f = tabAt(tab, i)) == null)
+                // 为空则直接用fwd占位
+                advance = casTabAt(tab, i, null, fwd);
+            else if ((fh = f.hash) == MOVED)
+                // 如果f已经是占位，继续领取下一次
+                advance = true; // already processed
+            else {
+                synchronized (f) {
+                    // 准备迁移
+                    if (tabAt(tab, i) == f) {
+                        // 双重检查
+                        Node<K,V> ln, hn;
+                        if (fh >= 0) {
+                            // 处理链表
+                            int runBit = fh & n;
+                            Node<K,V> lastRun = f;
+                            for (Node<K,V> p = f.next; p != null; p = p.next) {
+                                int b = p.hash & n;
+                                if (b != runBit) {
+                                    runBit = b;
+                                    lastRun = p;
+                                }
+                            }
+                            if (runBit == 0) {
+                                ln = lastRun;
+                                hn = null;
+                            }
+                            else {
+                                hn = lastRun;
+                                ln = null;
+                            }
+                            for (Node<K,V> p = f; p != lastRun; p = p.next) {
+                                int ph = p.hash; K pk = p.key; V pv = p.val;
+                                if ((ph & n) == 0)
+                                    ln = new Node<K,V>(ph, pk, pv, ln);
+                                else
+                                    hn = new Node<K,V>(ph, pk, pv, hn);
+                            }
+                            setTabAt(nextTab, i, ln);
+                            setTabAt(nextTab, i + n, hn);
+                            setTabAt(tab, i, fwd);
+                            advance = true;
+                        }
+                        else if (f instanceof TreeBin) {
+                            // 处理红黑树，按first链表拆成高低两条，再分别决定是否树化
+                            TreeBin<K,V> t = (TreeBin<K,V>)f;
+                            TreeNode<K,V> lo = null, loTail = null;
+                            TreeNode<K,V> hi = null, hiTail = null;
+                            int lc = 0, hc = 0;
+                            for (Node<K,V> e = t.first; e != null; e = e.next) {
+                                int h = e.hash;
+                                TreeNode<K,V> p = new TreeNode<K,V>
+                                        (h, e.key, e.val, null, null);
+                                if ((h & n) == 0) {
+                                    if ((p.prev = loTail) == null)
+                                        lo = p;
+                                    else
+                                        loTail.next = p;
+                                    loTail = p;
+                                    ++lc;
+                                }
+                                else {
+                                    if ((p.prev = hiTail) == null)
+                                        hi = p;
+                                    else
+                                        hiTail.next = p;
+                                    hiTail = p;
+                                    ++hc;
+                                }
+                            }
+                            // 节点太少退化成链表；全部落在一边时直接复用原来的TreeBin
+                            ln = (lc <= UNTREEIFY_THRESHOLD) ? untreeify(lo) :
+                                    (hc != 0) ? new TreeBin<K,V>(lo) : t;
+                            hn = (hc <= UNTREEIFY_THRESHOLD) ? untreeify(hi) :
+                                    (lc != 0) ? new TreeBin<K,V>(hi) : t;
+                            setTabAt(nextTab, i, ln);
+                            setTabAt(nextTab, i + n, hn);
+                            setTabAt(tab, i, fwd);
+                            advance = true;
+                        }
+                    }
+                }
+            }
+        }
+
+    }
+
+    /**
+     * 删除后检查元素个数是否降到低水位(容量的1/8)，是的话发起缩容
+     * 不缩到shrinkFloor以下，这个长度的table没装到过1/4时不缩，正在扩容或缩容时也不检查
+     * @param s 调用方刚算出的元素个数
+     */
+    private final void checkShrink(long s) {
+        Node<K,V>[] tab; int n;
+        if ((tab = table) != null && (n = tab.length) > shrinkFloor &&
+                shrinkArmed == n && sizeCtl >= 0 && s <= (long)(n >>> 3))
+            tryShrink(tab);
+    }
+
+    /**
+     * 发起或帮助一次缩容，跟扩容共用sizeCtl的resizeStamp和transferIndex协议，
+     * 区别只是nextTable是老表的一半，transfer根据长度判断方向
+     * @return false表示没能参与(正在初始化、扩容在收尾，或者tab已经过期)
+     */
+    private final boolean tryShrink(Node<K,V>[] tab) {
+        int n = tab.length, sc;
+        int rs = resizeStamp(n);
+        if ((sc = sizeCtl) < 0) {
+            Node<K,V>[] nt;
+            // 正在扩容或缩容，看能不能帮忙
+            if ((sc >>> RESIZE_STAMP_SHIFT) != rs ||
+                    sc == (rs << RESIZE_STAMP_SHIFT) + 1 ||
+                    sc == (rs << RESIZE_STAMP_SHIFT) + MAX_RESIZERS ||
+                    (nt = nextTable) == null || transferIndex <= 0 || table != tab)
+                return false;
+            if (U.compareAndSwapInt(this, SIZECTL, sc, sc + 1))
+                transfer(tab, nt);
+            return true;
+        }
+        if (table != tab ||
+                !U.compareAndSwapInt(this, SIZECTL, sc, (rs << RESIZE_STAMP_SHIFT) + 2))
+            return false;
+        if (table != tab) {
+            // CAS前table被别的线程换掉了，sc对应的是新表，原样还回去
+            sizeCtl = sc;
+            return false;
+        }
+        @SuppressWarnings("unchecked")
+        Node<K,V>[] nt = (Node<K,V>[])new Node<?,?>[n >>> 1];
+        nextTable = nt;
+        // 从尾往头认领新表的槽
+        transferIndex = n >>> 1;
+        transfer(tab, nt, true);
+        return true;
+    }
+
+    /**
+     * 缩容时把老表的i和i+half两个槽合并到新表的i，half是新表长度
+     * 两个槽按下标从小到大加锁；空槽先CAS一个加了锁的ReservationNode占住，
+     * 其他线程碰到它会阻塞，等锁释放后发现槽已经变成fwd再重试
+     * @return false表示低位槽被并发修改了，需要重试
+     */
+    private final boolean shrinkBin(Node<K,V>[] tab, Node<K,V>[] nextTab, int i,
+                                    ForwardingNode<K,V> fwd) {
+        Node<K,V> f = tabAt(tab, i);
+        if (f == null) {
+            Node<K,V> r = new ReservationNode<K,V>();
+            synchronized (r) {
+                if (casTabAt(tab, i, null, r)) {
+                    lockHighBin(tab, nextTab, i, r, fwd);
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (f.hash == MOVED)
+            // 已经合并过了(收尾时的复查)
+            return true;
+        synchronized (f) {
+            if (tabAt(tab, i) != f)
+                return false;
+            lockHighBin(tab, nextTab, i, f, fwd);
+            return true;
+        }
+    }
+
+    /**
+     * 已经持有低位槽f的锁，再锁住高位槽，然后合并
+     */
+    private final void lockHighBin(Node<K,V>[] tab, Node<K,V>[] nextTab, int i,
+                                   Node<K,V> f, ForwardingNode<K,V> fwd) {
+        int j = i + nextTab.length;
+        for (;;) {
+            Node<K,V> g = tabAt(tab, j);
+            if (g == null) {
+                Node<K,V> r = new ReservationNode<K,V>();
+                synchronized (r) {
+                    if (casTabAt(tab, j, null, r)) {
+                        mergeBins(tab, nextTab, i, f, r, fwd);
+                        return;
+                    }
+                }
+            }
+            else {
+                synchronized (g) {
+                    if (tabAt(tab, j) == g) {
+                        mergeBins(tab, nextTab, i, f, g, fwd);
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 两个槽都已加锁，把f和g的节点放进新表的i，再把两个老槽都换成fwd
+     * 跟扩容一样不改老节点：f的节点复制一份头插到g的链表前面，g是普通链表时直接复用；
+     * 合并后节点多就建成红黑树
+     */
+    private final void mergeBins(Node<K,V>[] tab, Node<K,V>[] nextTab, int i,
+                                 Node<K,V> f, Node<K,V> g, ForwardingNode<K,V> fwd) {
+        Node<K,V> lf = binFirst(f), hf = binFirst(g);
+        int c = 0;
+        for (Node<K,V> p = lf; p != null; p = p.next)
+            ++c;
+        for (Node<K,V> p = hf; p != null; p = p.next)
+            ++c;
+        Node<K,V> ln;
+        if (c >= TREEIFY_THRESHOLD ||
+                (c > UNTREEIFY_THRESHOLD && (f instanceof TreeBin || g instanceof TreeBin))) {
+            TreeNode<K,V> hd = null, tl = null;
+            for (Node<K,V> e = lf, h = hf; ; e = e.next) {
+                if (e == null) {
+                    // 低位槽走完了，接着走高位槽
+                    if ((e = h) == null)
+                        break;
+                    h = null;
+                }
+                TreeNode<K,V> p = new TreeNode<K,V>(e.hash, e.key, e.val, null, null);
+                if ((p.prev = tl) == null)
+                    hd = p;
+                else
+                    tl.next = p;
+                tl = p;
+            }
+            ln = new TreeBin<K,V>(hd);
+        }
+        else {
+            ln = (g instanceof TreeBin) ? untreeify(hf) : hf;
+            for (Node<K,V> p = lf; p != null; p = p.next)
+                ln = new Node<K,V>(p.hash, p.key, p.val, ln);
+        }
+        setTabAt(nextTab, i, ln);
+        setTabAt(tab, i + nextTab.length, fwd);
+        setTabAt(tab, i, fwd);
+    }
+
+    /**
+     * 槽里第一个数据节点：链表头、红黑树的first，ReservationNode返回null
+     */
+    static <K,V> Node<K,V> binFirst(Node<K,V> f) {
+        if (f instanceof TreeBin)
+            return ((TreeBin<K,V>)f).first;
+        return (f == null || f.hash < 0) ? null : f;
+    }
+
+    private final void tryPresize(int size) {
+        // 求出本次需要扩容到的值
+        int c = (size >= (MAXIMUM_CAPACITY >>> 1)) ? MAXIMUM_CAPACITY :
+                tableSizeFor(size + (size >>> 1) + 1);
+        int sc;
+        while ((sc = sizeCtl) >= 0) {
+            // 只有不处于扩容/初始化状态，才能走进来扩容
+            // 拿到老的table
+            Node<K,V>[] tab = table;
+            int n;
+            if (tab == null || (n = tab.length) == 0) {
+                // 如果原来tab为空
+                n = (sc > c) ? sc : c;
+                // 走初始化逻辑
+                if (U.compareAndSwapInt(this, SIZECTL, sc, -1)) {
+                    try {
+                        if (table == tab) {
+                            @SuppressWarnings("unchecked")
+                            Node<K,V>[] nt = (Node<K,V>[])new Node<?,?>[n];
+                            table = nt;
+                            sc = n - (n >>> 2);
+                        }
+                    } finally {
+                        sizeCtl = sc;
+                    }
+                }
+            }
+            else if (c <= sc || n >= MAXIMUM_CAPACITY)
+                // 太小或者太大，不扩容
+                break;
+            else if (tab == table) {
+                // 否则开始扩容，低位是n的高位0数量，第16位的1表示resize标记
+                int rs = resizeStamp(n);
+                if (sc < 0) {
+                    // 如果正在扩容
+                    Node<K,V>[] nt;
+                    if ((sc >>> RESIZE_STAMP_SHIFT) != rs ||
+                            sc == (rs << RESIZE_STAMP_SHIFT) + 1 ||
+                            sc == (rs << RESIZE_STAMP_SHIFT) + MAX_RESIZERS ||
+                            (nt = nextTable) == null || transferIndex <= 0)
+                        // 无法帮助扩容
+                        break;
+                    if (U.compareAndSwapInt(this, SIZECTL, sc, sc + 1))
+                        // 帮助扩容，带上当前的nextTable
+                        transfer(tab, nt);
+                }
+                // 本次为第一次扩容，设置标记为负数
+                else if (U.compareAndSwapInt(this, SIZECTL, sc,
+                        (rs << RESIZE_STAMP_SHIFT) + 2))
+                    // 首次扩容
+                    transfer(tab, null);
+            }
+        }
+    }
+
+    private final Node<K,V>[] initTable() {
+        Node<K,V>[] tab;
+        int sc;
+        while ((tab = table) == null || tab.length == 0) {
+            if ((sc = sizeCtl) < 0)
+                // 小于零说明正在扩容或者初始化，线程先让出时间片
+                Thread.yield();
+            else if (U.compareAndSwapInt(this, SIZECTL, sc, -1)) {
+                // CAS从sc改成-1
+                try {
+                    if ((tab = table) == null || tab.length == 0) {
+                        // 双重检查
+                        int n = (sc > 0) ? sc : DEFAULT_CAPACITY;
+                        @SuppressWarnings("unchecked")
+                        Node<K,V>[] nt = (Node<K,V>[])new Node<?,?>[n];
+                        table = tab = nt;
+                        // sc=3/4*n
+                        sc = n - (n >>> 2);
+                    }
+                } finally {
+                    // sc赋值给sizectl
+                    // 要么0 要么正数
+                    sizeCtl = sc;
+                }
+                break;
+            }
+        }
+        return tab;
+    }
+
+    static final <K,V> boolean casTabAt(Node<K,V>[] tab, int i,
+                                        Node<K,V> c, Node<K,V> v) {
+        return DemoTableAccess.casTabAt(tab, i, c, v);
+    }
+
+    static final <K,V> void setTabAt(Node<K,V>[] tab, int i, Node<K,V> v) {
+        DemoTableAccess.setTabAt(tab, i, v);
+    }
+
+    private static final int tableSizeFor(int c) {
+        int n = c - 1;
+        n |= n >>> 1;
+        n |= n >>> 2;
+        n |= n >>> 4;
+        n |= n >>> 8;
+        n |= n >>> 16;
+        return (n < 0) ? 1 : (n >= MAXIMUM_CAPACITY) ? MAXIMUM_CAPACITY : n + 1;
+    }
+
+    static final int resizeStamp(int n) {
+        return Integer.numberOfLeadingZeros(n) | (1 << (RESIZE_STAMP_BITS - 1));
+    }
+
+    /**
+     * x实现了Comparable<x的类型>时返回x的类型，否则返回null
+     */
+    static Class<?> comparableClassFor(Object x) {
+        if (x instanceof Comparable) {
+            Class<?> c; Type[] ts, as; Type t; ParameterizedType p;
+            if ((c = x.getClass()) == String.class) // bypass checks
+                return c;
+            if ((ts = c.getGenericInterfaces()) != null) {
+                for (int i = 0; i < ts.length; ++i) {
+                    if (((t = ts[i]) instanceof ParameterizedType) &&
+                            ((p = (ParameterizedType)t).getRawType() ==
+                                    Comparable.class) &&
+                            (as = p.getActualTypeArguments()) != null &&
+                            as.length == 1 && as[0] == c) // type arg is c
+                        return c;
+                }
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings({"rawtypes","unchecked"}) // for cast to Comparable
+    static int compareComparables(Class<?> kc, Object k, Object x) {
+        return (x == null || x.getClass() != kc ? 0 :
+                ((Comparable)k).compareTo(x));
+    }
+
+    /**
+     * 把index位置的链表转成红黑树，数组太小时改为扩容
+     */
+    private final void treeifyBin(Node<K,V>[] tab, int index) {
+        Node<K,V> b; int n;
+        if (tab != null) {
+            if ((n = tab.length) < MIN_TREEIFY_CAPACITY)
+                // 数组还小，冲突多半是容量不够，先扩容
+                tryPresize(n << 1);
+            else if ((b = tabAt(tab, index)) != null && b.hash >= 0) {
+                synchronized (b) {
+                    if (tabAt(tab, index) == b) {
+                        // 先按原顺序串成TreeNode双向链表，再交给TreeBin建树
+                        TreeNode<K,V> hd = null, tl = null;
+                        for (Node<K,V> e = b; e != null; e = e.next) {
+                            TreeNode<K,V> p =
+                                    new TreeNode<K,V>(e.hash, e.key, e.val,
+                                            null, null);
+                            if ((p.prev = tl) == null)
+                                hd = p;
+                            else
+                                tl.next = p;
+                            tl = p;
+                        }
+                        setTabAt(tab, index, new TreeBin<K,V>(hd));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 树节点链表退化成普通Node链表
+     */
+    static <K,V> Node<K,V> untreeify(Node<K,V> b) {
+        Node<K,V> hd = null, tl = null;
+        for (Node<K,V> q = b; q != null; q = q.next) {
+            Node<K,V> p = new Node<K,V>(q.hash, q.key, q.val, null);
+            if (tl == null)
+                hd = p;
+            else
+                tl.next = p;
+            tl = p;
+        }
+        return hd;
+    }
+
+    /**
+     * 红黑树节点，只存在于TreeBin内部
+     */
+    static final class TreeNode<K,V> extends Node<K,V> {
+        TreeNode<K,V> parent;  // red-black tree links
+        TreeNode<K,V> left;
+        TreeNode<K,V> right;
+        TreeNode<K,V> prev;    // needed to unlink next upon deletion
+        boolean red;
+
+        TreeNode(int hash, K key, V val, Node<K,V> next,
+                 TreeNode<K,V> parent) {
+            super(hash, key, val, next);
+            this.parent = parent;
+        }
+
+        Node<K,V> find(int h, Object k) {
+            return findTreeNode(h, k, null);
+        }
+
+        /**
+         * 从当前节点开始在子树里查找
+         */
+        final TreeNode<K,V> findTreeNode(int h, Object k, Class<?> kc) {
+            if (k != null) {
+                TreeNode<K,V> p = this;
+                do  {
+                    int ph, dir; K pk; TreeNode<K,V> q;
+                    TreeNode<K,V> pl = p.left, pr = p.right;
+                    // 先比hash，hash相同再比Comparable，都比不出来就两边都找
+                    if ((ph = p.hash) > h)
+                        p = pl;
+                    else if (ph < h)
+                        p = pr;
+                    else if ((pk = p.key) == k || (pk != null && k.equals(pk)))
+                        return p;
+                    else if (pl == null)
+                        p = pr;
+                    else if (pr == null)
+                        p = pl;
+                    else if ((kc != null ||
+                            (kc = comparableClassFor(k)) != null) &&
+                            (dir = compareComparables(kc, k, pk)) != 0)
+                        p = (dir < 0) ? pl : pr;
+                    else if ((q = pr.findTreeNode(h, k, kc)) != null)
+                        return q;
+                    else
+                        p = pl;
+                } while (p != null);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 放在哈希槽上的红黑树头节点，hash固定为TREEBIN
+     * 写线程之间靠synchronized(TreeBin)互斥；
+     * 读线程不加synchronized，而是通过lockState做一个简单的读写锁：
+     * 有写线程在调整树结构时，读线程退化为沿first链表线性查找，不会阻塞
+     */
+    static final class TreeBin<K,V> extends Node<K,V> {
+        TreeNode<K,V> root;
+        volatile TreeNode<K,V> first;
+        volatile Thread waiter;
+        volatile int lockState;
+        // 树里的节点数，只给monitor统计用；持有synchronized(this)时修改，读线程读到的是近似值
+        int count;
+        // values for lockState
+        static final int WRITER = 1; // set while holding write lock
+        static final int WAITER = 2; // set when waiting for write lock
+        static final int READER = 4; // increment value for setting read lock
+
+        private static final long LOCKSTATE;
+
+        static {
+            try {
+                LOCKSTATE = U.objectFieldOffset
+                        (TreeBin.class.getDeclaredField("lockState"));
+            } catch (Exception e) {
+                throw new Error(e);
+            }
+        }
+
+        /**
+         * hash相同且不可比较时，用类名和identityHashCode决定插入方向，保证树的一致性
+         */
+        static int tieBreakOrder(Object a, Object b) {
+            int d;
+            if (a == null || b == null ||
+                    (d = a.getClass().getName().
+                            compareTo(b.getClass().getName())) == 0)
+                d = (System.identityHashCode(a) <= System.identityHashCode(b) ?
+                        -1 : 1);
+            return d;
+        }
+
+        /**
+         * 以b为头的TreeNode链表建树
+         */
+        TreeBin(TreeNode<K,V> b) {
+            super(TREEBIN, null, null, null);
+            this.first = b;
+            TreeNode<K,V> r = null;
+            for (TreeNode<K,V> x = b, next; x != null; x = next) {
+                next = (TreeNode<K,V>)x.next;
+                x.left = x.right = null;
+                ++count;
+                if (r == null) {
+                    x.parent = null;
+                    x.red = false;
+                    r = x;
+                }
+                else {
+                    K k = x.key;
+                    int h = x.hash;
+                    Class<?> kc = null;
+                    for (TreeNode<K,V> p = r;;) {
+                        int dir, ph;
+                        K pk = p.key;
+                        if ((ph = p.hash) > h)
+                            dir = -1;
+                        else if (ph < h)
+                            dir = 1;
+                        else if ((kc == null &&
+                                (kc = comparableClassFor(k)) == null) ||
+                                (dir = compareComparables(kc, k, pk)) == 0)
+                            dir = tieBreakOrder(k, pk);
+                        TreeNode<K,V> xp = p;
+                        if ((p = (dir <= 0) ? p.left : p.right) == null) {
+                            x.parent = xp;
+                            if (dir <= 0)
+                                xp.left = x;
+                            else
+                                xp.right = x;
+                            r = balanceInsertion(r, x);
+                            break;
+                        }
+                    }
+                }
+            }
+            this.root = r;
+        }
+
+        /**
+         * 调整树结构前获取写锁
+         */
+        private final void lockRoot() {
+            if (!U.compareAndSwapInt(this, LOCKSTATE, 0, WRITER))
+                contendedLock(); // offload to separate method
+        }
+
+        private final void unlockRoot() {
+            lockState = 0;
+        }
+
+        /**
+         * 有读线程在树上，写线程标记WAITER后park，等最后一个读线程唤醒
+         */
+        private final void contendedLock() {
+            boolean waiting = false;
+            for (int s;;) {
+                if (((s = lockState) & ~WAITER) == 0) {
+                    if (U.compareAndSwapInt(this, LOCKSTATE, s, WRITER)) {
+                        if (waiting)
+                            waiter = null;
+                        return;
+                    }
+                }
+                else if ((s & WAITER) == 0) {
+                    if (U.compareAndSwapInt(this, LOCKSTATE, s, s | WAITER)) {
+                        waiting = true;
+                        waiter = Thread.currentThread();
+                    }
+                }
+                else if (waiting)
+                    LockSupport.park(this);
+            }
+        }
+
+        /**
+         * 读路径：能拿到读锁就走树，O(log n)；有写线程时沿first链表走，保证不阻塞
+         */
+        final Node<K,V> find(int h, Object k) {
+            if (k != null) {
+                for (Node<K,V> e = first; e != null; ) {
+                    int s; K ek;
+                    if (((s = lockState) & (WAITER|WRITER)) != 0) {
+                        if (e.hash == h &&
+                                ((ek = e.key) == k || (ek != null && k.equals(ek))))
+                            return e;
+                        e = e.next;
+                    }
+                    else if (U.compareAndSwapInt(this, LOCKSTATE, s,
+                            s + READER)) {
+                        TreeNode<K,V> r, p;
+                        try {
+                            p = ((r = root) == null ? null :
+                                    r.findTreeNode(h, k, null));
+                        } finally {
+                            Thread w;
+                            // 最后一个读线程离开时，唤醒等待的写线程
+                            if (U.getAndAddInt(this, LOCKSTATE, -READER) ==
+                                    (READER|WAITER) && (w = waiter) != null)
+                                LockSupport.unpark(w);
+                        }
+                        return p;
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * 找到已存在的节点就返回它，否则插入新节点并返回null
+         * 调用方已经持有synchronized(this)
+         */
+        final TreeNode<K,V> putTreeVal(int h, K k, V v) {
+            Class<?> kc = null;
+            boolean searched = false;
+            for (TreeNode<K,V> p = root;;) {
+                int dir, ph; K pk;
+                if (p == null) {
+                    first = root = new TreeNode<K,V>(h, k, v, null, null);
+                    ++count;
+                    break;
+                }
+                else if ((ph = p.hash) > h)
+                    dir = -1;
+                else if (ph < h)
+                    dir = 1;
+                else if ((pk = p.key) == k || (pk != null && k.equals(pk)))
+                    return p;
+                else if ((kc == null &&
+                        (kc = comparableClassFor(k)) == null) ||
+                        (dir = compareComparables(kc, k, pk)) == 0) {
+                    // 比较不出大小，两棵子树都搜一遍，只搜一次
+                    if (!searched) {
+                        TreeNode<K,V> q, ch;
+                        searched = true;
+                        if (((ch = p.left) != null &&
+                                (q = ch.findTreeNode(h, k, kc)) != null) ||
+                                ((ch = p.right) != null &&
+                                        (q = ch.findTreeNode(h, k, kc)) != null))
+                            return q;
+                    }
+                    dir = tieBreakOrder(k, pk);
+                }
+
+                TreeNode<K,V> xp = p;
+                if ((p = (dir <= 0) ? p.left : p.right) == null) {
+                    // 新节点挂到first链表头，读线程沿链表也能看到
+                    TreeNode<K,V> x, f = first;
+                    first = x = new TreeNode<K,V>(h, k, v, f, xp);
+                    ++count;
+                    if (f != null)
+                        f.prev = x;
+                    if (dir <= 0)
+                        xp.left = x;
+                    else
+                        xp.right = x;
+                    if (!xp.red)
+                        // 父节点是黑色，直接染红，不需要调整
+                        x.red = true;
+                    else {
+                        // 需要旋转，拿写锁
+                        lockRoot();
+                        try {
+                            root = balanceInsertion(root, x);
+                        } finally {
+                            unlockRoot();
+                        }
+                    }
+                    break;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * 删除节点p，调用方已经持有synchronized(this)
+         * @return true表示树太小了，调用方应该退化成链表(此时不做平衡)
+         */
+        final boolean removeTreeNode(TreeNode<K,V> p) {
+            TreeNode<K,V> next = (TreeNode<K,V>)p.next;
+            TreeNode<K,V> pred = p.prev;  // unlink traversal pointers
+            TreeNode<K,V> r, rl;
+            --count;
+            // 先从first链表上摘掉，读线程走链表时就看不到了
+            if (pred == null)
+                first = next;
+            else
+                pred.next = next;
+            if (next != null)
+                next.prev = pred;
+            if (first == null) {
+                root = null;
+                return true;
+            }
+            if ((r = root) == null || r.right == null || // too small
+                    (rl = r.left) == null || rl.left == null)
+                return true;
+            // 调整树结构，需要写锁
+            lockRoot();
+            try {
+                TreeNode<K,V> replacement;
+                TreeNode<K,V> pl = p.left;
+                TreeNode<K,V> pr = p.right;
+                if (pl != null && pr != null) {
+                    // 有两个孩子，跟后继节点交换位置
+                    TreeNode<K,V> s = pr, sl;
+                    while ((sl = s.left) != null) // find successor
+                        s = sl;
+                    boolean c = s.red; s.red = p.red; p.red = c; // swap colors
+                    TreeNode<K,V> sr = s.right;
+                    TreeNode<K,V> pp = p.parent;
+                    if (s == pr) { // p was s's direct parent
+                        p.parent = s;
+                        s.right = p;
+                    }
+                    else {
+                        TreeNode<K,V> sp = s.parent;
+                        if ((p.parent = sp) != null) {
+                            if (s == sp.left)
+                                sp.left = p;
+                            else
+                                sp.right = p;
+                        }
+                        if ((s.right = pr) != null)
+                            pr.parent = s;
+                    }
+                    p.left = null;
+                    if ((p.right = sr) != null)
+                        sr.parent = p;
+                    if ((s.left = pl) != null)
+                        pl.parent = s;
+                    if ((s.parent = pp) == null)
+                        r = s;
+                    else if (p == pp.left)
+                        pp.left = s;
+                    else
+                        pp.right = s;
+                    if (sr != null)
+                        replacement = sr;
+                    else
+                        replacement = p;
+                }
+                else if (pl != null)
+                    replacement = pl;
+                else if (pr != null)
+                    replacement = pr;
+                else
+                    replacement = p;
+                if (replacement != p) {
+                    TreeNode<K,V> pp = replacement.parent = p.parent;
+                    if (pp == null)
+                        r = replacement;
+                    else if (p == pp.left)
+                        pp.left = replacement;
+                    else
+                        pp.right = replacement;
+                    p.left = p.right = p.parent = null;
+                }
+
+                root = (p.red) ? r : balanceDeletion(r, replacement);
+
+                if (p == replacement) {  // detach pointers
+                    TreeNode<K,V> pp;
+                    if ((pp = p.parent) != null) {
+                        if (p == pp.left)
+                            pp.left = null;
+                        else if (p == pp.right)
+                            pp.right = null;
+                        p.parent = null;
+                    }
+                }
+            } finally {
+                unlockRoot();
+            }
+            return false;
+        }
+
+        static <K,V> TreeNode<K,V> rotateLeft(TreeNode<K,V> root,
+                                              TreeNode<K,V> p) {
+            TreeNode<K,V> r, pp, rl;
+            if (p != null && (r = p.right) != null) {
+                if ((rl = p.right = r.left) != null)
+                    rl.parent = p;
+                if ((pp = r.parent = p.parent) == null)
+                    (root = r).red = false;
+                else if (pp.left == p)
+                    pp.left = r;
+                else
+                    pp.right = r;
+                r.left = p;
+                p.parent = r;
+            }
+            return root;
+        }
+
+        static <K,V> TreeNode<K,V> rotateRight(TreeNode<K,V> root,
+                                               TreeNode<K,V> p) {
+            TreeNode<K,V> l, pp, lr;
+            if (p != null && (l = p.left) != null) {
+                if ((lr = p.left = l.right) != null)
+                    lr.parent = p;
+                if ((pp = l.parent = p.parent) == null)
+                    (root = l).red = false;
+                else if (pp.right == p)
+                    pp.right = l;
+                else
+                    pp.left = l;
+                l.right = p;
+                p.parent = l;
+            }
+            return root;
+        }
+
+        static <K,V> TreeNode<K,V> balanceInsertion(TreeNode<K,V> root,
+                                                    TreeNode<K,V> x) {
+            x.red = true;
+            for (TreeNode<K,V> xp, xpp, xppl, xppr;;) {
+                if ((xp = x.parent) == null) {
+                    x.red = false;
+                    return x;
+                }
+                else if (!xp.red || (xpp = xp.parent) == null)
+                    return root;
+                if (xp == (xppl = xpp.left)) {
+                    if ((xppr = xpp.right) != null && xppr.red) {
+                        xppr.red = false;
+                        xp.red = false;
+                        xpp.red = true;
+                        x = xpp;
+                    }
+                    else {
+                        if (x == xp.right) {
+                            root = rotateLeft(root, x = xp);
+                            xpp = (xp = x.parent) == null ? null : xp.parent;
+                        }
+                        if (xp != null) {
+                            xp.red = false;
+                            if (xpp != null) {
+                                xpp.red = true;
+                                root = rotateRight(root, xpp);
+                            }
+                        }
+                    }
+                }
+                else {
+                    if (xppl != null && xppl.red) {
+                        xppl.red = false;
+                        xp.red = false;
+                        xpp.red = true;
+                        x = xpp;
+                    }
+                    else {
+                        if (x == xp.left) {
+                            root = rotateRight(root, x = xp);
+                            xpp = (xp = x.parent) == null ? null : xp.parent;
+                        }
+                        if (xp != null) {
+                            xp.red = false;
+                            if (xpp != null) {
+                                xpp.red = true;
+                                root = rotateLeft(root, xpp);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        static <K,V> TreeNode<K,V> balanceDeletion(TreeNode<K,V> root,
+                                                   TreeNode<K,V> x) {
+            for (TreeNode<K,V> xp, xpl, xpr;;) {
+                if (x == null || x == root)
+                    return root;
+                else if ((xp = x.parent) == null) {
+                    x.red = false;
+                    return x;
+                }
+                else if (x.red) {
+                    x.red = false;
+                    return root;
+                }
+                else if ((xpl = xp.left) == x) {
+                    if ((xpr = xp.right) != null && xpr.red) {
+                        xpr.red = false;
+                        xp.red = true;
+                        root = rotateLeft(root, xp);
+                        xpr = (xp = x.parent) == null ? null : xp.right;
+                    }
+                    if (xpr == null)
+                        x = xp;
+                    else {
+                        TreeNode<K,V> sl = xpr.left, sr = xpr.right;
+                        if ((sr == null || !sr.red) &&
+                                (sl == null || !sl.red)) {
+                            xpr.red = true;
+                            x = xp;
+                        }
+                        else {
+                            if (sr == null || !sr.red) {
+                                if (sl != null)
+                                    sl.red = false;
+                                xpr.red = true;
+                                root = rotateRight(root, xpr);
+                                xpr = (xp = x.parent) == null ?
+                                        null : xp.right;
                             }
-                            else {
-                                hn = lastRun;
-                                ln = null;
+                            if (xpr != null) {
+                                xpr.red = (xp == null) ? false : xp.red;
+                                if ((sr = xpr.right) != null)
+                                    sr.red = false;
                             }
-                            for (Node<K,V> p = f; p != lastRun; p = p.next) {
-                                int ph = p.hash; K pk = p.key; V pv = p.val;
-                                if ((ph & n) == 0)
-                                    ln = new Node<K,V>(ph, pk, pv, ln);
-                                else
-                                    hn = new Node<K,V>(ph, pk, pv, hn);
+                            if (xp != null) {
+                                xp.red = false;
+                                root = rotateLeft(root, xp);
                             }
-                            setTabAt(nextTab, i, ln);
-                            setTabAt(nextTab, i + n, hn);
-                            setTabAt(tab, i, fwd);
-                            advance = true;
+                            x = root;
+                        }
+                    }
+                }
+                else { // symmetric
+                    if (xpl != null && xpl.red) {
+                        xpl.red = false;
+                        xp.red = true;
+                        root = rotateRight(root, xp);
+                        xpl = (xp = x.parent) == null ? null : xp.left;
+                    }
+                    if (xpl == null)
+                        x = xp;
+                    else {
+                        TreeNode<K,V> sl = xpl.left, sr = xpl.right;
+                        if ((sl == null || !sl.red) &&
+                                (sr == null || !sr.red)) {
+                            xpl.red = true;
+                            x = xp;
+                        }
+                        else {
+                            if (sl == null || !sl.red) {
+                                if (sr != null)
+                                    sr.red = false;
+                                xpl.red = true;
+                                root = rotateLeft(root, xpl);
+                                xpl = (xp = x.parent) == null ?
+                                        null : xp.left;
+                            }
+                            if (xpl != null) {
+                                xpl.red = (xp == null) ? false : xp.red;
+                                if ((sl = xpl.left) != null)
+                                    sl.red = false;
+                            }
+                            if (xp != null) {
+                                xp.red = false;
+                                root = rotateRight(root, xp);
+                            }
+                            x = root;
                         }
                     }
                 }
             }
         }
+    }
 
+    /**
+     * 遍历时在ForwardingNode处保存/恢复的现场
+     */
+    static final class TableStack<K,V> {
+        int length;
+        int index;
+        int filterMask, filterBits; // 进入下一层表之前的过滤条件
+        Node<K,V>[] tab;
+        TableStack<K,V> next;
     }
 
-    private final void tryPresize(int size) {
-        // 求出本次需要扩容到的值
-        int c = (size >= (MAXIMUM_CAPACITY >>> 1)) ? MAXIMUM_CAPACITY :
-                tableSizeFor(size + (size >>> 1) + 1);
-        int sc;
-        while ((sc = sizeCtl) >= 0) {
-            // 只有不处于扩容/初始化状态，才能走进来扩容
-            // 拿到老的table
-            Node<K,V>[] tab = table;
-            int n;
-            if (tab == null || (n = tab.length) == 0) {
-                // 如果原来tab为空
-                n = (sc > c) ? sc : c;
-                // 走初始化逻辑
-                if (U.compareAndSwapInt(this, SIZECTL, sc, -1)) {
-                    try {
-                        if (table == tab) {
-                            @SuppressWarnings("unchecked")
-                            Node<K,V>[] nt = (Node<K,V>[])new Node<?,?>[n];
-                            table = nt;
-                            sc = n - (n >>> 2);
+    /**
+     * 按哈希槽遍历table[baseIndex, baseLimit)区间，遍历期间可以有并发扩容
+     * 碰到fwd节点时转到nextTable，依次访问新表里的i和i+baseSize两个槽(正好是老槽i拆出来的高低位)，
+     * 访问完再回到老表继续，这样每个元素只会被访问一次
+     * 如果nextTable更短(缩容)，老槽i合并到了新表的一个槽里，只返回(hash & (n-1)) == i的节点，
+     * 合并进来的另一个老槽的节点留给访问那个老槽时再返回
+     */
+    static class Traverser<K,V> {
+        Node<K,V>[] tab;        // current table; updated if resized
+        Node<K,V> next;         // the next entry to use
+        TableStack<K,V> stack, spare; // to save/restore on ForwardingNodes
+        int index;              // index of bin to use next
+        int baseIndex;          // current index of initial table
+        int baseLimit;          // index bound for initial table
+        final int baseSize;     // initial table size
+        int filterMask, filterBits; // 只返回(hash & filterMask) == filterBits的节点
+        int binMask, binBits;   // 当前正在遍历的槽用的过滤条件
+
+        Traverser(Node<K,V>[] tab, int size, int index, int limit) {
+            this.tab = tab;
+            this.baseSize = size;
+            this.baseIndex = this.index = index;
+            this.baseLimit = limit;
+            this.next = null;
+        }
+
+        /**
+         * 返回下一个节点，没有了返回null
+         */
+        final Node<K,V> advance() {
+            Node<K,V> e;
+            if ((e = next) != null)
+                e = e.next;
+            for (;;) {
+                Node<K,V>[] t; int i, n;  // must use locals in checks
+                if (e != null) {
+                    if ((e.hash & binMask) == binBits)
+                        return next = e;
+                    e = e.next;
+                    continue;
+                }
+                if (baseIndex >= baseLimit || (t = tab) == null ||
+                        (n = t.length) <= (i = index) || i < 0)
+                    return next = null;
+                if ((e = tabAt(t, i)) != null && e.hash < 0) {
+                    if (e instanceof ForwardingNode) {
+                        // 该槽已迁移，保存现场后去新表
+                        Node<K,V>[] nt = ((ForwardingNode<K,V>)e).nextTable;
+                        tab = nt;
+                        e = null;
+                        pushState(t, i, n);
+                        int m = nt.length;
+                        if (m < n) {
+                            // 缩容：只访问合并后的那一个槽，并过滤掉另一个老槽的节点
+                            index = i & (m - 1);
+                            narrowFilter(n - 1, i);
                         }
-                    } finally {
-                        sizeCtl = sc;
+                        continue;
                     }
+                    else if (e instanceof TreeBin)
+                        // 红黑树沿first链表遍历
+                        e = ((TreeBin<K,V>)e).first;
+                    else
+                        // ReservationNode，还没有值
+                        e = null;
                 }
+                // 下面可能会弹栈恢复上一层的过滤条件，这个槽的节点要按进入时的条件过滤
+                binMask = filterMask;
+                binBits = filterBits;
+                if (stack != null)
+                    recoverState(n);
+                else if ((index = i + baseSize) >= n)
+                    index = ++baseIndex; // visit upper slots if present
             }
-            else if (c <= sc || n >= MAXIMUM_CAPACITY)
-                // 太小或者太大，不扩容
-                break;
-            else if (tab == table) {
-                // 否则开始扩容，低位是n的高位0数量，第16位的1表示resize标记
-                int rs = resizeStamp(n);
-                if (sc < 0) {
-                    // 如果正在扩容
-                    Node<K,V>[] nt;
-                    if ((sc >>> RESIZE_STAMP_SHIFT) != rs || sc == rs + 1 ||
-                            sc == rs + MAX_RESIZERS || (nt = nextTable) == null ||
-                            transferIndex <= 0)
-                        // 无法帮助扩容
+        }
+
+        private void pushState(Node<K,V>[] t, int i, int n) {
+            TableStack<K,V> s = spare;  // reuse if possible
+            if (s != null)
+                spare = s.next;
+            else
+                s = new TableStack<K,V>();
+            s.tab = t;
+            s.length = n;
+            s.index = i;
+            s.filterMask = filterMask;
+            s.filterBits = filterBits;
+            s.next = stack;
+            stack = s;
+        }
+
+        /**
+         * 在现有过滤条件上再加一个(hash & mask) == bits，两个条件取交集；
+         * mask都是2的幂减1，交集就是mask大的那个，矛盾时什么都不返回
+         */
+        private void narrowFilter(int mask, int bits) {
+            int fm = filterMask, fb = filterBits;
+            if (mask >= fm) {
+                filterMask = mask;
+                filterBits = ((bits & fm) == fb) ? bits : -1;
+            }
+            else if ((fb & mask) != bits)
+                filterBits = -1;
+        }
+
+        private void recoverState(int n) {
+            TableStack<K,V> s; int len;
+            while ((s = stack) != null && (index += (len = s.length)) >= n) {
+                // 新表里对应的槽都访问完了，回到上一层表
+                n = len;
+                index = s.index;
+                tab = s.tab;
+                filterMask = s.filterMask;
+                filterBits = s.filterBits;
+                s.tab = null;
+                TableStack<K,V> next = s.next;
+                s.next = spare; // save for reuse
+                stack = next;
+                spare = s;
+            }
+            if (s == null && (index += baseSize) >= n)
+                index = ++baseIndex;
+        }
+    }
+
+    /**
+     * 批量任务的基类，跟transfer领取stride一样按哈希槽区间分工：
+     * 每次把[baseIndex, baseLimit)对半切，右半边fork给其他线程，
+     * 区间小于MIN_TRANSFER_STRIDE就不再切，自己用Traverser遍历剩下的部分
+     */
+    @SuppressWarnings("serial")
+    abstract static class BulkTask<K,V,R> extends CountedCompleter<R> {
+        final Node<K,V>[] tab;
+        final int baseSize;
+        int baseIndex;          // 本任务负责的起始槽
+        int baseLimit;          // 本任务负责的结束槽(不含)
+        int batch;              // split control
+
+        BulkTask(BulkTask<K,V,?> par, int b, int i, int f, Node<K,V>[] t) {
+            super(par);
+            this.batch = b;
+            this.baseIndex = i;
+            if ((this.tab = t) == null)
+                this.baseSize = this.baseLimit = 0;
+            else if (par == null)
+                this.baseSize = this.baseLimit = t.length;
+            else {
+                this.baseLimit = f;
+                this.baseSize = par.baseSize;
+            }
+        }
+
+        /**
+         * 还能继续切分时返回中点，否则返回-1
+         */
+        final int splitPoint() {
+            int i = baseIndex, f = baseLimit;
+            if (batch > 0 && f - i > MIN_TRANSFER_STRIDE)
+                return (i + f) >>> 1;
+            return -1;
+        }
+
+        /**
+         * 切分完之后遍历自己剩下的区间
+         */
+        final Traverser<K,V> traverser() {
+            return new Traverser<K,V>(tab, baseSize, baseIndex, baseLimit);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    static final class ForEachMappingTask<K,V>
+            extends BulkTask<K,V,Void> {
+        final BiConsumer<? super K, ? super V> action;
+        ForEachMappingTask
+                (BulkTask<K,V,?> p, int b, int i, int f, Node<K,V>[] t,
+                 BiConsumer<? super K,? super V> action) {
+            super(p, b, i, f, t);
+            this.action = action;
+        }
+        public final void compute() {
+            final BiConsumer<? super K, ? super V> action;
+            if ((action = this.action) != null) {
+                for (int h, f; (h = splitPoint()) >= 0;) {
+                    f = baseLimit;
+                    addToPendingCount(1);
+                    new ForEachMappingTask<K,V>
+                            (this, batch >>>= 1, baseLimit = h, f, tab,
+                                    action).fork();
+                }
+                Traverser<K,V> it = traverser();
+                for (Node<K,V> p; (p = it.advance()) != null; )
+                    action.accept(p.key, p.val);
+                propagateCompletion();
+            }
+        }
+    }
+
+    @SuppressWarnings("serial")
+    static final class SearchMappingsTask<K,V,U>
+            extends BulkTask<K,V,U> {
+        final BiFunction<? super K, ? super V, ? extends U> searchFunction;
+        final AtomicReference<U> result;
+        SearchMappingsTask
+                (BulkTask<K,V,?> p, int b, int i, int f, Node<K,V>[] t,
+                 BiFunction<? super K, ? super V, ? extends U> searchFunction,
+                 AtomicReference<U> result) {
+            super(p, b, i, f, t);
+            this.searchFunction = searchFunction; this.result = result;
+        }
+        public final U getRawResult() { return result.get(); }
+        public final void compute() {
+            final BiFunction<? super K, ? super V, ? extends U> searchFunction;
+            final AtomicReference<U> result;
+            if ((searchFunction = this.searchFunction) != null &&
+                    (result = this.result) != null) {
+                for (int h, f; (h = splitPoint()) >= 0;) {
+                    if (result.get() != null)
+                        // 别的子任务已经找到了
+                        return;
+                    f = baseLimit;
+                    addToPendingCount(1);
+                    new SearchMappingsTask<K,V,U>
+                            (this, batch >>>= 1, baseLimit = h, f, tab,
+                                    searchFunction, result).fork();
+                }
+                Traverser<K,V> it = traverser();
+                while (result.get() == null) {
+                    U u; Node<K,V> p;
+                    if ((p = it.advance()) == null) {
+                        propagateCompletion();
                         break;
-                    if (U.compareAndSwapInt(this, SIZECTL, sc, sc + 1))
-                        // 帮助扩容，带上当前的nextTable
-                        transfer(tab, nt);
+                    }
+                    if ((u = searchFunction.apply(p.key, p.val)) != null) {
+                        if (result.compareAndSet(null, u))
+                            // 找到了，直接结束整棵任务树
+                            quietlyCompleteRoot();
+                        break;
+                    }
                 }
-                // 本次为第一次扩容，设置标记为负数
-                else if (U.compareAndSwapInt(this, SIZECTL, sc,
-                        (rs << RESIZE_STAMP_SHIFT) + 2))
-                    // 首次扩容
-                    transfer(tab, null);
             }
         }
     }
 
-    private final Node<K,V>[] initTable() {
-        Node<K,V>[] tab;
-        int sc;
-        while ((tab = table) == null || tab.length == 0) {
-            if ((sc = sizeCtl) < 0)
-                // 小于零说明正在扩容或者初始化，线程先让出时间片
-                Thread.yield();
-            else if (U.compareAndSwapInt(this, SIZECTL, sc, -1)) {
-                // CAS从sc改成-1
-                try {
-                    if ((tab = table) == null || tab.length == 0) {
-                        // 双重检查
-                        int n = (sc > 0) ? sc : DEFAULT_CAPACITY;
-                        @SuppressWarnings("unchecked")
-                        Node<K,V>[] nt = (Node<K,V>[])new Node<?,?>[n];
-                        table = tab = nt;
-                        // sc=3/4*n
-                        sc = n - (n >>> 2);
+    @SuppressWarnings("serial")
+    static final class MapReduceMappingsTask<K,V,U>
+            extends BulkTask<K,V,U> {
+        final BiFunction<? super K, ? super V, ? extends U> transformer;
+        final BiFunction<? super U, ? super U, ? extends U> reducer;
+        U result;
+        MapReduceMappingsTask<K,V,U> rights, nextRight;
+        MapReduceMappingsTask
+                (BulkTask<K,V,?> p, int b, int i, int f, Node<K,V>[] t,
+                 MapReduceMappingsTask<K,V,U> nextRight,
+                 BiFunction<? super K, ? super V, ? extends U> transformer,
+                 BiFunction<? super U, ? super U, ? extends U> reducer) {
+            super(p, b, i, f, t); this.nextRight = nextRight;
+            this.transformer = transformer;
+            this.reducer = reducer;
+        }
+        public final U getRawResult() { return result; }
+        public final void compute() {
+            final BiFunction<? super K, ? super V, ? extends U> transformer;
+            final BiFunction<? super U, ? super U, ? extends U> reducer;
+            if ((transformer = this.transformer) != null &&
+                    (reducer = this.reducer) != null) {
+                for (int h, f; (h = splitPoint()) >= 0;) {
+                    f = baseLimit;
+                    addToPendingCount(1);
+                    // fork出去的右半边串成链表，完成时由父任务合并
+                    (rights = new MapReduceMappingsTask<K,V,U>
+                            (this, batch >>>= 1, baseLimit = h, f, tab,
+                                    rights, transformer, reducer)).fork();
+                }
+                U r = null;
+                Traverser<K,V> it = traverser();
+                for (Node<K,V> p; (p = it.advance()) != null; ) {
+                    U u;
+                    if ((u = transformer.apply(p.key, p.val)) != null)
+                        r = (r == null) ? u : reducer.apply(r, u);
+                }
+                result = r;
+                CountedCompleter<?> c;
+                for (c = firstComplete(); c != null; c = c.nextComplete()) {
+                    // 最后一个完成的子任务负责把兄弟们的结果归并到父任务
+                    @SuppressWarnings("unchecked")
+                    MapReduceMappingsTask<K,V,U>
+                            t = (MapReduceMappingsTask<K,V,U>)c,
+                            s = t.rights;
+                    while (s != null) {
+                        U tr, sr;
+                        if ((sr = s.result) != null)
+                            t.result = (((tr = t.result) == null) ? sr :
+                                    reducer.apply(tr, sr));
+                        s = t.rights = s.nextRight;
                     }
-                } finally {
-                    // sc赋值给sizectl
-                    // 要么0 要么正数
-                    sizeCtl = sc;
                 }
-                break;
             }
         }
-        return tab;
     }
 
-    static final <K,V> boolean casTabAt(Node<K,V>[] tab, int i,
-                                        Node<K,V> c, Node<K,V> v) {
-        return U.compareAndSwapObject(tab, ((long)i << ASHIFT) + ABASE, c, v);
+    @SuppressWarnings("serial")
+    static final class MapReduceMappingsToLongTask<K,V>
+            extends BulkTask<K,V,Long> {
+        final ToLongBiFunction<? super K, ? super V> transformer;
+        final LongBinaryOperator reducer;
+        final long basis;
+        long result;
+        MapReduceMappingsToLongTask<K,V> rights, nextRight;
+        MapReduceMappingsToLongTask
+                (BulkTask<K,V,?> p, int b, int i, int f, Node<K,V>[] t,
+                 MapReduceMappingsToLongTask<K,V> nextRight,
+                 ToLongBiFunction<? super K, ? super V> transformer,
+                 long basis,
+                 LongBinaryOperator reducer) {
+            super(p, b, i, f, t); this.nextRight = nextRight;
+            this.transformer = transformer;
+            this.basis = basis; this.reducer = reducer;
+        }
+        public final Long getRawResult() { return result; }
+        public final void compute() {
+            final ToLongBiFunction<? super K, ? super V> transformer;
+            final LongBinaryOperator reducer;
+            if ((transformer = this.transformer) != null &&
+                    (reducer = this.reducer) != null) {
+                long r = this.basis;
+                for (int h, f; (h = splitPoint()) >= 0;) {
+                    f = baseLimit;
+                    addToPendingCount(1);
+                    (rights = new MapReduceMappingsToLongTask<K,V>
+                            (this, batch >>>= 1, baseLimit = h, f, tab,
+                                    rights, transformer, r, reducer)).fork();
+                }
+                Traverser<K,V> it = traverser();
+                for (Node<K,V> p; (p = it.advance()) != null; )
+                    r = reducer.applyAsLong(r, transformer.applyAsLong(p.key, p.val));
+                result = r;
+                CountedCompleter<?> c;
+                for (c = firstComplete(); c != null; c = c.nextComplete()) {
+                    @SuppressWarnings("unchecked")
+                    MapReduceMappingsToLongTask<K,V>
+                            t = (MapReduceMappingsToLongTask<K,V>)c,
+                            s = t.rights;
+                    while (s != null) {
+                        t.result = reducer.applyAsLong(t.result, s.result);
+                        s = t.rights = s.nextRight;
+                    }
+                }
+            }
+        }
     }
 
-    static final <K,V> void setTabAt(Node<K,V>[] tab, int i, Node<K,V> v) {
-        U.putObjectVolatile(tab, ((long)i << ASHIFT) + ABASE, v);
+    /**
+     * 并行putAll：把分区区间对半切，右半边fork出去，
+     * 元素少于PARALLEL_PUT_BATCH或只剩一个分区时由自己放入
+     */
+    @SuppressWarnings("serial")
+    static final class PutAllTask<K,V> extends CountedCompleter<Void> {
+        static final int PARALLEL_PUT_BATCH = 1 << 13;
+        final DemoConcurrentHashMap<K,V> map;
+        final Node<K,V>[] tab;
+        final int[] hashes;
+        final Object[] keys, vals;
+        final int[] start;
+        final int lo;
+        int hi;
+        PutAllTask(CountedCompleter<?> p, DemoConcurrentHashMap<K,V> map, Node<K,V>[] tab,
+                   int[] hashes, Object[] keys, Object[] vals, int[] start, int lo, int hi) {
+            super(p);
+            this.map = map; this.tab = tab;
+            this.hashes = hashes; this.keys = keys; this.vals = vals;
+            this.start = start; this.lo = lo; this.hi = hi;
+        }
+        public final void compute() {
+            final int[] start = this.start;
+            int l = lo, h = hi;
+            while (h - l > 1 && start[h] - start[l] > PARALLEL_PUT_BATCH) {
+                int mid = (l + h) >>> 1;
+                addToPendingCount(1);
+                new PutAllTask<K,V>(this, map, tab, hashes, keys, vals, start, mid, h).fork();
+                hi = h = mid;
+            }
+            map.putPartitions(tab, hashes, keys, vals, start, l, h);
+            propagateCompletion();
+        }
     }
 
-    private static final int tableSizeFor(int c) {
-        int n = c - 1;
-        n |= n >>> 1;
-        n |= n >>> 2;
-        n |= n >>> 4;
-        n |= n >>> 8;
-        n |= n >>> 16;
-        return (n < 0) ? 1 : (n >= MAXIMUM_CAPACITY) ? MAXIMUM_CAPACITY : n + 1;
+    /**
+     * 迭代器的基类，在Traverser的基础上支持hasNext和remove
+     */
+    static class BaseIterator<K,V> extends Traverser<K,V> {
+        final DemoConcurrentHashMap<K,V> map;
+        Node<K,V> lastReturned;
+        BaseIterator(Node<K,V>[] tab, int size, int index, int limit,
+                     DemoConcurrentHashMap<K,V> map) {
+            super(tab, size, index, limit);
+            this.map = map;
+            // 提前找到第一个节点
+            advance();
+        }
+
+        public final boolean hasNext() { return next != null; }
+        public final boolean hasMoreElements() { return next != null; }
+
+        public final void remove() {
+            Node<K,V> p;
+            if ((p = lastReturned) == null)
+                throw new IllegalStateException();
+            lastReturned = null;
+            map.replaceNode(p.key, null, null);
+        }
     }
 
-    static final int resizeStamp(int n) {
-        return Integer.numberOfLeadingZeros(n) | (1 << (RESIZE_STAMP_BITS - 1));
+    static final class KeyIterator<K,V> extends BaseIterator<K,V>
+            implements Iterator<K> {
+        KeyIterator(Node<K,V>[] tab, int size, int index, int limit,
+                    DemoConcurrentHashMap<K,V> map) {
+            super(tab, size, index, limit, map);
+        }
+
+        public final K next() {
+            Node<K,V> p;
+            if ((p = next) == null)
+                throw new NoSuchElementException();
+            K k = p.key;
+            lastReturned = p;
+            advance();
+            return k;
+        }
+    }
+
+    static final class ValueIterator<K,V> extends BaseIterator<K,V>
+            implements Iterator<V> {
+        ValueIterator(Node<K,V>[] tab, int size, int index, int limit,
+                      DemoConcurrentHashMap<K,V> map) {
+            super(tab, size, index, limit, map);
+        }
+
+        public final V next() {
+            Node<K,V> p;
+            if ((p = next) == null)
+                throw new NoSuchElementException();
+            V v = p.val;
+            lastReturned = p;
+            advance();
+            return v;
+        }
+    }
+
+    static final class EntryIterator<K,V> extends BaseIterator<K,V>
+            implements Iterator<Map.Entry<K,V>> {
+        EntryIterator(Node<K,V>[] tab, int size, int index, int limit,
+                      DemoConcurrentHashMap<K,V> map) {
+            super(tab, size, index, limit, map);
+        }
+
+        public final Map.Entry<K,V> next() {
+            Node<K,V> p;
+            if ((p = next) == null)
+                throw new NoSuchElementException();
+            K k = p.key;
+            V v = p.val;
+            lastReturned = p;
+            advance();
+            // 返回快照，不直接暴露内部Node
+            return new MapEntry<K,V>(k, v, map);
+        }
+    }
+
+    /**
+     * EntryIterator返回的键值对，setValue会写回map
+     */
+    static final class MapEntry<K,V> implements Map.Entry<K,V> {
+        final K key; // non-null
+        V val;       // non-null
+        final DemoConcurrentHashMap<K,V> map;
+        MapEntry(K key, V val, DemoConcurrentHashMap<K,V> map) {
+            this.key = key;
+            this.val = val;
+            this.map = map;
+        }
+        public K getKey()        { return key; }
+        public V getValue()      { return val; }
+        public int hashCode()    { return key.hashCode() ^ val.hashCode(); }
+        public String toString() { return key + "=" + val; }
+
+        public boolean equals(Object o) {
+            Object k, v; Map.Entry<?,?> e;
+            return ((o instanceof Map.Entry) &&
+                    (k = (e = (Map.Entry<?,?>)o).getKey()) != null &&
+                    (v = e.getValue()) != null &&
+                    (k == key || k.equals(key)) &&
+                    (v == val || v.equals(val)));
+        }
+
+        public V setValue(V value) {
+            if (value == null) throw new NullPointerException();
+            V v = val;
+            val = value;
+            map.put(key, value);
+            return v;
+        }
+    }
+
+    /**
+     * 可分割迭代器，跟BulkTask一样按哈希槽区间对半切分，供并行流使用
+     */
+    static final class KeySpliterator<K,V> extends Traverser<K,V>
+            implements Spliterator<K> {
+        long est;               // size estimate
+        KeySpliterator(Node<K,V>[] tab, int size, int index, int limit,
+                       long est) {
+            super(tab, size, index, limit);
+            this.est = est;
+        }
+
+        public Spliterator<K> trySplit() {
+            int i, f, h;
+            return (h = ((i = baseIndex) + (f = baseLimit)) >>> 1) <= i ? null :
+                    new KeySpliterator<K,V>(tab, baseSize, baseLimit = h,
+                            f, est >>>= 1);
+        }
+
+        public void forEachRemaining(Consumer<? super K> action) {
+            if (action == null) throw new NullPointerException();
+            for (Node<K,V> p; (p = advance()) != null;)
+                action.accept(p.key);
+        }
+
+        public boolean tryAdvance(Consumer<? super K> action) {
+            if (action == null) throw new NullPointerException();
+            Node<K,V> p;
+            if ((p = advance()) == null)
+                return false;
+            action.accept(p.key);
+            return true;
+        }
+
+        public long estimateSize() { return est; }
+
+        public int characteristics() {
+            return Spliterator.DISTINCT | Spliterator.CONCURRENT |
+                    Spliterator.NONNULL;
+        }
+    }
+
+    static final class ValueSpliterator<K,V> extends Traverser<K,V>
+            implements Spliterator<V> {
+        long est;               // size estimate
+        ValueSpliterator(Node<K,V>[] tab, int size, int index, int limit,
+                         long est) {
+            super(tab, size, index, limit);
+            this.est = est;
+        }
+
+        public Spliterator<V> trySplit() {
+            int i, f, h;
+            return (h = ((i = baseIndex) + (f = baseLimit)) >>> 1) <= i ? null :
+                    new ValueSpliterator<K,V>(tab, baseSize, baseLimit = h,
+                            f, est >>>= 1);
+        }
+
+        public void forEachRemaining(Consumer<? super V> action) {
+            if (action == null) throw new NullPointerException();
+            for (Node<K,V> p; (p = advance()) != null;)
+                action.accept(p.val);
+        }
+
+        public boolean tryAdvance(Consumer<? super V> action) {
+            if (action == null) throw new NullPointerException();
+            Node<K,V> p;
+            if ((p = advance()) == null)
+                return false;
+            action.accept(p.val);
+            return true;
+        }
+
+        public long estimateSize() { return est; }
+
+        public int characteristics() {
+            return Spliterator.CONCURRENT | Spliterator.NONNULL;
+        }
+    }
+
+    static final class EntrySpliterator<K,V> extends Traverser<K,V>
+            implements Spliterator<Map.Entry<K,V>> {
+        final DemoConcurrentHashMap<K,V> map; // To export MapEntry
+        long est;               // size estimate
+        EntrySpliterator(Node<K,V>[] tab, int size, int index, int limit,
+                         long est, DemoConcurrentHashMap<K,V> map) {
+            super(tab, size, index, limit);
+            this.map = map;
+            this.est = est;
+        }
+
+        public Spliterator<Map.Entry<K,V>> trySplit() {
+            int i, f, h;
+            return (h = ((i = baseIndex) + (f = baseLimit)) >>> 1) <= i ? null :
+                    new EntrySpliterator<K,V>(tab, baseSize, baseLimit = h,
+                            f, est >>>= 1, map);
+        }
+
+        public void forEachRemaining(Consumer<? super Map.Entry<K,V>> action) {
+            if (action == null) throw new NullPointerException();
+            for (Node<K,V> p; (p = advance()) != null; )
+                action.accept(new MapEntry<K,V>(p.key, p.val, map));
+        }
+
+        public boolean tryAdvance(Consumer<? super Map.Entry<K,V>> action) {
+            if (action == null) throw new NullPointerException();
+            Node<K,V> p;
+            if ((p = advance()) == null)
+                return false;
+            action.accept(new MapEntry<K,V>(p.key, p.val, map));
+            return true;
+        }
+
+        public long estimateSize() { return est; }
+
+        public int characteristics() {
+            return Spliterator.DISTINCT | Spliterator.CONCURRENT |
+                    Spliterator.NONNULL;
+        }
+    }
+
+    static final class KeySetView<K,V> extends AbstractSet<K> {
+        final DemoConcurrentHashMap<K,V> map;
+        KeySetView(DemoConcurrentHashMap<K,V> map) { this.map = map; }
+
+        public int size()                  { return map.size(); }
+        public boolean isEmpty()           { return map.isEmpty(); }
+        public boolean contains(Object o)  { return map.containsKey(o); }
+        public boolean remove(Object o)    { return map.remove(o) != null; }
+
+        public Iterator<K> iterator() {
+            Node<K,V>[] t;
+            DemoConcurrentHashMap<K,V> m = map;
+            int f = (t = m.table) == null ? 0 : t.length;
+            return new KeyIterator<K,V>(t, f, 0, f, m);
+        }
+
+        public Spliterator<K> spliterator() {
+            Node<K,V>[] t;
+            DemoConcurrentHashMap<K,V> m = map;
+            long n = m.sumCount();
+            int f = (t = m.table) == null ? 0 : t.length;
+            return new KeySpliterator<K,V>(t, f, 0, f, n < 0L ? 0L : n);
+        }
+    }
+
+    static final class ValuesView<K,V> extends AbstractCollection<V> {
+        final DemoConcurrentHashMap<K,V> map;
+        ValuesView(DemoConcurrentHashMap<K,V> map) { this.map = map; }
+
+        public int size()                  { return map.size(); }
+        public boolean isEmpty()           { return map.isEmpty(); }
+        public boolean contains(Object o)  { return map.containsValue(o); }
+
+        public boolean remove(Object o) {
+            if (o != null) {
+                for (Iterator<V> it = iterator(); it.hasNext();) {
+                    if (o.equals(it.next())) {
+                        it.remove();
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        public Iterator<V> iterator() {
+            DemoConcurrentHashMap<K,V> m = map;
+            Node<K,V>[] t;
+            int f = (t = m.table) == null ? 0 : t.length;
+            return new ValueIterator<K,V>(t, f, 0, f, m);
+        }
+
+        public Spliterator<V> spliterator() {
+            Node<K,V>[] t;
+            DemoConcurrentHashMap<K,V> m = map;
+            long n = m.sumCount();
+            int f = (t = m.table) == null ? 0 : t.length;
+            return new ValueSpliterator<K,V>(t, f, 0, f, n < 0L ? 0L : n);
+        }
+    }
+
+    static final class EntrySetView<K,V> extends AbstractSet<Map.Entry<K,V>> {
+        final DemoConcurrentHashMap<K,V> map;
+        EntrySetView(DemoConcurrentHashMap<K,V> map) { this.map = map; }
+
+        public int size()                  { return map.size(); }
+        public boolean isEmpty()           { return map.isEmpty(); }
+
+        public boolean contains(Object o) {
+            Object k, v, r; Map.Entry<?,?> e;
+            return ((o instanceof Map.Entry) &&
+                    (k = (e = (Map.Entry<?,?>)o).getKey()) != null &&
+                    (r = map.get(k)) != null &&
+                    (v = e.getValue()) != null &&
+                    (v == r || v.equals(r)));
+        }
+
+        public boolean remove(Object o) {
+            Object k, v; Map.Entry<?,?> e;
+            return ((o instanceof Map.Entry) &&
+                    (k = (e = (Map.Entry<?,?>)o).getKey()) != null &&
+                    (v = e.getValue()) != null &&
+                    map.remove(k, v));
+        }
+
+        public Iterator<Map.Entry<K,V>> iterator() {
+            DemoConcurrentHashMap<K,V> m = map;
+            Node<K,V>[] t;
+            int f = (t = m.table) == null ? 0 : t.length;
+            return new EntryIterator<K,V>(t, f, 0, f, m);
+        }
+
+        public Spliterator<Map.Entry<K,V>> spliterator() {
+            Node<K,V>[] t;
+            DemoConcurrentHashMap<K,V> m = map;
+            long n = m.sumCount();
+            int f = (t = m.table) == null ? 0 : t.length;
+            return new EntrySpliterator<K,V>(t, f, 0, f, n < 0L ? 0L : n, m);
+        }
     }
 
 }
@@ -0,0 +1,327 @@
+package org.example.hashmap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * DemoConcurrentHashMap的运行时统计，通过map.enableMonitoring()打开
+ * 没打开时map里的monitor字段为null，每个埋点只多一次判空
+ *
+ * 记录的内容：
+ * 1. 扩容/缩容的开始结束时间、耗时，参与transfer的线程数(从sizeCtl低16位算出)，
+ *    领取的stride数按线程id分到固定的STRIDE_SLOTS个计数器上
+ * 2. synchronized(f)等锁超过阈值的次数，按(表长度, 槽下标)统计热点槽，
+ *    热点槽记在固定大小的开放寻址表里，表满了的槽只计入untrackedContendedLocks
+ * 3. put/get/remove遍历到的最长链表，红黑树按树里的节点数算
+ * 所有统计占用的内存都是固定的，线程再多、表再大也不会增长
+ * 可以用snapshot()取一份快照，也可以打开JFR事件，用JDK Flight Recorder录制
+ */
+public class DemoConcurrentHashMapMonitor {
+
+    static final long DEFAULT_CONTENTION_THRESHOLD_NANOS = 10_000L;
+
+    // 快照里最多返回多少个热点槽
+    static final int HOT_BIN_LIMIT = 16;
+
+    // 记录热点槽的表的大小，必须是2的幂
+    static final int HOT_BIN_SLOTS = 256;
+
+    // 找空位时最多往后探测几个位置
+    private static final int HOT_BIN_PROBES = 8;
+
+    // 按线程id统计stride的计数器个数，必须是2的幂
+    static final int STRIDE_SLOTS = 64;
+
+    private final long contentionThresholdNanos;
+    // 没打开JFR，或者当前运行时没有JFR时为null
+    private final JfrEvents events;
+
+    private final LongAdder resizeCount = new LongAdder();
+    private final LongAdder shrinkCount = new LongAdder();
+    private final AtomicLong totalResizeNanos = new AtomicLong();
+    private final AtomicLong maxResizeNanos = new AtomicLong();
+    private volatile long lastResizeNanos;
+    private final AtomicInteger maxHelpers = new AtomicInteger();
+
+    // 当前这次扩容的信息，没在扩容时resizeStart为0
+    private volatile long resizeStart;
+    private volatile int resizeFrom, resizeTo;
+    private final AtomicInteger resizeHelpers = new AtomicInteger();
+    private final AtomicInteger resizeStrides = new AtomicInteger();
+    private volatile Object resizeEvent;
+
+    // 下标是线程id & (STRIDE_SLOTS - 1)
+    private final LongAdder[] strideClaims = new LongAdder[STRIDE_SLOTS];
+
+    private final LongAdder contendedLocks = new LongAdder();
+    private final LongAdder lockWaitNanos = new LongAdder();
+    // 热点槽，key高32位是表长度，低32位是槽下标，表长度至少是1，所以0表示空位
+    private final AtomicLongArray binKeys = new AtomicLongArray(HOT_BIN_SLOTS);
+    private final AtomicLongArray binCounts = new AtomicLongArray(HOT_BIN_SLOTS);
+    private final LongAdder untrackedContendedLocks = new LongAdder();
+
+    private final AtomicInteger longestChain = new AtomicInteger();
+
+    DemoConcurrentHashMapMonitor(long contentionThresholdNanos, boolean jfr) {
+        this.contentionThresholdNanos = contentionThresholdNanos;
+        this.events = jfr ? JfrEvents.INSTANCE : null;
+        for (int i = 0; i < STRIDE_SLOTS; i++)
+            strideClaims[i] = new LongAdder();
+    }
+
+    /* ---------------- 埋点，由DemoConcurrentHashMap调用 -------------- */
+
+    void resizeStarted(int n, int nextn) {
+        resizeFrom = n;
+        resizeTo = nextn;
+        resizeHelpers.set(0);
+        resizeStrides.set(0);
+        JfrEvents ev = events;
+        if (ev != null)
+            resizeEvent = ev.beginResize();
+        resizeStart = System.nanoTime();
+    }
+
+    /**
+     * 有线程进入transfer
+     * @param helpers 此时sizeCtl记录的参与线程数
+     */
+    void transferJoined(int helpers) {
+        updateMax(resizeHelpers, helpers);
+        updateMax(maxHelpers, helpers);
+    }
+
+    void strideClaimed() {
+        resizeStrides.incrementAndGet();
+        strideClaims[(int)Thread.currentThread().getId() & (STRIDE_SLOTS - 1)].increment();
+    }
+
+    void resizeFinished(int n, int nextn) {
+        long start = resizeStart;
+        resizeStart = 0L;
+        if (nextn < n)
+            shrinkCount.increment();
+        else
+            resizeCount.increment();
+        // 中途才打开统计的话没有开始时间
+        if (start == 0L)
+            return;
+        long d = System.nanoTime() - start;
+        lastResizeNanos = d;
+        totalResizeNanos.addAndGet(d);
+        long m;
+        while (d > (m = maxResizeNanos.get()) && !maxResizeNanos.compareAndSet(m, d))
+            ;
+        Object e = resizeEvent;
+        resizeEvent = null;
+        if (e != null)
+            events.commitResize(e, n, nextn, resizeHelpers.get(), resizeStrides.get());
+    }
+
+    /**
+     * 拿到槽锁之后调用
+     * @param t0 开始等锁的时间
+     */
+    void binLocked(int n, int i, long t0) {
+        long wait = System.nanoTime() - t0;
+        if (wait < contentionThresholdNanos)
+            return;
+        contendedLocks.increment();
+        lockWaitNanos.add(wait);
+        binContended(((long)n << 32) | (i & 0xffffffffL));
+        JfrEvents ev = events;
+        if (ev != null)
+            ev.binContended(n, i, wait);
+    }
+
+    /**
+     * 在热点槽表里给key计数，从key的哈希位置往后探测，
+     * 找到自己或者空位就计数，探测HOT_BIN_PROBES次都被别的槽占了就算untracked
+     */
+    private void binContended(long key) {
+        int h = (int)(key ^ (key >>> 32)) * 0x9e3779b9;
+        for (int p = 0; p < HOT_BIN_PROBES; p++) {
+            int slot = (h + p) & (HOT_BIN_SLOTS - 1);
+            long k = binKeys.get(slot);
+            if (k == 0L && binKeys.compareAndSet(slot, 0L, key))
+                k = key;
+            if (k == key) {
+                binCounts.incrementAndGet(slot);
+                return;
+            }
+        }
+        untrackedContendedLocks.increment();
+    }
+
+    /**
+     * 遍历到的链表长度，或者红黑树的节点数
+     */
+    void chainLength(int len) {
+        updateMax(longestChain, len);
+    }
+
+    private static void updateMax(AtomicInteger a, int v) {
+        int m;
+        while (v > (m = a.get()) && !a.compareAndSet(m, v))
+            ;
+    }
+
+    /* ---------------- 快照 -------------- */
+
+    /**
+     * 清空所有统计
+     */
+    public void reset() {
+        resizeCount.reset();
+        shrinkCount.reset();
+        totalResizeNanos.set(0L);
+        maxResizeNanos.set(0L);
+        lastResizeNanos = 0L;
+        maxHelpers.set(0);
+        for (LongAdder a : strideClaims)
+            a.reset();
+        contendedLocks.reset();
+        lockWaitNanos.reset();
+        for (int i = 0; i < HOT_BIN_SLOTS; i++) {
+            binKeys.set(i, 0L);
+            binCounts.set(i, 0L);
+        }
+        untrackedContendedLocks.reset();
+        longestChain.set(0);
+    }
+
+    public Snapshot snapshot() {
+        long[] strides = new long[STRIDE_SLOTS];
+        for (int i = 0; i < STRIDE_SLOTS; i++)
+            strides[i] = strideClaims[i].sum();
+        List<HotBin> bins = new ArrayList<HotBin>();
+        for (int i = 0; i < HOT_BIN_SLOTS; i++) {
+            long k = binKeys.get(i);
+            if (k != 0L)
+                bins.add(new HotBin((int)(k >>> 32), (int)k, binCounts.get(i)));
+        }
+        // 竞争次数从多到少
+        Collections.sort(bins, (a, b) -> Long.compare(b.contended, a.contended));
+        if (bins.size() > HOT_BIN_LIMIT)
+            bins = new ArrayList<HotBin>(bins.subList(0, HOT_BIN_LIMIT));
+        long start = resizeStart;
+        return new Snapshot(resizeCount.sum(), shrinkCount.sum(),
+                start != 0L, start != 0L ? resizeFrom : 0, start != 0L ? resizeTo : 0,
+                lastResizeNanos, maxResizeNanos.get(), totalResizeNanos.get(), maxHelpers.get(),
+                strides, contendedLocks.sum(), lockWaitNanos.sum(),
+                Collections.unmodifiableList(bins), untrackedContendedLocks.sum(), longestChain.get());
+    }
+
+    /**
+     * 某一时刻的统计数据，不可变
+     */
+    public static final class Snapshot {
+        public final long resizeCount;
+        public final long shrinkCount;
+        public final boolean resizeInProgress;
+        public final int resizeFrom;
+        public final int resizeTo;
+        public final long lastResizeNanos;
+        public final long maxResizeNanos;
+        public final long totalResizeNanos;
+        // 同时参与transfer的最大线程数
+        public final int maxHelpers;
+        // 领取的stride数，下标是线程id & (STRIDE_SLOTS - 1)，线程多时几个线程共用一个计数
+        private final long[] strideClaims;
+        public final long contendedLocks;
+        public final long lockWaitNanos;
+        public final List<HotBin> hotBins;
+        // 热点槽表满了没能单独记下的竞争次数
+        public final long untrackedContendedLocks;
+        public final int longestChain;
+
+        Snapshot(long resizeCount, long shrinkCount, boolean resizeInProgress,
+                 int resizeFrom, int resizeTo, long lastResizeNanos, long maxResizeNanos,
+                 long totalResizeNanos, int maxHelpers, long[] strideClaims,
+                 long contendedLocks, long lockWaitNanos, List<HotBin> hotBins,
+                 long untrackedContendedLocks, int longestChain) {
+            this.resizeCount = resizeCount;
+            this.shrinkCount = shrinkCount;
+            this.resizeInProgress = resizeInProgress;
+            this.resizeFrom = resizeFrom;
+            this.resizeTo = resizeTo;
+            this.lastResizeNanos = lastResizeNanos;
+            this.maxResizeNanos = maxResizeNanos;
+            this.totalResizeNanos = totalResizeNanos;
+            this.maxHelpers = maxHelpers;
+            this.strideClaims = strideClaims;
+            this.contendedLocks = contendedLocks;
+            this.lockWaitNanos = lockWaitNanos;
+            this.hotBins = hotBins;
+            this.untrackedContendedLocks = untrackedContendedLocks;
+            this.longestChain = longestChain;
+        }
+
+        /**
+         * 领取的stride数，下标是线程id & (STRIDE_SLOTS - 1)
+         */
+        public long[] strideClaims() {
+            return strideClaims.clone();
+        }
+
+        public String toString() {
+            return "resizes=" + resizeCount + ", shrinks=" + shrinkCount +
+                    (resizeInProgress ? ", resizing " + resizeFrom + "->" + resizeTo : "") +
+                    ", lastResizeNanos=" + lastResizeNanos + ", maxResizeNanos=" + maxResizeNanos +
+                    ", maxHelpers=" + maxHelpers + ", strideClaims=" + Arrays.toString(strideClaims) +
+                    ", contendedLocks=" + contendedLocks + ", lockWaitNanos=" + lockWaitNanos +
+                    ", hotBins=" + hotBins + ", untrackedContendedLocks=" + untrackedContendedLocks +
+                    ", longestChain=" + longestChain;
+        }
+    }
+
+    public static final class HotBin {
+        public final int tableLength;
+        public final int index;
+        public final long contended;
+
+        HotBin(int tableLength, int index, long contended) {
+            this.tableLength = tableLength;
+            this.index = index;
+            this.contended = contended;
+        }
+
+        public String toString() {
+            return index + "/" + tableLength + "=" + contended;
+        }
+    }
+
+    /* ---------------- JFR -------------- */
+
+    /**
+     * JFR事件的入口。jdk.jfr在Java 8上没有，事件类放在src/main/java11的DemoConcurrentHashMapJfrEvents里，
+     * 编译到multi-release jar的META-INF/versions/11，这里按类名反射加载；
+     * 加载不到时(Java 8，或者不是从jar里加载的)INSTANCE为null，打开jfr也不会发事件
+     */
+    abstract static class JfrEvents {
+
+        // 只有构造monitor时jfr为true才会触发这个类的初始化
+        static final JfrEvents INSTANCE = load();
+
+        private static JfrEvents load() {
+            try {
+                return (JfrEvents)Class.forName("org.example.hashmap.DemoConcurrentHashMapJfrEvents")
+                        .getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                return null;
+            }
+        }
+
+        abstract Object beginResize();
+
+        abstract void commitResize(Object event, int from, int to, int helpers, int strides);
+
+        abstract void binContended(int n, int i, long wait);
+    }
+}
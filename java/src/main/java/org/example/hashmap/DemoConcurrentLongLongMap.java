@@ -0,0 +1,566 @@
+package org.example.hashmap;
+
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * long到long的并发map，思路对标DemoConcurrentHashMap：
+ * 空槽CAS插入、非空槽加锁、读不加锁、多线程按stride协助扩容。
+ * 区别是没有Node对象，key、value、next下标都放在基本类型数组里，
+ * 每个entry只占8(key)+8(value)+4(next)字节，外加每个槽4字节
+ *
+ * 因为没有null，key不存在时get/put/remove返回构造时传入的noEntryValue
+ */
+public class DemoConcurrentLongLongMap {
+
+    private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private static final int MIN_TRANSFER_STRIDE = 16;
+
+    static final int NCPU = Runtime.getRuntime().availableProcessors();
+
+    private static final int RESIZE_STAMP_BITS = 16;
+
+    private static final int RESIZE_STAMP_SHIFT = 32 - RESIZE_STAMP_BITS;
+
+    private static final int MAX_RESIZERS = (1 << (32 - RESIZE_STAMP_BITS)) - 1;
+
+    // 槽和next里存的是entry下标，下标从1开始，0表示空/链表结束
+    static final int EMPTY = 0;
+
+    // 槽已经迁移到nextTable，相当于DemoConcurrentHashMap里的ForwardingNode
+    static final int MOVED = -1;
+
+    /**
+     * 没有Node可以当锁，所以用分段锁，槽i使用locks[i & (locks.length - 1)]
+     */
+    private final Object[] locks;
+
+    /**
+     * key不存在时的返回值
+     */
+    private final long noEntryValue;
+
+    /**
+     * 元素个数，LongAdder跟DemoConcurrentHashMap的CounterCell是同一个思路
+     */
+    private final LongAdder counter = new LongAdder();
+
+    private transient volatile Table table;
+
+    /**
+     * 下一个需要使用的table,只有在resize的时候不为空
+     */
+    private transient volatile Table nextTable;
+
+    // 小于-1表示正在扩容，其他情况为0
+    private transient volatile int sizeCtl;
+
+    private transient volatile int transferIndex;
+
+    private static final sun.misc.Unsafe U;
+    private static final long SIZECTL;
+    private static final long TRANSFERINDEX;
+    private static final long ALLOCATED;
+    private static final long RESERVED;
+    private static final long IBASE;
+    private static final int ISHIFT;
+    private static final long LBASE;
+    private static final int LSHIFT;
+
+    static {
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            U = (Unsafe) field.get(null);
+            Class<?> k = DemoConcurrentLongLongMap.class;
+            SIZECTL = U.objectFieldOffset
+                    (k.getDeclaredField("sizeCtl"));
+            TRANSFERINDEX = U.objectFieldOffset
+                    (k.getDeclaredField("transferIndex"));
+            ALLOCATED = U.objectFieldOffset
+                    (Table.class.getDeclaredField("allocated"));
+            RESERVED = U.objectFieldOffset
+                    (Table.class.getDeclaredField("reserved"));
+            IBASE = U.arrayBaseOffset(int[].class);
+            int scale = U.arrayIndexScale(int[].class);
+            if ((scale & (scale - 1)) != 0)
+                throw new Error("data type scale not a power of two");
+            ISHIFT = 31 - Integer.numberOfLeadingZeros(scale);
+            LBASE = U.arrayBaseOffset(long[].class);
+            scale = U.arrayIndexScale(long[].class);
+            if ((scale & (scale - 1)) != 0)
+                throw new Error("data type scale not a power of two");
+            LSHIFT = 31 - Integer.numberOfLeadingZeros(scale);
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+
+    /**
+     * 一张哈希表：bins是槽数组，keys/vals/next是entry数组
+     * entry只追加不复用，删除只是从链表上摘掉，空间在下一次迁移时回收，
+     * 这样读线程走在被删除的entry上也不会跑到别的链表里
+     */
+    static final class Table {
+        final int[] bins;
+        final long[] keys;
+        final long[] vals;
+        final int[] next;
+        // entry容量，槽数的3/4
+        final int capacity;
+        // 已分配的entry个数，只增不减
+        volatile int allocated;
+        // 迁移期间给搬运预留、还没用掉的entry个数，扩容结束后清0
+        volatile int reserved;
+        // 从链表上摘掉的entry个数，allocated减去它就是迁移时最多要搬的entry数
+        final LongAdder removed = new LongAdder();
+        // 迁移的目标表，读线程碰到MOVED就去这里找
+        volatile Table nextTable;
+
+        Table(int n, int reserved) {
+            this.bins = new int[n];
+            this.capacity = n - (n >>> 2);
+            // 下标0不用
+            this.keys = new long[capacity + 1];
+            this.vals = new long[capacity + 1];
+            this.next = new int[capacity + 1];
+            this.reserved = reserved;
+        }
+    }
+
+    public DemoConcurrentLongLongMap() {
+        this(DEFAULT_CAPACITY, 0L);
+    }
+
+    /**
+     * @param initialCapacity 预计的元素个数，按这个数量建表，插满之前不会扩容
+     * @param noEntryValue key不存在时的返回值
+     */
+    public DemoConcurrentLongLongMap(int initialCapacity, long noEntryValue) {
+        if (initialCapacity < 0)
+            throw new IllegalArgumentException();
+        int n = (initialCapacity >= (MAXIMUM_CAPACITY >>> 1)) ?
+                MAXIMUM_CAPACITY :
+                tableSizeFor(Math.max(DEFAULT_CAPACITY,
+                        initialCapacity + (initialCapacity >>> 1) + 1));
+        this.table = new Table(n, 0);
+        this.noEntryValue = noEntryValue;
+        int stripes = tableSizeFor(NCPU << 6);
+        this.locks = new Object[Math.min(stripes, 1 << 12)];
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new Object();
+    }
+
+    public long noEntryValue() {
+        return noEntryValue;
+    }
+
+    static int spread(long key) {
+        // 乘黄金分割常数把高位也打散到低位，再折叠成int
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    static int binAt(Table t, int i) {
+        return U.getIntVolatile(t.bins, ((long)i << ISHIFT) + IBASE);
+    }
+
+    static boolean casBinAt(Table t, int i, int c, int v) {
+        return U.compareAndSwapInt(t.bins, ((long)i << ISHIFT) + IBASE, c, v);
+    }
+
+    static void setBinAt(Table t, int i, int v) {
+        U.putIntVolatile(t.bins, ((long)i << ISHIFT) + IBASE, v);
+    }
+
+    static int nextAt(Table t, int e) {
+        return U.getIntVolatile(t.next, ((long)e << ISHIFT) + IBASE);
+    }
+
+    static void setNextAt(Table t, int e, int v) {
+        U.putIntVolatile(t.next, ((long)e << ISHIFT) + IBASE, v);
+    }
+
+    static long valAt(Table t, int e) {
+        return U.getLongVolatile(t.vals, ((long)e << LSHIFT) + LBASE);
+    }
+
+    static void setValAt(Table t, int e, long v) {
+        U.putLongVolatile(t.vals, ((long)e << LSHIFT) + LBASE, v);
+    }
+
+    /**
+     * 分配一个entry下标，空间不够返回EMPTY
+     * @param forTransfer 迁移线程可以使用预留的空间，普通写线程不行
+     */
+    static int allocate(Table t, boolean forTransfer) {
+        int limit = forTransfer ? t.capacity : t.capacity - t.reserved;
+        for (int a;;) {
+            if ((a = t.allocated) >= limit)
+                return EMPTY;
+            if (U.compareAndSwapInt(t, ALLOCATED, a, a + 1)) {
+                if (forTransfer)
+                    // 搬运用掉一个预留的位置，写线程能用的空间不会随着搬运进度变少
+                    U.getAndAddInt(t, RESERVED, -1);
+                return a + 1;
+            }
+        }
+    }
+
+    private Object lockFor(int i) {
+        return locks[i & (locks.length - 1)];
+    }
+
+    public long get(long key) {
+        return getOrDefault(key, noEntryValue);
+    }
+
+    public long getOrDefault(long key, long defaultValue) {
+        int h = spread(key);
+        for (Table t = table;;) {
+            int e = binAt(t, h & (t.bins.length - 1));
+            if (e == MOVED) {
+                // 已迁移，去新表里找，不加锁也不帮忙扩容
+                t = t.nextTable;
+                continue;
+            }
+            // keys在发布前写入，发布时是volatile写，所以这里普通读就能看到
+            for (; e > EMPTY; e = nextAt(t, e)) {
+                if (t.keys[e] == key)
+                    return valAt(t, e);
+            }
+            return defaultValue;
+        }
+    }
+
+    public boolean containsKey(long key) {
+        int h = spread(key);
+        for (Table t = table;;) {
+            int e = binAt(t, h & (t.bins.length - 1));
+            if (e == MOVED) {
+                t = t.nextTable;
+                continue;
+            }
+            for (; e > EMPTY; e = nextAt(t, e)) {
+                if (t.keys[e] == key)
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    public long put(long key, long value) {
+        return putVal(key, value, false);
+    }
+
+    public long putIfAbsent(long key, long value) {
+        return putVal(key, value, true);
+    }
+
+    final long putVal(long key, long value, boolean onlyIfAbsent) {
+        int h = spread(key);
+        // 空槽CAS失败时，已经分配的entry还没发布，留着下次重试用
+        Table pt = null;
+        int pe = EMPTY;
+        for (Table t = table;;) {
+            int n = t.bins.length, i = h & (n - 1), f = binAt(t, i);
+            if (f == MOVED)
+                // 对应的槽正在迁移，帮忙扩容
+                t = helpTransfer(t);
+            else if (f == EMPTY) {
+                // 空槽，分配entry后CAS挂上去，不加锁
+                int e = (pt == t) ? pe : allocate(t, false);
+                if (e == EMPTY) {
+                    // 空间用完了，扩容
+                    t = tryResize(t);
+                    continue;
+                }
+                t.keys[e] = key;
+                t.vals[e] = value;
+                t.next[e] = EMPTY;
+                if (casBinAt(t, i, EMPTY, e)) {
+                    counter.increment();
+                    return noEntryValue;
+                }
+                pt = t;
+                pe = e;
+            }
+            else {
+                long oldVal = noEntryValue;
+                // 0: 槽变了重试 1: 更新了已有的key 2: 插入了新key 3: 空间不够
+                int state = 0;
+                synchronized (lockFor(i)) {
+                    // 双重检查
+                    if (binAt(t, i) == f) {
+                        for (int e = f, pred;;) {
+                            if (t.keys[e] == key) {
+                                oldVal = valAt(t, e);
+                                if (!onlyIfAbsent)
+                                    setValAt(t, e, value);
+                                state = 1;
+                                break;
+                            }
+                            pred = e;
+                            if ((e = nextAt(t, pred)) == EMPTY) {
+                                int x = (pt == t) ? pe : allocate(t, false);
+                                if (x == EMPTY) {
+                                    state = 3;
+                                    break;
+                                }
+                                pt = null;
+                                t.keys[x] = key;
+                                t.vals[x] = value;
+                                t.next[x] = EMPTY;
+                                // 挂到链表尾部
+                                setNextAt(t, pred, x);
+                                state = 2;
+                                break;
+                            }
+                        }
+                    }
+                }
+                if (state == 1)
+                    return oldVal;
+                if (state == 2) {
+                    counter.increment();
+                    return noEntryValue;
+                }
+                if (state == 3)
+                    t = tryResize(t);
+            }
+        }
+    }
+
+    public long remove(long key) {
+        int h = spread(key);
+        for (Table t = table;;) {
+            int n = t.bins.length, i = h & (n - 1), f = binAt(t, i);
+            if (f == EMPTY)
+                return noEntryValue;
+            else if (f == MOVED)
+                t = helpTransfer(t);
+            else {
+                long oldVal = noEntryValue;
+                boolean validated = false, removed = false;
+                synchronized (lockFor(i)) {
+                    if (binAt(t, i) == f) {
+                        validated = true;
+                        for (int e = f, pred = EMPTY; e != EMPTY;
+                             pred = e, e = nextAt(t, e)) {
+                            if (t.keys[e] == key) {
+                                oldVal = valAt(t, e);
+                                int en = nextAt(t, e);
+                                // 只摘链，不回收，e自己的next保持不变，读线程可以继续往后走
+                                if (pred != EMPTY)
+                                    setNextAt(t, pred, en);
+                                else
+                                    setBinAt(t, i, en);
+                                t.removed.increment();
+                                removed = true;
+                                break;
+                            }
+                        }
+                    }
+                }
+                if (validated) {
+                    if (removed)
+                        counter.decrement();
+                    return oldVal;
+                }
+            }
+        }
+    }
+
+    public int size() {
+        long n = counter.sum();
+        return ((n < 0L) ? 0 :
+                (n > (long)Integer.MAX_VALUE) ? Integer.MAX_VALUE :
+                        (int)n);
+    }
+
+    public long mappingCount() {
+        long n = counter.sum();
+        return (n < 0L) ? 0L : n;
+    }
+
+    public boolean isEmpty() {
+        return counter.sum() <= 0L;
+    }
+
+    /**
+     * 写线程在t上分配不到entry时调用，发起或者协助扩容，返回重试用的当前表
+     */
+    private Table tryResize(Table t) {
+        int sc;
+        Table tab = table;
+        if (t != tab) {
+            // t是正在迁移的新表，剩余空间预留给搬运，先帮忙把这次扩容做完
+            if (tab.nextTable == t)
+                helpTransfer(tab);
+            Thread.yield();
+            return table;
+        }
+        if ((sc = sizeCtl) < 0) {
+            // 已经在扩容了，帮忙迁移。不能直接返回nextTable：
+            // 写线程自己的槽可能还没迁移，去新表写会被搬运覆盖
+            // 新表还没建好，或者区间都被领完了帮不上忙，让出时间片等扩容收尾，不空转
+            if (t.nextTable == null || transferIndex <= 0)
+                Thread.yield();
+            else
+                helpTransfer(t);
+            return table;
+        }
+        if (t.allocated < t.capacity - t.reserved)
+            // 失败时t还是迁移中的新表，现在扩容已经结束，预留空间释放了，直接重试
+            return t;
+        if (t.bins.length >= MAXIMUM_CAPACITY && counter.sum() >= t.capacity)
+            throw new IllegalStateException("Map capacity exceeded");
+        int rs = resizeStamp(t.bins.length);
+        if (U.compareAndSwapInt(this, SIZECTL, sc,
+                (rs << RESIZE_STAMP_SHIFT) + 2))
+            // 首个发起扩容的线程
+            transfer(t, null);
+        return table;
+    }
+
+    final Table helpTransfer(Table tab) {
+        Table nextTab;
+        int sc;
+        if ((nextTab = tab.nextTable) != null) {
+            int rs = resizeStamp(tab.bins.length);
+            while (nextTab == nextTable && table == tab &&
+                    (sc = sizeCtl) < 0) {
+                // stamp左移之后再比较收尾和线程数上限，jdk8里没左移，这两个条件不会成立(JDK-8214427)
+                if ((sc >>> RESIZE_STAMP_SHIFT) != rs ||
+                        sc == (rs << RESIZE_STAMP_SHIFT) + 1 ||
+                        sc == (rs << RESIZE_STAMP_SHIFT) + MAX_RESIZERS ||
+                        transferIndex <= 0)
+                    break;
+                if (U.compareAndSwapInt(this, SIZECTL, sc, sc + 1)) {
+                    transfer(tab, nextTab);
+                    break;
+                }
+            }
+            return nextTab;
+        }
+        return table;
+    }
+
+    /**
+     * 迁移流程跟DemoConcurrentHashMap.transfer一样：从尾往头按stride领取槽区间，
+     * 每个槽搬完后标记为MOVED。因为entry不复用，迁移同时也是一次压缩，
+     * 所以活跃元素不到一半时只做同容量的重建，不翻倍
+     */
+    private void transfer(Table tab, Table nextTab) {
+        int n = tab.bins.length, stride;
+        if ((stride = (NCPU > 1) ? (n >>> 3) / NCPU : n) < MIN_TRANSFER_STRIDE)
+            stride = MIN_TRANSFER_STRIDE; // subdivide range
+        if (nextTab == null) {            // initiating
+            try {
+                // 被删除的entry占着空间，活跃元素不到一半就同容量重建
+                int nn = (counter.sum() >= (tab.capacity >>> 1) &&
+                        n < MAXIMUM_CAPACITY) ? n << 1 : n;
+                // 只给还挂在链表上的entry预留空间：老表已经满了不会再分配，
+                // 删除只会让要搬的更少，所以allocated - removed是上界。
+                // 同容量重建时至少空出一半，写线程到了新表也能直接插入，不用等迁移结束
+                int live = tab.allocated - (int)Math.min(tab.removed.sum(), tab.allocated);
+                nextTab = new Table(nn, live);
+            } catch (Throwable ex) {      // try to cope with OOME
+                sizeCtl = 0;
+                throw ex;
+            }
+            tab.nextTable = nextTab;
+            nextTable = nextTab;
+            transferIndex = n;
+        }
+        int nextn = nextTab.bins.length;
+        boolean advance = true;
+        boolean finishing = false;
+        for (int i = 0, bound = 0;;) {
+            int f;
+            while (advance) {
+                int nextIndex, nextBound;
+                if (--i >= bound || finishing)
+                    advance = false;
+                else if ((nextIndex = transferIndex) <= 0) {
+                    i = -1;
+                    advance = false;
+                }
+                else if (U.compareAndSwapInt
+                        (this, TRANSFERINDEX, nextIndex,
+                                nextBound = (nextIndex > stride ?
+                                        nextIndex - stride : 0))) {
+                    bound = nextBound;
+                    i = nextIndex - 1;
+                    advance = false;
+                }
+            }
+            if (i < 0 || i >= n) {
+                int sc;
+                if (finishing) {
+                    nextTable = null;
+                    nextTab.reserved = 0;
+                    table = nextTab;
+                    sizeCtl = 0;
+                    return;
+                }
+                if (U.compareAndSwapInt(this, SIZECTL, sc = sizeCtl, sc - 1)) {
+                    if ((sc - 2) != resizeStamp(n) << RESIZE_STAMP_SHIFT)
+                        return;
+                    finishing = advance = true;
+                    i = n; // recheck before commit
+                }
+            }
+            else if ((f = binAt(tab, i)) == EMPTY)
+                advance = casBinAt(tab, i, EMPTY, MOVED);
+            else if (f == MOVED)
+                advance = true; // already processed
+            else {
+                synchronized (lockFor(i)) {
+                    if (binAt(tab, i) == f) {
+                        // 新表是同容量时所有元素都留在i，翻倍时拆成i和i+n两条
+                        int ln = EMPTY, hn = EMPTY;
+                        for (int e = f; e != EMPTY; e = nextAt(tab, e)) {
+                            long k = tab.keys[e];
+                            int x = allocate(nextTab, true);
+                            nextTab.keys[x] = k;
+                            nextTab.vals[x] = valAt(tab, e);
+                            if ((spread(k) & (nextn - 1)) == i) {
+                                nextTab.next[x] = ln;
+                                ln = x;
+                            }
+                            else {
+                                nextTab.next[x] = hn;
+                                hn = x;
+                            }
+                        }
+                        setBinAt(nextTab, i, ln);
+                        if (nextn > n)
+                            setBinAt(nextTab, i + n, hn);
+                        setBinAt(tab, i, MOVED);
+                        advance = true;
+                    }
+                }
+            }
+        }
+    }
+
+    private static int tableSizeFor(int c) {
+        int n = c - 1;
+        n |= n >>> 1;
+        n |= n >>> 2;
+        n |= n >>> 4;
+        n |= n >>> 8;
+        n |= n >>> 16;
+        return (n < 0) ? 1 : (n >= MAXIMUM_CAPACITY) ? MAXIMUM_CAPACITY : n + 1;
+    }
+
+    static final int resizeStamp(int n) {
+        return Integer.numberOfLeadingZeros(n) | (1 << (RESIZE_STAMP_BITS - 1));
+    }
+}
@@ -0,0 +1,56 @@
+package org.example.hashmap;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * DemoConcurrentHashMap和DemoNonBlockingHashMap共同的对外方法，调用方只依赖这个接口就可以在两种实现之间切换
+ *
+ * 语义跟java.util.concurrent.ConcurrentMap一致：key和value都不能为null，单个方法是原子的，
+ * 视图和迭代器是弱一致的；compute系列方法的原子性强弱由实现类说明
+ */
+public interface DemoConcurrentMap<K,V> {
+
+    V get(Object key);
+
+    boolean containsKey(Object key);
+
+    boolean containsValue(Object value);
+
+    V put(K key, V value);
+
+    V putIfAbsent(K key, V value);
+
+    void putAll(Map<? extends K, ? extends V> m);
+
+    V remove(Object key);
+
+    boolean remove(Object key, Object value);
+
+    boolean replace(K key, V oldValue, V newValue);
+
+    V replace(K key, V value);
+
+    V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction);
+
+    V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction);
+
+    V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction);
+
+    V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction);
+
+    int size();
+
+    long mappingCount();
+
+    boolean isEmpty();
+
+    Set<K> keySet();
+
+    Collection<V> values();
+
+    Set<Map.Entry<K,V>> entrySet();
+}
@@ -0,0 +1,383 @@
+package org.example.hashmap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.BiConsumer;
+
+/**
+ * DemoHashMap.freeze()生成的只读map，用完美哈希(CHD，hash and displace)定位，没有冲突链表，也没有节点对象
+ *
+ * 构造：
+ * 1. 按哈希值的高位把key分成若干个分区，每个分区几千个key，分区之间互不相关，在ForkJoinPool里并行构造
+ * 2. 分区里的key按哈希值再分到平均4个key一组的桶里，按桶从大到小依次放置：
+ *    对桶尝试位移值d = 0, 1, 2...，直到桶里每个key按(哈希值, d)算出的槽都空着，把d记在桶上
+ *    槽数只比key数多1%，几乎没有空槽
+ * 3. hashCode完全相同的key，或者试了很多次也放不下的桶，放进按哈希值排序的溢出区，查找时二分
+ *
+ * 查找：算哈希值 -> 读分区边界 -> 读桶的位移值 -> 算出槽 -> 比较槽里的key，
+ * 除了equals只有几次数组读取；key和value交替放在一个数组里，命中时通常在同一个缓存行
+ * null key单独存放
+ */
+public final class DemoFrozenHashMap<K, V> {
+
+    // 每个分区大约这么多个key
+    static final int PARTITION_SIZE = 1 << 12;
+
+    // 每个桶平均这么多个key
+    static final int BUCKET_SIZE = 4;
+
+    // 一个桶最多尝试这么多个位移值，再放不下就放进溢出区
+    static final int MAX_DISPLACEMENT = 1 << 20;
+
+    // table的长度上限，数组长度不能超过Integer.MAX_VALUE - 8
+    static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    static final int[] EMPTY_HASHES = new int[0];
+
+    static final Object[] EMPTY_ENTRIES = new Object[0];
+
+    // 第i个槽的key在table[2 * i]，value在table[2 * i + 1]，空槽的key为null
+    final Object[] table;
+
+    // 每个桶的位移值
+    final int[] displacements;
+
+    // 分区p的槽是[slotBase[p], slotBase[p + 1])，桶是[bucketBase[p], bucketBase[p + 1])
+    final int[] slotBase;
+    final int[] bucketBase;
+
+    // 分区数的位数，分区号是哈希值的高partitionBits位
+    final int partitionBits;
+
+    // 溢出区，按哈希值排序，key和value交替放在overflow里
+    final int[] overflowHashes;
+    final Object[] overflow;
+
+    final boolean hasNullKey;
+    final V nullValue;
+
+    final int size;
+
+    // 跟原map一样的哈希种子，为null时用DemoHashMap.hash
+    final DemoHashSeed hashSeed;
+
+    @SuppressWarnings("unchecked")
+    DemoFrozenHashMap(DemoHashMap.DemoNode<K,V>[] tab, int size, DemoHashSeed hashSeed) {
+        this.hashSeed = hashSeed;
+        this.size = size;
+
+        // 取出所有元素，节点里的hash就是原map的keyHash，查找时按同样的方式计算
+        int n = 0;
+        boolean nullKey = false;
+        V nv = null;
+        int[] hs = new int[size];
+        Object[] ks = new Object[size], vs = new Object[size];
+        if (tab != null) {
+            for (DemoHashMap.DemoNode<K,V> e : tab) {
+                for (; e != null; e = e.next) {
+                    if (e.key == null) {
+                        nullKey = true;
+                        nv = e.value;
+                    }
+                    else {
+                        hs[n] = e.hash;
+                        ks[n] = e.key;
+                        vs[n] = e.value;
+                        ++n;
+                    }
+                }
+            }
+        }
+        this.hasNullKey = nullKey;
+        this.nullValue = nv;
+
+        // 按哈希值的高位分区，计数排序，分区内保持原来的顺序
+        int partitions = Integer.highestOneBit(Math.max(1, n / PARTITION_SIZE));
+        int partitionBits = this.partitionBits = Integer.numberOfTrailingZeros(partitions);
+        long[] xs = new long[n];
+        int[] start = new int[partitions + 1];
+        for (int i = 0; i < n; i++) {
+            long x = xs[i] = mix64(hs[i]);
+            ++start[partitionOf(x, partitionBits) + 1];
+        }
+        for (int p = 0; p < partitions; p++)
+            start[p + 1] += start[p];
+        int[] pos = start.clone();
+        long[] pxs = new long[n];
+        Object[] pks = new Object[n], pvs = new Object[n];
+        int[] phs = new int[n];
+        for (int i = 0; i < n; i++) {
+            int j = pos[partitionOf(xs[i], partitionBits)]++;
+            pxs[j] = xs[i];
+            phs[j] = hs[i];
+            pks[j] = ks[i];
+            pvs[j] = vs[i];
+        }
+
+        // 每个分区的槽数和桶数，至少各1个，查找时不用判断空分区
+        // 槽数按long累加，超过数组长度上限时直接失败，不让sb[partitions] << 1溢出成负数或很小的长度
+        int[] sb = new int[partitions + 1], bb = new int[partitions + 1];
+        long slots = 0;
+        for (int p = 0; p < partitions; p++) {
+            int np = start[p + 1] - start[p];
+            slots += np + np / 100 + 1;
+            tableLength(slots);
+            sb[p + 1] = (int)slots;
+            bb[p + 1] = bb[p] + np / BUCKET_SIZE + 1;
+        }
+        this.slotBase = sb;
+        this.bucketBase = bb;
+        this.table = new Object[tableLength(slots)];
+        this.displacements = new int[bb[partitions]];
+
+        // 分区之间写的是table和displacements的不同区间，可以并行
+        int[][] overflowed = new int[partitions][];
+        List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>(partitions);
+        for (int p = 0; p < partitions; p++) {
+            final int pp = p;
+            tasks.add(ForkJoinTask.adapt(() ->
+                    overflowed[pp] = buildPartition(pp, start[pp], start[pp + 1], pxs, pks, pvs)));
+        }
+        ForkJoinTask.invokeAll(tasks);
+
+        // 合并各分区的溢出区，按哈希值排序
+        int m = 0;
+        for (int[] o : overflowed)
+            m += o.length;
+        if (m == 0) {
+            this.overflowHashes = EMPTY_HASHES;
+            this.overflow = EMPTY_ENTRIES;
+        }
+        else {
+            long[] sorted = new long[m];
+            int c = 0;
+            for (int[] o : overflowed) {
+                for (int i : o)
+                    // 高32位是哈希值，低32位是下标
+                    sorted[c++] = ((long)phs[i] << 32) | (i & 0xffffffffL);
+            }
+            Arrays.sort(sorted);
+            int[] oh = new int[m];
+            Object[] ov = new Object[m << 1];
+            for (int k = 0; k < m; k++) {
+                int i = (int)sorted[k];
+                oh[k] = (int)(sorted[k] >> 32);
+                ov[k << 1] = pks[i];
+                ov[(k << 1) + 1] = pvs[i];
+            }
+            this.overflowHashes = oh;
+            this.overflow = ov;
+        }
+    }
+
+    /**
+     * 构造一个分区，返回放进溢出区的元素下标
+     */
+    private int[] buildPartition(int p, int from, int to, long[] xs, Object[] ks, Object[] vs) {
+        int np = to - from;
+        int s0 = slotBase[p], m = slotBase[p + 1] - s0;
+        int b0 = bucketBase[p], r = bucketBase[p + 1] - b0;
+
+        // 按桶计数排序：order[bucketStart[b] .. bucketStart[b + 1])是桶b里的元素
+        int[] bucketStart = new int[r + 1];
+        int[] buckets = new int[np];
+        for (int i = 0; i < np; i++)
+            ++bucketStart[(buckets[i] = bucketOf(xs[from + i], r)) + 1];
+        int maxSize = 0;
+        for (int b = 0; b < r; b++) {
+            maxSize = Math.max(maxSize, bucketStart[b + 1]);
+            bucketStart[b + 1] += bucketStart[b];
+        }
+        int[] order = new int[np];
+        int[] pos = bucketStart.clone();
+        for (int i = 0; i < np; i++)
+            order[pos[buckets[i]]++] = from + i;
+
+        // 桶按大小从大到小排，大桶先放，空槽多的时候容易放下
+        int[] sizeStart = new int[maxSize + 2];
+        for (int b = 0; b < r; b++)
+            ++sizeStart[maxSize - (bucketStart[b + 1] - bucketStart[b]) + 1];
+        for (int s = 0; s <= maxSize; s++)
+            sizeStart[s + 1] += sizeStart[s];
+        int[] byBucketSize = new int[r];
+        for (int b = 0; b < r; b++)
+            byBucketSize[sizeStart[maxSize - (bucketStart[b + 1] - bucketStart[b])]++] = b;
+
+        long[] used = new long[(m + 63) >>> 6];
+        int[] members = new int[maxSize], slots = new int[maxSize];
+        int[] overflowed = new int[4];
+        int overflowCount = 0;
+        for (int b : byBucketSize) {
+            int s = 0;
+            // 哈希值完全相同的key无论d取多少都落在同一个槽，只留一个，其余放进溢出区
+            outer:
+            for (int k = bucketStart[b]; k < bucketStart[b + 1]; k++) {
+                int i = order[k];
+                for (int j = 0; j < s; j++) {
+                    if (xs[members[j]] == xs[i]) {
+                        if (overflowCount == overflowed.length)
+                            overflowed = Arrays.copyOf(overflowed, overflowCount << 1);
+                        overflowed[overflowCount++] = i;
+                        continue outer;
+                    }
+                }
+                members[s++] = i;
+            }
+            if (s == 0)
+                continue;
+            int d = 0;
+            search:
+            for (; d < MAX_DISPLACEMENT; d++) {
+                for (int j = 0; j < s; j++) {
+                    int slot = slotOf(xs[members[j]], d, m);
+                    if ((used[slot >>> 6] & (1L << slot)) != 0)
+                        continue search;
+                    for (int q = 0; q < j; q++) {
+                        if (slots[q] == slot)
+                            continue search;
+                    }
+                    slots[j] = slot;
+                }
+                break;
+            }
+            if (d == MAX_DISPLACEMENT) {
+                // 放不下，整个桶进溢出区，位移值留0，查找时落到的槽里不会是这些key
+                for (int j = 0; j < s; j++) {
+                    if (overflowCount == overflowed.length)
+                        overflowed = Arrays.copyOf(overflowed, overflowCount << 1);
+                    overflowed[overflowCount++] = members[j];
+                }
+                continue;
+            }
+            displacements[b0 + b] = d;
+            for (int j = 0; j < s; j++) {
+                int slot = slots[j], i = members[j];
+                used[slot >>> 6] |= 1L << slot;
+                table[(s0 + slot) << 1] = ks[i];
+                table[((s0 + slot) << 1) + 1] = vs[i];
+            }
+        }
+        return Arrays.copyOf(overflowed, overflowCount);
+    }
+
+    /**
+     * slots个槽需要的table长度，超过MAX_ARRAY_SIZE时抛IllegalStateException
+     */
+    static int tableLength(long slots) {
+        long length = slots << 1;
+        if (length > MAX_ARRAY_SIZE)
+            throw new IllegalStateException("Too many entries to freeze: " + slots + " slots");
+        return (int)length;
+    }
+
+    static long mix64(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+
+    // 分区数为1时不能右移64位，先移1位
+    static int partitionOf(long x, int partitionBits) {
+        return (int)((x >>> 1) >>> (63 - partitionBits));
+    }
+
+    // 低32位映射到[0, r)
+    static int bucketOf(long x, int r) {
+        return (int)(((x & 0xffffffffL) * r) >>> 32);
+    }
+
+    // 哈希值跟d相关的常数异或之后乘一次，取乘积的高32位映射到[0, m)
+    // 乘积的高位跟所有输入位都有关，不用再完整地调用一次mix64
+    static int slotOf(long x, int d, int m) {
+        long y = (x ^ (d * GOLDEN_GAMMA)) * 0xff51afd7ed558ccdL;
+        return (int)(((y >>> 32) * m) >>> 32);
+    }
+
+    /**
+     * 跟DemoHashMap.keyHash一样，key不为null
+     */
+    final int keyHash(Object key) {
+        DemoHashSeed seed = hashSeed;
+        int h;
+        return (seed == null) ? (h = key.hashCode()) ^ (h >>> 16) : (h = seed.hash(key)) ^ (h >>> 16);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        if (key == null)
+            return nullValue;
+        int h = keyHash(key);
+        long x = mix64(h);
+        int p = partitionOf(x, partitionBits);
+        int s0 = slotBase[p], b0 = bucketBase[p];
+        int b = b0 + bucketOf(x, bucketBase[p + 1] - b0);
+        int i = (s0 + slotOf(x, displacements[b], slotBase[p + 1] - s0)) << 1;
+        Object[] tab = table;
+        Object k = tab[i];
+        if (k == key || (k != null && key.equals(k)))
+            return (V)tab[i + 1];
+        return (overflowHashes.length == 0) ? null : (V)getOverflow(h, key, null);
+    }
+
+    /**
+     * 在溢出区里二分查找
+     */
+    private Object getOverflow(int h, Object key, Object missing) {
+        int[] oh = overflowHashes;
+        int lo = 0, hi = oh.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (oh[mid] < h)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        for (; lo < oh.length && oh[lo] == h; lo++) {
+            Object k = overflow[lo << 1];
+            if (k == key || key.equals(k))
+                return overflow[(lo << 1) + 1];
+        }
+        return missing;
+    }
+
+    public boolean containsKey(Object key) {
+        if (key == null)
+            return hasNullKey;
+        int h = keyHash(key);
+        long x = mix64(h);
+        int p = partitionOf(x, partitionBits);
+        int s0 = slotBase[p], b0 = bucketBase[p];
+        int b = b0 + bucketOf(x, bucketBase[p + 1] - b0);
+        Object k = table[(s0 + slotOf(x, displacements[b], slotBase[p + 1] - s0)) << 1];
+        if (k == key || (k != null && key.equals(k)))
+            return true;
+        return overflowHashes.length != 0 && getOverflow(h, key, table) != table;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        if (action == null)
+            throw new NullPointerException();
+        if (hasNullKey)
+            action.accept(null, nullValue);
+        Object[] tab = table;
+        for (int i = 0; i < tab.length; i += 2) {
+            if (tab[i] != null)
+                action.accept((K)tab[i], (V)tab[i + 1]);
+        }
+        for (int i = 0; i < overflow.length; i += 2)
+            action.accept((K)overflow[i], (V)overflow[i + 1]);
+    }
+}
@@ -1,6 +1,20 @@
 package org.example.hashmap;
 
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 public class DemoHashMap<K, V> {
 
@@ -15,6 +29,24 @@ public class DemoHashMap<K, V> {
     // 最大容量
     static final int MAXIMUM_CAPACITY = 1 << 30;
 
+    // 链表长度超过这个值时转成红黑树
+    static final int TREEIFY_THRESHOLD = 8;
+
+    // 扩容拆分后红黑树节点数不超过这个值时退化成链表
+    static final int UNTREEIFY_THRESHOLD = 6;
+
+    // 数组长度小于64时优先扩容，而不是树化
+    static final int MIN_TREEIFY_CAPACITY = 64;
+
+    // 渐进式扩容时，每次操作最多迁移这么多个非空槽
+    static final int REHASH_STEP = 4;
+
+    // 渐进式扩容时，每次操作最多检查这么多个槽，避免连续的空槽让一次操作变慢
+    static final int REHASH_MAX_VISITS = REHASH_STEP * 10;
+
+    // 数组长度小于这个值时一次扩容完，表很小时一次迁移也很快
+    static final int MIN_INCREMENTAL_CAPACITY = 1 << 10;
+
     // hashmap的键值对数量
     transient int size;
 
@@ -28,8 +60,78 @@ public class DemoHashMap<K, V> {
     // 节点数组
     transient DemoNode<K,V>[] table;
 
+    // 随机哈希种子，为null时用hash(key)
+    final transient DemoHashSeed hashSeed;
+
+    // 是否渐进式扩容
+    final boolean incrementalResize;
+
+    // 渐进式扩容期间的旧数组，迁移完置为null
+    // 旧数组的槽迁移完就置为null，所以旧槽不为null时key只可能在旧槽里，否则只可能在table里
+    transient DemoNode<K,V>[] oldTable;
+
+    // 旧数组下一个要顺序迁移的槽，之前的都已经迁移过
+    transient int rehashIndex;
+
+    // 视图，第一次用到时创建
+    transient Set<K> keySet;
+    transient Collection<V> values;
+    transient Set<Map.Entry<K,V>> entrySet;
+
     public DemoHashMap() {
+        this(false, false);
+    }
+
+    private DemoHashMap(boolean seededHash, boolean incrementalResize) {
         this.loadFactor = DEFAULT_LOAD_FACTOR;
+        this.hashSeed = seededHash ? new DemoHashSeed() : null;
+        this.incrementalResize = incrementalResize;
+    }
+
+    /**
+     * 每个实例生成随机种子参与计算哈希，
+     * 外部可控的String/byte[]类型key不能再被构造成集中到同一个槽里，见DemoHashSeed
+     */
+    public static <K,V> DemoHashMap<K,V> seeded() {
+        return new DemoHashMap<>(true, false);
+    }
+
+    /**
+     * 扩容不一次迁移完，新旧两个数组同时存在，之后每次put/remove迁移几个槽，类似Redis的渐进式rehash，
+     * 大map扩容时单次操作不会卡住很久；代价是迁移期间多占一个旧数组，每次操作多一次旧槽检查
+     *
+     * get/containsKey只读，不推进迁移，所以只读不写时旧数组会一直留着；
+     * 遍历(迭代器、forEach、spliterator、游标)之前会先把剩下的槽迁移完，这一步不改变modCount
+     */
+    public static <K,V> DemoHashMap<K,V> incremental() {
+        return new DemoHashMap<>(false, true);
+    }
+
+    /**
+     * 同时使用seeded()的随机种子和incremental()的渐进式扩容
+     */
+    public static <K,V> DemoHashMap<K,V> seededIncremental() {
+        return new DemoHashMap<>(true, true);
+    }
+
+    /**
+     * @param initialCapacity 初始容量，第一次put时按不小于它的2的幂建数组
+     */
+    public DemoHashMap(int initialCapacity) {
+        this(false, false);
+        if (initialCapacity < 0)
+            throw new IllegalArgumentException("Illegal initial capacity: " +
+                    initialCapacity);
+        // 数组还没建，resize时把threshold当作初始容量
+        this.threshold = tableSizeFor(initialCapacity);
+    }
+
+    /**
+     * 不小于cap的最小2的幂
+     */
+    static final int tableSizeFor(int cap) {
+        int n = -1 >>> Integer.numberOfLeadingZeros(cap - 1);
+        return (n < 0) ? 1 : (n >= MAXIMUM_CAPACITY) ? MAXIMUM_CAPACITY : n + 1;
     }
 
     /**
@@ -37,7 +139,7 @@ public class DemoHashMap<K, V> {
      * @param <K>
      * @param <V>
      */
-    static class DemoNode<K,V> {
+    static class DemoNode<K,V> implements Map.Entry<K,V> {
 
         final int hash;
         final K key;
@@ -60,27 +162,78 @@ public class DemoHashMap<K, V> {
             this.value = value;
             this.next = next;
         }
+
+        public final V setValue(V newValue) {
+            V oldValue = value;
+            value = newValue;
+            return oldValue;
+        }
+
+        public final int hashCode() {
+            return Objects.hashCode(key) ^ Objects.hashCode(value);
+        }
+
+        public final boolean equals(Object o) {
+            if (o == this)
+                return true;
+            if (o instanceof Map.Entry) {
+                Map.Entry<?,?> e = (Map.Entry<?,?>)o;
+                return Objects.equals(key, e.getKey()) &&
+                        Objects.equals(value, e.getValue());
+            }
+            return false;
+        }
+
+        public final String toString() {
+            return key + "=" + value;
+        }
     }
 
     DemoNode<K,V> newNode(int hash, K key, V value, DemoNode<K,V> next) {
         return new DemoNode<>(hash, key, value, next);
     }
 
+    // 树节点退化成链表节点
+    DemoNode<K,V> replacementNode(DemoNode<K,V> p, DemoNode<K,V> next) {
+        return new DemoNode<>(p.hash, p.key, p.value, next);
+    }
+
+    TreeNode<K,V> newTreeNode(int hash, K key, V value, DemoNode<K,V> next) {
+        return new TreeNode<>(hash, key, value, next);
+    }
+
+    // 链表节点转成树节点
+    TreeNode<K,V> replacementTreeNode(DemoNode<K,V> p, DemoNode<K,V> next) {
+        return new TreeNode<>(p.hash, p.key, p.value, next);
+    }
+
     static final int hash(Object key) {
         int h;
         // 高16位和低16位异或，减少hash碰撞
         return (key == null) ? 0 : (h = key.hashCode()) ^ (h >>> 16);
     }
 
+    /**
+     * key的哈希值，打开随机种子时用种子代替key.hashCode()
+     */
+    final int keyHash(Object key) {
+        DemoHashSeed seed = hashSeed;
+        int h;
+        return (seed == null || key == null) ? hash(key) : (h = seed.hash(key)) ^ (h >>> 16);
+    }
+
 
     public V put(K key, V value) {
-        return putVal(hash(key), key, value, false);
+        return putVal(keyHash(key), key, value, false);
     }
 
     final V putVal(int hash, K key, V value, boolean onlyIfAbsent) {
         DemoNode<K,V>[] tab;
         DemoNode<K,V> p;
         int n, i;
+        if (oldTable != null)
+            // 渐进式扩容中，先把key所在的旧槽迁移过来，下面只操作新数组
+            rehash(hash);
         if ((tab = table) == null || (n = tab.length) == 0) {
             // 如果table为空，初始化table
             n = (tab = resize()).length;
@@ -97,12 +250,18 @@ public class DemoHashMap<K, V> {
                 // hash相同，且(key相同或key相互equals)
                 // 拿到这个p
                 e = p;
+            } else if (p instanceof TreeNode) {
+                // 红黑树，按树的方式放入
+                e = ((TreeNode<K,V>)p).putTreeVal(this, tab, hash, key, value);
             } else {
                 for (int binCount = 0; ; ++binCount) {
                     // p是前一个节点，e是当前节点
                     if ((e = p.next) == null) {
                         // 如果找不到节点，创建一个新节点
                         p.next = newNode(hash, key, value, null);
+                        if (binCount >= TREEIFY_THRESHOLD - 1)
+                            // 加上头节点，链表长度已经超过阈值，转成红黑树
+                            treeifyBin(tab, hash);
                         break;
                     }
                     if (e.hash == hash &&
@@ -121,6 +280,7 @@ public class DemoHashMap<K, V> {
                 if (!onlyIfAbsent || oldValue == null)
                     // 如果不是onlyIfAbsent，或者oldValue为空，就替换
                     e.value = value;
+                afterNodeAccess(e);
                 // 返回旧值
                 return oldValue;
             }
@@ -131,11 +291,15 @@ public class DemoHashMap<K, V> {
         if (++size > threshold)
             // 超过则扩容
             resize();
+        afterNodeInsertion(true);
         // 因为没有旧值，所以返回null
         return null;
     }
 
     final DemoNode<K,V>[] resize() {
+        // 上一次渐进式扩容还没迁移完，先迁移完
+        finishRehash();
+
         // 拿到原数组
         DemoNode<K,V>[] oldTab = table;
 
@@ -184,75 +348,141 @@ public class DemoHashMap<K, V> {
         // 设置到hashmap中(并发情况下，可能会导致其他get操作拿不到值)
         table = newTab;
 
-        // 准备开始复制
         if (oldTab != null) {
-            for (int j = 0; j < oldCap; ++j) {
-                // 遍历原数组
-                DemoNode<K,V> e;
-                if ((e = oldTab[j]) != null) {
-                    // 如果原数组的元素不为空，准备复制
-
-                    // 将原数组的元素置为null，方便回收原数组
-                    oldTab[j] = null;
-                    if (e.next == null) {
-                        // e如果是最后一个节点，直接复制到新数组中
-                        newTab[e.hash & (newCap - 1)] = e;
-                    } else {
-                        // 将老节点下的所有数据移动到新数组中
-                        // 老数据会一分为二，一半在低位(原数组索引)，一半在高位(新数组相对老数组新增区域)
+            if (incrementalResize && oldCap >= MIN_INCREMENTAL_CAPACITY) {
+                // 渐进式扩容：旧表留着，之后每次put/remove顺带迁移几个槽
+                oldTable = oldTab;
+                rehashIndex = 0;
+                return newTab;
+            }
+            // 准备开始复制
+            for (int j = 0; j < oldCap; ++j)
+                transferBin(oldTab, j, newTab);
+        }
+        return newTab;
+    }
 
-                        // 低位
-                        DemoNode<K,V> loHead = null, loTail = null;
+    /**
+     * 把旧数组第j个槽的节点迁移到新数组，迁移完旧槽置为null
+     */
+    final void transferBin(DemoNode<K,V>[] oldTab, int j, DemoNode<K,V>[] newTab) {
+        int oldCap = oldTab.length;
+        DemoNode<K,V> e;
+        if ((e = oldTab[j]) != null) {
+            // 如果原数组的元素不为空，准备复制
 
-                        // 高位
-                        DemoNode<K,V> hiHead = null, hiTail = null;
-                        DemoNode<K,V> next;
-
-
-                        // 针对链表而言
-                        // 原链表头节点转化为head，尾节点转化为tail
-                        do {
-                            // 拿到e的next
-                            next = e.next;
-                            if ((e.hash & oldCap) == 0) {
-                                // 低位
-                                if (loTail == null)
-                                    loHead = e;
-                                else
-                                    loTail.next = e;
-                                loTail = e;
-                            }
-                            else {
-                                // 高位
-                                if (hiTail == null)
-                                    hiHead = e;
-                                else
-                                    hiTail.next = e;
-                                hiTail = e;
-                            }
-                        } while ((e = next) != null);
+            // 将原数组的元素置为null，方便回收原数组
+            oldTab[j] = null;
+            if (e.next == null) {
+                // e如果是最后一个节点，直接复制到新数组中
+                newTab[e.hash & (newTab.length - 1)] = e;
+            } else if (e instanceof TreeNode) {
+                // 红黑树同样拆成高低两部分，节点少的退化成链表
+                ((TreeNode<K,V>)e).split(this, newTab, j, oldCap);
+            } else {
+                // 将老节点下的所有数据移动到新数组中
+                // 老数据会一分为二，一半在低位(原数组索引)，一半在高位(新数组相对老数组新增区域)
 
-                        if (loTail != null) {
-                            // 赋值低位
-                            loTail.next = null;
-                            newTab[j] = loHead;
-                        }
-                        if (hiTail != null) {
-                            // 赋值高位
-                            hiTail.next = null;
-                            newTab[j + oldCap] = hiHead;
-                        }
+                // 低位
+                DemoNode<K,V> loHead = null, loTail = null;
+
+                // 高位
+                DemoNode<K,V> hiHead = null, hiTail = null;
+                DemoNode<K,V> next;
+
+
+                // 针对链表而言
+                // 原链表头节点转化为head，尾节点转化为tail
+                do {
+                    // 拿到e的next
+                    next = e.next;
+                    if ((e.hash & oldCap) == 0) {
+                        // 低位
+                        if (loTail == null)
+                            loHead = e;
+                        else
+                            loTail.next = e;
+                        loTail = e;
+                    }
+                    else {
+                        // 高位
+                        if (hiTail == null)
+                            hiHead = e;
+                        else
+                            hiTail.next = e;
+                        hiTail = e;
                     }
+                } while ((e = next) != null);
 
+                if (loTail != null) {
+                    // 赋值低位
+                    loTail.next = null;
+                    newTab[j] = loHead;
+                }
+                if (hiTail != null) {
+                    // 赋值高位
+                    hiTail.next = null;
+                    newTab[j + oldCap] = hiHead;
                 }
             }
+
         }
-        return newTab;
+    }
+
+    /**
+     * 渐进式扩容的一步：按顺序迁移最多REHASH_STEP个非空槽，全部迁移完丢掉旧数组
+     */
+    final void rehashStep() {
+        DemoNode<K,V>[] old = oldTable, tab = table;
+        int n = old.length, i = rehashIndex;
+        for (int moved = 0, visits = 0;
+             i < n && moved < REHASH_STEP && visits < REHASH_MAX_VISITS; ++i, ++visits) {
+            if (old[i] != null) {
+                transferBin(old, i, tab);
+                ++moved;
+            }
+        }
+        if ((rehashIndex = i) >= n)
+            oldTable = null;
+    }
+
+    /**
+     * put/remove前调用：走一步迁移，再把hash所在的旧槽迁移过来，之后这个key只会在新数组里
+     */
+    final void rehash(int hash) {
+        rehashStep();
+        DemoNode<K,V>[] old;
+        int j;
+        if ((old = oldTable) != null && old[j = hash & (old.length - 1)] != null)
+            transferBin(old, j, table);
+    }
+
+    /**
+     * 把剩下的槽全部迁移完，遍历和再次扩容之前调用
+     */
+    final void finishRehash() {
+        DemoNode<K,V>[] old, tab;
+        if ((old = oldTable) != null) {
+            tab = table;
+            for (int j = rehashIndex; j < old.length; ++j) {
+                if (old[j] != null)
+                    transferBin(old, j, tab);
+            }
+            oldTable = null;
+        }
+    }
+
+    /**
+     * hash所在的旧槽还没迁移时返回旧数组，否则返回新数组
+     */
+    final DemoNode<K,V>[] tableFor(int hash) {
+        DemoNode<K,V>[] old = oldTable;
+        return (old != null && old[hash & (old.length - 1)] != null) ? old : table;
     }
 
     public V get(Object key) {
         DemoNode<K,V> e;
-        return (e = getNode(hash(key), key)) == null ? null : e.value;
+        return (e = getNode(keyHash(key), key)) == null ? null : e.value;
     }
 
     final DemoNode<K,V> getNode(int hash, Object key) {
@@ -260,7 +490,12 @@ public class DemoHashMap<K, V> {
         DemoNode<K,V> first, e;
         int n;
         K k;
-        if ((tab = table) != null && (n = tab.length) > 0 &&
+        if (oldTable != null)
+            // 渐进式扩容中，key所在的旧槽还没迁移就在旧数组里找，查找不推进迁移
+            tab = tableFor(hash);
+        else
+            tab = table;
+        if (tab != null && (n = tab.length) > 0 &&
                 (first = tab[(n - 1) & hash]) != null) {
             // 如果表存在，且存在节点，则开始搜索
             if (first.hash == hash &&
@@ -268,6 +503,9 @@ public class DemoHashMap<K, V> {
                 // 必须hash相等且(key相等或者equals)
                 return first;
             if ((e = first.next) != null) {
+                if (first instanceof TreeNode)
+                    // 红黑树，O(log n)查找
+                    return ((TreeNode<K,V>)first).getTreeNode(hash, key);
                 // 否则，无脑找到最后一个节点，直到找到为止
                 do {
                     if (e.hash == hash &&
@@ -281,14 +519,19 @@ public class DemoHashMap<K, V> {
 
     public V remove(Object key) {
         DemoNode<K,V> e;
-        return (e = removeNode(hash(key), key)) == null ?
+        return (e = removeNode(keyHash(key), key, true)) == null ?
                 null : e.value;
     }
 
-    final DemoNode<K,V> removeNode(int hash, Object key) {
+    /**
+     * @param movable 为false时删除树节点不移动槽上的根节点，迭代器删除时用
+     */
+    final DemoNode<K,V> removeNode(int hash, Object key, boolean movable) {
         DemoNode<K,V>[] tab;
         DemoNode<K,V> p;
         int n, index;
+        if (oldTable != null)
+            rehash(hash);
         if ((tab = table) != null && (n = tab.length) > 0 &&
                 (p = tab[index = (n - 1) & hash]) != null) {
             // 如果表存在，且存在节点，则开始搜索
@@ -302,18 +545,25 @@ public class DemoHashMap<K, V> {
                     ((k = p.key) == key || (key != null && key.equals(k)))) {
                 node = p;
             } else if ((e = p.next) != null) {
-                do {
-                    if (e.hash == hash &&
-                            ((k = e.key) == key ||
-                                    (key != null && key.equals(k)))) {
-                        node = e;
-                        break;
-                    }
-                    p = e;
-                } while ((e = e.next) != null);
+                if (p instanceof TreeNode)
+                    node = ((TreeNode<K,V>)p).getTreeNode(hash, key);
+                else {
+                    do {
+                        if (e.hash == hash &&
+                                ((k = e.key) == key ||
+                                        (key != null && key.equals(k)))) {
+                            node = e;
+                            break;
+                        }
+                        p = e;
+                    } while ((e = e.next) != null);
+                }
             }
             if (node != null) {
-                if (node == p)
+                if (node instanceof TreeNode)
+                    // 从红黑树里摘掉，节点太少时退化成链表
+                    ((TreeNode<K,V>)node).removeTreeNode(this, tab, movable);
+                else if (node == p)
                     // 如果node是第一个节点，直接将node.next赋值给tab[index]
                     tab[index] = node.next;
                 else
@@ -321,6 +571,7 @@ public class DemoHashMap<K, V> {
                     p.next = node.next;
                 ++modCount;
                 --size;
+                afterNodeRemoval(node);
                 return node;
             }
         }
@@ -328,5 +579,1148 @@ public class DemoHashMap<K, V> {
         return null;
     }
 
+    // 给DemoLinkedHashMap维护链表顺序的回调，这里什么都不做
+    void afterNodeAccess(DemoNode<K,V> p) { }
+    void afterNodeInsertion(boolean evict) { }
+    void afterNodeRemoval(DemoNode<K,V> p) { }
+
+    public boolean containsKey(Object key) {
+        return getNode(keyHash(key), key) != null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        DemoNode<K,V>[] tab;
+        ++modCount;
+        oldTable = null;
+        if ((tab = table) != null && size > 0) {
+            size = 0;
+            for (int i = 0; i < tab.length; ++i)
+                tab[i] = null;
+        }
+    }
+
+    /**
+     * 生成一个只读的副本，用完美哈希定位，适合构造一次之后大量读取的查找表，见DemoFrozenHashMap
+     * 元素多时在ForkJoinPool里并行构造；之后对这个map的修改不影响返回的副本
+     */
+    public DemoFrozenHashMap<K,V> freeze() {
+        finishRehash();
+        return new DemoFrozenHashMap<>(table, size, hashSeed);
+    }
+
+    /**
+     * 直接按槽遍历，不创建迭代器；遍历期间map被修改时抛ConcurrentModificationException
+     */
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        DemoNode<K,V>[] tab;
+        if (action == null)
+            throw new NullPointerException();
+        finishRehash();
+        if (size > 0 && (tab = table) != null) {
+            int mc = modCount;
+            for (DemoNode<K,V> e : tab) {
+                for (; e != null; e = e.next)
+                    action.accept(e.key, e.value);
+            }
+            if (modCount != mc)
+                throw new ConcurrentModificationException();
+        }
+    }
+
+    /**
+     * 以下三个视图都直接读map，不复制元素
+     * 迭代器和spliterator是fail-fast的：创建之后map被别的途径修改(modCount变化)，
+     * 下一次访问抛ConcurrentModificationException；通过迭代器自己的remove删除不算
+     */
+    public Set<K> keySet() {
+        Set<K> ks = keySet;
+        if (ks == null)
+            keySet = ks = new KeySet();
+        return ks;
+    }
+
+    public Collection<V> values() {
+        Collection<V> vs = values;
+        if (vs == null)
+            values = vs = new Values();
+        return vs;
+    }
+
+    public Set<Map.Entry<K,V>> entrySet() {
+        Set<Map.Entry<K,V>> es = entrySet;
+        if (es == null)
+            entrySet = es = new EntrySet();
+        return es;
+    }
+
+    final class KeySet extends AbstractSet<K> {
+        public final int size()                 { return size; }
+        public final void clear()               { DemoHashMap.this.clear(); }
+        public final Iterator<K> iterator()     { return new KeyIterator(); }
+        public final boolean contains(Object o) { return containsKey(o); }
+        public final boolean remove(Object key) {
+            return removeNode(keyHash(key), key, true) != null;
+        }
+        public final Spliterator<K> spliterator() {
+            return new KeySpliterator<>(DemoHashMap.this, 0, -1, 0, 0);
+        }
+        public final void forEach(Consumer<? super K> action) {
+            if (action == null)
+                throw new NullPointerException();
+            DemoHashMap.this.forEach((k, v) -> action.accept(k));
+        }
+    }
+
+    final class Values extends AbstractCollection<V> {
+        public final int size()                 { return size; }
+        public final void clear()               { DemoHashMap.this.clear(); }
+        public final Iterator<V> iterator()     { return new ValueIterator(); }
+        public final Spliterator<V> spliterator() {
+            return new ValueSpliterator<>(DemoHashMap.this, 0, -1, 0, 0);
+        }
+        public final void forEach(Consumer<? super V> action) {
+            if (action == null)
+                throw new NullPointerException();
+            DemoHashMap.this.forEach((k, v) -> action.accept(v));
+        }
+    }
+
+    final class EntrySet extends AbstractSet<Map.Entry<K,V>> {
+        public final int size()                 { return size; }
+        public final void clear()               { DemoHashMap.this.clear(); }
+        public final Iterator<Map.Entry<K,V>> iterator() {
+            return new EntryIterator();
+        }
+        public final boolean contains(Object o) {
+            if (!(o instanceof Map.Entry))
+                return false;
+            Map.Entry<?,?> e = (Map.Entry<?,?>)o;
+            Object key = e.getKey();
+            DemoNode<K,V> candidate = getNode(keyHash(key), key);
+            return candidate != null && candidate.equals(e);
+        }
+        public final boolean remove(Object o) {
+            // key和value都相等才删除
+            if (contains(o)) {
+                Object key = ((Map.Entry<?,?>)o).getKey();
+                return removeNode(keyHash(key), key, true) != null;
+            }
+            return false;
+        }
+        public final Spliterator<Map.Entry<K,V>> spliterator() {
+            return new EntrySpliterator<>(DemoHashMap.this, 0, -1, 0, 0);
+        }
+        public final void forEach(Consumer<? super Map.Entry<K,V>> action) {
+            DemoNode<K,V>[] tab;
+            if (action == null)
+                throw new NullPointerException();
+            finishRehash();
+            if (size > 0 && (tab = table) != null) {
+                int mc = modCount;
+                for (DemoNode<K,V> e : tab) {
+                    for (; e != null; e = e.next)
+                        action.accept(e);
+                }
+                if (modCount != mc)
+                    throw new ConcurrentModificationException();
+            }
+        }
+    }
+
+    /**
+     * 按槽的顺序遍历，next总是指向下一个要返回的节点
+     */
+    abstract class HashIterator {
+        DemoNode<K,V> next;        // next entry to return
+        DemoNode<K,V> current;     // current entry
+        int expectedModCount;  // for fast-fail
+        int index;             // current slot
+
+        HashIterator() {
+            finishRehash();
+            expectedModCount = modCount;
+            DemoNode<K,V>[] t = table;
+            current = next = null;
+            index = 0;
+            if (t != null && size > 0) { // advance to first entry
+                do {} while (index < t.length && (next = t[index++]) == null);
+            }
+        }
+
+        public final boolean hasNext() {
+            return next != null;
+        }
+
+        final DemoNode<K,V> nextNode() {
+            DemoNode<K,V>[] t;
+            DemoNode<K,V> e = next;
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            if (e == null)
+                throw new NoSuchElementException();
+            if ((next = (current = e).next) == null && (t = table) != null) {
+                do {} while (index < t.length && (next = t[index++]) == null);
+            }
+            return e;
+        }
+
+        public final void remove() {
+            DemoNode<K,V> p = current;
+            if (p == null)
+                throw new IllegalStateException();
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            current = null;
+            // 不移动树根，也不退化成链表，next指向的节点还在原来的链表上
+            removeNode(p.hash, p.key, false);
+            expectedModCount = modCount;
+        }
+    }
+
+    final class KeyIterator extends HashIterator
+            implements Iterator<K> {
+        public final K next() { return nextNode().key; }
+    }
+
+    final class ValueIterator extends HashIterator
+            implements Iterator<V> {
+        public final V next() { return nextNode().value; }
+    }
+
+    final class EntryIterator extends HashIterator
+            implements Iterator<Map.Entry<K,V>> {
+        public final Map.Entry<K,V> next() { return nextNode(); }
+    }
+
+    /**
+     * 返回一个游标，热点循环里代替迭代器，用法：
+     * <pre>
+     * DemoHashMap.Cursor&lt;K,V&gt; c = map.cursor();
+     * while (c.advance())
+     *     use(c.key(), c.value());
+     * </pre>
+     * 游标可以用reset()重新从头开始，反复遍历只需要一个对象
+     */
+    public Cursor<K,V> cursor() {
+        return new Cursor<>(this);
+    }
+
+    public static class Cursor<K,V> {
+        final DemoHashMap<K,V> map;
+        DemoNode<K,V>[] tab;
+        DemoNode<K,V> current;
+        int index;
+        int expectedModCount;
+
+        Cursor(DemoHashMap<K,V> map) {
+            this.map = map;
+            reset();
+        }
+
+        /**
+         * 回到第一个元素之前，之后map的修改不再影响这个游标
+         */
+        public Cursor<K,V> reset() {
+            map.finishRehash();
+            tab = map.table;
+            current = null;
+            index = 0;
+            expectedModCount = map.modCount;
+            return this;
+        }
+
+        /**
+         * 移到下一个元素，没有了返回false
+         */
+        public boolean advance() {
+            if (map.modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            DemoNode<K,V> e = current;
+            DemoNode<K,V>[] t = tab;
+            if (e != null)
+                e = e.next;
+            while (e == null && t != null && index < t.length)
+                e = t[index++];
+            return (current = e) != null;
+        }
+
+        public K key() {
+            return node().key;
+        }
+
+        public V value() {
+            return node().value;
+        }
+
+        /**
+         * 替换当前元素的value，不算结构修改
+         */
+        public V setValue(V value) {
+            return node().setValue(value);
+        }
+
+        private DemoNode<K,V> node() {
+            DemoNode<K,V> e = current;
+            if (e == null)
+                throw new IllegalStateException();
+            return e;
+        }
+    }
+
+    /**
+     * 按槽的下标范围拆分：[index, fence)，fence为-1表示第一次使用时才取table
+     * 拆分时取一半槽，元素数est也粗略地对半分
+     */
+    static class DemoHashMapSpliterator<K,V> {
+        final DemoHashMap<K,V> map;
+        DemoNode<K,V> current;      // current node
+        int index;                  // current index, modified on advance/split
+        int fence;                  // one past last index
+        int est;                    // size estimate
+        int expectedModCount;       // for comodification checks
 
+        DemoHashMapSpliterator(DemoHashMap<K,V> m, int origin,
+                               int fence, int est,
+                               int expectedModCount) {
+            this.map = m;
+            this.index = origin;
+            this.fence = fence;
+            this.est = est;
+            this.expectedModCount = expectedModCount;
+        }
+
+        final int getFence() { // initialize fence and size on first use
+            int hi;
+            if ((hi = fence) < 0) {
+                DemoHashMap<K,V> m = map;
+                m.finishRehash();
+                est = m.size;
+                expectedModCount = m.modCount;
+                DemoNode<K,V>[] tab = m.table;
+                hi = fence = (tab == null) ? 0 : tab.length;
+            }
+            return hi;
+        }
+
+        public final long estimateSize() {
+            getFence(); // force init
+            return (long) est;
+        }
+
+        /**
+         * 取当前槽范围内的下一个节点，没有了返回null
+         */
+        final DemoNode<K,V> advanceNode() {
+            DemoNode<K,V>[] tab = map.table;
+            int hi;
+            if (tab != null && tab.length >= (hi = getFence()) && index >= 0) {
+                while (current != null || index < hi) {
+                    if (current == null)
+                        current = tab[index++];
+                    else {
+                        DemoNode<K,V> e = current;
+                        current = current.next;
+                        return e;
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * 剩下的节点逐个交给action，结束后再检查一次modCount
+         */
+        final void forEachNode(Consumer<? super DemoNode<K,V>> action) {
+            int i, hi, mc;
+            DemoHashMap<K,V> m = map;
+            if (fence < 0)
+                m.finishRehash();
+            DemoNode<K,V>[] tab = m.table;
+            if ((hi = fence) < 0) {
+                mc = expectedModCount = m.modCount;
+                hi = fence = (tab == null) ? 0 : tab.length;
+            }
+            else
+                mc = expectedModCount;
+            if (tab != null && tab.length >= hi &&
+                    (i = index) >= 0 && (i < (index = hi) || current != null)) {
+                DemoNode<K,V> p = current;
+                current = null;
+                do {
+                    if (p == null)
+                        p = tab[i++];
+                    else {
+                        action.accept(p);
+                        p = p.next;
+                    }
+                } while (p != null || i < hi);
+                if (m.modCount != mc)
+                    throw new ConcurrentModificationException();
+            }
+        }
+
+        final int splitPoint() {
+            int hi = getFence(), lo = index, mid = (lo + hi) >>> 1;
+            return (lo >= mid || current != null) ? -1 : mid;
+        }
+    }
+
+    static final class KeySpliterator<K,V>
+            extends DemoHashMapSpliterator<K,V>
+            implements Spliterator<K> {
+        KeySpliterator(DemoHashMap<K,V> m, int origin, int fence, int est,
+                       int expectedModCount) {
+            super(m, origin, fence, est, expectedModCount);
+        }
+
+        public KeySpliterator<K,V> trySplit() {
+            int lo = index, mid = splitPoint();
+            return (mid < 0) ? null :
+                    new KeySpliterator<>(map, lo, index = mid, est >>>= 1,
+                            expectedModCount);
+        }
+
+        public void forEachRemaining(Consumer<? super K> action) {
+            if (action == null)
+                throw new NullPointerException();
+            forEachNode(e -> action.accept(e.key));
+        }
+
+        public boolean tryAdvance(Consumer<? super K> action) {
+            if (action == null)
+                throw new NullPointerException();
+            DemoNode<K,V> e = advanceNode();
+            if (e == null)
+                return false;
+            action.accept(e.key);
+            if (map.modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            return true;
+        }
+
+        public int characteristics() {
+            return (fence < 0 || est == map.size ? Spliterator.SIZED : 0) |
+                    Spliterator.DISTINCT;
+        }
+    }
+
+    static final class ValueSpliterator<K,V>
+            extends DemoHashMapSpliterator<K,V>
+            implements Spliterator<V> {
+        ValueSpliterator(DemoHashMap<K,V> m, int origin, int fence, int est,
+                         int expectedModCount) {
+            super(m, origin, fence, est, expectedModCount);
+        }
+
+        public ValueSpliterator<K,V> trySplit() {
+            int lo = index, mid = splitPoint();
+            return (mid < 0) ? null :
+                    new ValueSpliterator<>(map, lo, index = mid, est >>>= 1,
+                            expectedModCount);
+        }
+
+        public void forEachRemaining(Consumer<? super V> action) {
+            if (action == null)
+                throw new NullPointerException();
+            forEachNode(e -> action.accept(e.value));
+        }
+
+        public boolean tryAdvance(Consumer<? super V> action) {
+            if (action == null)
+                throw new NullPointerException();
+            DemoNode<K,V> e = advanceNode();
+            if (e == null)
+                return false;
+            action.accept(e.value);
+            if (map.modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            return true;
+        }
+
+        public int characteristics() {
+            return (fence < 0 || est == map.size ? Spliterator.SIZED : 0);
+        }
+    }
+
+    static final class EntrySpliterator<K,V>
+            extends DemoHashMapSpliterator<K,V>
+            implements Spliterator<Map.Entry<K,V>> {
+        EntrySpliterator(DemoHashMap<K,V> m, int origin, int fence, int est,
+                         int expectedModCount) {
+            super(m, origin, fence, est, expectedModCount);
+        }
+
+        public EntrySpliterator<K,V> trySplit() {
+            int lo = index, mid = splitPoint();
+            return (mid < 0) ? null :
+                    new EntrySpliterator<>(map, lo, index = mid, est >>>= 1,
+                            expectedModCount);
+        }
+
+        public void forEachRemaining(Consumer<? super Map.Entry<K,V>> action) {
+            if (action == null)
+                throw new NullPointerException();
+            forEachNode(action);
+        }
+
+        public boolean tryAdvance(Consumer<? super Map.Entry<K,V>> action) {
+            if (action == null)
+                throw new NullPointerException();
+            DemoNode<K,V> e = advanceNode();
+            if (e == null)
+                return false;
+            action.accept(e);
+            if (map.modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            return true;
+        }
+
+        public int characteristics() {
+            return (fence < 0 || est == map.size ? Spliterator.SIZED : 0) |
+                    Spliterator.DISTINCT;
+        }
+    }
+
+    /**
+     * 把hash所在槽的链表转成红黑树，数组太小时改为扩容
+     */
+    final void treeifyBin(DemoNode<K,V>[] tab, int hash) {
+        int n, index;
+        DemoNode<K,V> e;
+        if (tab == null || (n = tab.length) < MIN_TREEIFY_CAPACITY)
+            // 数组还小，冲突多半是容量不够，先扩容
+            resize();
+        else if ((e = tab[index = (n - 1) & hash]) != null) {
+            // 先按原顺序串成TreeNode双向链表，再建树
+            TreeNode<K,V> hd = null, tl = null;
+            do {
+                TreeNode<K,V> p = replacementTreeNode(e, null);
+                if (tl == null)
+                    hd = p;
+                else {
+                    p.prev = tl;
+                    tl.next = p;
+                }
+                tl = p;
+            } while ((e = e.next) != null);
+            if ((tab[index] = hd) != null)
+                hd.treeify(tab);
+        }
+    }
+
+    /**
+     * x实现了Comparable<x的类型>时返回x的类型，否则返回null
+     */
+    static Class<?> comparableClassFor(Object x) {
+        if (x instanceof Comparable) {
+            Class<?> c; Type[] ts, as; Type t; ParameterizedType p;
+            if ((c = x.getClass()) == String.class) // bypass checks
+                return c;
+            if ((ts = c.getGenericInterfaces()) != null) {
+                for (int i = 0; i < ts.length; ++i) {
+                    if (((t = ts[i]) instanceof ParameterizedType) &&
+                            ((p = (ParameterizedType)t).getRawType() ==
+                                    Comparable.class) &&
+                            (as = p.getActualTypeArguments()) != null &&
+                            as.length == 1 && as[0] == c) // type arg is c
+                        return c;
+                }
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings({"rawtypes","unchecked"}) // for cast to Comparable
+    static int compareComparables(Class<?> kc, Object k, Object x) {
+        return (x == null || x.getClass() != kc ? 0 :
+                ((Comparable)k).compareTo(x));
+    }
+
+    /**
+     * 红黑树节点
+     * 继承DemoLinkedHashMap.Entry，这样同一种树节点在DemoLinkedHashMap里也能用
+     * 树节点同时还按插入顺序串成next/prev双向链表，槽上放的始终是树根，
+     * 遍历、拆分和退化成链表都走这条链表
+     * 排序依据：先比hash，hash相同再比Comparable，都比不出来用tieBreakOrder
+     */
+    static final class TreeNode<K,V> extends DemoLinkedHashMap.Entry<K,V> {
+        TreeNode<K,V> parent;  // red-black tree links
+        TreeNode<K,V> left;
+        TreeNode<K,V> right;
+        TreeNode<K,V> prev;    // needed to unlink next upon deletion
+        boolean red;
+
+        TreeNode(int hash, K key, V val, DemoNode<K,V> next) {
+            super(hash, key, val, next);
+        }
+
+        final TreeNode<K,V> root() {
+            for (TreeNode<K,V> r = this, p;;) {
+                if ((p = r.parent) == null)
+                    return r;
+                r = p;
+            }
+        }
+
+        /**
+         * 保证树根是槽上的第一个节点
+         */
+        static <K,V> void moveRootToFront(DemoNode<K,V>[] tab, TreeNode<K,V> root) {
+            int n;
+            if (root != null && tab != null && (n = tab.length) > 0) {
+                int index = (n - 1) & root.hash;
+                TreeNode<K,V> first = (TreeNode<K,V>)tab[index];
+                if (root != first) {
+                    // 把root从链表中间摘出来，放到链表头
+                    DemoNode<K,V> rn;
+                    tab[index] = root;
+                    TreeNode<K,V> rp = root.prev;
+                    if ((rn = root.next) != null)
+                        ((TreeNode<K,V>)rn).prev = rp;
+                    if (rp != null)
+                        rp.next = rn;
+                    if (first != null)
+                        first.prev = root;
+                    root.next = first;
+                    root.prev = null;
+                }
+                assert checkInvariants(root);
+            }
+        }
+
+        /**
+         * 从当前节点开始在子树里查找
+         */
+        final TreeNode<K,V> find(int h, Object k, Class<?> kc) {
+            TreeNode<K,V> p = this;
+            do {
+                int ph, dir; K pk;
+                TreeNode<K,V> pl = p.left, pr = p.right, q;
+                // 先比hash，hash相同再比Comparable，都比不出来就两边都找
+                if ((ph = p.hash) > h)
+                    p = pl;
+                else if (ph < h)
+                    p = pr;
+                else if ((pk = p.key) == k || (k != null && k.equals(pk)))
+                    return p;
+                else if (pl == null)
+                    p = pr;
+                else if (pr == null)
+                    p = pl;
+                else if ((kc != null ||
+                        (kc = comparableClassFor(k)) != null) &&
+                        (dir = compareComparables(kc, k, pk)) != 0)
+                    p = (dir < 0) ? pl : pr;
+                else if ((q = pr.find(h, k, kc)) != null)
+                    return q;
+                else
+                    p = pl;
+            } while (p != null);
+            return null;
+        }
+
+        final TreeNode<K,V> getTreeNode(int h, Object k) {
+            return ((parent != null) ? root() : this).find(h, k, null);
+        }
+
+        /**
+         * hash相同且不可比较时，用类名和identityHashCode决定插入方向，保证树的一致性
+         */
+        static int tieBreakOrder(Object a, Object b) {
+            int d;
+            if (a == null || b == null ||
+                    (d = a.getClass().getName().
+                            compareTo(b.getClass().getName())) == 0)
+                d = (System.identityHashCode(a) <= System.identityHashCode(b) ?
+                        -1 : 1);
+            return d;
+        }
+
+        /**
+         * 以当前节点为头的TreeNode链表建树
+         */
+        final void treeify(DemoNode<K,V>[] tab) {
+            TreeNode<K,V> root = null;
+            for (TreeNode<K,V> x = this, next; x != null; x = next) {
+                next = (TreeNode<K,V>)x.next;
+                x.left = x.right = null;
+                if (root == null) {
+                    x.parent = null;
+                    x.red = false;
+                    root = x;
+                }
+                else {
+                    K k = x.key;
+                    int h = x.hash;
+                    Class<?> kc = null;
+                    for (TreeNode<K,V> p = root;;) {
+                        int dir, ph;
+                        K pk = p.key;
+                        if ((ph = p.hash) > h)
+                            dir = -1;
+                        else if (ph < h)
+                            dir = 1;
+                        else if ((kc == null &&
+                                (kc = comparableClassFor(k)) == null) ||
+                                (dir = compareComparables(kc, k, pk)) == 0)
+                            dir = tieBreakOrder(k, pk);
+
+                        TreeNode<K,V> xp = p;
+                        if ((p = (dir <= 0) ? p.left : p.right) == null) {
+                            x.parent = xp;
+                            if (dir <= 0)
+                                xp.left = x;
+                            else
+                                xp.right = x;
+                            root = balanceInsertion(root, x);
+                            break;
+                        }
+                    }
+                }
+            }
+            moveRootToFront(tab, root);
+        }
+
+        /**
+         * 树节点链表退化成普通链表
+         */
+        final DemoNode<K,V> untreeify(DemoHashMap<K,V> map) {
+            DemoNode<K,V> hd = null, tl = null;
+            for (DemoNode<K,V> q = this; q != null; q = q.next) {
+                DemoNode<K,V> p = map.replacementNode(q, null);
+                if (tl == null)
+                    hd = p;
+                else
+                    tl.next = p;
+                tl = p;
+            }
+            return hd;
+        }
+
+        /**
+         * 放入树中，key已存在时返回已有节点，否则插入新节点并返回null
+         */
+        final TreeNode<K,V> putTreeVal(DemoHashMap<K,V> map, DemoNode<K,V>[] tab,
+                                       int h, K k, V v) {
+            Class<?> kc = null;
+            boolean searched = false;
+            TreeNode<K,V> root = (parent != null) ? root() : this;
+            for (TreeNode<K,V> p = root;;) {
+                int dir, ph; K pk;
+                if ((ph = p.hash) > h)
+                    dir = -1;
+                else if (ph < h)
+                    dir = 1;
+                else if ((pk = p.key) == k || (k != null && k.equals(pk)))
+                    return p;
+                else if ((kc == null &&
+                        (kc = comparableClassFor(k)) == null) ||
+                        (dir = compareComparables(kc, k, pk)) == 0) {
+                    // 比不出大小，key可能在左右任一子树里，先完整找一遍
+                    if (!searched) {
+                        TreeNode<K,V> q, ch;
+                        searched = true;
+                        if (((ch = p.left) != null &&
+                                (q = ch.find(h, k, kc)) != null) ||
+                                ((ch = p.right) != null &&
+                                        (q = ch.find(h, k, kc)) != null))
+                            return q;
+                    }
+                    dir = tieBreakOrder(k, pk);
+                }
+
+                TreeNode<K,V> xp = p;
+                if ((p = (dir <= 0) ? p.left : p.right) == null) {
+                    // 新节点在链表里紧跟在父节点后面
+                    DemoNode<K,V> xpn = xp.next;
+                    TreeNode<K,V> x = map.newTreeNode(h, k, v, xpn);
+                    if (dir <= 0)
+                        xp.left = x;
+                    else
+                        xp.right = x;
+                    xp.next = x;
+                    x.parent = x.prev = xp;
+                    if (xpn != null)
+                        ((TreeNode<K,V>)xpn).prev = x;
+                    moveRootToFront(tab, balanceInsertion(root, x));
+                    return null;
+                }
+            }
+        }
+
+        /**
+         * 删除当前节点，调用前要确认当前节点在树里
+         * 树太小时退化成链表；movable为false时不移动槽上的根节点
+         */
+        final void removeTreeNode(DemoHashMap<K,V> map, DemoNode<K,V>[] tab,
+                                  boolean movable) {
+            int n;
+            if (tab == null || (n = tab.length) == 0)
+                return;
+            int index = (n - 1) & hash;
+            TreeNode<K,V> first = (TreeNode<K,V>)tab[index], root = first, rl;
+            TreeNode<K,V> succ = (TreeNode<K,V>)next, pred = prev;
+            // 先从链表里摘掉
+            if (pred == null)
+                tab[index] = first = succ;
+            else
+                pred.next = succ;
+            if (succ != null)
+                succ.prev = pred;
+            if (first == null)
+                return;
+            if (root.parent != null)
+                root = root.root();
+            if (root == null
+                    || (movable
+                    && (root.right == null
+                    || (rl = root.left) == null
+                    || rl.left == null))) {
+                // 树太小了
+                tab[index] = first.untreeify(map);
+                return;
+            }
+            TreeNode<K,V> p = this, pl = left, pr = right, replacement;
+            if (pl != null && pr != null) {
+                // 有两个子节点，跟后继节点交换位置和颜色，变成最多一个子节点的情况
+                TreeNode<K,V> s = pr, sl;
+                while ((sl = s.left) != null) // find successor
+                    s = sl;
+                boolean c = s.red; s.red = p.red; p.red = c; // swap colors
+                TreeNode<K,V> sr = s.right;
+                TreeNode<K,V> pp = p.parent;
+                if (s == pr) { // p was s's direct parent
+                    p.parent = s;
+                    s.right = p;
+                }
+                else {
+                    TreeNode<K,V> sp = s.parent;
+                    if ((p.parent = sp) != null) {
+                        if (s == sp.left)
+                            sp.left = p;
+                        else
+                            sp.right = p;
+                    }
+                    if ((s.right = pr) != null)
+                        pr.parent = s;
+                }
+                p.left = null;
+                if ((p.right = sr) != null)
+                    sr.parent = p;
+                if ((s.left = pl) != null)
+                    pl.parent = s;
+                if ((s.parent = pp) == null)
+                    root = s;
+                else if (p == pp.left)
+                    pp.left = s;
+                else
+                    pp.right = s;
+                if (sr != null)
+                    replacement = sr;
+                else
+                    replacement = p;
+            }
+            else if (pl != null)
+                replacement = pl;
+            else if (pr != null)
+                replacement = pr;
+            else
+                replacement = p;
+            if (replacement != p) {
+                TreeNode<K,V> pp = replacement.parent = p.parent;
+                if (pp == null)
+                    (root = replacement).red = false;
+                else if (p == pp.left)
+                    pp.left = replacement;
+                else
+                    pp.right = replacement;
+                p.left = p.right = p.parent = null;
+            }
+
+            TreeNode<K,V> r = p.red ? root : balanceDeletion(root, replacement);
+
+            if (replacement == p) {  // detach
+                TreeNode<K,V> pp = p.parent;
+                p.parent = null;
+                if (pp != null) {
+                    if (p == pp.left)
+                        pp.left = null;
+                    else if (p == pp.right)
+                        pp.right = null;
+                }
+            }
+            if (movable)
+                moveRootToFront(tab, r);
+        }
+
+        /**
+         * 扩容时把树拆成高低两部分，节点数不超过UNTREEIFY_THRESHOLD的退化成链表
+         * @param index 原来的槽下标
+         * @param bit 原数组长度
+         */
+        final void split(DemoHashMap<K,V> map, DemoNode<K,V>[] tab, int index, int bit) {
+            TreeNode<K,V> b = this;
+            // 按原顺序串成高低两条链表
+            TreeNode<K,V> loHead = null, loTail = null;
+            TreeNode<K,V> hiHead = null, hiTail = null;
+            int lc = 0, hc = 0;
+            for (TreeNode<K,V> e = b, next; e != null; e = next) {
+                next = (TreeNode<K,V>)e.next;
+                e.next = null;
+                if ((e.hash & bit) == 0) {
+                    if ((e.prev = loTail) == null)
+                        loHead = e;
+                    else
+                        loTail.next = e;
+                    loTail = e;
+                    ++lc;
+                }
+                else {
+                    if ((e.prev = hiTail) == null)
+                        hiHead = e;
+                    else
+                        hiTail.next = e;
+                    hiTail = e;
+                    ++hc;
+                }
+            }
+
+            if (loHead != null) {
+                if (lc <= UNTREEIFY_THRESHOLD)
+                    tab[index] = loHead.untreeify(map);
+                else {
+                    tab[index] = loHead;
+                    // 另一半为空时原来的树结构还能用
+                    if (hiHead != null)
+                        loHead.treeify(tab);
+                }
+            }
+            if (hiHead != null) {
+                if (hc <= UNTREEIFY_THRESHOLD)
+                    tab[index + bit] = hiHead.untreeify(map);
+                else {
+                    tab[index + bit] = hiHead;
+                    if (loHead != null)
+                        hiHead.treeify(tab);
+                }
+            }
+        }
+
+        static <K,V> TreeNode<K,V> rotateLeft(TreeNode<K,V> root,
+                                              TreeNode<K,V> p) {
+            TreeNode<K,V> r, pp, rl;
+            if (p != null && (r = p.right) != null) {
+                if ((rl = p.right = r.left) != null)
+                    rl.parent = p;
+                if ((pp = r.parent = p.parent) == null)
+                    (root = r).red = false;
+                else if (pp.left == p)
+                    pp.left = r;
+                else
+                    pp.right = r;
+                r.left = p;
+                p.parent = r;
+            }
+            return root;
+        }
+
+        static <K,V> TreeNode<K,V> rotateRight(TreeNode<K,V> root,
+                                               TreeNode<K,V> p) {
+            TreeNode<K,V> l, pp, lr;
+            if (p != null && (l = p.left) != null) {
+                if ((lr = p.left = l.right) != null)
+                    lr.parent = p;
+                if ((pp = l.parent = p.parent) == null)
+                    (root = l).red = false;
+                else if (pp.right == p)
+                    pp.right = l;
+                else
+                    pp.left = l;
+                l.right = p;
+                p.parent = l;
+            }
+            return root;
+        }
+
+        static <K,V> TreeNode<K,V> balanceInsertion(TreeNode<K,V> root,
+                                                    TreeNode<K,V> x) {
+            x.red = true;
+            for (TreeNode<K,V> xp, xpp, xppl, xppr;;) {
+                if ((xp = x.parent) == null) {
+                    x.red = false;
+                    return x;
+                }
+                else if (!xp.red || (xpp = xp.parent) == null)
+                    return root;
+                if (xp == (xppl = xpp.left)) {
+                    if ((xppr = xpp.right) != null && xppr.red) {
+                        xppr.red = false;
+                        xp.red = false;
+                        xpp.red = true;
+                        x = xpp;
+                    }
+                    else {
+                        if (x == xp.right) {
+                            root = rotateLeft(root, x = xp);
+                            xpp = (xp = x.parent) == null ? null : xp.parent;
+                        }
+                        if (xp != null) {
+                            xp.red = false;
+                            if (xpp != null) {
+                                xpp.red = true;
+                                root = rotateRight(root, xpp);
+                            }
+                        }
+                    }
+                }
+                else {
+                    if (xppl != null && xppl.red) {
+                        xppl.red = false;
+                        xp.red = false;
+                        xpp.red = true;
+                        x = xpp;
+                    }
+                    else {
+                        if (x == xp.left) {
+                            root = rotateRight(root, x = xp);
+                            xpp = (xp = x.parent) == null ? null : xp.parent;
+                        }
+                        if (xp != null) {
+                            xp.red = false;
+                            if (xpp != null) {
+                                xpp.red = true;
+                                root = rotateLeft(root, xpp);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        static <K,V> TreeNode<K,V> balanceDeletion(TreeNode<K,V> root,
+                                                   TreeNode<K,V> x) {
+            for (TreeNode<K,V> xp, xpl, xpr;;) {
+                if (x == null || x == root)
+                    return root;
+                else if ((xp = x.parent) == null) {
+                    x.red = false;
+                    return x;
+                }
+                else if (x.red) {
+                    x.red = false;
+                    return root;
+                }
+                else if ((xpl = xp.left) == x) {
+                    if ((xpr = xp.right) != null && xpr.red) {
+                        xpr.red = false;
+                        xp.red = true;
+                        root = rotateLeft(root, xp);
+                        xpr = (xp = x.parent) == null ? null : xp.right;
+                    }
+                    if (xpr == null)
+                        x = xp;
+                    else {
+                        TreeNode<K,V> sl = xpr.left, sr = xpr.right;
+                        if ((sr == null || !sr.red) &&
+                                (sl == null || !sl.red)) {
+                            xpr.red = true;
+                            x = xp;
+                        }
+                        else {
+                            if (sr == null || !sr.red) {
+                                if (sl != null)
+                                    sl.red = false;
+                                xpr.red = true;
+                                root = rotateRight(root, xpr);
+                                xpr = (xp = x.parent) == null ?
+                                        null : xp.right;
+                            }
+                            if (xpr != null) {
+                                xpr.red = (xp == null) ? false : xp.red;
+                                if ((sr = xpr.right) != null)
+                                    sr.red = false;
+                            }
+                            if (xp != null) {
+                                xp.red = false;
+                                root = rotateLeft(root, xp);
+                            }
+                            x = root;
+                        }
+                    }
+                }
+                else { // symmetric
+                    if (xpl != null && xpl.red) {
+                        xpl.red = false;
+                        xp.red = true;
+                        root = rotateRight(root, xp);
+                        xpl = (xp = x.parent) == null ? null : xp.left;
+                    }
+                    if (xpl == null)
+                        x = xp;
+                    else {
+                        TreeNode<K,V> sl = xpl.left, sr = xpl.right;
+                        if ((sl == null || !sl.red) &&
+                                (sr == null || !sr.red)) {
+                            xpl.red = true;
+                            x = xp;
+                        }
+                        else {
+                            if (sl == null || !sl.red) {
+                                if (sr != null)
+                                    sr.red = false;
+                                xpl.red = true;
+                                root = rotateLeft(root, xpl);
+                                xpl = (xp = x.parent) == null ?
+                                        null : xp.left;
+                            }
+                            if (xpl != null) {
+                                xpl.red = (xp == null) ? false : xp.red;
+                                if ((sl = xpl.left) != null)
+                                    sl.red = false;
+                            }
+                            if (xp != null) {
+                                xp.red = false;
+                                root = rotateRight(root, xp);
+                            }
+                            x = root;
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * 检查红黑树和双向链表的一致性，只在打开断言时调用
+         */
+        static <K,V> boolean checkInvariants(TreeNode<K,V> t) {
+            TreeNode<K,V> tp = t.parent, tl = t.left, tr = t.right,
+                    tb = t.prev, tn = (TreeNode<K,V>)t.next;
+            if (tb != null && tb.next != t)
+                return false;
+            if (tn != null && tn.prev != t)
+                return false;
+            if (tp != null && t != tp.left && t != tp.right)
+                return false;
+            if (tl != null && (tl.parent != t || tl.hash > t.hash))
+                return false;
+            if (tr != null && (tr.parent != t || tr.hash < t.hash))
+                return false;
+            if (t.red && tl != null && tl.red && tr != null && tr.red)
+                return false;
+            if (tl != null && !checkInvariants(tl))
+                return false;
+            if (tr != null && !checkInvariants(tr))
+                return false;
+            return true;
+        }
+    }
 }
+
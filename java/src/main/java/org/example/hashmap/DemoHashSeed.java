@@ -0,0 +1,121 @@
+package org.example.hashmap;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * map的随机哈希种子，防止哈希洪水攻击：请求参数之类外部可控的key可以被故意构造成hashCode相同，
+ * 全部落到同一个槽里，每次查找都退化成遍历
+ *
+ * 每个map实例生成自己的128位种子，String和byte[]按内容用SipHash-1-3计算，
+ * 攻击者不知道种子就构造不出碰撞的key；其他类型只能把hashCode和种子混合一下，
+ * hashCode本身相同的key仍然会碰撞
+ *
+ * 注意byte[]的equals是比较引用，按内容算哈希也满足equals相等哈希就相等，
+ * 但作为key放进map之后不能再修改数组内容
+ */
+final class DemoHashSeed {
+
+    // 所有实例的种子从一个随机起点按黄金分割数递增，再打散
+    private static final AtomicLong SEEDER = new AtomicLong(new SecureRandom().nextLong());
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    final long k0, k1;
+
+    DemoHashSeed() {
+        this.k0 = mix64(SEEDER.addAndGet(GOLDEN_GAMMA));
+        this.k1 = mix64(SEEDER.addAndGet(GOLDEN_GAMMA));
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+
+    /**
+     * 代替key.hashCode()，结果还要再经过map自己的spread/hash
+     */
+    int hash(Object key) {
+        if (key instanceof String)
+            return hash((String)key);
+        if (key instanceof byte[])
+            return hash((byte[])key);
+        long z = mix64(key.hashCode() ^ k0);
+        return (int)(z ^ (z >>> 32));
+    }
+
+    /**
+     * 每4个char拼成一个64位的字，按SipHash-1-3处理
+     */
+    int hash(String s) {
+        long v0 = k0 ^ 0x736f6d6570736575L, v1 = k1 ^ 0x646f72616e646f6dL;
+        long v2 = k0 ^ 0x6c7967656e657261L, v3 = k1 ^ 0x7465646279746573L;
+        int len = s.length(), end = len & ~3;
+        for (int i = 0; i <= end; i += 4) {
+            long m;
+            if (i < end)
+                m = s.charAt(i) | (long)s.charAt(i + 1) << 16 |
+                        (long)s.charAt(i + 2) << 32 | (long)s.charAt(i + 3) << 48;
+            else {
+                // 最后一个字：剩下的0~3个char，最高字节放长度
+                m = (long)len << 56;
+                for (int j = end; j < len; j++)
+                    m |= (long)s.charAt(j) << ((j - end) << 4);
+            }
+            v3 ^= m;
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+            v0 ^= m;
+        }
+        v2 ^= 0xff;
+        for (int r = 0; r < 3; r++) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        }
+        long h = v0 ^ v1 ^ v2 ^ v3;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    /**
+     * 每8个字节按小端拼成一个64位的字，按SipHash-1-3处理
+     */
+    int hash(byte[] b) {
+        long v0 = k0 ^ 0x736f6d6570736575L, v1 = k1 ^ 0x646f72616e646f6dL;
+        long v2 = k0 ^ 0x6c7967656e657261L, v3 = k1 ^ 0x7465646279746573L;
+        int len = b.length, end = len & ~7;
+        for (int i = 0; i <= end; i += 8) {
+            long m;
+            if (i < end)
+                m = (b[i] & 0xffL) | (b[i + 1] & 0xffL) << 8 |
+                        (b[i + 2] & 0xffL) << 16 | (b[i + 3] & 0xffL) << 24 |
+                        (b[i + 4] & 0xffL) << 32 | (b[i + 5] & 0xffL) << 40 |
+                        (b[i + 6] & 0xffL) << 48 | (b[i + 7] & 0xffL) << 56;
+            else {
+                m = (long)len << 56;
+                for (int j = end; j < len; j++)
+                    m |= (b[j] & 0xffL) << ((j - end) << 3);
+            }
+            v3 ^= m;
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+            v0 ^= m;
+        }
+        v2 ^= 0xff;
+        for (int r = 0; r < 3; r++) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        }
+        long h = v0 ^ v1 ^ v2 ^ v3;
+        return (int)(h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,458 @@
+package org.example.hashmap;
+
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * 在DemoHashMap的基础上，所有节点再串成一条before/after双向链表，遍历按链表顺序
+ * 链表顺序是插入顺序，accessOrder为true时是访问顺序：get或put已有的key会把节点移到链表尾，
+ * 链表头就是最久没访问的元素，移动和删除都是O(1)
+ *
+ * 通过DemoHashMap的newNode等工厂方法创建带链表指针的节点，
+ * 再通过afterNodeAccess/afterNodeInsertion/afterNodeRemoval三个回调维护链表
+ *
+ * 每次插入新元素后调用removeEldestEntry，返回true就删掉链表头的元素，用来做LRU缓存：
+ * <pre>
+ * DemoLinkedHashMap&lt;K,V&gt; cache = DemoLinkedHashMap.lru(1000);
+ * </pre>
+ * 超过1000个元素时淘汰最久没访问的，不需要额外的数据结构
+ *
+ * 构造函数都走DemoHashMap的默认配置，不能跟DemoHashMap.seeded()的随机种子
+ * 或DemoHashMap.incremental()的渐进式扩容一起用：那几个工厂方法只创建DemoHashMap本身
+ */
+public class DemoLinkedHashMap<K,V> extends DemoHashMap<K,V> {
+
+    /**
+     * 带链表指针的节点
+     */
+    static class Entry<K,V> extends DemoHashMap.DemoNode<K,V> {
+        Entry<K,V> before, after;
+
+        Entry(int hash, K key, V value, DemoNode<K,V> next) {
+            super(hash, key, value, next);
+        }
+    }
+
+    // 链表头，最早插入或最久没访问的元素
+    transient Entry<K,V> head;
+
+    // 链表尾，最近插入或最近访问的元素
+    transient Entry<K,V> tail;
+
+    // true：访问顺序，false：插入顺序
+    final boolean accessOrder;
+
+    // 最多保留的元素数，0表示不限制
+    final int maxSize;
+
+    // 淘汰元素时的回调，可以为null
+    final BiConsumer<? super K, ? super V> evictionListener;
+
+    public DemoLinkedHashMap() {
+        this(false);
+    }
+
+    /**
+     * @param accessOrder true：按访问顺序，false：按插入顺序
+     */
+    public DemoLinkedHashMap(boolean accessOrder) {
+        super();
+        this.accessOrder = accessOrder;
+        this.maxSize = 0;
+        this.evictionListener = null;
+    }
+
+    /**
+     * 按插入顺序，跟DemoHashMap(int)一样只是初始容量，不限制元素数；LRU缓存用lru(maxSize)
+     * @param initialCapacity 初始容量，第一次put时按不小于它的2的幂建数组
+     */
+    public DemoLinkedHashMap(int initialCapacity) {
+        super(initialCapacity);
+        this.accessOrder = false;
+        this.maxSize = 0;
+        this.evictionListener = null;
+    }
+
+    /**
+     * 按访问顺序、最多maxSize个元素的LRU缓存
+     */
+    public static <K,V> DemoLinkedHashMap<K,V> lru(int maxSize) {
+        return new DemoLinkedHashMap<>(maxSize, null);
+    }
+
+    /**
+     * 按访问顺序、最多maxSize个元素的LRU缓存
+     * @param evictionListener 因为超过maxSize被淘汰的元素会传给它，可以为null
+     */
+    public static <K,V> DemoLinkedHashMap<K,V> lru(int maxSize, BiConsumer<? super K, ? super V> evictionListener) {
+        return new DemoLinkedHashMap<>(maxSize, evictionListener);
+    }
+
+    private DemoLinkedHashMap(int maxSize, BiConsumer<? super K, ? super V> evictionListener) {
+        // 放满maxSize+1个元素(插入后、淘汰前)也不会扩容
+        super((int)Math.min(MAXIMUM_CAPACITY, (long)maxSize * 4 / 3 + 2));
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("Illegal max size: " + maxSize);
+        this.accessOrder = true;
+        this.maxSize = maxSize;
+        this.evictionListener = evictionListener;
+    }
+
+    // 插到链表尾
+    private void linkNodeLast(Entry<K,V> p) {
+        Entry<K,V> last = tail;
+        tail = p;
+        if (last == null)
+            head = p;
+        else {
+            p.before = last;
+            last.after = p;
+        }
+    }
+
+    // 用dst替换src在链表里的位置
+    private void transferLinks(Entry<K,V> src, Entry<K,V> dst) {
+        Entry<K,V> b = dst.before = src.before;
+        Entry<K,V> a = dst.after = src.after;
+        if (b == null)
+            head = dst;
+        else
+            b.after = dst;
+        if (a == null)
+            tail = dst;
+        else
+            a.before = dst;
+    }
+
+    DemoNode<K,V> newNode(int hash, K key, V value, DemoNode<K,V> next) {
+        Entry<K,V> p = new Entry<>(hash, key, value, next);
+        linkNodeLast(p);
+        return p;
+    }
+
+    DemoNode<K,V> replacementNode(DemoNode<K,V> p, DemoNode<K,V> next) {
+        Entry<K,V> q = (Entry<K,V>)p;
+        Entry<K,V> t = new Entry<>(q.hash, q.key, q.value, next);
+        transferLinks(q, t);
+        return t;
+    }
+
+    TreeNode<K,V> newTreeNode(int hash, K key, V value, DemoNode<K,V> next) {
+        TreeNode<K,V> p = new TreeNode<>(hash, key, value, next);
+        linkNodeLast(p);
+        return p;
+    }
+
+    TreeNode<K,V> replacementTreeNode(DemoNode<K,V> p, DemoNode<K,V> next) {
+        Entry<K,V> q = (Entry<K,V>)p;
+        TreeNode<K,V> t = new TreeNode<>(q.hash, q.key, q.value, next);
+        transferLinks(q, t);
+        return t;
+    }
+
+    /**
+     * 从链表里摘掉
+     */
+    void afterNodeRemoval(DemoNode<K,V> e) {
+        Entry<K,V> p = (Entry<K,V>)e, b = p.before, a = p.after;
+        p.before = p.after = null;
+        if (b == null)
+            head = a;
+        else
+            b.after = a;
+        if (a == null)
+            tail = b;
+        else
+            a.before = b;
+    }
+
+    /**
+     * 插入新元素之后，按removeEldestEntry决定要不要删掉链表头
+     */
+    void afterNodeInsertion(boolean evict) {
+        Entry<K,V> first;
+        if (evict && (first = head) != null && removeEldestEntry(first)) {
+            K key = first.key;
+            V value = first.value;
+            removeNode(first.hash, key, true);
+            if (evictionListener != null)
+                evictionListener.accept(key, value);
+        }
+    }
+
+    /**
+     * 访问顺序时把节点移到链表尾
+     * 链表顺序变了，算一次修改，遍历期间get会抛ConcurrentModificationException
+     */
+    void afterNodeAccess(DemoNode<K,V> e) {
+        Entry<K,V> last;
+        if (accessOrder && (last = tail) != e) {
+            Entry<K,V> p = (Entry<K,V>)e, b = p.before, a = p.after;
+            p.after = null;
+            if (b == null)
+                head = a;
+            else
+                b.after = a;
+            if (a != null)
+                a.before = b;
+            else
+                last = b;
+            if (last == null)
+                head = p;
+            else {
+                p.before = last;
+                last.after = p;
+            }
+            tail = p;
+            ++modCount;
+        }
+    }
+
+    /**
+     * 每次插入新元素后调用，返回true时删除eldest(链表头)
+     * 默认在指定了maxSize时超过就删除，子类可以覆盖成别的策略
+     * @param eldest 最早插入或最久没访问的元素
+     */
+    protected boolean removeEldestEntry(Map.Entry<K,V> eldest) {
+        return maxSize > 0 && size > maxSize;
+    }
+
+    public V get(Object key) {
+        DemoNode<K,V> e;
+        if ((e = getNode(keyHash(key), key)) == null)
+            return null;
+        if (accessOrder)
+            afterNodeAccess(e);
+        return e.value;
+    }
+
+    /**
+     * 沿链表找，不用逐个检查空槽
+     */
+    public boolean containsValue(Object value) {
+        for (Entry<K,V> e = head; e != null; e = e.after) {
+            V v = e.value;
+            if (v == value || (value != null && value.equals(v)))
+                return true;
+        }
+        return false;
+    }
+
+    public void clear() {
+        super.clear();
+        head = tail = null;
+    }
+
+    /**
+     * 按链表顺序遍历
+     */
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        if (action == null)
+            throw new NullPointerException();
+        int mc = modCount;
+        for (Entry<K,V> e = head; e != null; e = e.after)
+            action.accept(e.key, e.value);
+        if (modCount != mc)
+            throw new ConcurrentModificationException();
+    }
+
+    /**
+     * 以下视图都按链表顺序遍历
+     */
+    public Set<K> keySet() {
+        Set<K> ks = keySet;
+        if (ks == null)
+            keySet = ks = new LinkedKeySet();
+        return ks;
+    }
+
+    public Collection<V> values() {
+        Collection<V> vs = values;
+        if (vs == null)
+            values = vs = new LinkedValues();
+        return vs;
+    }
+
+    public Set<Map.Entry<K,V>> entrySet() {
+        Set<Map.Entry<K,V>> es = entrySet;
+        if (es == null)
+            entrySet = es = new LinkedEntrySet();
+        return es;
+    }
+
+    final class LinkedKeySet extends AbstractSet<K> {
+        public final int size()                 { return size; }
+        public final void clear()               { DemoLinkedHashMap.this.clear(); }
+        public final Iterator<K> iterator()     { return new LinkedKeyIterator(); }
+        public final boolean contains(Object o) { return containsKey(o); }
+        public final boolean remove(Object key) {
+            return removeNode(keyHash(key), key, true) != null;
+        }
+        public final Spliterator<K> spliterator() {
+            return Spliterators.spliterator(this, Spliterator.SIZED |
+                    Spliterator.ORDERED | Spliterator.DISTINCT);
+        }
+        public final void forEach(Consumer<? super K> action) {
+            if (action == null)
+                throw new NullPointerException();
+            int mc = modCount;
+            for (Entry<K,V> e = head; e != null; e = e.after)
+                action.accept(e.key);
+            if (modCount != mc)
+                throw new ConcurrentModificationException();
+        }
+    }
+
+    final class LinkedValues extends AbstractCollection<V> {
+        public final int size()                 { return size; }
+        public final void clear()               { DemoLinkedHashMap.this.clear(); }
+        public final Iterator<V> iterator()     { return new LinkedValueIterator(); }
+        public final Spliterator<V> spliterator() {
+            return Spliterators.spliterator(this, Spliterator.SIZED |
+                    Spliterator.ORDERED);
+        }
+        public final void forEach(Consumer<? super V> action) {
+            if (action == null)
+                throw new NullPointerException();
+            int mc = modCount;
+            for (Entry<K,V> e = head; e != null; e = e.after)
+                action.accept(e.value);
+            if (modCount != mc)
+                throw new ConcurrentModificationException();
+        }
+    }
+
+    final class LinkedEntrySet extends AbstractSet<Map.Entry<K,V>> {
+        public final int size()                 { return size; }
+        public final void clear()               { DemoLinkedHashMap.this.clear(); }
+        public final Iterator<Map.Entry<K,V>> iterator() {
+            return new LinkedEntryIterator();
+        }
+        public final boolean contains(Object o) {
+            if (!(o instanceof Map.Entry))
+                return false;
+            Map.Entry<?,?> e = (Map.Entry<?,?>)o;
+            Object key = e.getKey();
+            DemoNode<K,V> candidate = getNode(keyHash(key), key);
+            return candidate != null && candidate.equals(e);
+        }
+        public final boolean remove(Object o) {
+            if (contains(o)) {
+                Object key = ((Map.Entry<?,?>)o).getKey();
+                return removeNode(keyHash(key), key, true) != null;
+            }
+            return false;
+        }
+        public final Spliterator<Map.Entry<K,V>> spliterator() {
+            return Spliterators.spliterator(this, Spliterator.SIZED |
+                    Spliterator.ORDERED | Spliterator.DISTINCT);
+        }
+        public final void forEach(Consumer<? super Map.Entry<K,V>> action) {
+            if (action == null)
+                throw new NullPointerException();
+            int mc = modCount;
+            for (Entry<K,V> e = head; e != null; e = e.after)
+                action.accept(e);
+            if (modCount != mc)
+                throw new ConcurrentModificationException();
+        }
+    }
+
+    abstract class LinkedHashIterator {
+        Entry<K,V> next;
+        Entry<K,V> current;
+        int expectedModCount;
+
+        LinkedHashIterator() {
+            next = head;
+            expectedModCount = modCount;
+            current = null;
+        }
+
+        public final boolean hasNext() {
+            return next != null;
+        }
+
+        final Entry<K,V> nextNode() {
+            Entry<K,V> e = next;
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            if (e == null)
+                throw new NoSuchElementException();
+            current = e;
+            next = e.after;
+            return e;
+        }
+
+        public final void remove() {
+            DemoNode<K,V> p = current;
+            if (p == null)
+                throw new IllegalStateException();
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            current = null;
+            removeNode(p.hash, p.key, false);
+            expectedModCount = modCount;
+        }
+    }
+
+    final class LinkedKeyIterator extends LinkedHashIterator
+            implements Iterator<K> {
+        public final K next() { return nextNode().getKey(); }
+    }
+
+    final class LinkedValueIterator extends LinkedHashIterator
+            implements Iterator<V> {
+        public final V next() { return nextNode().value; }
+    }
+
+    final class LinkedEntryIterator extends LinkedHashIterator
+            implements Iterator<Map.Entry<K,V>> {
+        public final Map.Entry<K,V> next() { return nextNode(); }
+    }
+
+    /**
+     * 游标也按链表顺序移动
+     */
+    public Cursor<K,V> cursor() {
+        return new LinkedCursor<>(this);
+    }
+
+    static final class LinkedCursor<K,V> extends Cursor<K,V> {
+
+        LinkedCursor(DemoLinkedHashMap<K,V> map) {
+            super(map);
+        }
+
+        // index为0表示还在第一个元素之前
+        public Cursor<K,V> reset() {
+            current = null;
+            index = 0;
+            expectedModCount = map.modCount;
+            return this;
+        }
+
+        public boolean advance() {
+            if (map.modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            Entry<K,V> e;
+            if (index == 0) {
+                index = 1;
+                e = ((DemoLinkedHashMap<K,V>)map).head;
+            }
+            else
+                e = (current == null) ? null : ((Entry<K,V>)current).after;
+            return (current = e) != null;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+// 由src/main/templates/generate_primitive_maps.py根据DemoPrimitiveHashMap.java.template生成，不要直接修改
+package org.example.hashmap;
+
+import java.util.Arrays;
+
+/**
+ * long到对象的map，key不装箱
+ *
+ * 结构跟DemoHashMap一样：槽数是2的幂，哈希值跟DemoHashMap<Long,?>相同，冲突的元素串成链表，
+ * 扩容时每条链表按hash & oldCap拆成高低两条。区别是没有DemoNode，
+ * entry的key、value、next分别放在三个数组里，链表用entry下标串起来，
+ * 每个entry占16字节(压缩指针下)，get/put/remove不分配对象，扩容只重新串下标，不搬运key和value
+ *
+ * key不存在时get/put/remove返回null，value可以是null，这时用containsKey区分
+ */
+public class DemoLongObjectHashMap<V> {
+
+    static final int DEFAULT_INITIAL_CAPACITY = 1 << 4;
+
+    static final int MAXIMUM_CAPACITY = 1 << 30;
+
+    // entry下标的上限，数组长度不能超过Integer.MAX_VALUE - 8
+    static final int MAX_ENTRIES = Integer.MAX_VALUE - 9;
+
+    // 空槽、链表结束
+    static final int NIL = 0;
+
+    // 槽里是链表头entry的下标
+    int[] table;
+
+    // 按entry下标访问，下标从1开始，0不用
+    long[] keys;
+    Object[] vals;
+    int[] next;
+
+    // 用过的最大entry下标
+    int allocated;
+
+    // 删除空出来的entry用next串成的链表，插入时先用这些
+    int free;
+
+    int size;
+
+    // 元素数到这个值再插入就扩容，槽数的3/4
+    int threshold;
+
+    public DemoLongObjectHashMap() {
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize 放入这么多元素之前不会扩容
+     */
+    public DemoLongObjectHashMap(int expectedSize) {
+        if (expectedSize < 0)
+            throw new IllegalArgumentException("Illegal initial capacity: " + expectedSize);
+        int n = tableSizeFor(expectedSize + (long)expectedSize / 3 + 1);
+        table = new int[n];
+        threshold = n - (n >>> 2);
+        keys = new long[threshold + 1];
+        vals = new Object[threshold + 1];
+        next = new int[threshold + 1];
+    }
+
+    static int tableSizeFor(long c) {
+        if (c >= MAXIMUM_CAPACITY)
+            return MAXIMUM_CAPACITY;
+        return Math.max(2, Integer.highestOneBit((int)c - 1) << 1);
+    }
+
+    static int hash(long key) {
+        // 跟Long.hashCode()再经过DemoHashMap.hash一样
+        int h = (int)(key ^ (key >>> 32));
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * 找key所在的entry，找不到返回NIL
+     */
+    private int find(long key) {
+        int[] nx = next;
+        long[] ks = keys;
+        int e = table[hash(key) & (table.length - 1)];
+        while (e != NIL && ks[e] != key)
+            e = nx[e];
+        return e;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int e = find(key);
+        return (e == NIL) ? null : (V)vals[e];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V getOrDefault(long key, V defaultValue) {
+        int e = find(key);
+        return (e == NIL) ? defaultValue : (V)vals[e];
+    }
+
+    public boolean containsKey(long key) {
+        return find(key) != NIL;
+    }
+
+    public V put(long key, V value) {
+        return putVal(key, value, false);
+    }
+
+    public V putIfAbsent(long key, V value) {
+        return putVal(key, value, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    final V putVal(long key, V value, boolean onlyIfAbsent) {
+        int h = hash(key);
+        int i = h & (table.length - 1);
+        for (int e = table[i]; e != NIL; e = next[e]) {
+            if (keys[e] == key) {
+                V old = (V)vals[e];
+                if (!onlyIfAbsent)
+                    vals[e] = value;
+                return old;
+            }
+        }
+        if (size >= threshold) {
+            resize();
+            i = h & (table.length - 1);
+        }
+        int e = newEntry();
+        keys[e] = key;
+        vals[e] = value;
+        // 插到链表头，不用走到链表尾
+        next[e] = table[i];
+        table[i] = e;
+        ++size;
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int i = hash(key) & (table.length - 1);
+        for (int e = table[i], p = NIL; e != NIL; p = e, e = next[e]) {
+            if (keys[e] == key) {
+                if (p == NIL)
+                    table[i] = next[e];
+                else
+                    next[p] = next[e];
+                V old = (V)vals[e];
+                // 释放value的引用
+                vals[e] = null;
+                next[e] = free;
+                free = e;
+                --size;
+                return old;
+            }
+        }
+        return null;
+    }
+
+    private int newEntry() {
+        int e = free;
+        if (e != NIL) {
+            free = next[e];
+            return e;
+        }
+        if (allocated == keys.length - 1) {
+            // 槽数到了最大值不再扩容，entry数组单独增长
+            if (allocated >= MAX_ENTRIES)
+                throw new IllegalStateException("Map is full.");
+            growEntries((int)Math.min(MAX_ENTRIES, allocated + (long)(allocated >>> 1) + 1));
+        }
+        return ++allocated;
+    }
+
+    private void growEntries(int capacity) {
+        keys = Arrays.copyOf(keys, capacity + 1);
+        vals = Arrays.copyOf(vals, capacity + 1);
+        next = Arrays.copyOf(next, capacity + 1);
+    }
+
+    /**
+     * 槽数翻倍，每条链表按hash & oldCap拆成高低两条，保持原来的顺序
+     * key和value留在原来的entry里，只改槽和next
+     */
+    final void resize() {
+        int[] oldTab = table;
+        int oldCap = oldTab.length;
+        if (oldCap >= MAXIMUM_CAPACITY) {
+            threshold = Integer.MAX_VALUE;
+            return;
+        }
+        int newCap = oldCap << 1;
+        int newThr = newCap - (newCap >>> 2);
+        if (keys.length <= newThr)
+            growEntries(newThr);
+        int[] newTab = new int[newCap];
+        int[] nx = next;
+        long[] ks = keys;
+        for (int j = 0; j < oldCap; ++j) {
+            int e = oldTab[j];
+            if (e == NIL)
+                continue;
+            int loHead = NIL, loTail = NIL;
+            int hiHead = NIL, hiTail = NIL;
+            do {
+                if ((hash(ks[e]) & oldCap) == 0) {
+                    if (loTail == NIL)
+                        loHead = e;
+                    else
+                        nx[loTail] = e;
+                    loTail = e;
+                }
+                else {
+                    if (hiTail == NIL)
+                        hiHead = e;
+                    else
+                        nx[hiTail] = e;
+                    hiTail = e;
+                }
+            } while ((e = nx[e]) != NIL);
+            if (loTail != NIL) {
+                nx[loTail] = NIL;
+                newTab[j] = loHead;
+            }
+            if (hiTail != NIL) {
+                nx[hiTail] = NIL;
+                newTab[j + oldCap] = hiHead;
+            }
+        }
+        table = newTab;
+        threshold = newThr;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * 清空元素，保留已经分配的数组
+     */
+    public void clear() {
+        if (allocated == 0)
+            return;
+        Arrays.fill(table, NIL);
+        Arrays.fill(vals, 1, allocated + 1, null);
+        allocated = 0;
+        free = NIL;
+        size = 0;
+    }
+
+    /**
+     * 按槽的顺序遍历，回调里不能修改map
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(EntryConsumer<? super V> action) {
+        int[] tab = table, nx = next;
+        long[] ks = keys;
+        Object[] vs = vals;
+        for (int j = 0; j < tab.length; ++j) {
+            for (int e = tab[j]; e != NIL; e = nx[e])
+                action.accept(ks[e], (V)vs[e]);
+        }
+    }
+
+    @FunctionalInterface
+    public interface EntryConsumer<V> {
+        void accept(long key, V value);
+    }
+}
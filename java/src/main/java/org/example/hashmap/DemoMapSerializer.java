@@ -0,0 +1,135 @@
+package org.example.hashmap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * DemoMapSnapshot写入和读取key/value用的序列化器
+ * 先用size算出字节数，保证映射窗口里放得下，再用write写入；read时给出写入时的长度
+ * read碰到不合法的数据时抛IllegalStateException，由DemoMapSnapshot转成带文件偏移的IOException
+ */
+public interface DemoMapSerializer<T> {
+
+    /**
+     * value序列化后的字节数
+     */
+    int size(T value);
+
+    /**
+     * 从dst的position处写入正好size(value)个字节
+     */
+    void write(T value, ByteBuffer dst);
+
+    /**
+     * 从src的position处读出length个字节并还原
+     */
+    T read(ByteBuffer src, int length);
+
+    DemoMapSerializer<Integer> INTEGER = new DemoMapSerializer<Integer>() {
+        public int size(Integer value) { return 4; }
+        public void write(Integer value, ByteBuffer dst) { dst.putInt(value); }
+        public Integer read(ByteBuffer src, int length) { return src.getInt(); }
+    };
+
+    DemoMapSerializer<Long> LONG = new DemoMapSerializer<Long>() {
+        public int size(Long value) { return 8; }
+        public void write(Long value, ByteBuffer dst) { dst.putLong(value); }
+        public Long read(ByteBuffer src, int length) { return src.getLong(); }
+    };
+
+    DemoMapSerializer<byte[]> BYTES = new DemoMapSerializer<byte[]>() {
+        public int size(byte[] value) { return value.length; }
+        public void write(byte[] value, ByteBuffer dst) { dst.put(value); }
+        public byte[] read(ByteBuffer src, int length) {
+            byte[] b = new byte[length];
+            src.get(b);
+            return b;
+        }
+    };
+
+    /**
+     * UTF-8编码，直接写进目标buffer，不生成中间的byte[]
+     * 合法的代理对按标准UTF-8写成4个字节；落单的代理字符跟modified UTF-8一样按3字节写，
+     * 标准的UTF-8解码器会把它换成U+FFFD，所以read自己解码，保证任意String都能原样还原
+     */
+    DemoMapSerializer<String> STRING = new DemoMapSerializer<String>() {
+        public int size(String value) {
+            int len = value.length(), n = len;
+            for (int i = 0; i < len; i++) {
+                char c = value.charAt(i);
+                if (c >= 0x800) {
+                    // 代理对编码成4个字节，每个char算2个
+                    n += 2;
+                    if (Character.isHighSurrogate(c) && i + 1 < len &&
+                            Character.isLowSurrogate(value.charAt(i + 1)))
+                        i++;
+                }
+                else if (c >= 0x80)
+                    n += 1;
+            }
+            return n;
+        }
+
+        public void write(String value, ByteBuffer dst) {
+            int len = value.length();
+            for (int i = 0; i < len; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80)
+                    dst.put((byte)c);
+                else if (c < 0x800) {
+                    dst.put((byte)(0xc0 | (c >> 6)));
+                    dst.put((byte)(0x80 | (c & 0x3f)));
+                }
+                else if (Character.isHighSurrogate(c) && i + 1 < len &&
+                        Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, value.charAt(++i));
+                    dst.put((byte)(0xf0 | (cp >> 18)));
+                    dst.put((byte)(0x80 | ((cp >> 12) & 0x3f)));
+                    dst.put((byte)(0x80 | ((cp >> 6) & 0x3f)));
+                    dst.put((byte)(0x80 | (cp & 0x3f)));
+                }
+                else {
+                    // 落单的代理字符也按3字节写，跟size保持一致
+                    dst.put((byte)(0xe0 | (c >> 12)));
+                    dst.put((byte)(0x80 | ((c >> 6) & 0x3f)));
+                    dst.put((byte)(0x80 | (c & 0x3f)));
+                }
+            }
+        }
+
+        public String read(ByteBuffer src, int length) {
+            // 每个char至少占1个字节，4字节的序列对应2个char
+            char[] cs = new char[length];
+            int n = 0, end = src.position() + length;
+            while (src.position() < end) {
+                int b = src.get() & 0xff;
+                if (b < 0x80)
+                    cs[n++] = (char)b;
+                else if ((b & 0xe0) == 0xc0)
+                    cs[n++] = (char)(((b & 0x1f) << 6) | continuation(src));
+                else if ((b & 0xf0) == 0xe0)
+                    cs[n++] = (char)(((b & 0x0f) << 12) | (continuation(src) << 6) | continuation(src));
+                else if ((b & 0xf8) == 0xf0) {
+                    int cp = ((b & 0x07) << 18) | (continuation(src) << 12) |
+                            (continuation(src) << 6) | continuation(src);
+                    if (!Character.isSupplementaryCodePoint(cp))
+                        throw new IllegalStateException("invalid code point 0x" + Integer.toHexString(cp));
+                    cs[n++] = Character.highSurrogate(cp);
+                    cs[n++] = Character.lowSurrogate(cp);
+                }
+                else
+                    throw new IllegalStateException("malformed UTF-8 lead byte 0x" + Integer.toHexString(b));
+            }
+            if (src.position() != end)
+                throw new IllegalStateException("UTF-8 sequence crosses the end of the string");
+            return new String(cs, 0, n);
+        }
+
+        private int continuation(ByteBuffer src) {
+            int b = src.get();
+            if ((b & 0xc0) != 0x80)
+                throw new IllegalStateException("malformed UTF-8 continuation byte 0x" +
+                        Integer.toHexString(b & 0xff));
+            return b & 0x3f;
+        }
+    };
+}
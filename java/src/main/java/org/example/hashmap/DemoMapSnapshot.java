@@ -0,0 +1,296 @@
+package org.example.hashmap;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * 把DemoConcurrentHashMap导出到内存映射文件，以及从文件快速重建
+ *
+ * 文件格式(大端)：
+ * <pre>
+ * 0   int   MAGIC
+ * 4   int   VERSION
+ * 8   long  元素总数
+ * 16  int   导出时的table长度
+ * 20  int   段数
+ * 24  段表，每段 long 偏移, long 字节数, long 元素数
+ * ... 各段数据，每个元素是 varint key长度, key, varint value长度, value
+ * </pre>
+ * 每段对应导出时table的一段连续哈希槽
+ *
+ * 导出不加锁：用Traverser按段逐槽遍历，通过滚动的映射窗口顺序写出，写线程不会被阻塞，
+ * 遍历期间可以有并发修改和扩容，每个元素只写一次，内容是它在导出过程中某一时刻的值
+ * 加载时先按元素总数建好最终大小的table，再按段并行放入，中间不会扩容
+ */
+public class DemoMapSnapshot {
+
+    static final int MAGIC = 0x44434853; // "DCHS"
+
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 24;
+
+    static final int SEGMENT_ENTRY_SIZE = 24;
+
+    // 每段至少这么多个槽
+    static final int MIN_SEGMENT_BINS = 4096;
+
+    static final int MAX_SEGMENTS = 1024;
+
+    // 滚动映射窗口大小
+    static final int WINDOW_SIZE = 64 << 20;
+
+    private DemoMapSnapshot() {
+    }
+
+    /**
+     * 导出map到file，file已存在时覆盖
+     * @return 导出的元素数
+     */
+    public static <K,V> long dump(DemoConcurrentHashMap<K,V> map, Path file,
+                                  DemoMapSerializer<? super K> keySerializer,
+                                  DemoMapSerializer<? super V> valueSerializer) throws IOException {
+        DemoConcurrentHashMap.Node<K,V>[] tab = map.table;
+        int n = (tab == null) ? 0 : tab.length;
+        int segments = Math.max(1, Math.min(MAX_SEGMENTS, n / MIN_SEGMENT_BINS));
+        int segmentBins = (n == 0) ? 0 : n / segments;
+        long[] offsets = new long[segments], bytes = new long[segments], counts = new long[segments];
+        long dataStart = HEADER_SIZE + (long)SEGMENT_ENTRY_SIZE * segments;
+        long total = 0L;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Cursor out = new Cursor(ch, FileChannel.MapMode.READ_WRITE, dataStart, Long.MAX_VALUE);
+            for (int s = 0; s < segments; s++) {
+                long start = out.position();
+                long c = 0L;
+                if (tab != null) {
+                    int lo = s * segmentBins, hi = lo + segmentBins;
+                    DemoConcurrentHashMap.Traverser<K,V> it =
+                            new DemoConcurrentHashMap.Traverser<K,V>(tab, n, lo, hi);
+                    for (DemoConcurrentHashMap.Node<K,V> p; (p = it.advance()) != null; ) {
+                        K k = p.key;
+                        V v = p.val;
+                        int kl = keySerializer.size(k), vl = valueSerializer.size(v);
+                        ByteBuffer buf = out.ensure(kl + vl + 10);
+                        putVarInt(buf, kl);
+                        keySerializer.write(k, buf);
+                        putVarInt(buf, vl);
+                        valueSerializer.write(v, buf);
+                        ++c;
+                    }
+                }
+                offsets[s] = start;
+                bytes[s] = out.position() - start;
+                counts[s] = c;
+                total += c;
+            }
+            long end = out.position();
+            out.force();
+            // 元素数要遍历完才知道，最后再写文件头
+            MappedByteBuffer h = ch.map(FileChannel.MapMode.READ_WRITE, 0, dataStart);
+            h.putInt(MAGIC).putInt(VERSION).putLong(total).putInt(n).putInt(segments);
+            for (int s = 0; s < segments; s++)
+                h.putLong(offsets[s]).putLong(bytes[s]).putLong(counts[s]);
+            h.force();
+            // 去掉最后一个窗口多映射出来的部分
+            ch.truncate(end);
+        }
+        return total;
+    }
+
+    /**
+     * 从file重建map，table直接按元素总数建到最终大小，各段在ForkJoinPool里并行放入
+     */
+    public static <K,V> DemoConcurrentHashMap<K,V> load(Path file,
+                                                        DemoMapSerializer<? extends K> keySerializer,
+                                                        DemoMapSerializer<? extends V> valueSerializer)
+            throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (ch.size() < HEADER_SIZE)
+                throw new IOException("not a snapshot file: " + file);
+            MappedByteBuffer h = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (h.getInt() != MAGIC)
+                throw new IOException("not a snapshot file: " + file);
+            int version = h.getInt();
+            if (version != VERSION)
+                throw new IOException("unsupported snapshot version: " + version);
+            long total = h.getLong();
+            h.getInt(); // 导出时的table长度，加载按元素数重新算
+            int segments = h.getInt();
+            if (total < 0 || segments <= 0 || segments > MAX_SEGMENTS)
+                throw new IOException("corrupt snapshot header: " + file);
+            MappedByteBuffer st = ch.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE,
+                    (long)SEGMENT_ENTRY_SIZE * segments);
+            DemoConcurrentHashMap<K,V> map = new DemoConcurrentHashMap<K,V>(
+                    (int)Math.min(total, Integer.MAX_VALUE));
+            List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>(segments);
+            long fileSize = ch.size();
+            for (int s = 0; s < segments; s++) {
+                long offset = st.getLong(), bytes = st.getLong(), count = st.getLong();
+                if (offset < 0 || bytes < 0 || offset + bytes > fileSize)
+                    throw new IOException("corrupt snapshot segment " + s + ": " + file);
+                tasks.add(ForkJoinTask.adapt(() ->
+                        loadSegment(map, ch, offset, bytes, count, keySerializer, valueSerializer)));
+            }
+            try {
+                ForkJoinTask.invokeAll(tasks);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            return map;
+        }
+    }
+
+    private static <K,V> void loadSegment(DemoConcurrentHashMap<K,V> map, FileChannel ch,
+                                          long offset, long bytes, long count,
+                                          DemoMapSerializer<? extends K> keySerializer,
+                                          DemoMapSerializer<? extends V> valueSerializer) {
+        long entry = offset;
+        try {
+            Cursor in = new Cursor(ch, FileChannel.MapMode.READ_ONLY, offset, offset + bytes);
+            for (long c = 0; c < count; c++) {
+                entry = in.position();
+                // 长度最多5字节，先保证能读出长度，再保证整条记录在窗口内
+                ByteBuffer buf = in.ensure(5);
+                int mark = buf.position();
+                int kl = getLength(buf);
+                int klen = buf.position() - mark;
+                checkLength(in, mark, klen, kl, entry);
+                buf = in.ensureFrom(mark, (int)Math.min(Integer.MAX_VALUE, (long)klen + kl + 5));
+                buf.position(buf.position() + klen);
+                K k = readExactly(keySerializer, buf, kl);
+                mark = buf.position();
+                int vl = getLength(buf);
+                int vlen = buf.position() - mark;
+                checkLength(in, mark, vlen, vl, entry);
+                buf = in.ensureFrom(mark, vlen + vl);
+                buf.position(buf.position() + vlen);
+                V v = readExactly(valueSerializer, buf, vl);
+                map.put(k, v);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (BufferUnderflowException | IllegalStateException | IllegalArgumentException |
+                IndexOutOfBoundsException e) {
+            // 长度或者内容损坏，读过了段尾或者解码失败
+            throw new UncheckedIOException(new IOException(
+                    "corrupt snapshot entry at offset " + entry + ": " + e, e));
+        }
+    }
+
+    /**
+     * 长度损坏时可能非常大，不检查的话klen + kl会溢出，序列化器还会按它分配数组；
+     * 在分配之前按long和段里剩下的字节数比较，超出就是坏记录
+     * @param mark 长度字段在窗口里的位置
+     * @param lengthBytes 长度字段本身的字节数
+     */
+    private static void checkLength(Cursor in, int mark, int lengthBytes, int length, long entry)
+            throws IOException {
+        long left = in.limit - (in.base + mark) - lengthBytes;
+        if (length > left)
+            throw new IOException("corrupt record at offset " + entry + ": length " + length +
+                    ", only " + left + " bytes left in the segment");
+    }
+
+    private static <T> T readExactly(DemoMapSerializer<? extends T> s, ByteBuffer buf, int length) {
+        int start = buf.position();
+        T t = s.read(buf, length);
+        if (buf.position() != start + length)
+            throw new IllegalStateException("serializer consumed " + (buf.position() - start) +
+                    " bytes, expected " + length);
+        return t;
+    }
+
+    private static int getLength(ByteBuffer buf) {
+        int len = getVarInt(buf);
+        if (len < 0)
+            throw new IllegalStateException("negative length " + len);
+        return len;
+    }
+
+    static void putVarInt(ByteBuffer buf, int v) {
+        while ((v & ~0x7f) != 0) {
+            buf.put((byte)((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        buf.put((byte)v);
+    }
+
+    static int getVarInt(ByteBuffer buf) {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buf.get();
+            v |= (b & 0x7f) << shift;
+            if (b >= 0)
+                return v;
+        }
+        throw new IllegalStateException("malformed varint");
+    }
+
+    /**
+     * 文件上的滚动映射窗口，剩余空间不够时从当前位置重新映射
+     */
+    static final class Cursor {
+        final FileChannel ch;
+        final FileChannel.MapMode mode;
+        final long limit;
+        long base;
+        MappedByteBuffer buf;
+
+        Cursor(FileChannel ch, FileChannel.MapMode mode, long position, long limit) {
+            this.ch = ch;
+            this.mode = mode;
+            this.base = position;
+            this.limit = limit;
+        }
+
+        long position() {
+            return base + (buf == null ? 0 : buf.position());
+        }
+
+        /**
+         * 保证从当前位置起至少有bytes个字节可用(读的时候不超过limit)
+         */
+        ByteBuffer ensure(int bytes) throws IOException {
+            if (buf == null || buf.remaining() < bytes)
+                remap(position(), bytes);
+            return buf;
+        }
+
+        /**
+         * 保证从窗口内的mark处起至少有bytes个字节可用，返回的buffer位置在mark处对应的位置
+         */
+        ByteBuffer ensureFrom(int mark, int bytes) throws IOException {
+            if (buf.limit() - mark < bytes)
+                remap(base + mark, bytes);
+            else
+                buf.position(mark);
+            return buf;
+        }
+
+        private void remap(long pos, int bytes) throws IOException {
+            if (buf != null && mode == FileChannel.MapMode.READ_WRITE)
+                buf.force();
+            long size = Math.max(WINDOW_SIZE, bytes);
+            if (limit != Long.MAX_VALUE)
+                size = Math.min(size, limit - pos);
+            buf = ch.map(mode, pos, size);
+            base = pos;
+        }
+
+        void force() {
+            if (buf != null)
+                buf.force();
+        }
+    }
+}
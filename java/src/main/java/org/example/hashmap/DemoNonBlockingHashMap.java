@@ -0,0 +1,850 @@
+package org.example.hashmap;
+
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * 无锁的开放寻址并发map，思路来自Cliff Click的NonBlockingHashMap，
+ * 跟DemoConcurrentHashMap实现同一个DemoConcurrentMap接口，可以互相替换
+ *
+ * 跟DemoConcurrentHashMap的区别：
+ * 1. 没有链表和槽锁，key和value直接放在同一个数组里，key槽和value槽分别CAS，写线程之间不会互相阻塞
+ * 2. key槽一旦被占就不再改变，删除只是把value换成TOMBSTONE，同一个key再放入时复用原来的槽
+ * 3. 探测次数太多或者表快满时分配新表，所有线程一边读写一边按块协助复制，
+ *    value被复制前先包成Prime，看到Prime的线程先帮忙把这个槽复制过去，再去新表操作
+ * compute/merge没有槽锁可以独占key，用get加CAS重试实现：结果是原子写入的，
+ * 但有竞争时函数可能执行多次，不能有副作用，这一点跟ConcurrentMap的默认实现一样
+ *
+ * 数组布局：kvs[0]是这张表的Control，kvs[1]是缓存的完整哈希值，
+ * 之后第i个槽的key在kvs[2 + 2 * i]，value在kvs[3 + 2 * i]
+ */
+public class DemoNonBlockingHashMap<K,V> implements DemoConcurrentMap<K,V> {
+
+    private static final int MIN_SIZE_LOG = 3;
+
+    private static final int DEFAULT_CAPACITY = 32;
+
+    // 探测超过REPROBE_LIMIT + len/4次就认为表太挤了
+    private static final int REPROBE_LIMIT = 10;
+
+    // 每个线程一次领取的复制槽数上限
+    private static final int MIN_COPY_WORK = 1024;
+
+    /**
+     * 正在复制到新表的value，包一层以后旧表里这个槽就不能再被修改了
+     * TOMBPRIME表示这个槽已经复制完(或者本来就是空的)
+     */
+    static final class Prime {
+        final Object v;
+        Prime(Object v) {
+            this.v = v;
+        }
+    }
+
+    // putIfMatch的expVal：不关心旧值
+    static final Object NO_MATCH_OLD = new Object();
+
+    // putIfMatch的expVal：旧值必须存在
+    static final Object MATCH_ANY = new Object();
+
+    // value槽：已删除；key槽：复制时封掉的空槽，不能再放入
+    static final Object TOMBSTONE = new Object();
+
+    static final Prime TOMBPRIME = new Prime(TOMBSTONE);
+
+    /**
+     * 每张表自己的状态
+     */
+    static final class Control {
+        // 元素个数，扩容时新旧表共用同一个计数器
+        final LongAdder size;
+        // clear换上来的空表：从旧表复制过来时所有值都丢掉
+        final boolean cleared;
+        // 已经被占的key槽数，包括删除后只剩TOMBSTONE的
+        final LongAdder slots = new LongAdder();
+        volatile Object[] newkvs;
+        // 正在分配新表的线程数
+        volatile long resizers;
+        // 下一个要领取的复制位置
+        volatile long copyIdx;
+        // 已经复制完的槽数
+        volatile long copyDone;
+
+        Control(LongAdder size, boolean cleared) {
+            this.size = size;
+            this.cleared = cleared;
+        }
+
+        /**
+         * 没找到空槽或者探测太多次时，判断是不是该换更大的表了
+         */
+        boolean tableFull(int reprobes, int len) {
+            return reprobes >= REPROBE_LIMIT &&
+                    (reprobes >= reprobeLimit(len) || slots.sum() >= (len >> 1));
+        }
+
+        /**
+         * 分配新表，已经有新表时直接返回
+         */
+        Object[] resize(DemoNonBlockingHashMap<?,?> topmap, Object[] kvs) {
+            Object[] newkvs = this.newkvs;
+            if (newkvs != null)
+                return newkvs;
+            int oldlen = len(kvs);
+            long sz = size.sum();
+            long newsz = sz;
+            // 元素超过1/4就翻倍，超过一半就翻4倍
+            if (sz >= (oldlen >> 2)) {
+                newsz = oldlen << 1;
+                if (sz >= (oldlen >> 1))
+                    newsz = oldlen << 2;
+            }
+            // 大部分槽是TOMBSTONE而且刚换过表，说明在不停地放入删除不同的key，换成同样大小的表只能撑一会儿，也翻倍
+            long now = System.currentTimeMillis();
+            if (newsz <= oldlen && now <= topmap.lastResize + 10000 && slots.sum() >= (sz << 1))
+                newsz = oldlen << 1;
+            if (newsz < oldlen)
+                newsz = oldlen;
+            int log2;
+            for (log2 = MIN_SIZE_LOG; (1L << log2) < newsz; log2++)
+                ;
+            long len = ((1L << log2) << 1) + 2;
+            if ((int)len != len)
+                throw new IllegalStateException("Table is full.");
+            long r;
+            while (!U.compareAndSwapLong(this, RESIZERS, r = resizers, r + 1))
+                ;
+            // 已经有两个以上线程在分配大表，等一会儿，多半别人会先分配好，省得每个线程都分配一张再丢掉
+            long megs = ((((1L << log2) << 1) + 8) << 3) >> 20;
+            if (r >= 2 && megs > 0) {
+                if ((newkvs = this.newkvs) != null)
+                    return newkvs;
+                try {
+                    Thread.sleep(megs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if ((newkvs = this.newkvs) != null)
+                return newkvs;
+            newkvs = new Object[(int)len];
+            newkvs[0] = new Control(size, false);
+            newkvs[1] = new int[1 << log2];
+            if (this.newkvs != null)
+                return this.newkvs;
+            if (!U.compareAndSwapObject(this, NEWKVS, null, newkvs))
+                newkvs = this.newkvs;
+            return newkvs;
+        }
+
+        /**
+         * 协助复制，copyAll为false时只领取一块就返回
+         */
+        void helpCopyImpl(DemoNonBlockingHashMap<?,?> topmap, Object[] oldkvs, boolean copyAll) {
+            Object[] newkvs = this.newkvs;
+            int oldlen = len(oldkvs);
+            int work = Math.min(oldlen, MIN_COPY_WORK);
+            // 所有块都被领完了还没复制完，说明有线程领了块之后停住了，这时候从头扫一遍所有槽
+            int panicStart = -1;
+            int copyidx = 0;
+            while (copyDone < oldlen) {
+                if (panicStart == -1) {
+                    copyidx = (int)copyIdx;
+                    while (copyidx < (oldlen << 1) &&
+                            !U.compareAndSwapLong(this, COPYIDX, copyidx, copyidx + work))
+                        copyidx = (int)copyIdx;
+                    if (!(copyidx < (oldlen << 1)))
+                        panicStart = copyidx;
+                }
+                int workdone = 0;
+                for (int i = 0; i < work; i++)
+                    if (copySlot(topmap, (copyidx + i) & (oldlen - 1), oldkvs, newkvs))
+                        workdone++;
+                if (workdone > 0)
+                    copyCheckAndPromote(topmap, oldkvs, workdone);
+                copyidx += work;
+                if (!copyAll && panicStart == -1)
+                    return;
+            }
+            // 可能别的线程复制完了但还没来得及把新表换上去
+            copyCheckAndPromote(topmap, oldkvs, 0);
+        }
+
+        /**
+         * 复制一个槽，返回新表，读写线程碰到Prime时调用
+         * @param shouldHelp 为null时只复制这一个槽(复制过程中的内部调用)，否则顺便领一块复制
+         */
+        Object[] copySlotAndCheck(DemoNonBlockingHashMap<?,?> topmap, Object[] oldkvs, int idx,
+                                  Object shouldHelp) {
+            Object[] newkvs = this.newkvs;
+            if (copySlot(topmap, idx, oldkvs, newkvs))
+                copyCheckAndPromote(topmap, oldkvs, 1);
+            return (shouldHelp == null) ? newkvs : topmap.helpCopy(newkvs);
+        }
+
+        /**
+         * 累计复制完的槽数，全部复制完时把新表换成topmap的当前表
+         */
+        void copyCheckAndPromote(DemoNonBlockingHashMap<?,?> topmap, Object[] oldkvs, int workdone) {
+            int oldlen = len(oldkvs);
+            long copyDone = this.copyDone;
+            if (workdone > 0) {
+                while (!U.compareAndSwapLong(this, COPYDONE, copyDone, copyDone + workdone))
+                    copyDone = this.copyDone;
+            }
+            if (copyDone + workdone == oldlen && topmap.kvs == oldkvs &&
+                    U.compareAndSwapObject(topmap, KVS, oldkvs, newkvs))
+                topmap.lastResize = System.currentTimeMillis();
+        }
+
+        /**
+         * 把旧表的一个槽复制到新表，返回这次调用是否完成了这个槽的复制
+         * 1. 空key槽CAS成TOMBSTONE，之后不能再被占
+         * 2. value包成Prime，之后旧表里这个槽不能再被修改
+         * 3. 只在新表这个key还没有value时放入，新表里已经有值说明是更新的写入，保留新表的
+         * 4. value换成TOMBPRIME，表示复制完成
+         * 新表是clear换上来的时候，第2步直接换成TOMBPRIME，旧值不复制
+         */
+        private static boolean copySlot(DemoNonBlockingHashMap<?,?> topmap, int idx,
+                                        Object[] oldkvs, Object[] newkvs) {
+            Object key;
+            while ((key = key(oldkvs, idx)) == null)
+                casKey(oldkvs, idx, null, TOMBSTONE);
+            Object oldval = val(oldkvs, idx);
+            boolean drop = chm(newkvs).cleared;
+            while (!(oldval instanceof Prime)) {
+                Prime box = (drop || oldval == null || oldval == TOMBSTONE) ? TOMBPRIME : new Prime(oldval);
+                if (casVal(oldkvs, idx, oldval, box)) {
+                    // 空的、已删除的或者被clear丢掉的槽不用复制
+                    if (box == TOMBPRIME)
+                        return true;
+                    oldval = box;
+                    break;
+                }
+                oldval = val(oldkvs, idx);
+            }
+            if (oldval == TOMBPRIME)
+                return false;
+            Object unboxed = ((Prime)oldval).v;
+            boolean copiedIntoNew = (putIfMatch(topmap, newkvs, key, unboxed, null) == null);
+            // 不管是谁放进新表的，都标记成复制完
+            while (oldval != TOMBPRIME && !casVal(oldkvs, idx, oldval, TOMBPRIME))
+                oldval = val(oldkvs, idx);
+            return copiedIntoNew;
+        }
+    }
+
+    private transient volatile Object[] kvs;
+
+    // 上次换表的时间
+    private transient volatile long lastResize;
+
+    public DemoNonBlockingHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public DemoNonBlockingHashMap(int initialCapacity) {
+        if (initialCapacity < 0)
+            throw new IllegalArgumentException();
+        this.kvs = newTable(initialCapacity, new LongAdder(), false);
+        this.lastResize = System.currentTimeMillis();
+    }
+
+    private static Object[] newTable(int initialCapacity, LongAdder size, boolean cleared) {
+        int log2;
+        for (log2 = MIN_SIZE_LOG; (1L << log2) < ((long)initialCapacity << 2) && log2 < 30; log2++)
+            ;
+        Object[] kvs = new Object[((1 << log2) << 1) + 2];
+        kvs[0] = new Control(size, cleared);
+        kvs[1] = new int[1 << log2];
+        return kvs;
+    }
+
+    static int hash(Object key) {
+        // 开放寻址对哈希质量更敏感，按位混合得比spread更充分
+        int h = key.hashCode();
+        h += (h << 15) ^ 0xffffcd7d;
+        h ^= (h >>> 10);
+        h += (h << 3);
+        h ^= (h >>> 6);
+        h += (h << 2) + (h << 14);
+        return h ^ (h >>> 16);
+    }
+
+    static int len(Object[] kvs) {
+        return (kvs.length - 2) >> 1;
+    }
+
+    static Control chm(Object[] kvs) {
+        return (Control)kvs[0];
+    }
+
+    static int[] hashes(Object[] kvs) {
+        return (int[])kvs[1];
+    }
+
+    static int reprobeLimit(int len) {
+        return REPROBE_LIMIT + (len >> 2);
+    }
+
+    static Object key(Object[] kvs, int idx) {
+        return U.getObjectVolatile(kvs, rawIndex((idx << 1) + 2));
+    }
+
+    static Object val(Object[] kvs, int idx) {
+        return U.getObjectVolatile(kvs, rawIndex((idx << 1) + 3));
+    }
+
+    static boolean casKey(Object[] kvs, int idx, Object old, Object key) {
+        return U.compareAndSwapObject(kvs, rawIndex((idx << 1) + 2), old, key);
+    }
+
+    static boolean casVal(Object[] kvs, int idx, Object old, Object val) {
+        return U.compareAndSwapObject(kvs, rawIndex((idx << 1) + 3), old, val);
+    }
+
+    private static long rawIndex(int i) {
+        return ((long)i << ASHIFT) + ABASE;
+    }
+
+    /**
+     * 比较key，先比引用，再用缓存的哈希值过滤，最后才调equals
+     * hashes[idx]为0表示占槽的线程还没来得及写哈希值
+     */
+    private static boolean keyeq(Object k, Object key, int[] hashes, int idx, int fullhash) {
+        return k == key ||
+                ((hashes[idx] == 0 || hashes[idx] == fullhash) &&
+                        k != TOMBSTONE && key.equals(k));
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        return (V)getImpl(this, kvs, key);
+    }
+
+    private static Object getImpl(DemoNonBlockingHashMap<?,?> topmap, Object[] kvs, Object key) {
+        int fullhash = hash(key);
+        int len = len(kvs);
+        Control chm = chm(kvs);
+        int[] hashes = hashes(kvs);
+        int idx = fullhash & (len - 1);
+        int reprobes = 0;
+        for (;;) {
+            Object k = key(kvs, idx);
+            Object v = val(kvs, idx);
+            if (k == null)
+                return null;
+            // 要在读完key之后再读newkvs：没有新表时，读到的key和value一定是当前表里的
+            Object[] newkvs = chm.newkvs;
+            if (keyeq(k, key, hashes, idx, fullhash)) {
+                if (!(v instanceof Prime))
+                    return (v == TOMBSTONE) ? null : v;
+                // 正在复制，先把这个槽复制过去再去新表找
+                return getImpl(topmap, chm.copySlotAndCheck(topmap, kvs, idx, key), key);
+            }
+            // 探测太多次，或者碰到复制时封掉的槽，key不在这张表里
+            if (++reprobes >= reprobeLimit(len) || k == TOMBSTONE)
+                return (newkvs == null) ? null : getImpl(topmap, topmap.helpCopy(newkvs), key);
+            idx = (idx + 1) & (len - 1);
+        }
+    }
+
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    public boolean containsValue(Object value) {
+        if (value == null)
+            throw new NullPointerException();
+        for (Iterator<V> it = values().iterator(); it.hasNext(); ) {
+            V v = it.next();
+            if (v == value || value.equals(v))
+                return true;
+        }
+        return false;
+    }
+
+    public V put(K key, V value) {
+        return putIfMatch(key, value, NO_MATCH_OLD);
+    }
+
+    public V putIfAbsent(K key, V value) {
+        return putIfMatch(key, value, TOMBSTONE);
+    }
+
+    public void putAll(Map<? extends K, ? extends V> m) {
+        for (Map.Entry<? extends K, ? extends V> e : m.entrySet())
+            put(e.getKey(), e.getValue());
+    }
+
+    public V remove(Object key) {
+        return putIfMatch(key, TOMBSTONE, NO_MATCH_OLD);
+    }
+
+    public boolean remove(Object key, Object value) {
+        if (key == null)
+            throw new NullPointerException();
+        return value != null && eq(putIfMatch(key, TOMBSTONE, value), value);
+    }
+
+    public boolean replace(K key, V oldValue, V newValue) {
+        if (oldValue == null)
+            throw new NullPointerException();
+        return eq(putIfMatch(key, newValue, oldValue), oldValue);
+    }
+
+    public V replace(K key, V value) {
+        return putIfMatch(key, value, MATCH_ANY);
+    }
+
+    /**
+     * key不存在时才计算并放入；并发时函数可能多个线程各执行一次，只有一个结果被放入，其他线程返回放入的那个
+     */
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        if (key == null || mappingFunction == null)
+            throw new NullPointerException();
+        V v, newValue;
+        if ((v = get(key)) != null)
+            return v;
+        if ((newValue = mappingFunction.apply(key)) == null)
+            return null;
+        return ((v = putIfAbsent(key, newValue)) == null) ? newValue : v;
+    }
+
+    /**
+     * 用读到的旧值计算，再用replace/remove按旧值CAS，旧值被别人改掉了就重新读、重新计算
+     */
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        if (key == null || remappingFunction == null)
+            throw new NullPointerException();
+        V oldValue;
+        while ((oldValue = get(key)) != null) {
+            V newValue = remappingFunction.apply(key, oldValue);
+            if (newValue != null) {
+                if (replace(key, oldValue, newValue))
+                    return newValue;
+            }
+            else if (remove(key, oldValue))
+                return null;
+        }
+        return null;
+    }
+
+    /**
+     * 同computeIfPresent，旧值不存在时用putIfAbsent放入
+     */
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        if (key == null || remappingFunction == null)
+            throw new NullPointerException();
+        V oldValue = get(key);
+        for (;;) {
+            V newValue = remappingFunction.apply(key, oldValue);
+            if (newValue == null) {
+                if (oldValue == null || remove(key, oldValue))
+                    return null;
+            }
+            else if (oldValue == null) {
+                if ((oldValue = putIfAbsent(key, newValue)) == null)
+                    return newValue;
+                continue;
+            }
+            else if (replace(key, oldValue, newValue))
+                return newValue;
+            oldValue = get(key);
+        }
+    }
+
+    /**
+     * key不存在时放入value，存在时合并新旧值再按旧值CAS，结果为null则删除
+     * 计数这种场景下每次重试只是多算一次加法，比如merge(k, 1L, Long::sum)
+     */
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        if (key == null || value == null || remappingFunction == null)
+            throw new NullPointerException();
+        V oldValue = get(key);
+        for (;;) {
+            if (oldValue == null) {
+                if ((oldValue = putIfAbsent(key, value)) == null)
+                    return value;
+                continue;
+            }
+            V newValue = remappingFunction.apply(oldValue, value);
+            if (newValue != null) {
+                if (replace(key, oldValue, newValue))
+                    return newValue;
+            }
+            else if (remove(key, oldValue))
+                return null;
+            oldValue = get(key);
+        }
+    }
+
+    private static boolean eq(Object a, Object b) {
+        return a == b || (a != null && a.equals(b));
+    }
+
+    @SuppressWarnings("unchecked")
+    private V putIfMatch(Object key, Object newVal, Object oldVal) {
+        if (key == null || newVal == null || oldVal == null)
+            throw new NullPointerException();
+        Object res = putIfMatch(this, kvs, key, newVal, oldVal);
+        return (res == TOMBSTONE) ? null : (V)res;
+    }
+
+    /**
+     * 所有写操作的核心
+     * @param putval 要写入的值，TOMBSTONE表示删除
+     * @param expVal 旧值满足条件时才写入：NO_MATCH_OLD不比较，MATCH_ANY要求有值，
+     *               TOMBSTONE要求没有值，null只在复制时使用，要求这个槽从来没有值，
+     *               其他情况要求旧值equals它
+     * @return 旧值，没有旧值时返回TOMBSTONE或null
+     */
+    private static Object putIfMatch(DemoNonBlockingHashMap<?,?> topmap, Object[] kvs,
+                                     Object key, Object putval, Object expVal) {
+        int fullhash = hash(key);
+        int len = len(kvs);
+        Control chm = chm(kvs);
+        int[] hashes = hashes(kvs);
+        int idx = fullhash & (len - 1);
+        int reprobes = 0;
+        Object k, v;
+        Object[] newkvs = null;
+        // 先找到key的槽，没有就占一个空槽
+        for (;;) {
+            v = val(kvs, idx);
+            k = key(kvs, idx);
+            if (k == null) {
+                // key从来没放进过这张表，删除或replace都不用占槽
+                if (putval == TOMBSTONE)
+                    return putval;
+                if (expVal == MATCH_ANY)
+                    return null;
+                if (casKey(kvs, idx, null, key)) {
+                    chm.slots.increment();
+                    hashes[idx] = fullhash;
+                    break;
+                }
+                // 被别人占了，看看是不是同一个key
+                k = key(kvs, idx);
+            }
+            newkvs = chm.newkvs;
+            if (keyeq(k, key, hashes, idx, fullhash))
+                break;
+            if (++reprobes >= reprobeLimit(len) || k == TOMBSTONE) {
+                // 表太挤了，或者碰到了复制时封掉的槽，去新表里放
+                newkvs = chm.resize(topmap, kvs);
+                if (expVal != null)
+                    topmap.helpCopy(newkvs);
+                return putIfMatch(topmap, newkvs, key, putval, expVal);
+            }
+            idx = (idx + 1) & (len - 1);
+        }
+        if (putval == v)
+            return v;
+        // 新key把表占得太满，或者这个槽已经在复制了，都去新表
+        if (newkvs == null &&
+                ((v == null && chm.tableFull(reprobes, len)) || v instanceof Prime))
+            newkvs = chm.resize(topmap, kvs);
+        if (newkvs != null)
+            return putIfMatch(topmap, chm.copySlotAndCheck(topmap, kvs, idx, expVal),
+                    key, putval, expVal);
+        // 找到了key的槽，CAS value
+        for (;;) {
+            if (expVal != NO_MATCH_OLD && v != expVal &&
+                    (expVal != MATCH_ANY || v == TOMBSTONE || v == null) &&
+                    !(v == null && expVal == TOMBSTONE) &&
+                    (expVal == null || !expVal.equals(v)))
+                return v;
+            if (casVal(kvs, idx, v, putval)) {
+                // 复制不改变元素个数
+                if (expVal != null) {
+                    if ((v == null || v == TOMBSTONE) && putval != TOMBSTONE)
+                        chm.size.increment();
+                    if (!(v == null || v == TOMBSTONE) && putval == TOMBSTONE)
+                        chm.size.decrement();
+                }
+                return (v == null && expVal != null) ? TOMBSTONE : v;
+            }
+            v = val(kvs, idx);
+            if (v instanceof Prime)
+                return putIfMatch(topmap, chm.copySlotAndCheck(topmap, kvs, idx, expVal),
+                        key, putval, expVal);
+        }
+    }
+
+    /**
+     * 当前表正在复制时领一块帮忙复制，返回传入的helper
+     */
+    private Object[] helpCopy(Object[] helper) {
+        Object[] topkvs = kvs;
+        Control topchm = chm(topkvs);
+        if (topchm.newkvs == null)
+            return helper;
+        topchm.helpCopyImpl(this, topkvs, false);
+        return helper;
+    }
+
+    /**
+     * 换成一张新的空表，走的是扩容的复制流程，只是复制时丢掉所有值：
+     * 1. 在当前表的Control上CAS出newkvs，正在扩容时先帮忙复制完，再对换上来的表重试
+     * 2. 协助复制到结束，最后由copyCheckAndPromote把空表CAS成topmap的当前表
+     * 并发的写入要么先落在旧表上被丢掉，要么在槽被封掉以后进入新表保留下来，不会写进已经被丢弃的表里；
+     * 跟DemoConcurrentHashMap一样整体不是原子的，清空过程中的读可能还能看到旧值
+     */
+    public void clear() {
+        Object[] fresh = newTable(DEFAULT_CAPACITY, new LongAdder(), true);
+        for (;;) {
+            Object[] top = kvs;
+            Control chm = chm(top);
+            boolean mine = chm.newkvs == null && U.compareAndSwapObject(chm, NEWKVS, null, fresh);
+            chm.helpCopyImpl(this, top, true);
+            if (mine)
+                return;
+        }
+    }
+
+    public int size() {
+        long n = chm(kvs).size.sum();
+        return ((n < 0L) ? 0 :
+                (n > (long)Integer.MAX_VALUE) ? Integer.MAX_VALUE :
+                        (int)n);
+    }
+
+    public long mappingCount() {
+        long n = chm(kvs).size.sum();
+        return (n < 0L) ? 0L : n;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        if (action == null)
+            throw new NullPointerException();
+        for (SnapshotIterator it = new SnapshotIterator(); it.hasNext(); ) {
+            it.advance();
+            action.accept((K)it.prevK, it.prevV);
+        }
+    }
+
+    public Set<K> keySet() {
+        return new KeySetView();
+    }
+
+    public Collection<V> values() {
+        return new ValuesView();
+    }
+
+    public Set<Map.Entry<K,V>> entrySet() {
+        return new EntrySetView();
+    }
+
+    /**
+     * 遍历开始时如果正在复制，先帮忙复制完，然后在当时的表上遍历
+     * 遍历期间如果又开始复制，碰到Prime的槽就通过get去新表取值
+     */
+    class SnapshotIterator {
+        final Object[] sskvs;
+        int idx;
+        Object nextK, prevK;
+        V nextV, prevV;
+
+        SnapshotIterator() {
+            Object[] topkvs;
+            for (;;) {
+                topkvs = kvs;
+                Control topchm = chm(topkvs);
+                if (topchm.newkvs == null)
+                    break;
+                topchm.helpCopyImpl(DemoNonBlockingHashMap.this, topkvs, true);
+            }
+            sskvs = topkvs;
+            findNext();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void findNext() {
+            nextK = null;
+            nextV = null;
+            int len = len(sskvs);
+            while (idx < len) {
+                int i = idx++;
+                Object k = key(sskvs, i);
+                if (k == null || k == TOMBSTONE)
+                    continue;
+                Object v = val(sskvs, i);
+                if (v instanceof Prime)
+                    v = get(k);
+                else if (v == TOMBSTONE)
+                    v = null;
+                if (v != null) {
+                    nextK = k;
+                    nextV = (V)v;
+                    return;
+                }
+            }
+        }
+
+        public boolean hasNext() {
+            return nextK != null;
+        }
+
+        void advance() {
+            if (nextK == null)
+                throw new NoSuchElementException();
+            prevK = nextK;
+            prevV = nextV;
+            findNext();
+        }
+
+        public void remove() {
+            if (prevK == null)
+                throw new IllegalStateException();
+            DemoNonBlockingHashMap.this.putIfMatch(prevK, TOMBSTONE, prevV);
+            prevK = null;
+        }
+    }
+
+    final class KeyIterator extends SnapshotIterator implements Iterator<K> {
+        @SuppressWarnings("unchecked")
+        public K next() {
+            advance();
+            return (K)prevK;
+        }
+    }
+
+    final class ValueIterator extends SnapshotIterator implements Iterator<V> {
+        public V next() {
+            advance();
+            return prevV;
+        }
+    }
+
+    final class EntryIterator extends SnapshotIterator implements Iterator<Map.Entry<K,V>> {
+        @SuppressWarnings("unchecked")
+        public Map.Entry<K,V> next() {
+            advance();
+            return new MapEntry((K)prevK, prevV);
+        }
+    }
+
+    /**
+     * EntryIterator返回的键值对，setValue会写回map
+     */
+    final class MapEntry implements Map.Entry<K,V> {
+        final K key;
+        V val;
+        MapEntry(K key, V val) {
+            this.key = key;
+            this.val = val;
+        }
+        public K getKey()        { return key; }
+        public V getValue()      { return val; }
+        public int hashCode()    { return key.hashCode() ^ val.hashCode(); }
+        public String toString() { return key + "=" + val; }
+
+        public boolean equals(Object o) {
+            Object k, v; Map.Entry<?,?> e;
+            return ((o instanceof Map.Entry) &&
+                    (k = (e = (Map.Entry<?,?>)o).getKey()) != null &&
+                    (v = e.getValue()) != null &&
+                    (k == key || k.equals(key)) &&
+                    (v == val || v.equals(val)));
+        }
+
+        public V setValue(V value) {
+            if (value == null) throw new NullPointerException();
+            V v = val;
+            val = value;
+            put(key, value);
+            return v;
+        }
+    }
+
+    final class KeySetView extends AbstractSet<K> {
+        public int size()                  { return DemoNonBlockingHashMap.this.size(); }
+        public boolean isEmpty()           { return DemoNonBlockingHashMap.this.isEmpty(); }
+        public boolean contains(Object o)  { return containsKey(o); }
+        public boolean remove(Object o)    { return DemoNonBlockingHashMap.this.remove(o) != null; }
+        public Iterator<K> iterator()      { return new KeyIterator(); }
+    }
+
+    final class ValuesView extends AbstractCollection<V> {
+        public int size()                  { return DemoNonBlockingHashMap.this.size(); }
+        public boolean isEmpty()           { return DemoNonBlockingHashMap.this.isEmpty(); }
+        public boolean contains(Object o)  { return containsValue(o); }
+        public Iterator<V> iterator()      { return new ValueIterator(); }
+    }
+
+    final class EntrySetView extends AbstractSet<Map.Entry<K,V>> {
+        public int size()                  { return DemoNonBlockingHashMap.this.size(); }
+        public boolean isEmpty()           { return DemoNonBlockingHashMap.this.isEmpty(); }
+
+        public boolean contains(Object o) {
+            Object k, v, r; Map.Entry<?,?> e;
+            return ((o instanceof Map.Entry) &&
+                    (k = (e = (Map.Entry<?,?>)o).getKey()) != null &&
+                    (r = get(k)) != null &&
+                    (v = e.getValue()) != null &&
+                    (v == r || v.equals(r)));
+        }
+
+        public boolean remove(Object o) {
+            Object k, v; Map.Entry<?,?> e;
+            return ((o instanceof Map.Entry) &&
+                    (k = (e = (Map.Entry<?,?>)o).getKey()) != null &&
+                    (v = e.getValue()) != null &&
+                    DemoNonBlockingHashMap.this.remove(k, v));
+        }
+
+        public Iterator<Map.Entry<K,V>> iterator() {
+            return new EntryIterator();
+        }
+    }
+
+    private static final sun.misc.Unsafe U;
+    private static final long KVS;
+    private static final long NEWKVS;
+    private static final long RESIZERS;
+    private static final long COPYIDX;
+    private static final long COPYDONE;
+    private static final long ABASE;
+    private static final int ASHIFT;
+
+    static {
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            U = (Unsafe) field.get(null);
+            KVS = U.objectFieldOffset
+                    (DemoNonBlockingHashMap.class.getDeclaredField("kvs"));
+            Class<?> ck = Control.class;
+            NEWKVS = U.objectFieldOffset(ck.getDeclaredField("newkvs"));
+            RESIZERS = U.objectFieldOffset(ck.getDeclaredField("resizers"));
+            COPYIDX = U.objectFieldOffset(ck.getDeclaredField("copyIdx"));
+            COPYDONE = U.objectFieldOffset(ck.getDeclaredField("copyDone"));
+            Class<?> ak = Object[].class;
+            ABASE = U.arrayBaseOffset(ak);
+            int scale = U.arrayIndexScale(ak);
+            if ((scale & (scale - 1)) != 0)
+                throw new Error("data type scale not a power of two");
+            ASHIFT = 31 - Integer.numberOfLeadingZeros(scale);
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+}
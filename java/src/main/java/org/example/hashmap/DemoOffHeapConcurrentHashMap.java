@@ -0,0 +1,261 @@
+package org.example.hashmap;
+
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * value存放在堆外的DemoConcurrentHashMap
+ * 哈希表、加锁和扩容都直接复用DemoConcurrentHashMap，Node里的value换成只有地址和长度的Slot，
+ * value的字节放在DemoSlabAllocator管理的堆外slab里，GC只需要扫描key和很小的Slot
+ *
+ * 每个key只在第一次放入时新建Slot，之后覆盖写都在原来的Slot上改地址和长度，不产生新对象
+ * Slot带一个版本号，做法同seqlock：写的时候先改成奇数，改完地址和长度再改回偶数
+ * 读不加锁：读到偶数版本后读地址和长度，先确认版本没变(地址和长度是同一次写入的)再复制字节，
+ * 复制完再确认一次版本没变，变了说明复制期间地址被换掉或者内存被释放复用了，重读
+ */
+public class DemoOffHeapConcurrentHashMap<K> {
+
+    private static final sun.misc.Unsafe U;
+
+    static {
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            U = (Unsafe) field.get(null);
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+
+    /**
+     * 一个key对应的堆外value的位置，覆盖写时在synchronized(this)下原地修改
+     */
+    static final class Slot {
+        // 偶数表示稳定，奇数表示正在修改；被删除后永远是奇数，所以持有锁时看到奇数就是已删除
+        volatile long version;
+        volatile long address;
+        volatile int length;
+
+        Slot(long address, int length) {
+            this.address = address;
+            this.length = length;
+        }
+
+        boolean removed() {
+            return (version & 1L) != 0;
+        }
+    }
+
+    private final DemoConcurrentHashMap<K, Slot> map = new DemoConcurrentHashMap<K, Slot>();
+
+    private final DemoSlabAllocator allocator;
+
+    public DemoOffHeapConcurrentHashMap() {
+        this(new DemoSlabAllocator());
+    }
+
+    public DemoOffHeapConcurrentHashMap(DemoSlabAllocator allocator) {
+        this.allocator = allocator;
+    }
+
+    public void put(K key, byte[] value) {
+        put(key, value, 0, value.length);
+    }
+
+    public void put(K key, byte[] value, int off, int len) {
+        if (key == null || value == null)
+            throw new NullPointerException();
+        if (off < 0 || len < 0 || off + len > value.length)
+            throw new IndexOutOfBoundsException();
+        long address = allocator.allocate(len);
+        allocator.write(address, value, off, len);
+        store(key, address, len);
+    }
+
+    /**
+     * 放入src的[position, limit)，不改变src的position
+     */
+    public void put(K key, ByteBuffer value) {
+        if (key == null || value == null)
+            throw new NullPointerException();
+        int len = value.remaining();
+        long address = allocator.allocate(len);
+        allocator.write(address, value);
+        store(key, address, len);
+    }
+
+    /**
+     * 字节已经写好，把key指向[address, address + len)，释放旧的内存
+     */
+    private void store(K key, long address, int len) {
+        for (;;) {
+            Slot s = map.get(key);
+            if (s == null) {
+                // 第一次放入才新建Slot，put是volatile写，读线程拿到Slot时一定能看到已经写好的字节
+                if ((s = map.putIfAbsent(key, new Slot(address, len))) == null)
+                    return;
+            }
+            long oldAddress;
+            int oldLength;
+            synchronized (s) {
+                if (s.removed())
+                    // 拿到Slot之后它被删除了，重新找
+                    continue;
+                long v = s.version;
+                oldAddress = s.address;
+                oldLength = s.length;
+                s.version = v + 1;
+                s.address = address;
+                s.length = len;
+                s.version = v + 2;
+            }
+            // 版本号已经变了，还在复制旧地址的读线程会重试，可以回收
+            allocator.free(oldAddress, oldLength);
+            return;
+        }
+    }
+
+    /**
+     * 把value复制到dst的position处并后移position
+     * @return value的长度，key不存在返回-1
+     * @throws BufferOverflowException dst剩余空间不够
+     * @throws java.nio.ReadOnlyBufferException dst是只读的
+     */
+    public int get(Object key, ByteBuffer dst) {
+        for (;;) {
+            Slot s = map.get(key);
+            if (s == null)
+                return -1;
+            long v = s.version;
+            if ((v & 1L) != 0)
+                // 正在修改或者已经删除
+                continue;
+            long address = s.address;
+            int len = s.length;
+            // 地址和长度分两次读，中间可能被store换掉，拿到的是新地址配旧长度；
+            // 先确认这一对是同一个版本的，再按长度检查空间和复制，否则可能复制到别的块甚至slab外面
+            U.loadFence();
+            if (s.version != v)
+                continue;
+            if (dst.remaining() < len)
+                throw new BufferOverflowException();
+            int pos = dst.position();
+            allocator.read(address, dst, len);
+            // 复制是普通读，没有屏障的话可能重排到下面读版本号之后，读到撕裂的数据也能通过校验
+            U.loadFence();
+            if (s.version == v)
+                return len;
+            // 复制期间被替换或删除了，内存可能已被复用，重读
+            dst.position(pos);
+        }
+    }
+
+    /**
+     * 复制到dst[off]开始的位置
+     * @return value的长度，key不存在返回-1
+     */
+    public int get(Object key, byte[] dst, int off) {
+        for (;;) {
+            Slot s = map.get(key);
+            if (s == null)
+                return -1;
+            long v = s.version;
+            if ((v & 1L) != 0)
+                continue;
+            long address = s.address;
+            int len = s.length;
+            U.loadFence();
+            if (s.version != v)
+                continue;
+            if (off < 0 || dst.length - off < len)
+                throw new BufferOverflowException();
+            allocator.read(address, dst, off, len);
+            U.loadFence();
+            if (s.version == v)
+                return len;
+        }
+    }
+
+    /**
+     * 返回value的副本，会分配byte[]，热点路径建议用get(key, dst)
+     */
+    public byte[] get(Object key) {
+        for (;;) {
+            Slot s = map.get(key);
+            if (s == null)
+                return null;
+            long v = s.version;
+            if ((v & 1L) != 0)
+                continue;
+            long address = s.address;
+            int len = s.length;
+            U.loadFence();
+            if (s.version != v)
+                continue;
+            byte[] b = new byte[len];
+            allocator.read(address, b, 0, b.length);
+            U.loadFence();
+            if (s.version == v)
+                return b;
+        }
+    }
+
+    /**
+     * @return value的长度，key不存在返回-1
+     */
+    public int valueLength(Object key) {
+        Slot s = map.get(key);
+        return s == null ? -1 : s.length;
+    }
+
+    public boolean containsKey(Object key) {
+        return map.containsKey(key);
+    }
+
+    public boolean remove(Object key) {
+        for (;;) {
+            Slot s = map.get(key);
+            if (s == null)
+                return false;
+            synchronized (s) {
+                if (s.removed())
+                    continue;
+                // 先从map里摘掉，再把版本号改成奇数，读线程看到后重新查map会发现key已经不在了
+                if (!map.remove(key, s))
+                    continue;
+                s.version = s.version + 1;
+                allocator.free(s.address, s.length);
+                return true;
+            }
+        }
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public long mappingCount() {
+        return map.mappingCount();
+    }
+
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    /**
+     * 已经申请的堆外内存字节数
+     */
+    public long offHeapBytes() {
+        return allocator.reservedBytes();
+    }
+
+    /**
+     * 释放堆外内存，之后不能再使用
+     */
+    public void close() {
+        allocator.close();
+    }
+}
@@ -0,0 +1,497 @@
+package org.example.hashmap;
+
+import java.util.function.BiConsumer;
+
+/**
+ * 持久化(不可变)的map，哈希数组映射前缀树(HAMT)，结构参考Clojure的PersistentHashMap
+ *
+ * 每次with/without不修改原来的map，而是返回一个新map：只复制从根到被修改元素路径上的节点，
+ * 最多7层，其余节点新旧两个版本共享，所以更新的开销是O(log32 n)，不用整个复制
+ * map本身就是不可变的，拿到的引用就是一个快照，读线程不需要加锁；
+ * 写线程生成新版本后放进volatile字段或AtomicReference发布即可
+ *
+ * 批量更新用asTransient()得到Transient，在它上面put/remove时，
+ * 第一次修改某个节点会复制一份归这个Transient所有，之后原地修改，不再每次复制；
+ * persistent()用O(1)的代价把当前内容变成不可变的map，之后这个Transient不能再用
+ *
+ * 节点：
+ * BitmapIndexedNode：32位bitmap表示哪些子槽有内容，array里紧凑地放着key/value对，
+ *                    key为null时value位置放的是下一层的节点
+ * CollisionNode：哈希值完全相同的key放在一起，线性查找
+ * null key单独存放
+ */
+public final class DemoPersistentHashMap<K, V> {
+
+    // 每层用哈希值的5位
+    static final int BITS = 5;
+
+    static final int MASK = (1 << BITS) - 1;
+
+    @SuppressWarnings("rawtypes")
+    static final DemoPersistentHashMap EMPTY = new DemoPersistentHashMap<>(0, null, false, null);
+
+    // 查找不到时的返回值，跟任何value都不相等
+    static final Object NOT_FOUND = new Object();
+
+    final int size;
+
+    // 空map时为null
+    final Node root;
+
+    final boolean hasNull;
+
+    final V nullValue;
+
+    DemoPersistentHashMap(int size, Node root, boolean hasNull, V nullValue) {
+        this.size = size;
+        this.root = root;
+        this.hasNull = hasNull;
+        this.nullValue = nullValue;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> DemoPersistentHashMap<K, V> empty() {
+        return (DemoPersistentHashMap<K, V>)EMPTY;
+    }
+
+    /**
+     * 复制DemoHashMap的内容
+     */
+    public static <K, V> DemoPersistentHashMap<K, V> of(DemoHashMap<? extends K, ? extends V> map) {
+        Transient<K, V> t = DemoPersistentHashMap.<K, V>empty().asTransient();
+        map.forEach(t::put);
+        return t.persistent();
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        if (key == null)
+            return hasNull ? nullValue : null;
+        Object v;
+        return (root == null ||
+                (v = root.find(0, DemoHashMap.hash(key), key)) == NOT_FOUND) ? null : (V)v;
+    }
+
+    public boolean containsKey(Object key) {
+        if (key == null)
+            return hasNull;
+        return root != null && root.find(0, DemoHashMap.hash(key), key) != NOT_FOUND;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * 返回放入key之后的新map，原map不变；value没有变化时返回原map
+     */
+    public DemoPersistentHashMap<K, V> with(K key, V value) {
+        if (key == null) {
+            if (hasNull && value == nullValue)
+                return this;
+            return new DemoPersistentHashMap<>(hasNull ? size : size + 1, root, true, value);
+        }
+        boolean[] added = new boolean[1];
+        Node r = (root == null) ? BitmapIndexedNode.EMPTY : root;
+        Node newRoot = r.assoc(null, 0, DemoHashMap.hash(key), key, value, added);
+        if (newRoot == root)
+            return this;
+        return new DemoPersistentHashMap<>(added[0] ? size + 1 : size, newRoot, hasNull, nullValue);
+    }
+
+    /**
+     * 返回删除key之后的新map，原map不变；key不存在时返回原map
+     */
+    public DemoPersistentHashMap<K, V> without(Object key) {
+        if (key == null)
+            return hasNull ? new DemoPersistentHashMap<>(size - 1, root, false, null) : this;
+        if (root == null)
+            return this;
+        boolean[] removed = new boolean[1];
+        Node newRoot = root.without(null, 0, DemoHashMap.hash(key), key, removed);
+        if (!removed[0])
+            return this;
+        return new DemoPersistentHashMap<>(size - 1, newRoot, hasNull, nullValue);
+    }
+
+    public Transient<K, V> asTransient() {
+        return new Transient<>(this);
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        if (action == null)
+            throw new NullPointerException();
+        if (hasNull)
+            action.accept(null, nullValue);
+        if (root != null)
+            root.forEach((BiConsumer<Object, Object>)action);
+    }
+
+    /**
+     * 批量修改用的可变版本，只能在一个线程里使用
+     */
+    public static final class Transient<K, V> {
+
+        // 这个Transient的所有权标记，节点的edit等于它时可以原地修改；persistent()之后置为null
+        Object edit;
+        Node root;
+        int size;
+        boolean hasNull;
+        V nullValue;
+
+        Transient(DemoPersistentHashMap<K, V> map) {
+            this.edit = new Object();
+            this.root = map.root;
+            this.size = map.size;
+            this.hasNull = map.hasNull;
+            this.nullValue = map.nullValue;
+        }
+
+        private Object ensureEditable() {
+            Object e = edit;
+            if (e == null)
+                throw new IllegalStateException("Transient used after persistent() call");
+            return e;
+        }
+
+        @SuppressWarnings("unchecked")
+        public V get(Object key) {
+            ensureEditable();
+            if (key == null)
+                return hasNull ? nullValue : null;
+            Object v;
+            return (root == null ||
+                    (v = root.find(0, DemoHashMap.hash(key), key)) == NOT_FOUND) ? null : (V)v;
+        }
+
+        public boolean containsKey(Object key) {
+            ensureEditable();
+            if (key == null)
+                return hasNull;
+            return root != null && root.find(0, DemoHashMap.hash(key), key) != NOT_FOUND;
+        }
+
+        public int size() {
+            ensureEditable();
+            return size;
+        }
+
+        public Transient<K, V> put(K key, V value) {
+            Object e = ensureEditable();
+            if (key == null) {
+                if (!hasNull)
+                    ++size;
+                hasNull = true;
+                nullValue = value;
+                return this;
+            }
+            boolean[] added = new boolean[1];
+            Node r = (root == null) ? BitmapIndexedNode.EMPTY : root;
+            root = r.assoc(e, 0, DemoHashMap.hash(key), key, value, added);
+            if (added[0])
+                ++size;
+            return this;
+        }
+
+        public Transient<K, V> remove(Object key) {
+            Object e = ensureEditable();
+            if (key == null) {
+                if (hasNull) {
+                    --size;
+                    hasNull = false;
+                    nullValue = null;
+                }
+                return this;
+            }
+            if (root == null)
+                return this;
+            boolean[] removed = new boolean[1];
+            root = root.without(e, 0, DemoHashMap.hash(key), key, removed);
+            if (removed[0])
+                --size;
+            return this;
+        }
+
+        /**
+         * 把当前内容变成不可变的map，O(1)；之后节点不再归这个Transient所有，再修改会抛IllegalStateException
+         */
+        public DemoPersistentHashMap<K, V> persistent() {
+            ensureEditable();
+            edit = null;
+            return new DemoPersistentHashMap<>(size, root, hasNull, nullValue);
+        }
+    }
+
+    static int bitpos(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    abstract static class Node {
+
+        /**
+         * 找不到返回NOT_FOUND
+         */
+        abstract Object find(int shift, int hash, Object key);
+
+        /**
+         * 放入key/value，返回修改后的节点，没有变化时返回this
+         * @param edit 为null时总是复制节点；否则节点归edit所有时原地修改
+         * @param added 新增了元素时置为true
+         */
+        abstract Node assoc(Object edit, int shift, int hash, Object key, Object val, boolean[] added);
+
+        /**
+         * 删除key，返回修改后的节点，节点变空时返回null
+         * @param removed 删除了元素时置为true
+         */
+        abstract Node without(Object edit, int shift, int hash, Object key, boolean[] removed);
+
+        abstract void forEach(BiConsumer<Object, Object> action);
+    }
+
+    static final class BitmapIndexedNode extends Node {
+
+        static final BitmapIndexedNode EMPTY = new BitmapIndexedNode(null, 0, new Object[0]);
+
+        final Object edit;
+        int bitmap;
+        Object[] array;
+
+        BitmapIndexedNode(Object edit, int bitmap, Object[] array) {
+            this.edit = edit;
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        Object find(int shift, int hash, Object key) {
+            int bit = bitpos(hash, shift);
+            if ((bitmap & bit) == 0)
+                return NOT_FOUND;
+            int idx = index(bit);
+            Object keyOrNull = array[2 * idx];
+            Object valOrNode = array[2 * idx + 1];
+            if (keyOrNull == null)
+                return ((Node)valOrNode).find(shift + BITS, hash, key);
+            if (key == keyOrNull || key.equals(keyOrNull))
+                return valOrNode;
+            return NOT_FOUND;
+        }
+
+        /**
+         * 节点归edit所有时返回自己，否则复制一份归edit所有
+         */
+        private BitmapIndexedNode ensureEditable(Object edit) {
+            if (edit != null && this.edit == edit)
+                return this;
+            return new BitmapIndexedNode(edit, bitmap, array.clone());
+        }
+
+        private BitmapIndexedNode editAndSet(Object edit, int i, Object a) {
+            BitmapIndexedNode editable = ensureEditable(edit);
+            editable.array[i] = a;
+            return editable;
+        }
+
+        private BitmapIndexedNode editAndSet(Object edit, int i, Object a, int j, Object b) {
+            BitmapIndexedNode editable = ensureEditable(edit);
+            editable.array[i] = a;
+            editable.array[j] = b;
+            return editable;
+        }
+
+        Node assoc(Object edit, int shift, int hash, Object key, Object val, boolean[] added) {
+            int bit = bitpos(hash, shift);
+            int idx = index(bit);
+            if ((bitmap & bit) != 0) {
+                Object keyOrNull = array[2 * idx];
+                Object valOrNode = array[2 * idx + 1];
+                if (keyOrNull == null) {
+                    // 下一层
+                    Node n = ((Node)valOrNode).assoc(edit, shift + BITS, hash, key, val, added);
+                    if (n == valOrNode)
+                        return this;
+                    return editAndSet(edit, 2 * idx + 1, n);
+                }
+                if (key == keyOrNull || key.equals(keyOrNull)) {
+                    // 替换value
+                    if (val == valOrNode)
+                        return this;
+                    return editAndSet(edit, 2 * idx + 1, val);
+                }
+                // 同一个子槽里已经有别的key，两个key一起放到下一层
+                added[0] = true;
+                return editAndSet(edit, 2 * idx, null, 2 * idx + 1,
+                        createNode(edit, shift + BITS, keyOrNull, valOrNode, hash, key, val));
+            }
+            // 插入新的key/value对，数组长度加2
+            int n = Integer.bitCount(bitmap);
+            Object[] newArray = new Object[2 * (n + 1)];
+            System.arraycopy(array, 0, newArray, 0, 2 * idx);
+            newArray[2 * idx] = key;
+            newArray[2 * idx + 1] = val;
+            System.arraycopy(array, 2 * idx, newArray, 2 * (idx + 1), 2 * (n - idx));
+            added[0] = true;
+            if (edit != null && this.edit == edit) {
+                this.bitmap |= bit;
+                this.array = newArray;
+                return this;
+            }
+            return new BitmapIndexedNode(edit, bitmap | bit, newArray);
+        }
+
+        Node without(Object edit, int shift, int hash, Object key, boolean[] removed) {
+            int bit = bitpos(hash, shift);
+            if ((bitmap & bit) == 0)
+                return this;
+            int idx = index(bit);
+            Object keyOrNull = array[2 * idx];
+            Object valOrNode = array[2 * idx + 1];
+            if (keyOrNull == null) {
+                Node n = ((Node)valOrNode).without(edit, shift + BITS, hash, key, removed);
+                if (n == valOrNode)
+                    return this;
+                if (n != null)
+                    return editAndSet(edit, 2 * idx + 1, n);
+                if (bitmap == bit)
+                    return null;
+                return removePair(edit, bit, idx);
+            }
+            if (key == keyOrNull || key.equals(keyOrNull)) {
+                removed[0] = true;
+                if (bitmap == bit)
+                    return null;
+                return removePair(edit, bit, idx);
+            }
+            return this;
+        }
+
+        private Node removePair(Object edit, int bit, int idx) {
+            int n = Integer.bitCount(bitmap);
+            Object[] newArray = new Object[2 * (n - 1)];
+            System.arraycopy(array, 0, newArray, 0, 2 * idx);
+            System.arraycopy(array, 2 * (idx + 1), newArray, 2 * idx, 2 * (n - idx - 1));
+            if (edit != null && this.edit == edit) {
+                this.bitmap ^= bit;
+                this.array = newArray;
+                return this;
+            }
+            return new BitmapIndexedNode(edit, bitmap ^ bit, newArray);
+        }
+
+        void forEach(BiConsumer<Object, Object> action) {
+            Object[] a = array;
+            for (int i = 0; i < a.length; i += 2) {
+                if (a[i] == null)
+                    ((Node)a[i + 1]).forEach(action);
+                else
+                    action.accept(a[i], a[i + 1]);
+            }
+        }
+    }
+
+    /**
+     * 两个key在当前层之后的某一层分开；哈希值完全相同时放进CollisionNode
+     */
+    static Node createNode(Object edit, int shift, Object key1, Object val1,
+                           int key2hash, Object key2, Object val2) {
+        int key1hash = DemoHashMap.hash(key1);
+        if (key1hash == key2hash)
+            return new CollisionNode(edit, key1hash, new Object[] {key1, val1, key2, val2});
+        boolean[] added = new boolean[1];
+        return BitmapIndexedNode.EMPTY
+                .assoc(edit, shift, key1hash, key1, val1, added)
+                .assoc(edit, shift, key2hash, key2, val2, added);
+    }
+
+    static final class CollisionNode extends Node {
+
+        final Object edit;
+        final int hash;
+        Object[] array;
+
+        CollisionNode(Object edit, int hash, Object[] array) {
+            this.edit = edit;
+            this.hash = hash;
+            this.array = array;
+        }
+
+        int findIndex(Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key == array[i] || key.equals(array[i]))
+                    return i;
+            }
+            return -1;
+        }
+
+        Object find(int shift, int hash, Object key) {
+            if (hash != this.hash)
+                return NOT_FOUND;
+            int i = findIndex(key);
+            return (i < 0) ? NOT_FOUND : array[i + 1];
+        }
+
+        Node assoc(Object edit, int shift, int hash, Object key, Object val, boolean[] added) {
+            if (hash == this.hash) {
+                int i = findIndex(key);
+                if (i >= 0) {
+                    if (array[i + 1] == val)
+                        return this;
+                    if (edit != null && this.edit == edit) {
+                        array[i + 1] = val;
+                        return this;
+                    }
+                    Object[] newArray = array.clone();
+                    newArray[i + 1] = val;
+                    return new CollisionNode(edit, hash, newArray);
+                }
+                int n = array.length;
+                Object[] newArray = new Object[n + 2];
+                System.arraycopy(array, 0, newArray, 0, n);
+                newArray[n] = key;
+                newArray[n + 1] = val;
+                added[0] = true;
+                if (edit != null && this.edit == edit) {
+                    this.array = newArray;
+                    return this;
+                }
+                return new CollisionNode(edit, hash, newArray);
+            }
+            // 哈希值不同，套一层BitmapIndexedNode再放入
+            return new BitmapIndexedNode(edit, bitpos(this.hash, shift), new Object[] {null, this})
+                    .assoc(edit, shift, hash, key, val, added);
+        }
+
+        Node without(Object edit, int shift, int hash, Object key, boolean[] removed) {
+            int i;
+            if (hash != this.hash || (i = findIndex(key)) < 0)
+                return this;
+            removed[0] = true;
+            int n = array.length;
+            if (n == 2)
+                return null;
+            Object[] newArray = new Object[n - 2];
+            System.arraycopy(array, 0, newArray, 0, i);
+            System.arraycopy(array, i + 2, newArray, i, n - i - 2);
+            if (edit != null && this.edit == edit) {
+                this.array = newArray;
+                return this;
+            }
+            return new CollisionNode(edit, hash, newArray);
+        }
+
+        void forEach(BiConsumer<Object, Object> action) {
+            Object[] a = array;
+            for (int i = 0; i < a.length; i += 2)
+                action.accept(a[i], a[i + 1]);
+        }
+    }
+}
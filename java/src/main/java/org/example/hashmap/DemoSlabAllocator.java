@@ -0,0 +1,243 @@
+package org.example.hashmap;
+
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+/**
+ * 堆外内存的slab分配器，给DemoOffHeapConcurrentHashMap存value用
+ * 用Unsafe按slab整块申请堆外内存，块内按2的幂大小切分，
+ * 释放的块按大小挂到对应的空闲链表上，下次同样大小的申请优先复用
+ * slab申请后直到close才归还系统，所以已释放块的地址始终可读
+ */
+public class DemoSlabAllocator {
+
+    // 最小块16字节
+    static final int MIN_BLOCK_SHIFT = 4;
+
+    static final int DEFAULT_SLAB_SHIFT = 22; // 4MB
+
+    private static final sun.misc.Unsafe U;
+    private static final long BYTE_ARRAY_BASE;
+    private static final long BUFFER_ADDRESS;
+
+    static {
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            U = (Unsafe) field.get(null);
+            BYTE_ARRAY_BASE = U.arrayBaseOffset(byte[].class);
+            // DirectByteBuffer的起始地址
+            BUFFER_ADDRESS = U.objectFieldOffset
+                    (Buffer.class.getDeclaredField("address"));
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+
+    /**
+     * 某个大小的空闲块地址，用数组模拟栈
+     */
+    static final class FreeList {
+        long[] stack = new long[16];
+        int size;
+    }
+
+    private final int slabShift;
+
+    private final int slabSize;
+
+    // 下标i对应大小为1<<(i+MIN_BLOCK_SHIFT)的块
+    private final FreeList[] freeLists;
+
+    // 所有slab的起始地址，close时释放
+    private long[] slabs = new long[8];
+    private int slabCount;
+
+    // 当前slab的起始地址和已经切出去的偏移，在synchronized(this)下修改
+    private long current;
+    private int currentOffset;
+
+    private volatile boolean closed;
+
+    public DemoSlabAllocator() {
+        this(DEFAULT_SLAB_SHIFT);
+    }
+
+    /**
+     * @param slabShift 每个slab大小为1<<slabShift，也是单个value的最大长度
+     */
+    public DemoSlabAllocator(int slabShift) {
+        if (slabShift < MIN_BLOCK_SHIFT || slabShift > 30)
+            throw new IllegalArgumentException();
+        this.slabShift = slabShift;
+        this.slabSize = 1 << slabShift;
+        this.freeLists = new FreeList[slabShift - MIN_BLOCK_SHIFT + 1];
+        for (int i = 0; i < freeLists.length; i++)
+            freeLists[i] = new FreeList();
+        this.currentOffset = slabSize;
+    }
+
+    /**
+     * length对应的块大小下标
+     */
+    static int sizeClass(int length) {
+        int shift = (length <= (1 << MIN_BLOCK_SHIFT)) ? MIN_BLOCK_SHIFT :
+                32 - Integer.numberOfLeadingZeros(length - 1);
+        return shift - MIN_BLOCK_SHIFT;
+    }
+
+    public int maxLength() {
+        return slabSize;
+    }
+
+    /**
+     * 申请一个能放下length字节的块，返回块地址；length为0时返回0，不占空间
+     */
+    public long allocate(int length) {
+        if (length < 0 || length > slabSize)
+            throw new IllegalArgumentException("length: " + length);
+        if (length == 0)
+            return 0L;
+        if (closed)
+            throw new IllegalStateException("allocator closed");
+        int c = sizeClass(length);
+        FreeList fl = freeLists[c];
+        synchronized (fl) {
+            // 先看空闲链表；close清空空闲链表也在这把锁下，这里不会拿到已经释放的slab里的块
+            if (closed)
+                throw new IllegalStateException("allocator closed");
+            if (fl.size > 0)
+                return fl.stack[--fl.size];
+        }
+        int block = 1 << (c + MIN_BLOCK_SHIFT);
+        synchronized (this) {
+            // 上面检查之后可能被并发close了，新申请的slab不会再被释放
+            if (closed)
+                throw new IllegalStateException("allocator closed");
+            if (currentOffset + block > slabSize) {
+                // 当前slab剩下的部分按大小拆到空闲链表，再换一个新slab
+                recycleTail();
+                current = newSlab();
+                currentOffset = 0;
+            }
+            long address = current + currentOffset;
+            currentOffset += block;
+            return address;
+        }
+    }
+
+    /**
+     * 归还块，调用方保证块已经不会再被新的读者拿到
+     */
+    public void free(long address, int length) {
+        if (length == 0 || closed)
+            return;
+        FreeList fl = freeLists[sizeClass(length)];
+        push(fl, address);
+    }
+
+    private static void push(FreeList fl, long address) {
+        synchronized (fl) {
+            if (fl.size == fl.stack.length) {
+                long[] ns = new long[fl.size << 1];
+                System.arraycopy(fl.stack, 0, ns, 0, fl.size);
+                fl.stack = ns;
+            }
+            fl.stack[fl.size++] = address;
+        }
+    }
+
+    private void recycleTail() {
+        // 剩余空间一定是最小块的整数倍，每次切出off处对齐的最大块，
+        // off按块大小对齐时slabSize也是块大小的倍数，一定放得下
+        for (int off = currentOffset; off < slabSize; ) {
+            int c = Math.min(Integer.numberOfTrailingZeros(off) - MIN_BLOCK_SHIFT,
+                    freeLists.length - 1);
+            push(freeLists[c], current + off);
+            off += 1 << (c + MIN_BLOCK_SHIFT);
+        }
+        currentOffset = slabSize;
+    }
+
+    private long newSlab() {
+        long address = U.allocateMemory(slabSize);
+        if (slabCount == slabs.length) {
+            long[] ns = new long[slabCount << 1];
+            System.arraycopy(slabs, 0, ns, 0, slabCount);
+            slabs = ns;
+        }
+        slabs[slabCount++] = address;
+        return address;
+    }
+
+    /**
+     * 已经向系统申请的堆外内存字节数
+     */
+    public synchronized long reservedBytes() {
+        return (long)slabCount << slabShift;
+    }
+
+    public void write(long address, byte[] src, int off, int len) {
+        U.copyMemory(src, BYTE_ARRAY_BASE + off, null, address, len);
+    }
+
+    /**
+     * 把src的[position, limit)复制到address，不改变src的position
+     */
+    public void write(long address, ByteBuffer src) {
+        int len = src.remaining();
+        if (src.hasArray())
+            U.copyMemory(src.array(), BYTE_ARRAY_BASE + src.arrayOffset() + src.position(),
+                    null, address, len);
+        else if (src.isDirect())
+            U.copyMemory(U.getLong(src, BUFFER_ADDRESS) + src.position(), address, len);
+        else {
+            // 只读的堆内buffer拿不到数组，逐字节复制
+            for (int i = 0, p = src.position(); i < len; i++)
+                U.putByte(address + i, src.get(p + i));
+        }
+    }
+
+    public void read(long address, byte[] dst, int off, int len) {
+        U.copyMemory(null, address, dst, BYTE_ARRAY_BASE + off, len);
+    }
+
+    /**
+     * 把len字节复制到dst的position处，并把position后移len
+     * @throws ReadOnlyBufferException dst是只读的，跟ByteBuffer.put一样
+     */
+    public void read(long address, ByteBuffer dst, int len) {
+        // 只读的direct buffer也有地址，不检查的话Unsafe会直接写进去
+        if (dst.isReadOnly())
+            throw new ReadOnlyBufferException();
+        int pos = dst.position();
+        if (dst.hasArray())
+            U.copyMemory(null, address, dst.array(),
+                    BYTE_ARRAY_BASE + dst.arrayOffset() + pos, len);
+        else
+            U.copyMemory(address, U.getLong(dst, BUFFER_ADDRESS) + pos, len);
+        dst.position(pos + len);
+    }
+
+    /**
+     * 释放所有slab，之后不能再使用
+     */
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+        for (FreeList fl : freeLists) {
+            synchronized (fl) {
+                fl.size = 0;
+            }
+        }
+        for (int i = 0; i < slabCount; i++)
+            U.freeMemory(slabs[i]);
+        slabCount = 0;
+        currentOffset = slabSize;
+    }
+}
@@ -0,0 +1,273 @@
+package org.example.hashmap;
+
+import java.util.Arrays;
+
+/**
+ * SwissTable风格的开放寻址map，put/get/remove跟DemoHashMap一致，可以替换单线程下的DemoHashMap
+ *
+ * 跟DemoHashMap的区别：
+ * 1. 没有DemoNode，key和value交替放在一个平铺的数组里，查找不用顺着next指针跳，
+ *    同一个槽的key和value通常在同一个缓存行，命中时比分开放两个数组少一次缓存未命中
+ * 2. 每个槽有一个控制字节：最高位为0表示有元素，低7位是哈希值的h2部分；EMPTY和DELETED最高位为1
+ * 3. 8个槽为一组，一组的控制字节拼成一个long，用SWAR位运算一次比较8个槽，
+ *    只有h2相同的槽才去比较key，绝大部分不相等的key连equals都不用调
+ * 4. 按组二次探测，碰到含EMPTY的组就说明key不存在
+ * 5. 删除时如果所在组里还有EMPTY，说明没有探测序列经过这一组，直接置成EMPTY；
+ *    否则置成DELETED(墓碑)。墓碑占用的空间在扩容时回收，墓碑多时按原大小重建，不翻倍
+ */
+public class DemoSwissHashMap<K, V> {
+
+    // 一组的槽数
+    static final int GROUP_WIDTH = 8;
+
+    static final int DEFAULT_INITIAL_CAPACITY = 16;
+
+    // key和value交替放，table长度是容量的两倍，容量再大就超过数组长度上限了
+    static final int MAXIMUM_CAPACITY = 1 << 29;
+
+    // 控制字节
+    static final int EMPTY = 0x80;
+    static final int DELETED = 0xFE;
+
+    static final long LSBS = 0x0101010101010101L;
+    static final long MSBS = 0x8080808080808080L;
+    static final long ALL_EMPTY = EMPTY * LSBS;
+
+    // null key在数组里用这个对象代替
+    static final Object NULL_KEY = new Object();
+
+    // 每组8个控制字节
+    long[] ctrl;
+
+    // 第i个槽的key在table[2 * i]，value在table[2 * i + 1]
+    Object[] table;
+
+    int size;
+
+    // 还能占用多少个EMPTY槽，到0就要重建：最多用到容量的7/8，墓碑也算占用
+    int growthLeft;
+
+    public DemoSwissHashMap() {
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize 放入这么多元素之前不会扩容
+     */
+    public DemoSwissHashMap(int expectedSize) {
+        if (expectedSize < 0)
+            throw new IllegalArgumentException();
+        init(capacityFor(expectedSize));
+    }
+
+    static int capacityFor(int expectedSize) {
+        long c = Math.max(GROUP_WIDTH, (long)expectedSize * 8 / 7 + 1);
+        if (c >= MAXIMUM_CAPACITY)
+            return MAXIMUM_CAPACITY;
+        return Integer.highestOneBit((int)c - 1) << 1;
+    }
+
+    private void init(int capacity) {
+        long[] c = new long[capacity / GROUP_WIDTH];
+        Arrays.fill(c, ALL_EMPTY);
+        ctrl = c;
+        table = new Object[capacity << 1];
+        growthLeft = capacity - capacity / 8;
+    }
+
+    static int hash(Object key) {
+        // h2只有7位，取自低位，h1是剩下的高位，两部分都要混合得足够均匀
+        int h = key.hashCode() * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * 一组里控制字节等于h2的槽，每个匹配的槽对应结果里该字节的最高位
+     * 借位可能让真正匹配的槽后面的字节误报，调用方还要比较key，不影响正确性
+     */
+    static long match(long group, int h2) {
+        long x = group ^ (LSBS * h2);
+        return (x - LSBS) & ~x & MSBS;
+    }
+
+    /**
+     * 一组里的EMPTY槽：最高位是1、次低位是0的只有EMPTY
+     */
+    static long matchEmpty(long group) {
+        return group & (~group << 6) & MSBS;
+    }
+
+    /**
+     * 一组里的EMPTY或DELETED槽
+     */
+    static long matchEmptyOrDeleted(long group) {
+        return group & MSBS;
+    }
+
+    static int lowestSlot(long mask) {
+        return Long.numberOfTrailingZeros(mask) >>> 3;
+    }
+
+    private void setCtrl(int slot, int c) {
+        int g = slot >>> 3, shift = (slot & 7) << 3;
+        ctrl[g] = (ctrl[g] & ~(0xffL << shift)) | ((long)c << shift);
+    }
+
+    static Object maskNull(Object key) {
+        return (key == null) ? NULL_KEY : key;
+    }
+
+    /**
+     * 找key所在的槽，找不到返回-1
+     */
+    private int find(Object k, int h) {
+        long[] c = ctrl;
+        Object[] tab = table;
+        int mask = c.length - 1, h2 = h & 0x7f;
+        for (int g = (h >>> 7) & mask, step = 0; ; g = (g + ++step) & mask) {
+            long group = c[g];
+            for (long m = match(group, h2); m != 0; m &= m - 1) {
+                int slot = (g << 3) + lowestSlot(m);
+                Object x = tab[slot << 1];
+                if (x == k || k.equals(x))
+                    return slot;
+            }
+            // 有EMPTY说明探测序列到这里就结束了
+            if (matchEmpty(group) != 0)
+                return -1;
+            if (step > mask)
+                return -1;
+        }
+    }
+
+    /**
+     * 找可以放入的槽：沿探测序列的第一个EMPTY或DELETED
+     */
+    private int findInsertSlot(int h) {
+        long[] c = ctrl;
+        int mask = c.length - 1;
+        for (int g = (h >>> 7) & mask, step = 0; ; g = (g + ++step) & mask) {
+            long m = matchEmptyOrDeleted(c[g]);
+            if (m != 0)
+                return (g << 3) + lowestSlot(m);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        Object k = maskNull(key);
+        int slot = find(k, hash(k));
+        return (slot < 0) ? null : (V)table[(slot << 1) + 1];
+    }
+
+    public boolean containsKey(Object key) {
+        Object k = maskNull(key);
+        return find(k, hash(k)) >= 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(K key, V value) {
+        Object k = maskNull(key);
+        int h = hash(k);
+        int slot = find(k, h);
+        if (slot >= 0) {
+            V old = (V)table[(slot << 1) + 1];
+            table[(slot << 1) + 1] = value;
+            return old;
+        }
+        slot = findInsertSlot(h);
+        if (growthLeft == 0 && ctrlAt(slot) == EMPTY) {
+            // 没有空间了，重建之后重新找位置；复用墓碑不占用新空间
+            rehash();
+            slot = findInsertSlot(h);
+        }
+        if (ctrlAt(slot) == EMPTY)
+            --growthLeft;
+        setCtrl(slot, h & 0x7f);
+        table[slot << 1] = k;
+        table[(slot << 1) + 1] = value;
+        ++size;
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(Object key) {
+        Object k = maskNull(key);
+        int slot = find(k, hash(k));
+        if (slot < 0)
+            return null;
+        V old = (V)table[(slot << 1) + 1];
+        table[slot << 1] = null;
+        table[(slot << 1) + 1] = null;
+        if (matchEmpty(ctrl[slot >>> 3]) != 0) {
+            // 组里还有EMPTY，没有探测序列越过这一组，不需要墓碑
+            setCtrl(slot, EMPTY);
+            ++growthLeft;
+        }
+        else
+            setCtrl(slot, DELETED);
+        --size;
+        return old;
+    }
+
+    private int ctrlAt(int slot) {
+        return (int)(ctrl[slot >>> 3] >>> ((slot & 7) << 3)) & 0xff;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        int capacity = ctrl.length * GROUP_WIDTH;
+        if (size == 0 && growthLeft == capacity - capacity / 8)
+            return;
+        Arrays.fill(ctrl, ALL_EMPTY);
+        Arrays.fill(table, null);
+        size = 0;
+        growthLeft = capacity - capacity / 8;
+    }
+
+    /**
+     * 空间用完时重建：元素不到容量的7/16说明主要是墓碑，按原大小重建就能清掉墓碑；否则容量翻倍
+     */
+    private void rehash() {
+        int oldCap = ctrl.length * GROUP_WIDTH;
+        int newCap = oldCap;
+        if ((long)size * 16 > (long)oldCap * 7) {
+            if (oldCap >= MAXIMUM_CAPACITY)
+                throw new IllegalStateException("Table is full.");
+            newCap = oldCap << 1;
+        }
+        long[] oldCtrl = ctrl;
+        Object[] oldTab = table;
+        init(newCap);
+        long[] c = ctrl;
+        Object[] tab = table;
+        int mask = c.length - 1;
+        for (int g = 0; g < oldCtrl.length; g++) {
+            // 按组取出有元素的槽，新表里没有重复key，不需要比较，直接找空位
+            for (long m = ~oldCtrl[g] & MSBS; m != 0; m &= m - 1) {
+                int i = (g << 3) + lowestSlot(m);
+                Object k = oldTab[i << 1];
+                int h = hash(k);
+                int slot;
+                for (int ng = (h >>> 7) & mask, step = 0; ; ng = (ng + ++step) & mask) {
+                    long e = matchEmpty(c[ng]);
+                    if (e != 0) {
+                        slot = (ng << 3) + lowestSlot(e);
+                        break;
+                    }
+                }
+                setCtrl(slot, h & 0x7f);
+                tab[slot << 1] = k;
+                tab[(slot << 1) + 1] = oldTab[(i << 1) + 1];
+            }
+        }
+        growthLeft -= size;
+    }
+}
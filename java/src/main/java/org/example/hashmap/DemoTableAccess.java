@@ -0,0 +1,51 @@
+package org.example.hashmap;
+
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+
+/**
+ * DemoConcurrentHashMap读写table槽位的实现，Java 8版本，用Unsafe按偏移访问数组元素
+ * Java 9以上在多版本jar里换成src/main/java9下用VarHandle实现的同名类，方法签名保持一致
+ */
+final class DemoTableAccess {
+
+    private static final sun.misc.Unsafe U;
+    private static final long ABASE;
+    private static final int ASHIFT;
+
+    static {
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            U = (Unsafe) field.get(null);
+            Class<?> ak = DemoConcurrentHashMap.Node[].class;
+            // 初始偏移
+            ABASE = U.arrayBaseOffset(ak);
+            // 获取数组的每个元素大小
+            int scale = U.arrayIndexScale(ak);
+            if ((scale & (scale - 1)) != 0)
+                throw new Error("data type scale not a power of two");
+            ASHIFT = 31 - Integer.numberOfLeadingZeros(scale);
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+
+    private DemoTableAccess() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K,V> DemoConcurrentHashMap.Node<K,V> tabAt(DemoConcurrentHashMap.Node<K,V>[] tab, int i) {
+        return (DemoConcurrentHashMap.Node<K,V>)U.getObjectVolatile(tab, ((long)i << ASHIFT) + ABASE);
+    }
+
+    static <K,V> boolean casTabAt(DemoConcurrentHashMap.Node<K,V>[] tab, int i,
+                                  DemoConcurrentHashMap.Node<K,V> c, DemoConcurrentHashMap.Node<K,V> v) {
+        return U.compareAndSwapObject(tab, ((long)i << ASHIFT) + ABASE, c, v);
+    }
+
+    static <K,V> void setTabAt(DemoConcurrentHashMap.Node<K,V>[] tab, int i, DemoConcurrentHashMap.Node<K,V> v) {
+        U.putObjectVolatile(tab, ((long)i << ASHIFT) + ABASE, v);
+    }
+}
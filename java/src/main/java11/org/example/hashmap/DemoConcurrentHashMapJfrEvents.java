@@ -0,0 +1,72 @@
+package org.example.hashmap;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * DemoConcurrentHashMapMonitor的JFR事件，Java 11以上版本
+ * 由DemoConcurrentHashMapMonitor.JfrEvents按类名反射加载，Java 8的代码里不直接引用jdk.jfr
+ */
+final class DemoConcurrentHashMapJfrEvents extends DemoConcurrentHashMapMonitor.JfrEvents {
+
+    @Name("org.example.hashmap.Resize")
+    @Label("DemoConcurrentHashMap Resize")
+    @Category("DemoConcurrentHashMap")
+    static final class ResizeEvent extends Event {
+        @Label("From Length")
+        int from;
+        @Label("To Length")
+        int to;
+        @Label("Max Helpers")
+        int helpers;
+        @Label("Strides")
+        int strides;
+    }
+
+    @Name("org.example.hashmap.BinContention")
+    @Label("DemoConcurrentHashMap Bin Contention")
+    @Category("DemoConcurrentHashMap")
+    static final class BinContentionEvent extends Event {
+        @Label("Table Length")
+        int tableLength;
+        @Label("Bin Index")
+        int index;
+        @Label("Wait")
+        @Timespan
+        long waitNanos;
+    }
+
+    @Override
+    Object beginResize() {
+        ResizeEvent e = new ResizeEvent();
+        e.begin();
+        return e;
+    }
+
+    @Override
+    void commitResize(Object o, int from, int to, int helpers, int strides) {
+        ResizeEvent e = (ResizeEvent)o;
+        e.end();
+        if (e.shouldCommit()) {
+            e.from = from;
+            e.to = to;
+            e.helpers = helpers;
+            e.strides = strides;
+            e.commit();
+        }
+    }
+
+    @Override
+    void binContended(int n, int i, long wait) {
+        BinContentionEvent e = new BinContentionEvent();
+        if (e.shouldCommit()) {
+            e.tableLength = n;
+            e.index = i;
+            e.waitNanos = wait;
+            e.commit();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package org.example;
+
+import sun.misc.Unsafe;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+
+/**
+ * Unsafe和VarHandle在DemoConcurrentHashMap/DemoAbstractQueuedSynchronizer热点操作上的对比，Java 9以上
+ * 两种写法对应src/main/java下的DemoTableAccess/DemoQueueAccess和src/main/java9下的同名类：
+ * 1. 槽位读：getObjectVolatile / getAcquire
+ * 2. 槽位写：putObjectVolatile / setRelease
+ * 3. 槽位CAS：compareAndSwapObject / compareAndSet
+ * 4. AQS的state CAS：compareAndSwapInt / compareAndSet，单线程和多线程争抢
+ * 只在多版本jar里，由Main按类名反射调用：java -cp target/java-1.0-SNAPSHOT.jar org.example.Main tableAccess
+ */
+final class DemoAccessBenchmark {
+
+    private static final Unsafe U;
+    private static final long ABASE;
+    private static final int ASHIFT;
+    private static final long STATE;
+
+    private static final VarHandle TAB = MethodHandles.arrayElementVarHandle(Object[].class);
+    private static final VarHandle STATE_HANDLE;
+
+    private volatile int state;
+
+    static {
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            U = (Unsafe) field.get(null);
+            ABASE = U.arrayBaseOffset(Object[].class);
+            ASHIFT = 31 - Integer.numberOfLeadingZeros(U.arrayIndexScale(Object[].class));
+            STATE = U.objectFieldOffset(DemoAccessBenchmark.class.getDeclaredField("state"));
+            STATE_HANDLE = MethodHandles.lookup().findVarHandle(DemoAccessBenchmark.class, "state", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new Error(e);
+        }
+    }
+
+    private DemoAccessBenchmark() {
+    }
+
+    static void run() throws Exception {
+        int n = 1 << 16, passes = 1_000;
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        Object[] tab = new Object[n];
+        Object[] values = new Object[n];
+        for (int i = 0; i < n; i++)
+            values[i] = i;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            long sink = unsafeWrite(tab, values, passes);
+            long unsafeWrite = System.nanoTime() - start;
+            start = System.nanoTime();
+            sink += varHandleWrite(tab, values, passes);
+            long varHandleWrite = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            sink += unsafeRead(tab, passes);
+            long unsafeRead = System.nanoTime() - start;
+            start = System.nanoTime();
+            sink += varHandleRead(tab, passes);
+            long varHandleRead = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            sink += unsafeCas(tab, values, passes);
+            long unsafeCas = System.nanoTime() - start;
+            start = System.nanoTime();
+            sink += varHandleCas(tab, values, passes);
+            long varHandleCas = System.nanoTime() - start;
+
+            long ops = (long) n * passes;
+            System.out.printf("round %d, ns/op Unsafe vs VarHandle: read %.2f / %.2f, write %.2f / %.2f, " +
+                            "cas %.2f / %.2f (check %d)%n", round,
+                    (double) unsafeRead / ops, (double) varHandleRead / ops,
+                    (double) unsafeWrite / ops, (double) varHandleWrite / ops,
+                    (double) unsafeCas / ops, (double) varHandleCas / ops, sink);
+
+            int increments = 10_000_000;
+            for (int t : new int[] {1, threads}) {
+                DemoAccessBenchmark b = new DemoAccessBenchmark();
+                long unsafeState = contendState(t, increments, () -> {
+                    int s;
+                    do {
+                        s = b.state;
+                    } while (!U.compareAndSwapInt(b, STATE, s, s + 1));
+                });
+                long varHandleState = contendState(t, increments, () -> {
+                    int s;
+                    do {
+                        s = b.state;
+                    } while (!STATE_HANDLE.compareAndSet(b, s, s + 1));
+                });
+                System.out.printf("round %d, %d threads, state cas ns/op Unsafe vs VarHandle: %.2f / %.2f (state %d)%n",
+                        round, t, (double) unsafeState / increments, (double) varHandleState / increments, b.state);
+            }
+        }
+    }
+
+    private static long unsafeRead(Object[] tab, int passes) {
+        long sum = 0;
+        for (int p = 0; p < passes; p++) {
+            for (int i = 0; i < tab.length; i++)
+                sum += U.getObjectVolatile(tab, ((long) i << ASHIFT) + ABASE).hashCode();
+        }
+        return sum;
+    }
+
+    private static long varHandleRead(Object[] tab, int passes) {
+        long sum = 0;
+        for (int p = 0; p < passes; p++) {
+            for (int i = 0; i < tab.length; i++)
+                sum += TAB.getAcquire(tab, i).hashCode();
+        }
+        return sum;
+    }
+
+    private static long unsafeWrite(Object[] tab, Object[] values, int passes) {
+        for (int p = 0; p < passes; p++) {
+            for (int i = 0; i < tab.length; i++)
+                U.putObjectVolatile(tab, ((long) i << ASHIFT) + ABASE, values[(i + p) & (values.length - 1)]);
+        }
+        return tab[passes & (tab.length - 1)].hashCode();
+    }
+
+    private static long varHandleWrite(Object[] tab, Object[] values, int passes) {
+        for (int p = 0; p < passes; p++) {
+            for (int i = 0; i < tab.length; i++)
+                TAB.setRelease(tab, i, values[(i + p) & (values.length - 1)]);
+        }
+        return tab[passes & (tab.length - 1)].hashCode();
+    }
+
+    private static long unsafeCas(Object[] tab, Object[] values, int passes) {
+        long ok = 0;
+        for (int p = 0; p < passes; p++) {
+            for (int i = 0; i < tab.length; i++) {
+                long offset = ((long) i << ASHIFT) + ABASE;
+                if (U.compareAndSwapObject(tab, offset, U.getObjectVolatile(tab, offset),
+                        values[(i + p) & (values.length - 1)]))
+                    ok++;
+            }
+        }
+        return ok;
+    }
+
+    private static long varHandleCas(Object[] tab, Object[] values, int passes) {
+        long ok = 0;
+        for (int p = 0; p < passes; p++) {
+            for (int i = 0; i < tab.length; i++) {
+                if (TAB.compareAndSet(tab, i, TAB.getAcquire(tab, i), values[(i + p) & (values.length - 1)]))
+                    ok++;
+            }
+        }
+        return ok;
+    }
+
+    /**
+     * threads个线程一共执行increments次increment，返回耗时
+     */
+    private static long contendState(int threads, int increments, Runnable increment) throws Exception {
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < increments / threads; i++)
+                    increment.run();
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread t : workers)
+            t.start();
+        for (Thread t : workers)
+            t.join();
+        return System.nanoTime() - start;
+    }
+}
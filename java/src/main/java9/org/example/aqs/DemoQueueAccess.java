@@ -0,0 +1,67 @@
+package org.example.aqs;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * DemoAbstractQueuedSynchronizer的CAS操作，Java 9以上版本，用VarHandle代替Unsafe
+ * state/head/tail/waitStatus的CAS决定了谁拿到锁、谁负责唤醒，保持完整的volatile语义；
+ * next只是唤醒时的快捷路径，找不到还会从tail往前找，用release的弱CAS就够了
+ */
+final class DemoQueueAccess {
+
+    private static final VarHandle STATE;
+    private static final VarHandle HEAD;
+    private static final VarHandle TAIL;
+    private static final VarHandle WAITSTATUS;
+    private static final VarHandle NEXT;
+
+    static {
+        try {
+            // 字段是private的，要用AQS自己的Lookup
+            MethodHandles.Lookup l = MethodHandles.privateLookupIn(
+                    DemoAbstractQueuedSynchronizer.class, MethodHandles.lookup());
+            STATE = l.findVarHandle(DemoAbstractQueuedSynchronizer.class, "state", int.class);
+            HEAD = l.findVarHandle(DemoAbstractQueuedSynchronizer.class, "head",
+                    DemoAbstractQueuedSynchronizer.Node.class);
+            TAIL = l.findVarHandle(DemoAbstractQueuedSynchronizer.class, "tail",
+                    DemoAbstractQueuedSynchronizer.Node.class);
+            WAITSTATUS = l.findVarHandle(DemoAbstractQueuedSynchronizer.Node.class, "waitStatus",
+                    int.class);
+            NEXT = l.findVarHandle(DemoAbstractQueuedSynchronizer.Node.class, "next",
+                    DemoAbstractQueuedSynchronizer.Node.class);
+        } catch (ReflectiveOperationException ex) { throw new Error(ex); }
+    }
+
+    private DemoQueueAccess() {
+    }
+
+    static boolean compareAndSetState(DemoAbstractQueuedSynchronizer s, int expect, int update) {
+        return STATE.compareAndSet(s, expect, update);
+    }
+
+    static boolean compareAndSetHead(DemoAbstractQueuedSynchronizer s,
+                                     DemoAbstractQueuedSynchronizer.Node update) {
+        return HEAD.compareAndSet(s, (DemoAbstractQueuedSynchronizer.Node)null, update);
+    }
+
+    static boolean compareAndSetTail(DemoAbstractQueuedSynchronizer s,
+                                     DemoAbstractQueuedSynchronizer.Node expect,
+                                     DemoAbstractQueuedSynchronizer.Node update) {
+        return TAIL.compareAndSet(s, expect, update);
+    }
+
+    static boolean compareAndSetWaitStatus(DemoAbstractQueuedSynchronizer.Node node,
+                                           int expect, int update) {
+        return WAITSTATUS.compareAndSet(node, expect, update);
+    }
+
+    /**
+     * 只在取消节点时整理next链用，失败了也没关系，调用方不看结果
+     */
+    static boolean compareAndSetNext(DemoAbstractQueuedSynchronizer.Node node,
+                                     DemoAbstractQueuedSynchronizer.Node expect,
+                                     DemoAbstractQueuedSynchronizer.Node update) {
+        return NEXT.weakCompareAndSetRelease(node, expect, update);
+    }
+}
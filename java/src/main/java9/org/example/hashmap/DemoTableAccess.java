@@ -0,0 +1,33 @@
+package org.example.hashmap;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * DemoConcurrentHashMap读写table槽位的实现，Java 9以上版本，用VarHandle代替Unsafe
+ * 跟jdk9以后的ConcurrentHashMap一样：读用acquire，写用release，只有CAS是完整的volatile语义
+ * 槽位上的节点发布之后字段不会再被改成别的节点(val和next除外，它们本身是volatile)，
+ * acquire/release已经能保证读到的节点是构造完整的
+ */
+final class DemoTableAccess {
+
+    private static final VarHandle TAB =
+            MethodHandles.arrayElementVarHandle(DemoConcurrentHashMap.Node[].class);
+
+    private DemoTableAccess() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K,V> DemoConcurrentHashMap.Node<K,V> tabAt(DemoConcurrentHashMap.Node<K,V>[] tab, int i) {
+        return (DemoConcurrentHashMap.Node<K,V>)TAB.getAcquire(tab, i);
+    }
+
+    static <K,V> boolean casTabAt(DemoConcurrentHashMap.Node<K,V>[] tab, int i,
+                                  DemoConcurrentHashMap.Node<K,V> c, DemoConcurrentHashMap.Node<K,V> v) {
+        return TAB.compareAndSet(tab, i, c, v);
+    }
+
+    static <K,V> void setTabAt(DemoConcurrentHashMap.Node<K,V>[] tab, int i, DemoConcurrentHashMap.Node<K,V> v) {
+        TAB.setRelease(tab, i, v);
+    }
+}
@@ -0,0 +1,103 @@
+#!/usr/bin/env python3
+"""
+根据DemoPrimitiveHashMap.java.template生成基本类型key的map，输出到src/main/java/org/example/hashmap
+
+模板语法：
+  $name$                 替换成下面SPECS里对应的值
+  #if[flag] / #else[flag] / #end[flag]
+                         按行的条件块，flag是key类型(int、long)或者Object(value是对象)，
+                         #if[!flag]表示条件取反
+
+用法(在java目录下)：
+  python3 src/main/templates/generate_primitive_maps.py          重新生成
+  python3 src/main/templates/generate_primitive_maps.py --check  只检查提交的文件是不是最新的
+"""
+import os
+import re
+import sys
+
+HERE = os.path.dirname(os.path.abspath(__file__))
+TEMPLATE = os.path.join(HERE, "DemoPrimitiveHashMap.java.template")
+OUTPUT_DIR = os.path.join(HERE, "..", "java", "org", "example", "hashmap")
+
+KEYS = {
+    "int": {"key": "int", "Key": "Int", "Boxed": "Integer", "zero": "0"},
+    "long": {"key": "long", "Key": "Long", "Boxed": "Long", "zero": "0L"},
+}
+
+# (key类型, value是不是对象, 每个entry的字节数)
+SPECS = [
+    ("int", False, "12字节"),
+    ("int", True, "12字节(压缩指针下)"),
+    ("long", False, "20字节"),
+    ("long", True, "16字节(压缩指针下)"),
+]
+
+
+def variables(key, object_value, entry_bytes):
+    k = KEYS[key]
+    v = dict(k)
+    v["entryBytes"] = entry_bytes
+    if object_value:
+        v.update({"Class": "Demo%sObjectHashMap" % k["Key"], "Generic": "<V>", "V": "V",
+                  "slot": "Object", "cast": "(V)", "noEntry": "null"})
+    else:
+        v.update({"Class": "Demo%s%sHashMap" % (k["Key"], k["Key"]), "Generic": "", "V": key,
+                  "slot": key, "cast": "", "noEntry": "noEntryValue"})
+    flags = {key} | ({"Object"} if object_value else set())
+    return v, flags
+
+
+DIRECTIVE = re.compile(r"^#(if|else|end)\[(!?)(\w+)\]\s*$")
+
+
+def expand(template, v, flags):
+    out = []
+    # 每层条件块当前是否输出
+    stack = [True]
+    for line in template.splitlines(keepends=True):
+        m = DIRECTIVE.match(line)
+        if m:
+            op, neg, flag = m.groups()
+            cond = (flag in flags) != (neg == "!")
+            if op == "if":
+                stack.append(stack[-1] and cond)
+            elif op == "else":
+                stack[-1] = stack[-2] and not cond
+            else:
+                stack.pop()
+            continue
+        if stack[-1]:
+            out.append(re.sub(r"\$(\w+)\$", lambda g: v[g.group(1)], line))
+    if len(stack) != 1:
+        raise ValueError("unbalanced #if/#end in template")
+    return "".join(out)
+
+
+def main():
+    check = "--check" in sys.argv[1:]
+    with open(TEMPLATE, encoding="utf-8") as f:
+        template = f.read()
+    stale = []
+    for key, object_value, entry_bytes in SPECS:
+        v, flags = variables(key, object_value, entry_bytes)
+        source = expand(template, v, flags)
+        path = os.path.normpath(os.path.join(OUTPUT_DIR, v["Class"] + ".java"))
+        if check:
+            try:
+                with open(path, encoding="utf-8") as f:
+                    if f.read() != source:
+                        stale.append(path)
+            except FileNotFoundError:
+                stale.append(path)
+        else:
+            with open(path, "w", encoding="utf-8", newline="\n") as f:
+                f.write(source)
+            print("generated " + path)
+    if stale:
+        print("out of date, rerun without --check:\n  " + "\n  ".join(stale))
+        sys.exit(1)
+
+
+if __name__ == "__main__":
+    main()
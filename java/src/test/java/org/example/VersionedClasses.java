@@ -0,0 +1,31 @@
+package org.example;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * 测试直接用target/classes，不会按multi-release加载META-INF/versions下的类
+ * 这里建一个独立的类加载器，versions/N排在最前面，模拟在Java N上从多版本jar加载
+ */
+public final class VersionedClasses {
+
+    private VersionedClasses() {
+    }
+
+    /**
+     * @param testClass 用来定位target/test-classes，测试里的辅助类也由这个加载器加载
+     */
+    public static URLClassLoader loader(int version, Class<?> testClass) throws Exception {
+        Path classes = Paths.get(Main.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        Path testClasses = Paths.get(testClass.getProtectionDomain().getCodeSource().getLocation().toURI());
+        URL[] urls = {
+                classes.resolve("META-INF/versions/" + version).toUri().toURL(),
+                classes.toUri().toURL(),
+                testClasses.toUri().toURL()
+        };
+        // 父加载器是bootstrap，不会先从应用classpath上找到Java 8版本的同名类
+        return new URLClassLoader(urls, null);
+    }
+}
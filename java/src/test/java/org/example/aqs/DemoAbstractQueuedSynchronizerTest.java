@@ -0,0 +1,121 @@
+package org.example.aqs;
+
+import org.example.VersionedClasses;
+import org.junit.jupiter.api.Test;
+
+import java.lang.invoke.VarHandle;
+import java.net.URLClassLoader;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 用AQS实现的互斥锁保护一个普通计数器：Java 8的Unsafe实现和多版本jar里Java 9的VarHandle实现都不能丢更新，
+ * 条件队列的await/signal也要能配合
+ */
+class DemoAbstractQueuedSynchronizerTest {
+
+    @Test
+    void unsafeBackend() throws Exception {
+        assertEquals(sun.misc.Unsafe.class, DemoQueueAccess.class.getDeclaredField("unsafe").getType());
+        assertEquals(4 * 200_000L, Workload.count(4, 200_000));
+        assertEquals(1_000, Workload.pingPong(1_000));
+    }
+
+    @Test
+    void varHandleBackend() throws Exception {
+        try (URLClassLoader loader = VersionedClasses.loader(9, DemoAbstractQueuedSynchronizerTest.class)) {
+            Class<?> access = loader.loadClass(DemoQueueAccess.class.getName());
+            assertEquals(VarHandle.class, access.getDeclaredField("STATE").getType());
+            Class<?> workload = loader.loadClass(Workload.class.getName());
+            assertEquals(4 * 200_000L, workload.getMethod("count", int.class, int.class).invoke(null, 4, 200_000));
+            assertEquals(1_000, workload.getMethod("pingPong", int.class).invoke(null, 1_000));
+        }
+    }
+
+    public static final class Mutex extends DemoAbstractQueuedSynchronizer {
+
+        @Override
+        protected boolean tryAcquire(int arg) {
+            if (compareAndSetState(0, 1)) {
+                setExclusiveOwnerThread(Thread.currentThread());
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        protected boolean tryRelease(int arg) {
+            setExclusiveOwnerThread(null);
+            setState(0);
+            return true;
+        }
+
+        @Override
+        protected boolean isHeldExclusively() {
+            return getExclusiveOwnerThread() == Thread.currentThread();
+        }
+    }
+
+    public static final class Workload {
+
+        /**
+         * threads个线程在锁里各加perThread次，返回最后的值
+         */
+        public static long count(int threads, int perThread) throws InterruptedException {
+            Mutex mutex = new Mutex();
+            long[] counter = new long[1];
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                workers[t] = new Thread(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        mutex.acquire(1);
+                        try {
+                            counter[0]++;
+                        } finally {
+                            mutex.release(1);
+                        }
+                    }
+                });
+                workers[t].start();
+            }
+            for (Thread t : workers)
+                t.join();
+            return counter[0];
+        }
+
+        /**
+         * 两个线程用一个条件轮流加一，返回交接的次数
+         */
+        public static int pingPong(int rounds) throws InterruptedException {
+            Mutex mutex = new Mutex();
+            DemoAbstractQueuedSynchronizer.ConditionObject turn = mutex.new ConditionObject();
+            int[] value = new int[1];
+            Thread[] players = new Thread[2];
+            for (int p = 0; p < 2; p++) {
+                int parity = p;
+                players[p] = new Thread(() -> {
+                    mutex.acquire(1);
+                    try {
+                        while (value[0] < rounds) {
+                            if ((value[0] & 1) == parity) {
+                                value[0]++;
+                                turn.signal();
+                            }
+                            else
+                                turn.await();
+                        }
+                        turn.signal();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        mutex.release(1);
+                    }
+                });
+                players[p].start();
+            }
+            for (Thread t : players)
+                t.join();
+            return value[0];
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package org.example.hashmap;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DemoBoundedCacheTest {
+
+    /**
+     * 容量足够时没有淘汰，语义跟HashMap一样
+     */
+    @Test
+    void matchesHashMapBelowCapacity() {
+        DemoBoundedCache<Integer, Integer> cache = new DemoBoundedCache<>(10_000);
+        Map<Integer, Integer> expected = new HashMap<>();
+        Random random = new Random(9);
+        for (int i = 0; i < 100_000; i++) {
+            Integer k = random.nextInt(5_000), v = random.nextInt();
+            switch (random.nextInt(5)) {
+                case 0:
+                    assertEquals(expected.put(k, v), cache.put(k, v));
+                    break;
+                case 1:
+                    assertEquals(expected.putIfAbsent(k, v), cache.putIfAbsent(k, v));
+                    break;
+                case 2:
+                    assertEquals(expected.remove(k), cache.remove(k));
+                    break;
+                case 3:
+                    assertEquals(expected.computeIfAbsent(k, x -> v), cache.get(k, x -> v));
+                    break;
+                default:
+                    assertEquals(expected.get(k), cache.getIfPresent(k));
+                    break;
+            }
+        }
+        cache.cleanUp();
+        assertEquals(expected.size(), cache.estimatedSize());
+        assertEquals(0, cache.evictionCount());
+    }
+
+    @Test
+    void sizeStaysBounded() {
+        DemoBoundedCache<Integer, Integer> cache = new DemoBoundedCache<>(1_000);
+        for (int i = 0; i < 100_000; i++)
+            cache.put(i, i);
+        cache.cleanUp();
+        assertEquals(1_000, cache.estimatedSize());
+        assertEquals(99_000, cache.evictionCount());
+    }
+
+    @Test
+    void entriesExpireAfterWrite() {
+        AtomicLong now = new AtomicLong();
+        DemoBoundedCache<Integer, Integer> cache =
+                new DemoBoundedCache<>(1_000, 50, 0, TimeUnit.MILLISECONDS, now::get);
+        for (int i = 0; i < 100; i++)
+            cache.put(i, i);
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(49));
+        assertEquals(Integer.valueOf(1), cache.getIfPresent(1));
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+        assertNull(cache.getIfPresent(1));
+        assertNull(cache.putIfAbsent(2, -2));
+        assertEquals(Integer.valueOf(-2), cache.getIfPresent(2));
+        cache.cleanUp();
+        assertEquals(1, cache.estimatedSize());
+    }
+
+    /**
+     * 访问后过期：一直有读的key留下，没人读的过期
+     */
+    @Test
+    void entriesExpireAfterAccess() {
+        AtomicLong now = new AtomicLong();
+        DemoBoundedCache<Integer, Integer> cache =
+                new DemoBoundedCache<>(1_000, 0, 10, TimeUnit.SECONDS, now::get);
+        cache.put(1, 1);
+        cache.put(2, 2);
+        for (int i = 0; i < 5; i++) {
+            now.addAndGet(TimeUnit.SECONDS.toNanos(6));
+            assertEquals(Integer.valueOf(1), cache.getIfPresent(1));
+        }
+        assertNull(cache.getIfPresent(2));
+        assertNull(cache.remove(2));
+        cache.cleanUp();
+        assertEquals(1, cache.estimatedSize());
+    }
+
+    /**
+     * put和remove同时改同一个key：要么put先(remove返回新值)，要么remove先(put返回null)，
+     * 两边不能都返回put之前的旧值
+     */
+    @Test
+    void concurrentPutAndRemoveNeverReturnTheSameOldValue() throws Exception {
+        int n = 200_000;
+        DemoBoundedCache<Integer, Integer> cache = new DemoBoundedCache<>(2 * n);
+        for (int i = 0; i < n; i++)
+            cache.put(i, -1);
+        Integer[] putResults = new Integer[n], removeResults = new Integer[n];
+        Thread putter = new Thread(() -> {
+            for (int i = 0; i < n; i++)
+                putResults[i] = cache.put(i, i);
+        });
+        Thread remover = new Thread(() -> {
+            for (int i = 0; i < n; i++)
+                removeResults[i] = cache.remove(i);
+        });
+        putter.start();
+        remover.start();
+        putter.join();
+        remover.join();
+        for (int i = 0; i < n; i++) {
+            Integer p = putResults[i], r = removeResults[i];
+            boolean putFirst = Integer.valueOf(-1).equals(p) && Integer.valueOf(i).equals(r);
+            boolean removeFirst = Integer.valueOf(-1).equals(r) && p == null;
+            assertTrue(putFirst || removeFirst, "key " + i + ": put returned " + p + ", remove returned " + r);
+        }
+    }
+
+    /**
+     * Zipf分布的访问，容量只有key数的1%：W-TinyLFU的命中率要明显高于普通LRU
+     */
+    @Test
+    void beatsLruOnZipfWorkload() {
+        int items = 100_000, capacity = 1_000, ops = 1_000_000;
+        int[] trace = zipfTrace(items, 0.9, ops, 10);
+
+        DemoBoundedCache<Integer, Integer> cache = new DemoBoundedCache<>(capacity);
+        for (int k : trace) {
+            if (cache.getIfPresent(k) == null)
+                cache.put(k, k);
+        }
+        double tinyLfu = cache.hitRate();
+
+        LinkedHashMap<Integer, Integer> lru = new LinkedHashMap<Integer, Integer>(capacity * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Integer> eldest) {
+                return size() > capacity;
+            }
+        };
+        int hits = 0;
+        for (int k : trace) {
+            if (lru.get(k) != null)
+                hits++;
+            else
+                lru.put(k, k);
+        }
+        double lruRate = (double) hits / ops;
+
+        assertTrue(tinyLfu > lruRate + 0.05, "W-TinyLFU " + tinyLfu + " vs LRU " + lruRate);
+    }
+
+    /**
+     * 按Zipf分布生成访问序列，第i个key的概率正比于1 / (i + 1)^skew，key打乱后再使用
+     */
+    static int[] zipfTrace(int items, double skew, int ops, long seed) {
+        double[] cdf = new double[items];
+        double sum = 0;
+        for (int i = 0; i < items; i++) {
+            sum += 1.0 / Math.pow(i + 1, skew);
+            cdf[i] = sum;
+        }
+        Random random = new Random(seed);
+        int[] ids = new int[items];
+        for (int i = 0; i < items; i++)
+            ids[i] = i;
+        for (int i = items - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1), t = ids[i];
+            ids[i] = ids[j];
+            ids[j] = t;
+        }
+        int[] trace = new int[ops];
+        for (int i = 0; i < ops; i++) {
+            int r = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+            trace[i] = ids[Math.min(r < 0 ? -r - 1 : r, items - 1)];
+        }
+        return trace;
+    }
+
+    /**
+     * putIfAbsent命中已有key时会记一次读，读缓冲满了就做维护，维护里会淘汰节点(先bin锁后节点锁)；
+     * 另一个线程同时在删除、重新放入同一批key(也是先bin锁后节点锁)。
+     * 维护如果在持有节点锁时执行，两边加锁顺序相反，会死锁
+     */
+    @Test
+    void putIfAbsentDoesNotDeadlockWithEviction() throws Exception {
+        DemoBoundedCache<Integer, Integer> cache = new DemoBoundedCache<>(2);
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicInteger failures = new AtomicInteger();
+        Thread[] workers = new Thread[4];
+        for (int t = 0; t < workers.length; t++) {
+            boolean reader = t % 2 == 0;
+            workers[t] = new Thread(() -> {
+                try {
+                    while (!done.get()) {
+                        for (int k = 0; k < 4; k++) {
+                            if (reader) {
+                                cache.putIfAbsent(k, k);
+                            }
+                            else {
+                                cache.remove(k);
+                                cache.put(k, k);
+                            }
+                        }
+                    }
+                } catch (Throwable e) {
+                    failures.incrementAndGet();
+                }
+            });
+            workers[t].setDaemon(true);
+            workers[t].start();
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        long[] deadlocked = null;
+        while (System.nanoTime() < deadline && deadlocked == null) {
+            Thread.sleep(50);
+            deadlocked = threads.findDeadlockedThreads();
+        }
+        done.set(true);
+        for (Thread t : workers)
+            t.join(1000);
+
+        assertNull(deadlocked);
+        for (Thread t : workers)
+            assertFalse(t.isAlive());
+        assertEquals(0, failures.get());
+    }
+}
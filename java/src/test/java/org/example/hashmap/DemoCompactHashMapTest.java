@@ -0,0 +1,105 @@
+package org.example.hashmap;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DemoCompactHashMapTest {
+
+    @Test
+    void matchesHashMap() {
+        DemoCompactHashMap<Integer, Integer> map = new DemoCompactHashMap<>();
+        Map<Integer, Integer> expected = new HashMap<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 300_000; i++) {
+            // 偶尔用null作key和value
+            Integer k = random.nextInt(100) == 0 ? null : random.nextInt(20_000);
+            switch (random.nextInt(3)) {
+                case 0:
+                    Integer v = random.nextInt(50) == 0 ? null : random.nextInt();
+                    assertEquals(expected.put(k, v), map.put(k, v));
+                    break;
+                case 1:
+                    assertEquals(expected.remove(k), map.remove(k));
+                    break;
+                default:
+                    assertEquals(expected.get(k), map.get(k));
+                    assertEquals(expected.containsKey(k), map.containsKey(k));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        Map<Integer, Integer> seen = new HashMap<>();
+        map.forEach((k, v) -> {
+            assertFalse(seen.containsKey(k));
+            seen.put(k, v);
+        });
+        assertEquals(expected, seen);
+    }
+
+    /**
+     * hashCode只有4个取值的key，链表很长，扩容拆分后也都能找到
+     */
+    @Test
+    void collidingKeysMatchHashMap() {
+        DemoCompactHashMap<DemoConcurrentHashMapTest.CollidingKey, Integer> map = new DemoCompactHashMap<>();
+        Map<DemoConcurrentHashMapTest.CollidingKey, Integer> expected = new HashMap<>();
+        Random random = new Random(2);
+        for (int i = 0; i < 20_000; i++) {
+            DemoConcurrentHashMapTest.CollidingKey k =
+                    new DemoConcurrentHashMapTest.CollidingKey(random.nextInt(300), false);
+            if (random.nextInt(3) == 0)
+                assertEquals(expected.remove(k), map.remove(k));
+            else
+                assertEquals(expected.put(k, i), map.put(k, i));
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<DemoConcurrentHashMapTest.CollidingKey, Integer> e : expected.entrySet())
+            assertEquals(e.getValue(), map.get(e.getKey()));
+    }
+
+    /**
+     * 删除空出来的entry先被复用；按expectedSize建的map放满也不扩容；clear保留数组
+     */
+    @Test
+    void freedEntriesAreReusedAndClearKeepsArrays() {
+        DemoCompactHashMap<Integer, Integer> map = new DemoCompactHashMap<>(1_000);
+        int[] table = map.table;
+        for (int k = 0; k < 1_000; k++)
+            map.put(k, k);
+        assertSame(table, map.table);
+        Object[] keys = map.keys;
+        int allocated = map.allocated;
+        for (int k = 0; k < 500; k++)
+            map.remove(k);
+        for (int k = 1_000; k < 1_500; k++)
+            map.put(k, k);
+        assertEquals(allocated, map.allocated);
+        assertSame(keys, map.keys);
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertFalse(map.containsKey(600));
+        assertSame(keys, map.keys);
+        map.put(7, 7);
+        assertEquals(7, map.get(7));
+        assertEquals(null, map.get(8));
+    }
+
+    @Test
+    void forEachIsFailFast() {
+        DemoCompactHashMap<Integer, Integer> map = new DemoCompactHashMap<>();
+        for (int k = 0; k < 100; k++)
+            map.put(k, k);
+        assertThrows(ConcurrentModificationException.class, () -> map.forEach((k, v) -> map.remove(k)));
+        assertThrows(NullPointerException.class, () -> map.forEach(null));
+    }
+}
@@ -0,0 +1,125 @@
+package org.example.hashmap;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DemoConcurrentHashMapMonitorTest {
+
+    /**
+     * 很多个短命线程一起扩容，stride统计还是固定的STRIDE_SLOTS个计数，加起来等于领取的总次数
+     */
+    @Test
+    void strideClaimsStayBounded() throws Exception {
+        DemoConcurrentHashMap<Integer, Integer> map = new DemoConcurrentHashMap<>();
+        DemoConcurrentHashMapMonitor monitor = map.enableMonitoring();
+        for (int round = 0; round < 50; round++) {
+            Thread[] workers = new Thread[8];
+            for (int t = 0; t < workers.length; t++) {
+                int base = (round * workers.length + t) * 1_000;
+                workers[t] = new Thread(() -> {
+                    for (int i = base; i < base + 1_000; i++)
+                        map.put(i, i);
+                });
+                workers[t].start();
+            }
+            for (Thread t : workers)
+                t.join();
+        }
+        DemoConcurrentHashMapMonitor.Snapshot snapshot = monitor.snapshot();
+        long[] claims = snapshot.strideClaims();
+        assertEquals(DemoConcurrentHashMapMonitor.STRIDE_SLOTS, claims.length);
+        long sum = 0;
+        for (long c : claims)
+            sum += c;
+        assertTrue(snapshot.resizeCount > 0);
+        assertTrue(sum >= snapshot.resizeCount);
+    }
+
+    /**
+     * 竞争分散在大量槽上时，只记下固定个数的热点槽，其余的算到untracked里，总数不丢
+     */
+    @Test
+    void hotBinsAreBounded() {
+        DemoConcurrentHashMapMonitor monitor = new DemoConcurrentHashMapMonitor(0L, false);
+        long t0 = System.nanoTime() - 1_000L;
+        for (int k = 0; k < 100; k++)
+            monitor.binLocked(1 << 20, 7, t0);
+        for (int i = 0; i < 100_000; i++)
+            monitor.binLocked(1 << 20, i, t0);
+
+        DemoConcurrentHashMapMonitor.Snapshot snapshot = monitor.snapshot();
+        assertEquals(100_100, snapshot.contendedLocks);
+        assertEquals(DemoConcurrentHashMapMonitor.HOT_BIN_LIMIT, snapshot.hotBins.size());
+        assertEquals(7, snapshot.hotBins.get(0).index);
+        assertEquals(101, snapshot.hotBins.get(0).contended);
+        assertTrue(snapshot.untrackedContendedLocks >= 100_000 - DemoConcurrentHashMapMonitor.HOT_BIN_SLOTS);
+
+        monitor.reset();
+        snapshot = monitor.snapshot();
+        assertTrue(snapshot.hotBins.isEmpty());
+        assertEquals(0, snapshot.untrackedContendedLocks);
+    }
+
+    /**
+     * get和remove也记录最长链表；红黑树按节点数算，不是putVal里固定的2
+     */
+    @Test
+    void longestChainCoversReadsAndTrees() {
+        DemoConcurrentHashMap<DemoConcurrentHashMapTest.CollidingKey, Integer> map =
+                new DemoConcurrentHashMap<>(64);
+        // 同一个hash的6个key，不到树化阈值，还是链表
+        for (int id = 0; id < 24; id += 4)
+            map.put(new DemoConcurrentHashMapTest.CollidingKey(id, true), id);
+        DemoConcurrentHashMapMonitor monitor = map.enableMonitoring();
+        assertEquals(20, map.get(new DemoConcurrentHashMapTest.CollidingKey(20, true)));
+        assertEquals(6, monitor.snapshot().longestChain);
+
+        monitor.reset();
+        assertEquals(20, map.remove(new DemoConcurrentHashMapTest.CollidingKey(20, true)));
+        assertEquals(6, monitor.snapshot().longestChain);
+
+        // 另一个hash放100个key，转成红黑树
+        map.disableMonitoring();
+        for (int id = 1; id < 400; id += 4)
+            map.put(new DemoConcurrentHashMapTest.CollidingKey(id, true), id);
+        monitor = map.enableMonitoring();
+        assertEquals(201, map.get(new DemoConcurrentHashMapTest.CollidingKey(201, true)));
+        assertEquals(100, monitor.snapshot().longestChain);
+        map.remove(new DemoConcurrentHashMapTest.CollidingKey(201, true));
+        map.put(new DemoConcurrentHashMapTest.CollidingKey(401, true), 401);
+        assertEquals(100, monitor.snapshot().longestChain);
+    }
+
+    /**
+     * 打开jfr时扩容会发出org.example.hashmap.Resize事件
+     */
+    @Test
+    void resizeEventsAreRecorded() throws Exception {
+        Path file = Files.createTempFile("monitor", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("org.example.hashmap.Resize");
+            recording.start();
+            DemoConcurrentHashMap<Integer, Integer> map = new DemoConcurrentHashMap<>();
+            map.enableMonitoring(DemoConcurrentHashMapMonitor.DEFAULT_CONTENTION_THRESHOLD_NANOS, true);
+            for (int i = 0; i < 10_000; i++)
+                map.put(i, i);
+            recording.stop();
+            recording.dump(file);
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            assertTrue(events.stream().anyMatch(e ->
+                    e.getEventType().getName().equals("org.example.hashmap.Resize") &&
+                            e.getInt("to") == 2 * e.getInt("from")));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,581 @@
+package org.example.hashmap;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DemoConcurrentHashMapTest {
+
+    @Test
+    void getMatchesHashMap() {
+        DemoConcurrentHashMap<Integer, Integer> map = new DemoConcurrentHashMap<>();
+        Map<Integer, Integer> expected = new HashMap<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 100_000; i++) {
+            Integer k = random.nextInt(20_000);
+            if (random.nextBoolean()) {
+                Integer v = random.nextInt();
+                assertEquals(expected.put(k, v), map.put(k, v));
+            }
+            else {
+                assertEquals(expected.get(k), map.get(k));
+                assertEquals(expected.containsKey(k), map.containsKey(k));
+            }
+        }
+        for (Map.Entry<Integer, Integer> e : expected.entrySet())
+            assertEquals(e.getValue(), map.get(e.getKey()));
+        assertNull(map.get(-1));
+        assertFalse(map.containsKey(-1));
+    }
+
+    /**
+     * 写线程不断放入新key触发多轮扩容，读线程一直查扩容前就存在的key，
+     * 跟着ForwardingNode读到新表，任何时候都不能读不到
+     */
+    @Test
+    void readersSeeExistingKeysDuringResize() throws Exception {
+        DemoConcurrentHashMap<Integer, Integer> map = new DemoConcurrentHashMap<>();
+        int existing = 1_000;
+        for (int i = 0; i < existing; i++)
+            map.put(i, i);
+        int initialLength = map.table.length;
+
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicInteger misses = new AtomicInteger();
+        Thread[] readers = new Thread[2];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(() -> {
+                while (!done.get()) {
+                    for (int i = 0; i < existing; i++) {
+                        if (!Integer.valueOf(i).equals(map.get(i)) || !map.containsKey(i))
+                            misses.incrementAndGet();
+                    }
+                }
+            });
+            readers[r].start();
+        }
+        for (int i = existing; i < 500_000; i++)
+            map.put(i, i);
+        done.set(true);
+        for (Thread t : readers)
+            t.join();
+
+        assertEquals(0, misses.get());
+        assertTrue(map.table.length > initialLength);
+    }
+
+    /**
+     * 多个线程同时放入不重复的key，计数不能丢，table要跟着元素数扩容
+     */
+    @Test
+    void concurrentPutsCountAndResize() throws Exception {
+        DemoConcurrentHashMap<Integer, Integer> map = new DemoConcurrentHashMap<>();
+        int threads = 4, perThread = 100_000;
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int base = t * perThread;
+            writers[t] = new Thread(() -> {
+                for (int i = base; i < base + perThread; i++)
+                    map.put(i, i);
+            });
+            writers[t].start();
+        }
+        for (Thread t : writers)
+            t.join();
+
+        assertEquals(threads * perThread, map.size());
+        assertEquals(threads * perThread, map.mappingCount());
+        // 阈值是容量的3/4；计数走格子时只有链表上已有节点才检查扩容，最后几次put可能没检查，
+        // 所以只要求table至少跟元素数一样大
+        assertTrue(map.size() <= map.table.length);
+        for (int i = 0; i < threads * perThread; i++)
+            assertEquals(Integer.valueOf(i), map.get(i));
+
+        // 覆盖已有的key不改变计数
+        for (int i = 0; i < 1000; i++)
+            map.put(i, -i);
+        assertEquals(threads * perThread, map.size());
+    }
+
+    /**
+     * hashCode只有少数几个取值的key会把槽变成红黑树，扩容拆分之后仍然都能查到
+     */
+    @Test
+    void collidingKeysAreTreeified() {
+        DemoConcurrentHashMap<CollidingKey, Integer> map = new DemoConcurrentHashMap<>(1024);
+        Map<CollidingKey, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 2_000; i++) {
+            CollidingKey k = new CollidingKey(i, i % 2 == 0);
+            map.put(k, i);
+            expected.put(k, i);
+        }
+        boolean hasTree = false;
+        for (DemoConcurrentHashMap.Node<CollidingKey, Integer> f : map.table)
+            hasTree |= f instanceof DemoConcurrentHashMap.TreeBin;
+        assertTrue(hasTree);
+        for (Map.Entry<CollidingKey, Integer> e : expected.entrySet())
+            assertEquals(e.getValue(), map.get(e.getKey()));
+        assertNull(map.get(new CollidingKey(-1, true)));
+        assertNull(map.get(new CollidingKey(-1, false)));
+
+        // 继续放入普通key触发扩容，树要拆到新表里
+        int length = map.table.length;
+        for (int i = 0; i < 10_000; i++)
+            map.put(new CollidingKey(i + 100_000, true) {
+                @Override
+                public int hashCode() {
+                    return id;
+                }
+            }, i);
+        assertTrue(map.table.length > length);
+        for (Map.Entry<CollidingKey, Integer> e : expected.entrySet())
+            assertEquals(e.getValue(), map.get(e.getKey()));
+        assertEquals(expected.size() + 10_000, map.size());
+    }
+
+    @Test
+    void atomicOperationsMatchHashMap() {
+        DemoConcurrentHashMap<Integer, Integer> map = new DemoConcurrentHashMap<>();
+        Map<Integer, Integer> expected = new HashMap<>();
+        Random random = new Random(2);
+        for (int i = 0; i < 200_000; i++) {
+            Integer k = random.nextInt(2_000), v = random.nextInt(100);
+            switch (random.nextInt(9)) {
+                case 0:
+                    assertEquals(expected.put(k, v), map.put(k, v));
+                    break;
+                case 1:
+                    assertEquals(expected.remove(k), map.remove(k));
+                    break;
+                case 2:
+                    assertEquals(expected.remove(k, v), map.remove(k, v));
+                    break;
+                case 3:
+                    assertEquals(expected.replace(k, v), map.replace(k, v));
+                    break;
+                case 4:
+                    assertEquals(expected.replace(k, v, v + 1), map.replace(k, v, v + 1));
+                    break;
+                case 5:
+                    assertEquals(expected.computeIfAbsent(k, x -> v), map.computeIfAbsent(k, x -> v));
+                    break;
+                case 6:
+                    // 返回null时删除
+                    assertEquals(expected.computeIfPresent(k, (x, old) -> old > 50 ? null : old + v),
+                            map.computeIfPresent(k, (x, old) -> old > 50 ? null : old + v));
+                    break;
+                case 7:
+                    assertEquals(expected.compute(k, (x, old) -> old == null ? v : old > 80 ? null : old + 1),
+                            map.compute(k, (x, old) -> old == null ? v : old > 80 ? null : old + 1));
+                    break;
+                default:
+                    assertEquals(expected.merge(k, v, (a, b) -> a + b > 150 ? null : a + b),
+                            map.merge(k, v, (a, b) -> a + b > 150 ? null : a + b));
+                    break;
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Integer, Integer> e : expected.entrySet())
+            assertEquals(e.getValue(), map.get(e.getKey()));
+    }
+
+    /**
+     * 多个线程对同一批key做computeIfAbsent和merge：映射函数对每个key只执行一次，计数不丢
+     */
+    @Test
+    void concurrentComputeIfAbsentAndMerge() throws Exception {
+        DemoConcurrentHashMap<Integer, Integer> created = new DemoConcurrentHashMap<>();
+        DemoConcurrentHashMap<Integer, Long> counters = new DemoConcurrentHashMap<>();
+        AtomicInteger calls = new AtomicInteger();
+        int threads = 4, keys = 5_000, rounds = 20;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                for (int r = 0; r < rounds; r++) {
+                    for (int i = 0; i < keys; i++) {
+                        created.computeIfAbsent(i, k -> {
+                            calls.incrementAndGet();
+                            return k;
+                        });
+                        counters.merge(i, 1L, Long::sum);
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread t : workers)
+            t.join();
+
+        assertEquals(keys, calls.get());
+        assertEquals(keys, created.size());
+        for (int i = 0; i < keys; i++)
+            assertEquals(Long.valueOf(threads * rounds), counters.get(i));
+    }
+
+    /**
+     * 并行和单线程的forEach/reduce/search结果都要跟逐个遍历一致
+     */
+    @Test
+    void bulkOperationsVisitEveryMapping() {
+        DemoConcurrentHashMap<Integer, Integer> map = new DemoConcurrentHashMap<>();
+        int n = 100_000;
+        long expectedSum = 0;
+        for (int i = 0; i < n; i++) {
+            map.put(i, i * 3);
+            expectedSum += i * 3;
+        }
+        for (long threshold : new long[] {1L, Long.MAX_VALUE}) {
+            ConcurrentHashMap<Integer, Integer> seen = new ConcurrentHashMap<>();
+            map.forEach(threshold, (k, v) -> assertNull(seen.put(k, v)));
+            assertEquals(n, seen.size());
+            for (Map.Entry<Integer, Integer> e : seen.entrySet())
+                assertEquals(e.getKey() * 3, (int) e.getValue());
+
+            assertEquals(expectedSum, map.reduceToLong(threshold, (k, v) -> v, 0L, Long::sum));
+            assertEquals(Long.valueOf(expectedSum),
+                    map.reduce(threshold, (k, v) -> (long) v, Long::sum));
+            // transformer全部返回null时没有元素参与归并
+            assertNull(map.reduce(threshold, (k, v) -> null, (a, b) -> a));
+
+            assertEquals(Integer.valueOf(777), map.search(threshold, (k, v) -> v == 777 * 3 ? k : null));
+            assertNull(map.search(threshold, (k, v) -> v < 0 ? k : null));
+        }
+    }
+
+    @Test
+    void viewsMatchHashMap() {
+        DemoConcurrentHashMap<Integer, Integer> map = new DemoConcurrentHashMap<>();
+        Map<Integer, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 50_000; i++) {
+            map.put(i, -i);
+            expected.put(i, -i);
+        }
+        assertEquals(expected.keySet(), new HashSet<>(map.keySet()));
+        assertEquals(expected, copyOf(map));
+        assertEquals(expected.values().stream().mapToLong(v -> v).sum(),
+                map.values().stream().mapToLong(v -> v).sum());
+        // 按槽区间切分的spliterator，并行流不能漏也不能重复
+        assertEquals(expected.size(), map.keySet().parallelStream().distinct().count());
+        assertEquals(expected.size(), map.entrySet().parallelStream().count());
+
+        // Entry.setValue写回map，迭代器remove删除map里的映射
+        for (Map.Entry<Integer, Integer> e : map.entrySet()) {
+            if (e.getKey() % 2 == 0)
+                e.setValue(e.getKey());
+        }
+        for (Iterator<Integer> it = map.keySet().iterator(); it.hasNext(); ) {
+            if (it.next() % 3 == 0)
+                it.remove();
+        }
+        expected.replaceAll((k, v) -> k % 2 == 0 ? k : v);
+        expected.keySet().removeIf(k -> k % 3 == 0);
+        assertEquals(expected, copyOf(map));
+    }
+
+    /**
+     * 通过entrySet复制成HashMap，不用HashSet<Entry>比较：Entry的hashCode是key ^ value，
+     * 像i和-i这样的值会大量冲突
+     */
+    static <K, V> Map<K, V> copyOf(DemoConcurrentHashMap<K, V> map) {
+        Map<K, V> copy = new HashMap<>();
+        for (Map.Entry<K, V> e : map.entrySet())
+            assertNull(copy.put(e.getKey(), e.getValue()));
+        return copy;
+    }
+
+    /**
+     * 遍历期间另一个线程一直放入新key触发扩容：不抛ConcurrentModificationException，
+     * 遍历开始前就存在且没被删除的key都要遍历到
+     */
+    @Test
+    void iteratorsAreWeaklyConsistentDuringResize() throws Exception {
+        DemoConcurrentHashMap<Integer, Integer> map = new DemoConcurrentHashMap<>();
+        int existing = 20_000;
+        for (int i = 0; i < existing; i++)
+            map.put(i, i);
+        AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            for (int i = existing; !done.get() && i < 500_000; i++)
+                map.put(i, i);
+        });
+        writer.start();
+        try {
+            for (int round = 0; round < 10; round++) {
+                Set<Integer> seen = new HashSet<>();
+                for (Integer k : map.keySet())
+                    seen.add(k);
+                for (int i = 0; i < existing; i++)
+                    assertTrue(seen.contains(i));
+            }
+        } finally {
+            done.set(true);
+            writer.join();
+        }
+    }
+
+    /**
+     * 删空以后table逐级缩回默认容量，元素都还能查到；
+     * 单线程缩容时发起的线程不能再被算成帮忙的线程
+     */
+    @Test
+    void removesShrinkTableDownToDefaultCapacity() {
+        DemoConcurrentHashMap<Integer, Integer> map = new DemoConcurrentHashMap<>();
+        for (int i = 0; i < 100_000; i++)
+            map.put(i, i);
+        int grown = map.table.length;
+        DemoConcurrentHashMapMonitor monitor = map.enableMonitoring();
+        for (int i = 0; i < 99_990; i++)
+            assertEquals(i, map.remove(i));
+        assertTrue(map.table.length < grown);
+        for (int i = 99_990; i < 100_000; i++)
+            assertEquals(i, map.get(i));
+        for (int i = 99_990; i < 100_000; i++)
+            map.remove(i);
+        assertEquals(16, map.table.length);
+        assertTrue(map.isEmpty());
+        DemoConcurrentHashMapMonitor.Snapshot snapshot = monitor.snapshot();
+        assertTrue(snapshot.shrinkCount > 0);
+        assertEquals(0, snapshot.maxHelpers);
+    }
+
+    /**
+     * 指定了初始容量时，删除和trimToSize都不会缩到构造时的长度以下
+     */
+    @Test
+    void shrinkStopsAtInitialCapacity() {
+        DemoConcurrentHashMap<Integer, Integer> map = new DemoConcurrentHashMap<>(1_000);
+        map.put(-1, -1);
+        int initial = map.table.length;
+        for (int i = 0; i < 100_000; i++)
+            map.put(i, i);
+        for (int i = 0; i < 100_000; i++)
+            map.remove(i);
+        assertEquals(initial, map.table.length);
+        map.trimToSize();
+        assertEquals(initial, map.table.length);
+        assertEquals(-1, map.get(-1));
+    }
+
+    /**
+     * putAll按总数预扩容，覆盖已有key时元素个数没涨上去，这样的table随后的删除不能把它缩回去
+     */
+    @Test
+    void presizedTableIsNotShrunkByRemoves() {
+        DemoConcurrentHashMap<Integer, Integer> map = new DemoConcurrentHashMap<>();
+        Map<Integer, Integer> source = new HashMap<>();
+        for (int i = 0; i < 3_000; i++) {
+            map.put(i, i);
+            source.put(i, -i);
+        }
+        map.putAll(source);
+        int presized = map.table.length;
+        for (int i = 0; i < 2_000; i++)
+            map.remove(i);
+        assertEquals(presized, map.table.length);
+        for (int i = 2_000; i < 3_000; i++)
+            assertEquals(-i, map.get(i));
+    }
+
+    /**
+     * 多个线程同时删除触发缩容，读线程一直查不会被删的key，不能读不到
+     */
+    @Test
+    void readersSeeExistingKeysDuringShrink() throws Exception {
+        DemoConcurrentHashMap<Integer, Integer> map = new DemoConcurrentHashMap<>();
+        int kept = 1_000, removers = 3, perThread = 100_000;
+        for (int i = 0; i < kept + removers * perThread; i++)
+            map.put(i, i);
+        int grown = map.table.length;
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicInteger misses = new AtomicInteger();
+        Thread reader = new Thread(() -> {
+            while (!done.get()) {
+                for (int i = 0; i < kept; i++) {
+                    if (!Integer.valueOf(i).equals(map.get(i)))
+                        misses.incrementAndGet();
+                }
+            }
+        });
+        reader.start();
+        Thread[] workers = new Thread[removers];
+        for (int t = 0; t < removers; t++) {
+            int base = kept + t * perThread;
+            workers[t] = new Thread(() -> {
+                for (int i = base; i < base + perThread; i++)
+                    map.remove(i);
+            });
+            workers[t].start();
+        }
+        for (Thread t : workers)
+            t.join();
+        done.set(true);
+        reader.join();
+
+        assertEquals(0, misses.get());
+        assertEquals(kept, map.size());
+        // 计数格子上的缩容检查是抽样的，最后几次删除可能没赶上，至少要缩过一次
+        assertTrue(map.table.length < grown);
+        map.trimToSize();
+        assertTrue(map.table.length <= 4096);
+        for (int i = 0; i < kept; i++)
+            assertEquals(i, map.get(i));
+    }
+
+    /**
+     * 批量放入跟HashMap.putAll结果一致：覆盖已有key、小批量走逐个putVal、大批量按槽分组，
+     * 以及同一个槽里有红黑树的情况
+     */
+    @Test
+    void putAllMatchesHashMap() {
+        DemoConcurrentHashMap<Integer, Integer> map = new DemoConcurrentHashMap<>();
+        Map<Integer, Integer> expected = new HashMap<>();
+        Random random = new Random(11);
+        for (int i = 0; i < 10_000; i++) {
+            map.put(i, i);
+            expected.put(i, i);
+        }
+        for (int size : new int[] {10, DemoConcurrentHashMap.BULK_PUT_THRESHOLD, 5_000, 300_000}) {
+            Map<Integer, Integer> batch = new HashMap<>();
+            for (int i = 0; i < size; i++)
+                batch.put(random.nextInt(1_000_000), random.nextInt());
+            map.putAll(batch);
+            expected.putAll(batch);
+            assertEquals(expected.size(), map.size());
+            assertEquals(expected, copyOf(map));
+        }
+
+        // 同一个map里的key要么都可比较，要么都不可比较，混在一起时compareTo不满足传递性
+        for (boolean comparable : new boolean[] {true, false}) {
+            DemoConcurrentHashMap<CollidingKey, Integer> colliding = new DemoConcurrentHashMap<>();
+            Map<CollidingKey, Integer> collidingExpected = new HashMap<>();
+            for (int round = 0; round < 3; round++) {
+                Map<CollidingKey, Integer> batch = new HashMap<>();
+                for (int i = 0; i < 500; i++)
+                    batch.put(new CollidingKey(random.nextInt(1_000), comparable), i);
+                colliding.putAll(batch);
+                collidingExpected.putAll(batch);
+            }
+            assertEquals(collidingExpected.size(), colliding.size());
+            for (Map.Entry<CollidingKey, Integer> e : collidingExpected.entrySet())
+                assertEquals(e.getValue(), colliding.get(e.getKey()));
+        }
+    }
+
+    /**
+     * 几个线程同时putAll，批次之间有重叠的key，另一个线程同时逐个put触发扩容；
+     * 结束后每个key都在，元素个数准确
+     */
+    @Test
+    void concurrentPutAllWithResize() throws Exception {
+        DemoConcurrentHashMap<Integer, Integer> map = new DemoConcurrentHashMap<>();
+        int threads = 4, batchSize = 100_000, overlap = 20_000;
+        Thread[] workers = new Thread[threads + 1];
+        for (int t = 0; t < threads; t++) {
+            // 每个批次的前overlap个key跟下一个批次重叠
+            int base = t * (batchSize - overlap);
+            workers[t] = new Thread(() -> {
+                Map<Integer, Integer> batch = new HashMap<>();
+                for (int i = base; i < base + batchSize; i++)
+                    batch.put(i, i);
+                map.putAll(batch);
+            });
+        }
+        int singles = 200_000;
+        workers[threads] = new Thread(() -> {
+            for (int i = 0; i < singles; i++)
+                map.put(-1 - i, i);
+        });
+        for (Thread t : workers)
+            t.start();
+        for (Thread t : workers)
+            t.join();
+
+        int distinct = (threads - 1) * (batchSize - overlap) + batchSize;
+        assertEquals(distinct + singles, map.size());
+        for (int i = 0; i < distinct; i++)
+            assertEquals(i, map.get(i));
+        for (int i = 0; i < singles; i++)
+            assertEquals(i, map.get(-1 - i));
+    }
+
+    /**
+     * 打开随机种子后，hashCode相同的字符串分散到不同的槽里，不会出现TreeBin；结果跟HashMap一致
+     */
+    @Test
+    void seededHashSpreadsCollidingStrings() {
+        String[] keys = DemoHashMapTest.collidingStrings(12);
+        DemoConcurrentHashMap<String, Integer> plain = new DemoConcurrentHashMap<>(16);
+        DemoConcurrentHashMap<String, Integer> seeded = DemoConcurrentHashMap.seeded(16);
+        assertThrows(IllegalArgumentException.class, () -> DemoConcurrentHashMap.seeded(-1));
+        for (int i = 0; i < keys.length; i++) {
+            plain.put(keys[i], i);
+            seeded.put(keys[i], i);
+        }
+        int plainTrees = 0, seededTrees = 0;
+        for (DemoConcurrentHashMap.Node<String, Integer> e : plain.table)
+            if (e instanceof DemoConcurrentHashMap.TreeBin)
+                plainTrees++;
+        for (DemoConcurrentHashMap.Node<String, Integer> e : seeded.table)
+            if (e instanceof DemoConcurrentHashMap.TreeBin)
+                seededTrees++;
+        assertEquals(1, plainTrees);
+        assertEquals(0, seededTrees);
+
+        Map<String, Integer> expected = new HashMap<>();
+        for (int i = 0; i < keys.length; i++)
+            expected.put(keys[i], i);
+        Random random = new Random(9);
+        for (int i = 0; i < 50_000; i++) {
+            String k = keys[random.nextInt(keys.length)] + (random.nextBoolean() ? "" : "x");
+            if (random.nextBoolean())
+                assertEquals(expected.remove(k), seeded.remove(k));
+            else
+                assertEquals(expected.merge(k, 1, Integer::sum), seeded.merge(k, 1, Integer::sum));
+        }
+        assertEquals(expected.size(), seeded.size());
+        for (Map.Entry<String, Integer> e : expected.entrySet())
+            assertEquals(e.getValue(), seeded.get(e.getKey()));
+    }
+
+    /**
+     * hashCode只有4个取值；一半的key之间compareTo返回0，覆盖TreeBin里比较不出大小时两棵子树都找的分支
+     */
+    static class CollidingKey implements Comparable<CollidingKey> {
+        final int id;
+        final boolean comparable;
+
+        CollidingKey(int id, boolean comparable) {
+            this.id = id;
+            this.comparable = comparable;
+        }
+
+        @Override
+        public int hashCode() {
+            return id & 3;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof CollidingKey && ((CollidingKey) o).id == id;
+        }
+
+        @Override
+        public int compareTo(CollidingKey o) {
+            return (comparable && o.comparable) ? Integer.compare(id, o.id) : 0;
+        }
+    }
+}
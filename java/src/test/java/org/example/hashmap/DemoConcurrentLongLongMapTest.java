@@ -0,0 +1,110 @@
+package org.example.hashmap;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DemoConcurrentLongLongMapTest {
+
+    static final long NO_ENTRY = Long.MIN_VALUE;
+
+    @Test
+    void matchesHashMap() {
+        DemoConcurrentLongLongMap map = new DemoConcurrentLongLongMap(0, NO_ENTRY);
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 300_000; i++) {
+            long k = random.nextInt(50_000) - 25_000L, v = random.nextLong();
+            switch (random.nextInt(4)) {
+                case 0:
+                    assertEquals(expected.getOrDefault(k, NO_ENTRY), map.get(k));
+                    assertEquals(expected.containsKey(k), map.containsKey(k));
+                    break;
+                case 1:
+                    assertEquals(orNoEntry(expected.putIfAbsent(k, v)), map.putIfAbsent(k, v));
+                    break;
+                case 2:
+                    assertEquals(orNoEntry(expected.remove(k)), map.remove(k));
+                    break;
+                default:
+                    assertEquals(orNoEntry(expected.put(k, v)), map.put(k, v));
+                    break;
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, Long> e : expected.entrySet())
+            assertEquals((long) e.getValue(), map.get(e.getKey()));
+        assertEquals(-1L, map.getOrDefault(Long.MAX_VALUE, -1L));
+        assertFalse(map.containsKey(Long.MAX_VALUE));
+    }
+
+    static long orNoEntry(Long v) {
+        return v == null ? NO_ENTRY : v;
+    }
+
+    /**
+     * 每个线程在自己的key区间里反复插入、删除，删除留下的空间只在迁移时回收，
+     * 会不断触发同容量重建和翻倍扩容；结束后每个区间里留下的key都要能查到
+     */
+    @Test
+    void concurrentChurnKeepsLiveEntries() throws Exception {
+        DemoConcurrentLongLongMap map = new DemoConcurrentLongLongMap(0, NO_ENTRY);
+        int threads = 4, keysPerThread = 20_000, rounds = 10;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            long base = (long) t << 32;
+            workers[t] = new Thread(() -> {
+                for (int r = 0; r < rounds; r++) {
+                    for (int i = 0; i < keysPerThread; i++)
+                        map.put(base + i, r);
+                    // 每轮删掉除了最后几个以外的全部key
+                    if (r < rounds - 1) {
+                        for (int i = 0; i < keysPerThread - 100; i++)
+                            assertEquals(r, map.remove(base + i));
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread t : workers)
+            t.join();
+
+        assertEquals(threads * keysPerThread, map.size());
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < keysPerThread; i++)
+                assertEquals(rounds - 1, map.get(((long) t << 32) + i));
+        }
+    }
+
+    /**
+     * 读线程在扩容期间查已有的key，跟着MOVED去新表，不能读不到
+     */
+    @Test
+    void readersSeeExistingKeysDuringResize() throws Exception {
+        DemoConcurrentLongLongMap map = new DemoConcurrentLongLongMap(0, NO_ENTRY);
+        int existing = 1_000;
+        for (int i = 0; i < existing; i++)
+            map.put(i, i);
+        int[] misses = new int[1];
+        Thread reader = new Thread(() -> {
+            for (int r = 0; r < 200; r++) {
+                for (int i = 0; i < existing; i++) {
+                    if (map.get(i) != i)
+                        misses[0]++;
+                }
+            }
+        });
+        reader.start();
+        for (int i = existing; i < 300_000; i++)
+            map.put(i, i);
+        reader.join();
+        assertEquals(0, misses[0]);
+        assertTrue(map.size() == 300_000);
+    }
+}
@@ -0,0 +1,110 @@
+package org.example.hashmap;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * freeze()的结果对照HashMap
+ */
+class DemoFrozenHashMapTest {
+
+    static <K, V> void assertFrozenEquals(Map<K, V> expected, DemoFrozenHashMap<K, V> frozen) {
+        assertEquals(expected.size(), frozen.size());
+        for (Map.Entry<K, V> e : expected.entrySet()) {
+            assertEquals(e.getValue(), frozen.get(e.getKey()));
+            assertTrue(frozen.containsKey(e.getKey()));
+        }
+        Map<K, V> seen = new HashMap<>();
+        frozen.forEach((k, v) -> {
+            assertFalse(seen.containsKey(k));
+            seen.put(k, v);
+        });
+        assertEquals(expected, seen);
+    }
+
+    /**
+     * 元素多到分成多个分区并行构造；之后修改原map不影响副本
+     */
+    @Test
+    void matchesHashMap() {
+        DemoHashMap<Integer, Integer> map = new DemoHashMap<>();
+        Map<Integer, Integer> expected = new HashMap<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 100_000; i++) {
+            Integer k = random.nextInt();
+            Integer v = random.nextInt(50) == 0 ? null : i;
+            map.put(k, v);
+            expected.put(k, v);
+        }
+        map.put(null, -1);
+        expected.put(null, -1);
+        DemoFrozenHashMap<Integer, Integer> frozen = map.freeze();
+        assertTrue(frozen.partitionBits > 0);
+        assertFrozenEquals(expected, frozen);
+        for (int i = 0; i < 10_000; i++) {
+            Integer k = random.nextInt();
+            assertEquals(expected.get(k), frozen.get(k));
+            assertEquals(expected.containsKey(k), frozen.containsKey(k));
+        }
+
+        map.clear();
+        map.put(1, 1);
+        assertFrozenEquals(expected, frozen);
+    }
+
+    /**
+     * hashCode相同的key只有一个能放进槽里，其余进溢出区；随机种子的map按同样的种子查找
+     */
+    @Test
+    void collidingAndSeededKeys() {
+        DemoHashMap<DemoConcurrentHashMapTest.CollidingKey, Integer> colliding = new DemoHashMap<>();
+        Map<DemoConcurrentHashMapTest.CollidingKey, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 2_000; i++) {
+            DemoConcurrentHashMapTest.CollidingKey k = new DemoConcurrentHashMapTest.CollidingKey(i, true);
+            colliding.put(k, i);
+            expected.put(k, i);
+        }
+        DemoFrozenHashMap<DemoConcurrentHashMapTest.CollidingKey, Integer> frozen = colliding.freeze();
+        assertTrue(frozen.overflowHashes.length > 0);
+        assertFrozenEquals(expected, frozen);
+        assertFalse(frozen.containsKey(new DemoConcurrentHashMapTest.CollidingKey(5_000, true)));
+        assertEquals(null, frozen.get(new DemoConcurrentHashMapTest.CollidingKey(5_001, true)));
+
+        DemoHashMap<String, Integer> seeded = DemoHashMap.seeded();
+        Map<String, Integer> expectedSeeded = new HashMap<>();
+        for (String s : DemoHashMapTest.collidingStrings(10)) {
+            seeded.put(s, s.length());
+            expectedSeeded.put(s, s.length());
+        }
+        assertFrozenEquals(expectedSeeded, seeded.freeze());
+    }
+
+    @Test
+    void emptyMap() {
+        DemoFrozenHashMap<String, String> frozen = new DemoHashMap<String, String>().freeze();
+        assertTrue(frozen.isEmpty());
+        assertEquals(null, frozen.get("a"));
+        assertFalse(frozen.containsKey(null));
+        frozen.forEach((k, v) -> { throw new AssertionError(); });
+    }
+
+    /**
+     * table长度超过数组上限时抛IllegalStateException，不会溢出成负数或很小的长度
+     */
+    @Test
+    void tableLengthIsBounded() {
+        assertEquals(2, DemoFrozenHashMap.tableLength(1));
+        assertEquals(DemoFrozenHashMap.MAX_ARRAY_SIZE - 1, DemoFrozenHashMap.tableLength(DemoFrozenHashMap.MAX_ARRAY_SIZE / 2));
+        assertThrows(IllegalStateException.class,
+                () -> DemoFrozenHashMap.tableLength(DemoFrozenHashMap.MAX_ARRAY_SIZE / 2 + 1));
+        assertThrows(IllegalStateException.class, () -> DemoFrozenHashMap.tableLength(Integer.MAX_VALUE));
+    }
+}
@@ -0,0 +1,421 @@
+package org.example.hashmap;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DemoHashMapTest {
+
+    /**
+     * 由"Aa"和"BB"拼成的字符串，hashCode全部相同
+     */
+    static String[] collidingStrings(int bits) {
+        String[] keys = new String[1 << bits];
+        for (int i = 0; i < keys.length; i++) {
+            StringBuilder sb = new StringBuilder(bits * 2);
+            for (int b = bits - 1; b >= 0; b--)
+                sb.append(((i >>> b) & 1) == 0 ? "Aa" : "BB");
+            keys[i] = sb.toString();
+        }
+        return keys;
+    }
+
+    /**
+     * 最长的槽，红黑树按next链数节点
+     */
+    static int longestBin(DemoHashMap<?, ?> map) {
+        int longest = 0;
+        for (DemoHashMap.DemoNode<?, ?> e : map.table) {
+            int len = 0;
+            for (; e != null; e = e.next)
+                len++;
+            longest = Math.max(longest, len);
+        }
+        return longest;
+    }
+
+    @Test
+    void seededMapMatchesHashMap() {
+        DemoHashMap<String, Integer> map = DemoHashMap.seeded();
+        Map<String, Integer> expected = new HashMap<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 200_000; i++) {
+            String k = "key" + random.nextInt(20_000);
+            switch (random.nextInt(3)) {
+                case 0:
+                    Integer v = random.nextInt();
+                    assertEquals(expected.put(k, v), map.put(k, v));
+                    break;
+                case 1:
+                    assertEquals(expected.remove(k), map.remove(k));
+                    break;
+                default:
+                    assertEquals(expected.get(k), map.get(k));
+                    assertEquals(expected.containsKey(k), map.containsKey(k));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<String, Integer> e : expected.entrySet())
+            assertEquals(e.getValue(), map.get(e.getKey()));
+        assertEquals(null, map.put(null, 1));
+        assertEquals(1, map.get(null));
+    }
+
+    /**
+     * hashCode相同的字符串：不开种子时全部在一个槽里，开了种子以后分散开，不会树化
+     */
+    @Test
+    void seededHashSpreadsCollidingStrings() {
+        String[] keys = collidingStrings(12);
+        DemoHashMap<String, Integer> plain = new DemoHashMap<>();
+        DemoHashMap<String, Integer> seeded = DemoHashMap.seeded();
+        for (int i = 0; i < keys.length; i++) {
+            plain.put(keys[i], i);
+            seeded.put(keys[i], i);
+        }
+        assertEquals(keys.length, longestBin(plain));
+        assertTrue(longestBin(seeded) < DemoHashMap.TREEIFY_THRESHOLD + 4, "longest bin " + longestBin(seeded));
+        for (int i = 0; i < keys.length; i++)
+            assertEquals(i, seeded.get(keys[i]));
+    }
+
+    /**
+     * byte[]按内容算哈希，但key还是按引用比较
+     */
+    @Test
+    void seededByteArrayKeys() {
+        DemoHashMap<byte[], Integer> map = DemoHashMap.seeded();
+        byte[][] keys = new byte[1_000][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = ("k" + (i % 100)).getBytes();
+            map.put(keys[i], i);
+        }
+        assertEquals(keys.length, map.size());
+        for (int i = 0; i < keys.length; i++)
+            assertEquals(i, map.get(keys[i]));
+        assertEquals(null, map.get("k1".getBytes()));
+    }
+
+    /**
+     * 每个实例的种子不同，同一个字符串在两个实例里的哈希值几乎都不一样
+     */
+    @Test
+    void seedsDifferPerInstance() {
+        DemoHashSeed a = new DemoHashSeed(), b = new DemoHashSeed();
+        int same = 0;
+        for (int i = 0; i < 1_000; i++) {
+            String s = "s" + i;
+            assertEquals(a.hash(s), a.hash(new String(s.toCharArray())));
+            if (a.hash(s) == b.hash(s))
+                same++;
+        }
+        assertTrue(same < 5, "same " + same);
+    }
+
+    /**
+     * hashCode由调用方指定的key，按id比较大小
+     */
+    static final class HashKey implements Comparable<HashKey> {
+        final int hash, id;
+
+        HashKey(int hash, int id) {
+            this.hash = hash;
+            this.id = id;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof HashKey && ((HashKey) o).id == id;
+        }
+
+        @Override
+        public int compareTo(HashKey o) {
+            return Integer.compare(id, o.id);
+        }
+    }
+
+    static int treeBins(DemoHashMap<?, ?> map) {
+        int trees = 0;
+        for (DemoHashMap.DemoNode<?, ?> e : map.table)
+            if (e instanceof DemoHashMap.TreeNode)
+                trees++;
+        return trees;
+    }
+
+    /**
+     * 只有4个hash的key，可比较和不可比较的分别放在两个map里，随机增删查的结果跟HashMap一致
+     */
+    @Test
+    void treeBinsMatchHashMap() {
+        for (boolean comparable : new boolean[] {true, false}) {
+            DemoHashMap<DemoConcurrentHashMapTest.CollidingKey, Integer> map = new DemoHashMap<>(64);
+            Map<DemoConcurrentHashMapTest.CollidingKey, Integer> expected = new HashMap<>();
+            Random random = new Random(comparable ? 3 : 4);
+            for (int i = 0; i < 50_000; i++) {
+                DemoConcurrentHashMapTest.CollidingKey k =
+                        new DemoConcurrentHashMapTest.CollidingKey(random.nextInt(500), comparable);
+                switch (random.nextInt(3)) {
+                    case 0:
+                        assertEquals(expected.put(k, i), map.put(k, i));
+                        break;
+                    case 1:
+                        assertEquals(expected.remove(k), map.remove(k));
+                        break;
+                    default:
+                        assertEquals(expected.get(k), map.get(k));
+                }
+            }
+            assertTrue(treeBins(map) > 0);
+            assertEquals(expected.size(), map.size());
+            for (Map.Entry<DemoConcurrentHashMapTest.CollidingKey, Integer> e : expected.entrySet())
+                assertEquals(e.getValue(), map.get(e.getKey()));
+        }
+    }
+
+    /**
+     * 链表超过TREEIFY_THRESHOLD才树化；扩容拆开以后两边都不超过UNTREEIFY_THRESHOLD，退化回链表
+     */
+    @Test
+    void resizeSplitUntreeifies() {
+        DemoHashMap<Object, Integer> map = new DemoHashMap<>(64);
+        // hash = i << 6：64长的数组里都在0号槽，扩容到128时按i的奇偶拆开
+        for (int i = 0; i < DemoHashMap.TREEIFY_THRESHOLD; i++)
+            map.put(new HashKey(i << 6, i), i);
+        assertEquals(0, treeBins(map));
+        for (int i = DemoHashMap.TREEIFY_THRESHOLD; i < 12; i++)
+            map.put(new HashKey(i << 6, i), i);
+        assertEquals(1, treeBins(map));
+        assertEquals(64, map.table.length);
+
+        // 奇数hash的key不会落到0号和64号槽，放到超过阈值触发扩容
+        for (int i = 0; map.table.length == 64; i++)
+            map.put(2 * i + 1, i);
+        assertEquals(128, map.table.length);
+        assertEquals(0, treeBins(map));
+        assertFalse(map.table[0] instanceof DemoHashMap.TreeNode);
+        for (int i = 0; i < 12; i++)
+            assertEquals(i, map.get(new HashKey(i << 6, i)));
+    }
+
+    /**
+     * 红黑树删到很小时退化回链表，剩下的key还能找到
+     */
+    @Test
+    void removalUntreeifies() {
+        DemoHashMap<HashKey, Integer> map = new DemoHashMap<>(64);
+        for (int i = 0; i < 20; i++)
+            map.put(new HashKey(5, i), i);
+        assertTrue(map.table[5] instanceof DemoHashMap.TreeNode);
+        for (int i = 0; i < 18; i++)
+            assertEquals(i, map.remove(new HashKey(5, i)));
+        assertFalse(map.table[5] instanceof DemoHashMap.TreeNode);
+        assertEquals(2, map.size());
+        assertEquals(18, map.get(new HashKey(5, 18)));
+        assertEquals(19, map.get(new HashKey(5, 19)));
+        assertEquals(null, map.get(new HashKey(5, 0)));
+    }
+
+    static DemoHashMap<Integer, Integer> filled(int n, Map<Integer, Integer> expected) {
+        DemoHashMap<Integer, Integer> map = new DemoHashMap<>();
+        Random random = new Random(n);
+        for (int i = 0; i < n; i++) {
+            int k = random.nextInt(), v = random.nextInt();
+            map.put(k, v);
+            expected.put(k, v);
+        }
+        return map;
+    }
+
+    /**
+     * 三个视图的内容、contains和通过视图删除、setValue写回，都跟HashMap一致
+     */
+    @Test
+    void viewsMatchHashMap() {
+        Map<Integer, Integer> expected = new HashMap<>();
+        DemoHashMap<Integer, Integer> map = filled(10_000, expected);
+        assertEquals(expected.keySet(), new HashSet<>(map.keySet()));
+        assertEquals(expected.entrySet(), new HashSet<>(map.entrySet()));
+        List<Integer> values = new ArrayList<>(map.values());
+        values.sort(null);
+        List<Integer> expectedValues = new ArrayList<>(expected.values());
+        expectedValues.sort(null);
+        assertEquals(expectedValues, values);
+
+        Integer k0 = expected.keySet().iterator().next();
+        assertTrue(map.keySet().contains(k0));
+        assertTrue(map.entrySet().contains(new java.util.AbstractMap.SimpleEntry<>(k0, expected.get(k0))));
+        assertFalse(map.entrySet().remove(new java.util.AbstractMap.SimpleEntry<>(k0, expected.get(k0) + 1)));
+        assertTrue(map.keySet().remove(k0));
+        expected.remove(k0);
+
+        for (Map.Entry<Integer, Integer> e : map.entrySet())
+            e.setValue(e.getValue() + 1);
+        expected.replaceAll((k, v) -> v + 1);
+        // 迭代器删除所有偶数key，不算并发修改
+        for (Iterator<Integer> it = map.keySet().iterator(); it.hasNext(); )
+            if ((it.next() & 1) == 0)
+                it.remove();
+        expected.keySet().removeIf(k -> (k & 1) == 0);
+        assertEquals(expected.size(), map.size());
+        Map<Integer, Integer> seen = new HashMap<>();
+        map.forEach(seen::put);
+        assertEquals(expected, seen);
+
+        map.values().clear();
+        assertTrue(map.isEmpty());
+        assertFalse(map.entrySet().iterator().hasNext());
+    }
+
+    /**
+     * 迭代器、forEach、游标和spliterator在map被修改后抛ConcurrentModificationException
+     */
+    @Test
+    void iterationIsFailFast() {
+        DemoHashMap<Integer, Integer> map = filled(100, new HashMap<>());
+        Iterator<Integer> it = map.keySet().iterator();
+        it.next();
+        map.put(-1, -1);
+        assertThrows(ConcurrentModificationException.class, it::next);
+
+        DemoHashMap.Cursor<Integer, Integer> cursor = map.cursor();
+        assertTrue(cursor.advance());
+        map.remove(cursor.key());
+        assertThrows(ConcurrentModificationException.class, cursor::advance);
+
+        Spliterator<Integer> sp = map.values().spliterator();
+        assertThrows(ConcurrentModificationException.class, () -> sp.forEachRemaining(v -> map.put(-2, v)));
+        // forEach走完以后才检查modCount
+        assertThrows(ConcurrentModificationException.class, () -> map.forEach((k, v) -> map.remove(k)));
+    }
+
+    /**
+     * 游标不分配迭代器走完所有元素，reset之后可以再走一遍，setValue不算结构修改
+     */
+    @Test
+    void cursorVisitsEveryEntry() {
+        Map<Integer, Integer> expected = new HashMap<>();
+        DemoHashMap<Integer, Integer> map = filled(5_000, expected);
+        DemoHashMap.Cursor<Integer, Integer> c = map.cursor();
+        Map<Integer, Integer> seen = new HashMap<>();
+        while (c.advance())
+            assertEquals(null, seen.put(c.key(), c.value()));
+        assertEquals(expected, seen);
+        assertFalse(c.advance());
+
+        c.reset();
+        while (c.advance())
+            c.setValue(0);
+        assertEquals(0, map.get(expected.keySet().iterator().next()));
+        assertThrows(IllegalStateException.class, () -> new DemoHashMap<Integer, Integer>().cursor().key());
+    }
+
+    /**
+     * spliterator按槽的范围对半拆开，各部分不重叠且合起来是全部元素；并行流的结果跟顺序遍历一致
+     */
+    @Test
+    void spliteratorsSplitByTableRange() {
+        Map<Integer, Integer> expected = new HashMap<>();
+        DemoHashMap<Integer, Integer> map = filled(50_000, expected);
+        Spliterator<Map.Entry<Integer, Integer>> a = map.entrySet().spliterator();
+        assertEquals(expected.size(), a.estimateSize());
+        assertTrue(a.hasCharacteristics(Spliterator.SIZED | Spliterator.DISTINCT));
+        Spliterator<Map.Entry<Integer, Integer>> b = a.trySplit();
+        Spliterator<Map.Entry<Integer, Integer>> c = a.trySplit();
+        Set<Integer> keys = new HashSet<>();
+        int[] count = new int[1];
+        for (Spliterator<Map.Entry<Integer, Integer>> s : new Spliterator[] {a, b, c}) {
+            s.tryAdvance(e -> { keys.add(e.getKey()); count[0]++; });
+            s.forEachRemaining(e -> { keys.add(e.getKey()); count[0]++; });
+        }
+        assertEquals(expected.size(), count[0]);
+        assertEquals(expected.keySet(), keys);
+
+        assertEquals(expected.keySet(), map.keySet().parallelStream().collect(Collectors.toSet()));
+        assertEquals(expected.values().stream().mapToLong(Integer::longValue).sum(),
+                map.values().parallelStream().mapToLong(Integer::longValue).sum());
+        assertEquals(expected, map.entrySet().parallelStream()
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)));
+    }
+
+    /**
+     * 渐进式扩容：迁移期间新旧数组同时存在，结果跟HashMap一致
+     */
+    @Test
+    void incrementalResizeMatchesHashMap() {
+        for (DemoHashMap<Integer, Integer> map : new DemoHashMap[] {
+                DemoHashMap.incremental(), DemoHashMap.seededIncremental()}) {
+            Map<Integer, Integer> expected = new HashMap<>();
+            Random random = new Random(5);
+            int migrating = 0;
+            for (int i = 0; i < 200_000; i++) {
+                Integer k = random.nextInt(60_000);
+                switch (random.nextInt(3)) {
+                    case 0: assertEquals(expected.put(k, i), map.put(k, i)); break;
+                    case 1: assertEquals(expected.remove(k), map.remove(k)); break;
+                    default:
+                        assertEquals(expected.get(k), map.get(k));
+                        assertEquals(expected.containsKey(k), map.containsKey(k));
+                }
+                if (map.oldTable != null)
+                    migrating++;
+                assertEquals(expected.size(), map.size());
+            }
+            assertTrue(migrating > 0);
+            for (Map.Entry<Integer, Integer> e : expected.entrySet())
+                assertEquals(e.getValue(), map.get(e.getKey()));
+        }
+    }
+
+    /**
+     * get/containsKey不推进迁移，也不改modCount；put推进迁移，遍历先迁移完
+     */
+    @Test
+    void getDoesNotAdvanceIncrementalResize() {
+        DemoHashMap<Integer, Integer> map = DemoHashMap.incremental();
+        int i = 0;
+        while (map.oldTable == null) {
+            map.put(i, i);
+            i++;
+        }
+        int index = map.rehashIndex, modCount = map.modCount;
+        for (int k = 0; k < i; k++) {
+            assertEquals(k, map.get(k));
+            assertTrue(map.containsKey(k));
+        }
+        assertFalse(map.containsKey(i));
+        assertTrue(map.oldTable != null);
+        assertEquals(index, map.rehashIndex);
+        assertEquals(modCount, map.modCount);
+
+        map.put(i, i);
+        assertTrue(map.oldTable == null || map.rehashIndex > index);
+
+        Iterator<Integer> it = map.keySet().iterator();
+        assertTrue(map.oldTable == null);
+        assertEquals(modCount + 1, map.modCount);
+        int count = 0;
+        for (; it.hasNext(); it.next())
+            count++;
+        assertEquals(i + 1, count);
+    }
+}
@@ -0,0 +1,155 @@
+package org.example.hashmap;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 对照java.util.LinkedHashMap，遍历顺序也要一致
+ */
+class DemoLinkedHashMapTest {
+
+    static <K, V> List<Map.Entry<K, V>> entries(Iterable<Map.Entry<K, V>> entries) {
+        List<Map.Entry<K, V>> list = new ArrayList<>();
+        for (Map.Entry<K, V> e : entries)
+            list.add(new AbstractMap.SimpleEntry<>(e));
+        return list;
+    }
+
+    /**
+     * 随机put/get/remove，插入顺序和访问顺序两种模式；key的范围小，会树化和扩容
+     */
+    @Test
+    void orderMatchesLinkedHashMap() {
+        for (boolean accessOrder : new boolean[] {false, true}) {
+            DemoLinkedHashMap<Integer, Integer> map = new DemoLinkedHashMap<>(accessOrder);
+            Map<Integer, Integer> expected = new LinkedHashMap<>(16, 0.75f, accessOrder);
+            Random random = new Random(1);
+            for (int i = 0; i < 100_000; i++) {
+                Integer k = random.nextInt(2_000);
+                switch (random.nextInt(3)) {
+                    case 0: assertEquals(expected.put(k, i), map.put(k, i)); break;
+                    case 1: assertEquals(expected.remove(k), map.remove(k)); break;
+                    default: assertEquals(expected.get(k), map.get(k));
+                }
+                if (i % 10_000 == 0)
+                    assertEquals(entries(expected.entrySet()), entries(map.entrySet()));
+            }
+            assertEquals(entries(expected.entrySet()), entries(map.entrySet()));
+            assertEquals(new ArrayList<>(expected.keySet()), new ArrayList<>(map.keySet()));
+            assertEquals(new ArrayList<>(expected.values()), new ArrayList<>(map.values()));
+            List<Integer> keys = new ArrayList<>();
+            map.forEach((k, v) -> keys.add(k));
+            assertEquals(new ArrayList<>(expected.keySet()), keys);
+        }
+    }
+
+    /**
+     * maxSize的LRU缓存跟覆盖removeEldestEntry的LinkedHashMap淘汰同样的元素
+     */
+    @Test
+    void evictsLeastRecentlyUsed() {
+        int maxSize = 100;
+        List<Integer> evicted = new ArrayList<>();
+        DemoLinkedHashMap<Integer, Integer> cache = DemoLinkedHashMap.lru(maxSize, (k, v) -> evicted.add(k));
+        List<Integer> expectedEvicted = new ArrayList<>();
+        Map<Integer, Integer> expected = new LinkedHashMap<Integer, Integer>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Integer, Integer> eldest) {
+                if (size() > maxSize) {
+                    expectedEvicted.add(eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+        Random random = new Random(2);
+        for (int i = 0; i < 50_000; i++) {
+            Integer k = random.nextInt(300);
+            if (random.nextBoolean())
+                assertEquals(expected.put(k, i), cache.put(k, i));
+            else
+                assertEquals(expected.get(k), cache.get(k));
+            assertTrue(cache.size() <= maxSize);
+        }
+        assertEquals(expectedEvicted, evicted);
+        assertEquals(entries(expected.entrySet()), entries(cache.entrySet()));
+    }
+
+    @Test
+    void containsValueMatchesLinkedHashMap() {
+        DemoLinkedHashMap<Integer, String> map = new DemoLinkedHashMap<>();
+        Map<Integer, String> expected = new LinkedHashMap<>();
+        Random random = new Random(3);
+        for (int i = 0; i < 5_000; i++) {
+            Integer k = random.nextInt(500);
+            String v = random.nextInt(20) == 0 ? null : "v" + random.nextInt(1_000);
+            if (random.nextInt(3) == 0)
+                assertEquals(expected.remove(k), map.remove(k));
+            else
+                assertEquals(expected.put(k, v), map.put(k, v));
+            String probe = random.nextInt(20) == 0 ? null : "v" + random.nextInt(1_000);
+            assertEquals(expected.containsValue(probe), map.containsValue(probe));
+        }
+        map.clear();
+        assertFalse(map.containsValue(null));
+    }
+
+    /**
+     * 访问顺序下get会移动节点，遍历期间get算一次修改
+     */
+    @Test
+    void getDuringAccessOrderIterationIsFailFast() {
+        DemoLinkedHashMap<Integer, Integer> map = new DemoLinkedHashMap<>(true);
+        for (int k = 0; k < 10; k++)
+            map.put(k, k);
+        Iterator<Integer> it = map.keySet().iterator();
+        it.next();
+        map.get(5);
+        assertThrows(ConcurrentModificationException.class, it::next);
+
+        DemoLinkedHashMap<Integer, Integer> insertionOrder = new DemoLinkedHashMap<>();
+        for (int k = 0; k < 10; k++)
+            insertionOrder.put(k, k);
+        it = insertionOrder.keySet().iterator();
+        it.next();
+        insertionOrder.get(5);
+        assertEquals(1, it.next());
+    }
+
+    /**
+     * DemoLinkedHashMap(int)跟DemoHashMap(int)、LinkedHashMap(int)一样是初始容量，不会淘汰元素；
+     * 只有lru(maxSize)是有上限的访问顺序缓存
+     */
+    @Test
+    void intConstructorIsInitialCapacity() {
+        DemoLinkedHashMap<Integer, Integer> map = new DemoLinkedHashMap<>(4);
+        Map<Integer, Integer> expected = new LinkedHashMap<>(4);
+        for (int k = 0; k < 1_000; k++) {
+            map.put(k, k);
+            expected.put(k, k);
+        }
+        map.get(0);
+        assertEquals(entries(expected.entrySet()), entries(map.entrySet()));
+
+        DemoLinkedHashMap<Integer, Integer> cache = DemoLinkedHashMap.lru(4);
+        for (int k = 0; k < 1_000; k++)
+            cache.put(k, k);
+        cache.get(996);
+        assertEquals(Arrays.asList(997, 998, 999, 996), new ArrayList<>(cache.keySet()));
+        assertThrows(IllegalArgumentException.class, () -> DemoLinkedHashMap.lru(0));
+        assertThrows(IllegalArgumentException.class, () -> new DemoLinkedHashMap<>(-1));
+    }
+}
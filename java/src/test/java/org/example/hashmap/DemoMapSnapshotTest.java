@@ -0,0 +1,172 @@
+package org.example.hashmap;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DemoMapSnapshotTest {
+
+    /**
+     * 导出再加载，内容跟原来的map一样
+     */
+    @Test
+    void dumpAndLoadRoundTrip() throws Exception {
+        DemoConcurrentHashMap<Long, String> map = new DemoConcurrentHashMap<>();
+        Map<Long, String> expected = new HashMap<>();
+        Random random = new Random(3);
+        for (long i = 0; i < 200_000; i++) {
+            String v = "v" + random.nextInt() + (i % 7 == 0 ? "中文😀" : "");
+            map.put(i, v);
+            expected.put(i, v);
+        }
+        Path file = Files.createTempFile("snapshot", ".bin");
+        try {
+            assertEquals(expected.size(), DemoMapSnapshot.dump(map, file,
+                    DemoMapSerializer.LONG, DemoMapSerializer.STRING));
+            DemoConcurrentHashMap<Long, String> loaded = DemoMapSnapshot.load(file,
+                    DemoMapSerializer.LONG, DemoMapSerializer.STRING);
+            assertEquals(expected.size(), loaded.size());
+            for (Map.Entry<Long, String> e : expected.entrySet())
+                assertEquals(e.getValue(), loaded.get(e.getKey()));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * 合法的字符串跟String.getBytes(UTF_8)编码一致；落单的代理字符也能原样读回来
+     */
+    @Test
+    void stringCodecRoundTripsLoneSurrogates() {
+        String[] values = {"", "ascii", "é", "中文", "😀", "a\uD800b", "\uDC00",
+                "\uD800", "\uDBFF\uDBFF\uDC00", "x\uDFFF\uD800"};
+        for (String v : values) {
+            ByteBuffer buf = ByteBuffer.allocate(DemoMapSerializer.STRING.size(v));
+            DemoMapSerializer.STRING.write(v, buf);
+            assertEquals(0, buf.remaining());
+            boolean wellFormed = v.equals(new String(v.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8));
+            if (wellFormed)
+                assertArrayEquals(v.getBytes(StandardCharsets.UTF_8), buf.array());
+            buf.flip();
+            assertEquals(v, DemoMapSerializer.STRING.read(buf, buf.remaining()));
+        }
+
+        Random random = new Random(5);
+        for (int i = 0; i < 10_000; i++) {
+            char[] cs = new char[random.nextInt(20)];
+            for (int j = 0; j < cs.length; j++)
+                cs[j] = (char) random.nextInt(Character.MAX_VALUE + 1);
+            String v = new String(cs);
+            ByteBuffer buf = ByteBuffer.allocate(DemoMapSerializer.STRING.size(v));
+            DemoMapSerializer.STRING.write(v, buf);
+            buf.flip();
+            assertEquals(v, DemoMapSerializer.STRING.read(buf, buf.remaining()));
+        }
+    }
+
+    @Test
+    void malformedUtf8IsRejected() {
+        ByteBuffer buf = ByteBuffer.wrap(new byte[] {'a', (byte) 0xff, 'b'});
+        assertThrows(IllegalStateException.class, () -> DemoMapSerializer.STRING.read(buf, 3));
+        ByteBuffer cut = ByteBuffer.wrap(new byte[] {'a', (byte) 0xe4, (byte) 0xb8, 'b'});
+        // 3字节的序列被长度截断
+        assertThrows(IllegalStateException.class, () -> DemoMapSerializer.STRING.read(cut, 3));
+    }
+
+    /**
+     * 数据被截断或者改坏时，load抛出带文件偏移的IOException，而不是BufferUnderflowException之类
+     */
+    @Test
+    void corruptDataReportsOffset() throws Exception {
+        DemoConcurrentHashMap<Integer, String> map = new DemoConcurrentHashMap<>();
+        for (int i = 0; i < 1_000; i++)
+            map.put(i, "value-" + i);
+        Path file = Files.createTempFile("snapshot", ".bin");
+        try {
+            DemoMapSnapshot.dump(map, file, DemoMapSerializer.INTEGER, DemoMapSerializer.STRING);
+            long dataStart = DemoMapSnapshot.HEADER_SIZE + DemoMapSnapshot.SEGMENT_ENTRY_SIZE;
+
+            // 第一条记录的value长度改大，读过段尾
+            byte[] original = Files.readAllBytes(file);
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                ch.write(ByteBuffer.wrap(new byte[] {(byte) 0xff, (byte) 0x7f}), dataStart + 5);
+            }
+            IOException e = assertThrows(IOException.class, () ->
+                    DemoMapSnapshot.load(file, DemoMapSerializer.INTEGER, DemoMapSerializer.STRING));
+            assertTrue(e.getMessage().contains("offset " + dataStart), e.getMessage());
+
+            // 第二条记录的字符串内容改成非法的UTF-8
+            Files.write(file, original);
+            long second = dataStart + 6 + original[(int) dataStart + 5];
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                ch.write(ByteBuffer.wrap(new byte[] {(byte) 0xff}), second + 6);
+            }
+            e = assertThrows(IOException.class, () ->
+                    DemoMapSnapshot.load(file, DemoMapSerializer.INTEGER, DemoMapSerializer.STRING));
+            assertTrue(e.getMessage().contains("offset " + second), e.getMessage());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * 长度字段被改成很大的值(Integer.MAX_VALUE、比段还长)，或者段被截短到记录中间：
+     * 在按长度分配数组之前就报IOException，不会OutOfMemoryError或者NegativeArraySizeException
+     */
+    @Test
+    void hugeOrTruncatedLengthsAreRejectedBeforeAllocating() throws Exception {
+        DemoConcurrentHashMap<String, String> map = new DemoConcurrentHashMap<>();
+        for (int i = 0; i < 100; i++)
+            map.put("key-" + i, "value-" + i);
+        Path file = Files.createTempFile("snapshot", ".bin");
+        try {
+            DemoMapSnapshot.dump(map, file, DemoMapSerializer.STRING, DemoMapSerializer.STRING);
+            long dataStart = DemoMapSnapshot.HEADER_SIZE + DemoMapSnapshot.SEGMENT_ENTRY_SIZE;
+            byte[] original = Files.readAllBytes(file);
+            // 第一条记录的key长度是1字节的varint，value长度紧跟在key后面；
+            // 翻转最高位后长度变成2字节的varint，第二个字节是value的第一个字符，长度超过整段
+            int keyLength = original[(int) dataStart];
+            long valueLengthAt = dataStart + 1 + keyLength;
+            byte[] maxInt = {(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07};
+            byte[] flipped = {(byte) (original[(int) valueLengthAt] | 0x80)};
+
+            long[] positions = {dataStart, valueLengthAt, valueLengthAt};
+            byte[][] patches = {maxInt, maxInt, flipped};
+            for (int t = 0; t < positions.length; t++) {
+                Files.write(file, original);
+                try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    ch.write(ByteBuffer.wrap(patches[t]), positions[t]);
+                }
+                IOException e = assertThrows(IOException.class, () ->
+                        DemoMapSnapshot.load(file, DemoMapSerializer.STRING, DemoMapSerializer.STRING));
+                assertTrue(e.getMessage().contains("corrupt record at offset " + dataStart), e.getMessage());
+            }
+
+            // 段表里的字节数改成只到第一条记录的value中间
+            Files.write(file, original);
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                ByteBuffer bytes = ByteBuffer.allocate(8).putLong(0, valueLengthAt + 3 - dataStart);
+                ch.write(bytes, DemoMapSnapshot.HEADER_SIZE + 8);
+            }
+            IOException e = assertThrows(IOException.class, () ->
+                    DemoMapSnapshot.load(file, DemoMapSerializer.STRING, DemoMapSerializer.STRING));
+            assertTrue(e.getMessage().contains("corrupt record at offset " + dataStart), e.getMessage());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
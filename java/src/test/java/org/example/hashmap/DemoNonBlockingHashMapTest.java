@@ -0,0 +1,194 @@
+package org.example.hashmap;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DemoNonBlockingHashMapTest {
+
+    @Test
+    void matchesHashMap() {
+        DemoConcurrentMap<Integer, Integer> map = new DemoNonBlockingHashMap<>();
+        Map<Integer, Integer> expected = new HashMap<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 300_000; i++) {
+            Integer k = random.nextInt(5_000), v = random.nextInt(4);
+            switch (random.nextInt(7)) {
+                case 0: assertEquals(expected.put(k, v), map.put(k, v)); break;
+                case 1: assertEquals(expected.putIfAbsent(k, v), map.putIfAbsent(k, v)); break;
+                case 2: assertEquals(expected.remove(k), map.remove(k)); break;
+                case 3: assertEquals(expected.remove(k, v), map.remove(k, v)); break;
+                case 4: assertEquals(expected.replace(k, v), map.replace(k, v)); break;
+                case 5: assertEquals(expected.replace(k, v, v + 1), map.replace(k, v, v + 1)); break;
+                default: assertEquals(expected.get(k), map.get(k));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        Map<Integer, Integer> seen = new HashMap<>();
+        for (Map.Entry<Integer, Integer> e : map.entrySet())
+            assertEquals(null, seen.put(e.getKey(), e.getValue()));
+        assertEquals(expected, seen);
+    }
+
+    /**
+     * compute系列方法的返回值和结果跟HashMap一致，结果为null时删除
+     */
+    @Test
+    void computeAndMergeMatchHashMap() {
+        DemoConcurrentMap<Integer, Integer> map = new DemoNonBlockingHashMap<>();
+        Map<Integer, Integer> expected = new HashMap<>();
+        Random random = new Random(2);
+        BiFunction<Integer, Integer, Integer> sumOrRemove = (a, b) -> (a + b) % 5 == 0 ? null : a + b;
+        for (int i = 0; i < 200_000; i++) {
+            Integer k = random.nextInt(2_000), v = random.nextInt(10);
+            switch (random.nextInt(4)) {
+                case 0:
+                    assertEquals(expected.computeIfAbsent(k, x -> v == 0 ? null : v),
+                            map.computeIfAbsent(k, x -> v == 0 ? null : v));
+                    break;
+                case 1:
+                    assertEquals(expected.computeIfPresent(k, (x, old) -> sumOrRemove.apply(old, v)),
+                            map.computeIfPresent(k, (x, old) -> sumOrRemove.apply(old, v)));
+                    break;
+                case 2:
+                    assertEquals(expected.compute(k, (x, old) -> old == null ? v : sumOrRemove.apply(old, v)),
+                            map.compute(k, (x, old) -> old == null ? v : sumOrRemove.apply(old, v)));
+                    break;
+                default:
+                    assertEquals(expected.merge(k, v, sumOrRemove), map.merge(k, v, sumOrRemove));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Integer, Integer> e : expected.entrySet())
+            assertEquals(e.getValue(), map.get(e.getKey()));
+    }
+
+    /**
+     * 多个线程对同一批key做merge计数，重试不会丢失也不会重复累加；
+     * computeIfAbsent并发时所有线程拿到的是同一个被放入的值
+     */
+    @Test
+    void concurrentMergeAndComputeIfAbsent() throws Exception {
+        DemoNonBlockingHashMap<Integer, Long> counts = new DemoNonBlockingHashMap<>();
+        DemoNonBlockingHashMap<Integer, Object> singletons = new DemoNonBlockingHashMap<>();
+        Object[][] got = new Object[4][1_000];
+        Thread[] workers = new Thread[4];
+        for (int t = 0; t < workers.length; t++) {
+            int id = t;
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < 200_000; i++)
+                    counts.merge(i % 1_000, 1L, Long::sum);
+                for (int i = 0; i < 1_000; i++)
+                    got[id][i] = singletons.computeIfAbsent(i, x -> new Object());
+            });
+            workers[t].start();
+        }
+        for (Thread t : workers)
+            t.join();
+        assertEquals(1_000, counts.size());
+        for (int i = 0; i < 1_000; i++) {
+            assertEquals(800L, counts.get(i));
+            for (Object[] g : got)
+                assertSame(singletons.get(i), g[i]);
+        }
+    }
+
+    /**
+     * 写线程不断放入新key触发多轮复制，读线程一直查复制前就存在的key，任何时候都不能读不到
+     */
+    @Test
+    void readersSeeExistingKeysDuringResize() throws Exception {
+        DemoNonBlockingHashMap<Integer, Integer> map = new DemoNonBlockingHashMap<>();
+        int existing = 1_000;
+        for (int i = 0; i < existing; i++)
+            map.put(i, i);
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicInteger misses = new AtomicInteger();
+        Thread reader = new Thread(() -> {
+            while (!done.get()) {
+                for (int i = 0; i < existing; i++) {
+                    if (!Integer.valueOf(i).equals(map.get(i)))
+                        misses.incrementAndGet();
+                }
+            }
+        });
+        reader.start();
+        for (int i = existing; i < 500_000; i++)
+            map.put(i, i);
+        done.set(true);
+        reader.join();
+        assertEquals(0, misses.get());
+        assertEquals(500_000, map.size());
+    }
+
+    @Test
+    void clearEmptiesMap() {
+        DemoNonBlockingHashMap<Integer, Integer> map = new DemoNonBlockingHashMap<>();
+        for (int i = 0; i < 100_000; i++)
+            map.put(i, i);
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertEquals(0, map.mappingCount());
+        assertFalse(map.keySet().iterator().hasNext());
+        for (int i = 0; i < 100_000; i += 1_000)
+            assertEquals(null, map.get(i));
+        map.put(7, 7);
+        assertEquals(7, map.get(7));
+        assertEquals(1, map.size());
+    }
+
+    /**
+     * clear和并发的放入、删除、扩容交错，停下来以后size和实际遍历到的元素数一致，
+     * 最后一次clear之后的写入全部可见
+     */
+    @Test
+    void clearRacingWithWritersKeepsSizeConsistent() throws Exception {
+        DemoNonBlockingHashMap<Integer, Integer> map = new DemoNonBlockingHashMap<>();
+        AtomicBoolean done = new AtomicBoolean();
+        Thread[] writers = new Thread[3];
+        for (int t = 0; t < writers.length; t++) {
+            int seed = t;
+            writers[t] = new Thread(() -> {
+                Random random = new Random(seed);
+                while (!done.get()) {
+                    Integer k = random.nextInt(50_000);
+                    if (random.nextInt(4) == 0)
+                        map.remove(k);
+                    else
+                        map.put(k, k);
+                }
+            });
+            writers[t].start();
+        }
+        for (int i = 0; i < 200; i++) {
+            map.clear();
+            Thread.yield();
+        }
+        done.set(true);
+        for (Thread t : writers)
+            t.join();
+
+        int iterated = 0;
+        for (Iterator<Integer> it = map.keySet().iterator(); it.hasNext(); it.next())
+            iterated++;
+        assertEquals(iterated, map.size());
+
+        map.clear();
+        for (int i = 0; i < 10_000; i++)
+            map.put(i, i);
+        assertEquals(10_000, map.size());
+        for (int i = 0; i < 10_000; i++)
+            assertEquals(i, map.get(i));
+    }
+}
@@ -0,0 +1,272 @@
+package org.example.hashmap;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DemoOffHeapConcurrentHashMapTest {
+
+    @Test
+    void matchesHashMap() {
+        DemoOffHeapConcurrentHashMap<Integer> map = new DemoOffHeapConcurrentHashMap<>();
+        try {
+            Map<Integer, byte[]> expected = new HashMap<>();
+            Random random = new Random(8);
+            byte[] buf = new byte[1024];
+            ByteBuffer direct = ByteBuffer.allocateDirect(1024);
+            for (int i = 0; i < 100_000; i++) {
+                Integer k = random.nextInt(2_000);
+                switch (random.nextInt(4)) {
+                    case 0: {
+                        byte[] v = new byte[random.nextInt(600)];
+                        random.nextBytes(v);
+                        map.put(k, v);
+                        expected.put(k, v);
+                        break;
+                    }
+                    case 1:
+                        assertEquals(expected.remove(k) != null, map.remove(k));
+                        break;
+                    case 2: {
+                        byte[] v = expected.get(k);
+                        direct.clear();
+                        assertEquals(v == null ? -1 : v.length, map.get(k, direct));
+                        if (v != null) {
+                            direct.flip();
+                            assertEquals(ByteBuffer.wrap(v), direct);
+                        }
+                        break;
+                    }
+                    default: {
+                        byte[] v = expected.get(k);
+                        int len = map.get(k, buf, 0);
+                        assertEquals(v == null ? -1 : v.length, len);
+                        if (v != null)
+                            assertArrayEquals(v, Arrays.copyOf(buf, len));
+                        break;
+                    }
+                }
+            }
+            assertEquals(expected.size(), map.size());
+            for (Map.Entry<Integer, byte[]> e : expected.entrySet())
+                assertArrayEquals(e.getValue(), map.get(e.getKey()));
+            assertNull(map.get(-1));
+            assertFalse(map.containsKey(-1));
+        } finally {
+            map.close();
+        }
+    }
+
+    /**
+     * 反复覆盖同一批key，释放的块要被复用，堆外内存不能一直增长
+     */
+    @Test
+    void overwritesReuseFreedBlocks() {
+        DemoOffHeapConcurrentHashMap<Integer> map = new DemoOffHeapConcurrentHashMap<>();
+        try {
+            byte[] v = new byte[100];
+            for (int i = 0; i < 10_000; i++)
+                map.put(i, v);
+            long reserved = map.offHeapBytes();
+            for (int round = 0; round < 20; round++) {
+                for (int i = 0; i < 10_000; i++)
+                    map.put(i, v);
+            }
+            assertEquals(reserved, map.offHeapBytes());
+            for (int i = 0; i < 10_000; i++)
+                assertTrue(map.remove(i));
+            for (int i = 0; i < 10_000; i++)
+                map.put(i + 10_000, v);
+            assertEquals(reserved, map.offHeapBytes());
+        } finally {
+            map.close();
+        }
+    }
+
+    /**
+     * 写线程不断用整段相同的字节覆盖、删除同一批key，读线程读到的value必须是某一次完整写入的内容，
+     * 不能混着新旧两次写入或者被复用的内存
+     */
+    @Test
+    void concurrentReadersNeverSeeTornValues() throws Exception {
+        DemoOffHeapConcurrentHashMap<Integer> map = new DemoOffHeapConcurrentHashMap<>();
+        try {
+            int keys = 64;
+            AtomicBoolean done = new AtomicBoolean();
+            AtomicInteger torn = new AtomicInteger();
+            Thread[] readers = new Thread[2];
+            for (int r = 0; r < readers.length; r++) {
+                readers[r] = new Thread(() -> {
+                    byte[] dst = new byte[256];
+                    int i = 0;
+                    while (!done.get()) {
+                        int len = map.get(i++ % keys, dst, 0);
+                        for (int j = 1; j < len; j++) {
+                            if (dst[j] != dst[0]) {
+                                torn.incrementAndGet();
+                                break;
+                            }
+                        }
+                    }
+                });
+                readers[r].start();
+            }
+            Random random = new Random(9);
+            byte[] v = new byte[256];
+            for (int i = 0; i < 500_000; i++) {
+                int k = random.nextInt(keys);
+                if (random.nextInt(8) == 0) {
+                    map.remove(k);
+                }
+                else {
+                    Arrays.fill(v, (byte) i);
+                    map.put(k, v, 0, 16 + random.nextInt(240));
+                }
+            }
+            done.set(true);
+            for (Thread t : readers)
+                t.join();
+            assertEquals(0, torn.get());
+        } finally {
+            map.close();
+        }
+    }
+
+    /**
+     * 记下每个块的实际大小，复制超出块的范围就计数；块的地址只会按同样的大小复用，所以大小不会变
+     */
+    static final class CheckedAllocator extends DemoSlabAllocator {
+        final Map<Long, Integer> blockSizes = new ConcurrentHashMap<>();
+        final AtomicInteger overruns = new AtomicInteger();
+
+        @Override
+        public long allocate(int length) {
+            long address = super.allocate(length);
+            blockSizes.put(address, 1 << (sizeClass(length) + MIN_BLOCK_SHIFT));
+            return address;
+        }
+
+        private void check(long address, int len) {
+            Integer size = blockSizes.get(address);
+            if (len > 0 && (size == null || len > size))
+                overruns.incrementAndGet();
+        }
+
+        @Override
+        public void read(long address, byte[] dst, int off, int len) {
+            check(address, len);
+            super.read(address, dst, off, len);
+        }
+
+        @Override
+        public void read(long address, ByteBuffer dst, int len) {
+            check(address, len);
+            super.read(address, dst, len);
+        }
+    }
+
+    /**
+     * 写线程在16字节和100字节两种长度之间来回覆盖，读线程用只放得下100字节的buffer读：
+     * 地址和长度必须是同一次写入的，不能拿新的16字节块配旧的长度100去复制，
+     * 也不能因为撕裂的长度抛BufferOverflowException
+     */
+    @Test
+    void readersNeverPairNewAddressWithOldLength() throws Exception {
+        CheckedAllocator allocator = new CheckedAllocator();
+        DemoOffHeapConcurrentHashMap<Integer> map = new DemoOffHeapConcurrentHashMap<>(allocator);
+        try {
+            int keys = 8;
+            AtomicBoolean done = new AtomicBoolean();
+            AtomicInteger failures = new AtomicInteger();
+            Thread[] readers = new Thread[3];
+            for (int r = 0; r < readers.length; r++) {
+                final int mode = r;
+                readers[r] = new Thread(() -> {
+                    ByteBuffer small = ByteBuffer.allocateDirect(100);
+                    byte[] dst = new byte[100];
+                    int i = 0;
+                    while (!done.get()) {
+                        int k = i++ % keys, len;
+                        try {
+                            if (mode == 0) {
+                                small.clear();
+                                len = map.get(k, small);
+                            }
+                            else if (mode == 1) {
+                                len = map.get(k, dst, 0);
+                            }
+                            else {
+                                byte[] b = map.get(k);
+                                len = (b == null) ? -1 : b.length;
+                            }
+                        } catch (RuntimeException e) {
+                            failures.incrementAndGet();
+                            continue;
+                        }
+                        if (len != -1 && len != 16 && len != 100)
+                            failures.incrementAndGet();
+                    }
+                });
+                readers[r].start();
+            }
+            byte[] v = new byte[100];
+            for (int i = 0; i < 1_000_000; i++)
+                map.put(i % keys, v, 0, (i / keys & 1) == 0 ? 100 : 16);
+            done.set(true);
+            for (Thread t : readers)
+                t.join();
+            assertEquals(0, failures.get());
+            assertEquals(0, allocator.overruns.get());
+        } finally {
+            map.close();
+        }
+    }
+
+    /**
+     * 只读buffer跟ByteBuffer.put一样抛ReadOnlyBufferException，内容和position都不变
+     */
+    @Test
+    void readOnlyBuffersAreRejected() {
+        DemoOffHeapConcurrentHashMap<Integer> map = new DemoOffHeapConcurrentHashMap<>();
+        try {
+            map.put(1, new byte[] {1, 2, 3});
+            for (ByteBuffer b : new ByteBuffer[] {ByteBuffer.allocateDirect(8), ByteBuffer.allocate(8)}) {
+                ByteBuffer readOnly = b.asReadOnlyBuffer();
+                assertThrows(ReadOnlyBufferException.class, () -> map.get(1, readOnly));
+                assertEquals(0, readOnly.position());
+                assertEquals(0, b.get(0));
+            }
+        } finally {
+            map.close();
+        }
+    }
+
+    /**
+     * close之后申请抛IllegalStateException，不会再申请新的slab，也不会拿到空闲链表里已经释放的块
+     */
+    @Test
+    void allocateAfterCloseFails() {
+        DemoSlabAllocator allocator = new DemoSlabAllocator(12);
+        long a = allocator.allocate(100);
+        allocator.free(a, 100);
+        allocator.close();
+        assertThrows(IllegalStateException.class, () -> allocator.allocate(100));
+        assertThrows(IllegalStateException.class, () -> allocator.allocate(1_000));
+        assertEquals(0, allocator.reservedBytes());
+    }
+}
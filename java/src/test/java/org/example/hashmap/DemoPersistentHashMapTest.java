@@ -0,0 +1,155 @@
+package org.example.hashmap;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 对照HashMap，旧版本在之后的修改里保持不变
+ */
+class DemoPersistentHashMapTest {
+
+    static <K, V> void assertMapEquals(Map<K, V> expected, DemoPersistentHashMap<K, V> map) {
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<K, V> e : expected.entrySet()) {
+            assertEquals(e.getValue(), map.get(e.getKey()));
+            assertTrue(map.containsKey(e.getKey()));
+        }
+        Map<K, V> seen = new HashMap<>();
+        map.forEach((k, v) -> {
+            assertFalse(seen.containsKey(k));
+            seen.put(k, v);
+        });
+        assertEquals(expected, seen);
+    }
+
+    /**
+     * 随机with/without，每隔一段保存一个版本和当时的HashMap副本，最后逐个核对
+     */
+    @Test
+    void versionsMatchHashMap() {
+        DemoPersistentHashMap<Integer, Integer> map = DemoPersistentHashMap.empty();
+        Map<Integer, Integer> expected = new HashMap<>();
+        List<DemoPersistentHashMap<Integer, Integer>> versions = new ArrayList<>();
+        List<Map<Integer, Integer>> snapshots = new ArrayList<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 100_000; i++) {
+            // 偶尔用null作key和value
+            Integer k = random.nextInt(200) == 0 ? null : random.nextInt(20_000);
+            if (random.nextInt(3) == 0) {
+                map = map.without(k);
+                expected.remove(k);
+            }
+            else {
+                Integer v = random.nextInt(50) == 0 ? null : i;
+                map = map.with(k, v);
+                expected.put(k, v);
+            }
+            assertEquals(expected.size(), map.size());
+            assertEquals(expected.get(k), map.get(k));
+            if (i % 5_000 == 0) {
+                versions.add(map);
+                snapshots.add(new HashMap<>(expected));
+            }
+        }
+        assertMapEquals(expected, map);
+        for (int v = 0; v < versions.size(); v++)
+            assertMapEquals(snapshots.get(v), versions.get(v));
+    }
+
+    /**
+     * 哈希值完全相同的key进CollisionNode；hashCode只有4个取值，也会在同一条路径上分叉
+     */
+    @Test
+    void collidingKeysMatchHashMap() {
+        DemoPersistentHashMap<DemoConcurrentHashMapTest.CollidingKey, Integer> map = DemoPersistentHashMap.empty();
+        Map<DemoConcurrentHashMapTest.CollidingKey, Integer> expected = new HashMap<>();
+        Random random = new Random(2);
+        for (int i = 0; i < 20_000; i++) {
+            DemoConcurrentHashMapTest.CollidingKey k =
+                    new DemoConcurrentHashMapTest.CollidingKey(random.nextInt(200), false);
+            if (random.nextInt(3) == 0) {
+                map = map.without(k);
+                expected.remove(k);
+            }
+            else {
+                map = map.with(k, i);
+                expected.put(k, i);
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        assertMapEquals(expected, map);
+        for (Map.Entry<DemoConcurrentHashMapTest.CollidingKey, Integer> e : expected.entrySet())
+            map = map.without(e.getKey());
+        assertTrue(map.isEmpty());
+        assertEquals(null, map.get(new DemoConcurrentHashMapTest.CollidingKey(1, false)));
+    }
+
+    /**
+     * 没有变化的with/without返回原来的map
+     */
+    @Test
+    void unchangedUpdatesReturnSameMap() {
+        DemoPersistentHashMap<String, String> map = DemoPersistentHashMap.<String, String>empty()
+                .with("a", "1").with(null, "n");
+        assertSame(map, map.with("a", "1"));
+        assertSame(map, map.with(null, "n"));
+        assertSame(map, map.without("b"));
+        assertSame(DemoPersistentHashMap.empty(), DemoPersistentHashMap.empty().without("a"));
+        assertEquals(1, map.without(null).size());
+        assertEquals("1", map.without(null).get("a"));
+    }
+
+    /**
+     * Transient原地批量修改的结果跟HashMap一致，不影响来源map；persistent()之后不能再用
+     */
+    @Test
+    void transientBatchesMatchHashMap() {
+        DemoHashMap<Integer, Integer> source = new DemoHashMap<>();
+        Map<Integer, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 10_000; i++) {
+            source.put(i, i);
+            expected.put(i, i);
+        }
+        source.put(null, -1);
+        expected.put(null, -1);
+        DemoPersistentHashMap<Integer, Integer> base = DemoPersistentHashMap.of(source);
+        assertMapEquals(expected, base);
+
+        Map<Integer, Integer> batched = new HashMap<>(expected);
+        DemoPersistentHashMap.Transient<Integer, Integer> t = base.asTransient();
+        Random random = new Random(3);
+        for (int i = 0; i < 50_000; i++) {
+            Integer k = random.nextInt(100) == 0 ? null : random.nextInt(20_000);
+            if (random.nextBoolean()) {
+                t.remove(k);
+                batched.remove(k);
+            }
+            else {
+                t.put(k, -i);
+                batched.put(k, -i);
+            }
+            assertEquals(batched.size(), t.size());
+            assertEquals(batched.get(k), t.get(k));
+            assertEquals(batched.containsKey(k), t.containsKey(k));
+        }
+        DemoPersistentHashMap<Integer, Integer> result = t.persistent();
+        assertMapEquals(batched, result);
+        assertMapEquals(expected, base);
+
+        assertThrows(IllegalStateException.class, () -> t.put(1, 1));
+        assertThrows(IllegalStateException.class, () -> t.get(1));
+        assertThrows(IllegalStateException.class, t::persistent);
+        assertMapEquals(batched, result);
+    }
+}
@@ -0,0 +1,114 @@
+package org.example.hashmap;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 模板生成的四个基本类型map，对照HashMap
+ */
+class DemoPrimitiveHashMapTest {
+
+    @Test
+    void intIntMatchesHashMap() {
+        DemoIntIntHashMap map = new DemoIntIntHashMap(0, -1);
+        Map<Integer, Integer> expected = new HashMap<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 300_000; i++) {
+            int k = random.nextInt(30_000) - 15_000, v = random.nextInt();
+            switch (random.nextInt(4)) {
+                case 0: assertEquals(expected.getOrDefault(k, -1), map.put(k, v)); expected.put(k, v); break;
+                case 1: assertEquals(expected.getOrDefault(k, -1), map.putIfAbsent(k, v)); expected.putIfAbsent(k, v); break;
+                case 2: assertEquals(expected.getOrDefault(k, -1), map.remove(k)); expected.remove(k); break;
+                default:
+                    assertEquals(expected.getOrDefault(k, -1), map.get(k));
+                    assertEquals(expected.containsKey(k), map.containsKey(k));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        Map<Integer, Integer> seen = new HashMap<>();
+        map.forEach((k, v) -> assertEquals(null, seen.put(k, v)));
+        assertEquals(expected, seen);
+    }
+
+    @Test
+    void longLongMatchesHashMap() {
+        DemoLongLongHashMap map = new DemoLongLongHashMap();
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(2);
+        for (int i = 0; i < 300_000; i++) {
+            // 高32位也参与哈希
+            long k = (long) random.nextInt(20_000) << (random.nextBoolean() ? 32 : 0), v = random.nextLong();
+            switch (random.nextInt(3)) {
+                case 0: assertEquals(expected.getOrDefault(k, 0L), map.put(k, v)); expected.put(k, v); break;
+                case 1: assertEquals(expected.getOrDefault(k, 0L), map.remove(k)); expected.remove(k); break;
+                default: assertEquals(expected.getOrDefault(k, 0L), map.get(k));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, Long> e : expected.entrySet())
+            assertEquals((long) e.getValue(), map.get(e.getKey()));
+    }
+
+    @Test
+    void objectValuesMatchHashMap() {
+        DemoIntObjectHashMap<String> intMap = new DemoIntObjectHashMap<>();
+        DemoLongObjectHashMap<String> longMap = new DemoLongObjectHashMap<>();
+        Map<Integer, String> expected = new HashMap<>();
+        Random random = new Random(3);
+        for (int i = 0; i < 200_000; i++) {
+            int k = random.nextInt(10_000);
+            String v = random.nextInt(20) == 0 ? null : "v" + i;
+            if (random.nextInt(3) == 0) {
+                String old = expected.remove(k);
+                assertEquals(old, intMap.remove(k));
+                assertEquals(old, longMap.remove(k));
+            }
+            else {
+                String old = expected.put(k, v);
+                assertEquals(old, intMap.put(k, v));
+                assertEquals(old, longMap.put(k, v));
+            }
+        }
+        assertEquals(expected.size(), intMap.size());
+        assertEquals(expected.size(), longMap.size());
+        for (int k = 0; k < 10_000; k++) {
+            assertEquals(expected.get(k), intMap.get(k));
+            assertEquals(expected.containsKey(k), longMap.containsKey(k));
+            assertEquals(expected.getOrDefault(k, "none"), longMap.getOrDefault(k, "none"));
+        }
+    }
+
+    /**
+     * 删除空出来的entry先被复用；clear保留数组，清空后还能正常使用
+     */
+    @Test
+    void freedEntriesAreReusedAndClearKeepsArrays() {
+        DemoLongObjectHashMap<Object> map = new DemoLongObjectHashMap<>(1_000);
+        for (long k = 0; k < 1_000; k++)
+            map.put(k, k);
+        long[] keys = map.keys;
+        int allocated = map.allocated;
+        for (long k = 0; k < 500; k++)
+            map.remove(k);
+        for (long k = 1_000; k < 1_500; k++)
+            map.put(k, k);
+        assertEquals(allocated, map.allocated);
+        assertSame(keys, map.keys);
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertFalse(map.containsKey(600));
+        assertSame(keys, map.keys);
+        map.put(7, "x");
+        assertEquals("x", map.get(7));
+        assertEquals(null, map.get(8));
+    }
+}
@@ -0,0 +1,117 @@
+package org.example.hashmap;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DemoSwissHashMapTest {
+
+    @Test
+    void matchesHashMap() {
+        DemoSwissHashMap<Integer, Integer> map = new DemoSwissHashMap<>();
+        Map<Integer, Integer> expected = new HashMap<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 300_000; i++) {
+            // 偶尔用null作key和value
+            Integer k = random.nextInt(100) == 0 ? null : random.nextInt(20_000);
+            switch (random.nextInt(3)) {
+                case 0:
+                    Integer v = random.nextInt(50) == 0 ? null : random.nextInt();
+                    assertEquals(expected.put(k, v), map.put(k, v));
+                    break;
+                case 1:
+                    assertEquals(expected.remove(k), map.remove(k));
+                    break;
+                default:
+                    assertEquals(expected.get(k), map.get(k));
+                    assertEquals(expected.containsKey(k), map.containsKey(k));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (Map.Entry<Integer, Integer> e : expected.entrySet())
+            assertEquals(e.getValue(), map.get(e.getKey()));
+    }
+
+    /**
+     * hashCode只有4个取值的key，每次都要在同一条探测序列上比较h2和equals
+     */
+    @Test
+    void collidingKeysMatchHashMap() {
+        DemoSwissHashMap<DemoConcurrentHashMapTest.CollidingKey, Integer> map = new DemoSwissHashMap<>();
+        Map<DemoConcurrentHashMapTest.CollidingKey, Integer> expected = new HashMap<>();
+        Random random = new Random(2);
+        for (int i = 0; i < 20_000; i++) {
+            DemoConcurrentHashMapTest.CollidingKey k =
+                    new DemoConcurrentHashMapTest.CollidingKey(random.nextInt(300), true);
+            if (random.nextInt(3) == 0)
+                assertEquals(expected.remove(k), map.remove(k));
+            else
+                assertEquals(expected.put(k, i), map.put(k, i));
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<DemoConcurrentHashMapTest.CollidingKey, Integer> e : expected.entrySet())
+            assertEquals(e.getValue(), map.get(e.getKey()));
+    }
+
+    /**
+     * 元素个数不变的删旧放新会留下墓碑，墓碑由按原大小重建回收，容量不会一直翻倍
+     * (负载超过7/16时第一次重建会翻倍一次，之后都按原大小重建)
+     */
+    @Test
+    void churnReclaimsTombstonesWithoutGrowing() {
+        int n = 10_000;
+        DemoSwissHashMap<Integer, Integer> map = new DemoSwissHashMap<>(n);
+        for (int i = 0; i < n; i++)
+            map.put(i, i);
+        for (int i = n; i < 5 * n; i++) {
+            map.remove(i - n);
+            map.put(i, i);
+        }
+        int capacity = map.ctrl.length * DemoSwissHashMap.GROUP_WIDTH;
+        for (int i = 5 * n; i < 50 * n; i++) {
+            assertEquals(i - n, map.remove(i - n));
+            assertEquals(null, map.put(i, i));
+        }
+        assertEquals(n, map.size());
+        assertEquals(capacity, map.ctrl.length * DemoSwissHashMap.GROUP_WIDTH);
+        for (int i = 49 * n; i < 50 * n; i++)
+            assertEquals(i, map.get(i));
+        assertFalse(map.containsKey(0));
+    }
+
+    /**
+     * 按expectedSize建的表，放到expectedSize个元素都不需要重建
+     */
+    @Test
+    void expectedSizeAvoidsRehash() {
+        int n = 100_000;
+        DemoSwissHashMap<Integer, Integer> map = new DemoSwissHashMap<>(n);
+        long[] ctrl = map.ctrl;
+        for (int i = 0; i < n; i++)
+            map.put(i, i);
+        assertSame(ctrl, map.ctrl);
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertEquals(null, map.get(1));
+        map.put(1, 1);
+        assertEquals(1, map.get(1));
+    }
+
+    /**
+     * 容量上限保证table = new Object[capacity << 1]不会溢出
+     */
+    @Test
+    void capacityIsBoundedByArrayLength() {
+        assertEquals(DemoSwissHashMap.MAXIMUM_CAPACITY, DemoSwissHashMap.capacityFor(Integer.MAX_VALUE));
+        assertTrue(DemoSwissHashMap.MAXIMUM_CAPACITY << 1 > 0);
+        assertEquals(DemoSwissHashMap.GROUP_WIDTH, DemoSwissHashMap.capacityFor(0));
+        assertEquals(16, DemoSwissHashMap.capacityFor(8));
+    }
+}
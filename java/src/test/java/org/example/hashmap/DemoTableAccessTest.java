@@ -0,0 +1,74 @@
+package org.example.hashmap;
+
+import org.example.VersionedClasses;
+import org.junit.jupiter.api.Test;
+
+import java.lang.invoke.VarHandle;
+import java.net.URLClassLoader;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Java 8的Unsafe实现和多版本jar里Java 9的VarHandle实现跑同样的并发读写
+ */
+class DemoTableAccessTest {
+
+    @Test
+    void unsafeBackend() throws Exception {
+        assertEquals(sun.misc.Unsafe.class, DemoTableAccess.class.getDeclaredField("U").getType());
+        assertEquals(0, Workload.run(4, 100_000));
+    }
+
+    @Test
+    void varHandleBackend() throws Exception {
+        try (URLClassLoader loader = VersionedClasses.loader(9, DemoTableAccessTest.class)) {
+            Class<?> access = loader.loadClass(DemoTableAccess.class.getName());
+            assertEquals(VarHandle.class, access.getDeclaredField("TAB").getType());
+            Class<?> workload = loader.loadClass(Workload.class.getName());
+            assertEquals(0, workload.getMethod("run", int.class, int.class).invoke(null, 4, 100_000));
+        }
+    }
+
+    /**
+     * 每个线程放入自己的key区间触发并发扩容，另有一个线程一直读已经放进去的key，返回读错和丢失的个数
+     */
+    public static final class Workload {
+
+        public static int run(int threads, int perThread) throws InterruptedException {
+            DemoConcurrentHashMap<Integer, Integer> map = new DemoConcurrentHashMap<>();
+            int existing = 1_000;
+            for (int i = 0; i < existing; i++)
+                map.put(-1 - i, i);
+            int[] errors = new int[1];
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                int base = t * perThread;
+                workers[t] = new Thread(() -> {
+                    for (int i = base; i < base + perThread; i++)
+                        map.put(i, i);
+                });
+            }
+            Thread reader = new Thread(() -> {
+                for (int r = 0; r < 100; r++) {
+                    for (int i = 0; i < existing; i++) {
+                        if (!Integer.valueOf(i).equals(map.get(-1 - i)))
+                            errors[0]++;
+                    }
+                }
+            });
+            reader.start();
+            for (Thread t : workers)
+                t.start();
+            for (Thread t : workers)
+                t.join();
+            reader.join();
+            for (int i = 0; i < threads * perThread; i++) {
+                if (!Integer.valueOf(i).equals(map.get(i)))
+                    errors[0]++;
+            }
+            if (map.size() != existing + threads * perThread)
+                errors[0]++;
+            return errors[0];
+        }
+    }
+}